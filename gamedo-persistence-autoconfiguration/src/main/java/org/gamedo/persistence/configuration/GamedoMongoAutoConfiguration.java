@@ -1,54 +1,236 @@
 package org.gamedo.persistence.configuration;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.GamedoReactiveMongoTemplate;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.cache.EntityCache;
+import org.gamedo.persistence.changestream.ChangeStreamConfig;
+import org.gamedo.persistence.changestream.EntityChangeWatcher;
+import org.gamedo.persistence.changestream.MongoResumeTokenStore;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.db.CompactUpdater;
+import org.gamedo.persistence.db.IUpdaterFactory;
+import org.gamedo.persistence.db.Updater;
+import org.gamedo.persistence.db.DirtyEntities;
+import org.gamedo.persistence.executor.OrderedLaneExecutor;
+import org.gamedo.persistence.executor.PersistenceExecutor;
+import org.gamedo.persistence.journal.WriteJournal;
 import org.gamedo.persistence.listeners.ComponentDbDataAfterLoadEventListener;
 import org.gamedo.persistence.listeners.ComponentDbDataBeforeSaveEventListener;
 import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
 import org.gamedo.persistence.listeners.EntityDbDataBeforeSaveEventListener;
+import org.gamedo.persistence.metrics.IPersistenceMetrics;
+import org.gamedo.persistence.metrics.MicrometerPersistenceMetrics;
+import org.gamedo.persistence.storage.DeflateCompressor;
+import org.gamedo.persistence.storage.ICompressor;
+import org.gamedo.persistence.version.IVersionConflictHandler;
+import org.springframework.beans.factory.BeanFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.AutoConfigurationPackages;
 import org.springframework.boot.autoconfigure.AutoConfigureAfter;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnMissingBean;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.boot.autoconfigure.data.mongo.MongoDataAutoConfiguration;
+import org.springframework.boot.autoconfigure.data.mongo.MongoReactiveDataAutoConfiguration;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.MongoDatabaseFactory;
 import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 
 @Configuration(proxyBeanMethods = false)
 @ConditionalOnClass(MongoTemplate.class)
-@AutoConfigureAfter(MongoDataAutoConfiguration.class)
+@AutoConfigureAfter(value = {MongoDataAutoConfiguration.class, MongoReactiveDataAutoConfiguration.class},
+        name = "org.springframework.boot.actuate.autoconfigure.metrics.CompositeMeterRegistryAutoConfiguration")
+@EnableConfigurationProperties(GamedoPersistenceProperties.class)
 public class GamedoMongoAutoConfiguration {
 
+    @Bean
+    @ConditionalOnMissingBean(PersistenceExecutor.class)
+    PersistenceExecutor gamedoPersistenceExecutor(GamedoPersistenceProperties properties) {
+        return new PersistenceExecutor(properties.getExecutor().toConfig());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(OrderedLaneExecutor.class)
+    OrderedLaneExecutor gamedoOrderedLaneExecutor(GamedoPersistenceProperties properties) {
+        return new OrderedLaneExecutor(properties.getLane().isMergeEnabled());
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(IUpdaterFactory.class)
+    IUpdaterFactory gamedoUpdaterFactory(GamedoPersistenceProperties properties) {
+        return properties.getUpdater().isCompactEnabled() ? CompactUpdater::new : Updater::new;
+    }
+
+    @Bean
+    @ConditionalOnMissingBean(PersistenceSettings.class)
+    PersistenceSettings gamedoPersistenceSettings(IUpdaterFactory updaterFactory,
+                                                  ObjectProvider<IPersistenceMetrics> persistenceMetrics,
+                                                  ObjectProvider<ICompressor> compressor,
+                                                  GamedoPersistenceProperties properties) {
+        final PersistenceSettings settings = new PersistenceSettings();
+        settings.setUpdaterFactory(updaterFactory);
+        settings.setStorageConfig(properties.getStorage().toConfig().toBuilder()
+                .compressor(compressor.getIfAvailable(() ->
+                        new DeflateCompressor(properties.getStorage().getCompressionLevel())))
+                .build());
+        settings.setWholeFieldRatio(properties.getUpdater().getWholeFieldRatio());
+        if (properties.getUpdater().isDirtyRegistryEnabled()) {
+            settings.setDirtyEntities(new DirtyEntities());
+        }
+        persistenceMetrics.ifAvailable(settings::setMetrics);
+        return settings;
+    }
+
     @Bean
     @ConditionalOnBean(MongoTemplate.class)
     @ConditionalOnMissingBean(GamedoMongoTemplate.class)
-    GamedoMongoTemplate gamedoMongoTemplate(MongoTemplate mongoTemplate) {
-        return new GamedoMongoTemplate(mongoTemplate);
+    GamedoMongoTemplate gamedoMongoTemplate(MongoTemplate mongoTemplate,
+                                            PersistenceExecutor persistenceExecutor,
+                                            OrderedLaneExecutor orderedLaneExecutor,
+                                            ObjectProvider<IVersionConflictHandler> versionConflictHandler,
+                                            ObjectProvider<DbDataTypeRegistry> typeRegistry,
+                                            PersistenceSettings settings,
+                                            GamedoPersistenceProperties properties) {
+        final GamedoMongoTemplate gamedoMongoTemplate = new GamedoMongoTemplate(mongoTemplate,
+                persistenceExecutor,
+                orderedLaneExecutor,
+                typeRegistry.getIfAvailable(),
+                settings);
+        gamedoMongoTemplate.setBatchLoadConfig(properties.getBatchLoad().toConfig());
+        gamedoMongoTemplate.setScanConfig(properties.getScan().toConfig());
+        gamedoMongoTemplate.setRawBsonRead(properties.getLazyComponent().isRawBson());
+        versionConflictHandler.ifAvailable(gamedoMongoTemplate::setVersionConflictHandler);
+        return gamedoMongoTemplate;
+    }
+
+    @Bean
+    @ConditionalOnBean(GamedoMongoTemplate.class)
+    @ConditionalOnMissingBean(EntityCache.class)
+    @ConditionalOnProperty(prefix = "gamedo.persistence.cache", name = "enabled", havingValue = "true")
+    EntityCache gamedoEntityCache(GamedoMongoTemplate gamedoMongoTemplate, GamedoPersistenceProperties properties) {
+        final EntityCache entityCache = new EntityCache(gamedoMongoTemplate, properties.getCache().toConfig());
+        gamedoMongoTemplate.setEntityCache(entityCache);
+        entityCache.start();
+        return entityCache;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnBean(GamedoMongoTemplate.class)
+    @ConditionalOnMissingBean(WriteJournal.class)
+    @ConditionalOnProperty(prefix = "gamedo.persistence.journal", name = "enabled", havingValue = "true")
+    WriteJournal gamedoWriteJournal(GamedoMongoTemplate gamedoMongoTemplate, GamedoPersistenceProperties properties) {
+        final WriteJournal writeJournal = new WriteJournal(properties.getJournal().toConfig(),
+                gamedoMongoTemplate.getMongoDatabaseFactory().getCodecRegistry());
+        gamedoMongoTemplate.setWriteJournal(writeJournal);
+        gamedoMongoTemplate.replayWriteJournal();
+        return writeJournal;
+    }
+
+    @Bean(destroyMethod = "close")
+    @ConditionalOnBean(EntityCache.class)
+    @ConditionalOnMissingBean(EntityChangeWatcher.class)
+    @ConditionalOnProperty(prefix = "gamedo.persistence.change-stream", name = "enabled", havingValue = "true")
+    EntityChangeWatcher gamedoEntityChangeWatcher(GamedoMongoTemplate gamedoMongoTemplate,
+                                                  DbDataTypeRegistry typeRegistry,
+                                                  GamedoPersistenceProperties properties) {
+        final ChangeStreamConfig config = properties.getChangeStream().toConfig();
+        final EntityChangeWatcher watcher = new EntityChangeWatcher(gamedoMongoTemplate,
+                config,
+                new MongoResumeTokenStore(gamedoMongoTemplate, config.getResumeTokenCollection()),
+                typeRegistry);
+        properties.getChangeStream().getEntityClasses().forEach(watcher::register);
+        watcher.start();
+        return watcher;
+    }
+
+    @Bean
+    @ConditionalOnBean(MongoConverter.class)
+    @ConditionalOnMissingBean(DbDataTypeRegistry.class)
+    DbDataTypeRegistry gamedoDbDataTypeRegistry(MongoConverter mongoConverter, BeanFactory beanFactory) {
+        final DbDataTypeRegistry typeRegistry = new DbDataTypeRegistry(mongoConverter);
+        if (AutoConfigurationPackages.has(beanFactory)) {
+            typeRegistry.scan(AutoConfigurationPackages.get(beanFactory).toArray(new String[0]));
+        }
+        return typeRegistry;
     }
 
     @Bean
     @ConditionalOnBean(MongoConverter.class)
-    EntityDbDataBeforeSaveEventListener entityDbDataBeforeSaveEventListener(MongoConverter mongoConverter) {
-        return new EntityDbDataBeforeSaveEventListener(mongoConverter);
+    EntityDbDataBeforeSaveEventListener entityDbDataBeforeSaveEventListener(MongoConverter mongoConverter,
+                                                                            DbDataTypeRegistry typeRegistry,
+                                                                            PersistenceSettings settings) {
+        return new EntityDbDataBeforeSaveEventListener(mongoConverter, typeRegistry, settings);
     }
 
     @Bean
     @ConditionalOnBean(MongoConverter.class)
-    EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener(MongoConverter mongoConverter) {
-        return new EntityDbDataAfterLoadEventListener(mongoConverter);
+    EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener(MongoConverter mongoConverter,
+                                                                          DbDataTypeRegistry typeRegistry,
+                                                                          PersistenceSettings settings,
+                                                                          GamedoPersistenceProperties properties) {
+        final EntityDbDataAfterLoadEventListener listener = new EntityDbDataAfterLoadEventListener(mongoConverter,
+                typeRegistry,
+                settings);
+        listener.setLazyComponent(properties.getLazyComponent().isEnabled());
+        return listener;
     }
 
     @Bean
     @ConditionalOnBean(MongoConverter.class)
-    ComponentDbDataBeforeSaveEventListener componentDbDataBeforeSaveEventListener() {
-        return new ComponentDbDataBeforeSaveEventListener();
+    ComponentDbDataBeforeSaveEventListener componentDbDataBeforeSaveEventListener(DbDataTypeRegistry typeRegistry,
+                                                                                  PersistenceSettings settings) {
+        return new ComponentDbDataBeforeSaveEventListener(typeRegistry, settings);
     }
 
 
     @Bean
     @ConditionalOnBean(MongoConverter.class)
-    ComponentDbDataAfterLoadEventListener componentDbDataAfterLoadEventListener() {
-        return new ComponentDbDataAfterLoadEventListener();
+    ComponentDbDataAfterLoadEventListener componentDbDataAfterLoadEventListener(DbDataTypeRegistry typeRegistry,
+                                                                                PersistenceSettings settings) {
+        return new ComponentDbDataAfterLoadEventListener(typeRegistry, settings);
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = "io.micrometer.core.instrument.MeterRegistry")
+    static class GamedoMetricsConfiguration {
+
+        @Bean
+        @ConditionalOnBean({MeterRegistry.class, MongoDatabaseFactory.class})
+        @ConditionalOnMissingBean(IPersistenceMetrics.class)
+        IPersistenceMetrics gamedoPersistenceMetrics(MeterRegistry meterRegistry,
+                                                     MongoDatabaseFactory mongoDatabaseFactory,
+                                                     PersistenceExecutor persistenceExecutor,
+                                                     OrderedLaneExecutor orderedLaneExecutor) {
+            return new MicrometerPersistenceMetrics(meterRegistry, mongoDatabaseFactory.getCodecRegistry())
+                    .bind(persistenceExecutor)
+                    .bind(orderedLaneExecutor);
+        }
+    }
+
+    @Configuration(proxyBeanMethods = false)
+    @ConditionalOnClass(name = {"reactor.core.publisher.Flux", "com.mongodb.reactivestreams.client.MongoClient"})
+    static class GamedoReactiveMongoConfiguration {
+
+        @Bean
+        @ConditionalOnBean(ReactiveMongoTemplate.class)
+        @ConditionalOnMissingBean(GamedoReactiveMongoTemplate.class)
+        GamedoReactiveMongoTemplate gamedoReactiveMongoTemplate(ReactiveMongoTemplate reactiveMongoTemplate,
+                                                                ObjectProvider<DbDataTypeRegistry> typeRegistry,
+                                                                ObjectProvider<PersistenceSettings> settings,
+                                                                GamedoPersistenceProperties properties) {
+            final GamedoReactiveMongoTemplate gamedoReactiveMongoTemplate = new GamedoReactiveMongoTemplate(reactiveMongoTemplate,
+                    typeRegistry.getIfAvailable(),
+                    settings.getIfAvailable());
+            gamedoReactiveMongoTemplate.setConcurrency(properties.getReactive().getConcurrency());
+            gamedoReactiveMongoTemplate.setBatchLoadConfig(properties.getBatchLoad().toConfig());
+            return gamedoReactiveMongoTemplate;
+        }
     }
 }
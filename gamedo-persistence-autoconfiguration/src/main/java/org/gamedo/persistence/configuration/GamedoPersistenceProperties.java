@@ -0,0 +1,327 @@
+package org.gamedo.persistence.configuration;
+
+import lombok.Data;
+import org.gamedo.persistence.BatchLoadConfig;
+import org.gamedo.persistence.GamedoReactiveMongoTemplate;
+import org.gamedo.persistence.ScanConfig;
+import org.gamedo.persistence.cache.EntityCacheConfig;
+import org.gamedo.persistence.changestream.ChangeStreamConfig;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.track.Trackables;
+import org.gamedo.persistence.executor.PersistenceExecutorConfig;
+import org.gamedo.persistence.journal.JournalConfig;
+import org.gamedo.persistence.storage.ICompressor;
+import org.gamedo.persistence.storage.StorageConfig;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * gamedo-persistence的配置，前缀为：gamedo.persistence
+ */
+@Data
+@ConfigurationProperties(prefix = "gamedo.persistence")
+public class GamedoPersistenceProperties {
+
+    /**
+     * 持久化线程池的配置
+     */
+    private Executor executor = new Executor();
+    /**
+     * 按id保序的写通道的配置
+     */
+    private Lane lane = new Lane();
+    /**
+     * 批量加载的配置
+     */
+    private BatchLoad batchLoad = new BatchLoad();
+    /**
+     * 全表扫描的配置
+     */
+    private Scan scan = new Scan();
+    /**
+     * 实体缓存的配置
+     */
+    private Cache cache = new Cache();
+    /**
+     * 响应式模板的配置
+     */
+    private Reactive reactive = new Reactive();
+    /**
+     * 增量更新器的配置
+     */
+    private Updater updater = new Updater();
+    /**
+     * 基于change stream的缓存失效的配置
+     */
+    private ChangeStream changeStream = new ChangeStream();
+    /**
+     * 本地写前日志的配置
+     */
+    private Journal journal = new Journal();
+    /**
+     * 组件懒加载的配置
+     */
+    private LazyComponent lazyComponent = new LazyComponent();
+    /**
+     * 组件存储方式以及文档大小检查的配置
+     */
+    private Storage storage = new Storage();
+
+    @Data
+    public static class Cache {
+        /**
+         * 是否启用实体缓存
+         */
+        private boolean enabled = false;
+        /**
+         * 最多缓存的实体数量
+         */
+        private int maxSize = EntityCacheConfig.DEFAULT.getMaxSize();
+        /**
+         * 缓存被划分的段数，每个段独立加锁
+         */
+        private int concurrencyLevel = EntityCacheConfig.DEFAULT.getConcurrencyLevel();
+        /**
+         * 实体在超过该时长未被访问后被淘汰
+         */
+        private Duration expireAfterAccess = EntityCacheConfig.DEFAULT.getExpireAfterAccess();
+        /**
+         * 两次空闲清理之间的时间间隔
+         */
+        private Duration sweepInterval = EntityCacheConfig.DEFAULT.getSweepInterval();
+
+        EntityCacheConfig toConfig() {
+            return EntityCacheConfig.builder()
+                    .maxSize(maxSize)
+                    .concurrencyLevel(concurrencyLevel)
+                    .expireAfterAccess(expireAfterAccess)
+                    .sweepInterval(sweepInterval)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class ChangeStream {
+        /**
+         * 是否启用基于change stream的缓存失效（需要同时启用实体缓存，mongoDB需要以副本集的方式运行）
+         */
+        private boolean enabled = false;
+        /**
+         * 当前节点的名称，同一个副本集上的多个节点必须使用不同的名称
+         */
+        private String nodeName = ChangeStreamConfig.DEFAULT.getNodeName();
+        /**
+         * 其他节点修改了缓存中的实体时的处理方式
+         */
+        private ChangeStreamConfig.Mode mode = ChangeStreamConfig.DEFAULT.getMode();
+        /**
+         * 要监听的实体类型
+         */
+        private List<Class<? extends EntityDbData>> entityClasses = new ArrayList<>();
+        /**
+         * 持久化resume token的collection
+         */
+        private String resumeTokenCollection = ChangeStreamConfig.DEFAULT.getResumeTokenCollection();
+        /**
+         * 两次持久化resume token之间的最小时间间隔
+         */
+        private Duration resumeTokenSaveInterval = ChangeStreamConfig.DEFAULT.getResumeTokenSaveInterval();
+        /**
+         * 监听出错后，重新监听之前的等待时间
+         */
+        private Duration reconnectInterval = ChangeStreamConfig.DEFAULT.getReconnectInterval();
+
+        ChangeStreamConfig toConfig() {
+            return ChangeStreamConfig.builder()
+                    .nodeName(nodeName)
+                    .mode(mode)
+                    .resumeTokenCollection(resumeTokenCollection)
+                    .resumeTokenSaveInterval(resumeTokenSaveInterval)
+                    .reconnectInterval(reconnectInterval)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class LazyComponent {
+        /**
+         * 是否启用组件的懒加载：加载实体时只保留组件的内嵌文档，第一次访问时才转换，从未被访问过的组件在完整存储时原样写回
+         */
+        private boolean enabled = false;
+        /**
+         * 是否以RawBsonDocument读取实体：可以懒加载的组件以原始字节的切片保留，不会被解码为Document，从未被访问过的组件在完整存储时
+         * 原样写回这些切片。该选项作用于GamedoMongoTemplate的findById以及findEntityDbDataByIdAsync，不依赖于enabled
+         */
+        private boolean rawBson = false;
+    }
+
+    @Data
+    public static class Journal {
+        /**
+         * 是否启用本地写前日志，启用后，启动时会先重放上次未被确认的写操作
+         */
+        private boolean enabled = false;
+        /**
+         * 日志段文件所在的目录
+         */
+        private String directory = JournalConfig.DEFAULT.getDirectory();
+        /**
+         * 单个日志段文件的大小（字节）
+         */
+        private int segmentSize = JournalConfig.DEFAULT.getSegmentSize();
+        /**
+         * 组提交（fsync）的时间间隔
+         */
+        private Duration groupCommitInterval = JournalConfig.DEFAULT.getGroupCommitInterval();
+        /**
+         * 最旧的日志段中未被确认的日志不超过该数量时，复制这些日志并回收该日志段
+         */
+        private int compactMaxLiveEntries = JournalConfig.DEFAULT.getCompactMaxLiveEntries();
+
+        JournalConfig toConfig() {
+            return JournalConfig.builder()
+                    .directory(directory)
+                    .segmentSize(segmentSize)
+                    .groupCommitInterval(groupCommitInterval)
+                    .compactMaxLiveEntries(compactMaxLiveEntries)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class Lane {
+        /**
+         * 是否合并同一个文档中尚未执行的写操作（后续的完整存储取代之前的更新，相邻的增量更新合并为一个）
+         */
+        private boolean mergeEnabled = false;
+    }
+
+    @Data
+    public static class Updater {
+        /**
+         * 是否使用{@link org.gamedo.persistence.db.CompactUpdater}作为增量更新器（只保留每个字段最新的值，并推迟到存盘时才进行类型转换）
+         */
+        private boolean compactEnabled = false;
+        /**
+         * 可追踪容器（{@link org.gamedo.persistence.db.track.TrackedMap}等）中被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set
+         */
+        private double wholeFieldRatio = Trackables.DEFAULT_WHOLE_FIELD_RATIO;
+        /**
+         * 是否为GamedoMongoTemplate启用已被标脏的实体的注册表（{@link org.gamedo.persistence.db.DirtyEntities}），启用后需要定期调用
+         * gamedoMongoTemplate.getSettings().getDirtyEntities().drain取出被标脏的实体
+         */
+        private boolean dirtyRegistryEnabled = false;
+    }
+
+    @Data
+    public static class Storage {
+        /**
+         * 编码后小于该大小（字节）的压缩组件不会被压缩
+         */
+        private int compressThreshold = StorageConfig.DEFAULT.getCompressThreshold();
+        /**
+         * 存储时，编码后的文档超过该大小（字节）会打印警告日志，小于等于0时不检查
+         */
+        private int sizeWarnThreshold = StorageConfig.DEFAULT.getSizeWarnThreshold();
+        /**
+         * 默认压缩算法（deflate）的压缩级别，容器中存在{@link ICompressor}时无效
+         */
+        private int compressionLevel = Deflater.BEST_SPEED;
+
+        StorageConfig toConfig() {
+            return StorageConfig.builder()
+                    .compressThreshold(compressThreshold)
+                    .sizeWarnThreshold(sizeWarnThreshold)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class Reactive {
+        /**
+         * 批量存储、批量更新时，最多同时执行的写操作数量
+         */
+        private int concurrency = GamedoReactiveMongoTemplate.DEFAULT_CONCURRENCY;
+    }
+
+    @Data
+    public static class BatchLoad {
+        /**
+         * 单次$in查询包含的最大id数量
+         */
+        private int chunkSize = BatchLoadConfig.DEFAULT.getChunkSize();
+        /**
+         * 同一次批量加载中，最多同时执行的查询数量
+         */
+        private int parallelism = BatchLoadConfig.DEFAULT.getParallelism();
+
+        BatchLoadConfig toConfig() {
+            return BatchLoadConfig.builder()
+                    .chunkSize(chunkSize)
+                    .parallelism(parallelism)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class Scan {
+        /**
+         * 游标每次从mongoDB拉取的文档数量
+         */
+        private int batchSize = ScanConfig.DEFAULT.getBatchSize();
+        /**
+         * 并行扫描时，按照_id范围拆分的分区数量
+         */
+        private int parallelism = ScanConfig.DEFAULT.getParallelism();
+
+        ScanConfig toConfig() {
+            return ScanConfig.builder()
+                    .batchSize(batchSize)
+                    .parallelism(parallelism)
+                    .build();
+        }
+    }
+
+    @Data
+    public static class Executor {
+        /**
+         * 线程模式
+         */
+        private PersistenceExecutorConfig.Mode mode = PersistenceExecutorConfig.DEFAULT.getMode();
+        /**
+         * 平台线程模式下的线程数量
+         */
+        private int threads = PersistenceExecutorConfig.DEFAULT.getThreads();
+        /**
+         * 等待队列的容量
+         */
+        private int queueCapacity = PersistenceExecutorConfig.DEFAULT.getQueueCapacity();
+        /**
+         * 队列满时的处理策略
+         */
+        private PersistenceExecutorConfig.RejectionPolicy rejectionPolicy = PersistenceExecutorConfig.DEFAULT.getRejectionPolicy();
+        /**
+         * 线程名前缀
+         */
+        private String threadNamePrefix = PersistenceExecutorConfig.DEFAULT.getThreadNamePrefix();
+        /**
+         * 关闭时等待已提交任务执行完毕的最长时间
+         */
+        private Duration shutdownTimeout = PersistenceExecutorConfig.DEFAULT.getShutdownTimeout();
+
+        PersistenceExecutorConfig toConfig() {
+            return PersistenceExecutorConfig.builder()
+                    .mode(mode)
+                    .threads(threads)
+                    .queueCapacity(queueCapacity)
+                    .rejectionPolicy(rejectionPolicy)
+                    .threadNamePrefix(threadNamePrefix)
+                    .shutdownTimeout(shutdownTimeout)
+                    .build();
+        }
+    }
+}
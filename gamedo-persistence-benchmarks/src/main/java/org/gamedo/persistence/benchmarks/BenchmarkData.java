@@ -0,0 +1,144 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.benchmarks.db.ComponentDbComplex;
+import org.gamedo.persistence.benchmarks.db.ComponentDbSimple;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.db.Updater;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.LongStream;
+
+/**
+ * 基准测试所使用的数据和转换器
+ */
+public final class BenchmarkData {
+
+    private BenchmarkData() {
+    }
+
+    /**
+     * 创建一个不依赖mongoDB连接的转换器，并将其设置为{@link Updater}的转换器
+     *
+     * @return 转换器
+     */
+    public static MongoConverter newConverter() {
+        final MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+
+        final MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+
+        Updater.setMongoConverter(converter);
+        return converter;
+    }
+
+    /**
+     * 创建一个包含{@link ComponentDbSimple}和{@link ComponentDbComplex}的实体
+     *
+     * @param size {@link ComponentDbComplex}中每一个集合的元素数量，用于控制文档的大小
+     * @return 实体
+     */
+    public static EntityDbBenchmark newEntity(final int size) {
+        final EntityDbBenchmark entity = new EntityDbBenchmark(new ObjectId().toString(), null);
+
+        final ComponentDbSimple componentDbSimple = new ComponentDbSimple();
+        componentDbSimple.setName("benchmark");
+        componentDbSimple.setLevel(100);
+        componentDbSimple.setExp(Long.MAX_VALUE);
+        entity.addComponentDbData(componentDbSimple);
+        entity.addComponentDbData(newComponentDbComplex(size));
+
+        return entity;
+    }
+
+    public static ComponentDbComplex newComponentDbComplex(final int size) {
+        return ComponentDbComplex.builder()
+                .booleanValue(true)
+                .byteValue((byte) 1)
+                .shortValue((short) 2)
+                .intValue(3)
+                .longValue(4L)
+                .booleanBoxedValue(false)
+                .byteBoxedValue((byte) 5)
+                .shortBoxedValue((short) 6)
+                .intBoxedValue(7)
+                .longBoxedValue(8L)
+                .stringValue("complex")
+                .dateValue(new Date())
+                .innerDataSet(IntStream.range(0, size).mapToObj(i -> newInnerData(i, size)).collect(Collectors.toSet()))
+                .longInnerInnerDataMap(newLongInnerInnerDataMap(size))
+                .build();
+    }
+
+    public static ComponentDbComplex.InnerData newInnerData(final int index, final int size) {
+        return ComponentDbComplex.InnerData.builder()
+                .booleanValue(true)
+                .byteValue((byte) index)
+                .shortValue((short) index)
+                .intValue(index)
+                .longValue(index)
+                .booleanBoxedValue(false)
+                .byteBoxedValue((byte) index)
+                .shortBoxedValue((short) index)
+                .intBoxedValue(index)
+                .longBoxedValue((long) index)
+                .stringValue("inner" + index)
+                .dateValue(new Date())
+                .innerInnerDataSet(IntStream.range(0, Math.min(size, 8))
+                        .mapToObj(BenchmarkData::newInnerInnerData)
+                        .collect(Collectors.toSet()))
+                .longInnerInnerDataMap(newLongInnerInnerDataMap(Math.min(size, 8)))
+                .build();
+    }
+
+    public static ComponentDbComplex.InnerInnerData newInnerInnerData(final int index) {
+        final Set<Long> longSet = LongStream.range(0, 8).boxed().collect(Collectors.toSet());
+        final Map<Long, String> longStringMap = new HashMap<>();
+        final Map<Long, Long> longLongMap = new HashMap<>();
+        longSet.forEach(value -> {
+            longStringMap.put(value, "value" + value);
+            longLongMap.put(value, value);
+        });
+
+        return ComponentDbComplex.InnerInnerData.builder()
+                .booleanValue(true)
+                .byteValue((byte) index)
+                .shortValue((short) index)
+                .intValue(index)
+                .longValue(index)
+                .booleanBoxedValue(false)
+                .byteBoxedValue((byte) index)
+                .shortBoxedValue((short) index)
+                .intBoxedValue(index)
+                .longBoxedValue((long) index)
+                .stringValue("innerInner" + index)
+                .dateValue(new Date())
+                .booleanSet(new HashSet<>(Set.of(true, false)))
+                .shortSet(new HashSet<>(Set.of((short) 1, (short) 2)))
+                .integerSet(new HashSet<>(Set.of(1, 2, 3)))
+                .longSet(longSet)
+                .stringSet(new HashSet<>(Set.of("a", "b", "c")))
+                .longStringMap(longStringMap)
+                .longLongMap(longLongMap)
+                .build();
+    }
+
+    private static Map<Long, ComponentDbComplex.InnerInnerData> newLongInnerInnerDataMap(final int size) {
+        final Map<Long, ComponentDbComplex.InnerInnerData> map = new HashMap<>(size);
+        for (int i = 0; i < size; i++) {
+            map.put((long) i, newInnerInnerData(i));
+        }
+        return map;
+    }
+}
@@ -0,0 +1,71 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.gamedo.persistence.benchmarks.db.ComponentDbComplex;
+import org.gamedo.persistence.benchmarks.db.ComponentDbSimple;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.ComponentSlots;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 按照类型访问组件的开销：{@link EntityDbBenchmark#getComponentDbData(Class)}等方法通过{@link ComponentSlots}以槽位为下标访问数组，
+ * hashMap*作为对照，模拟了原来的实现：每次访问都调用{@link Class#getSimpleName()}，再以该字符串查找HashMap
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ComponentLookupBenchmark {
+
+    private EntityDbBenchmark entity;
+    private Map<String, ComponentDbData<String>> componentDbDataMap;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.newConverter();
+        entity = BenchmarkData.newEntity(1);
+        componentDbDataMap = new HashMap<>();
+        entity.getComponentDbDataCollection()
+                .forEach(componentDbData -> componentDbDataMap.put(componentDbData.getClass().getSimpleName(), componentDbData));
+    }
+
+    @Benchmark
+    public void slotGet(final Blackhole blackhole) {
+        blackhole.consume(entity.getComponentDbData(ComponentDbSimple.class));
+        blackhole.consume(entity.getComponentDbData(ComponentDbComplex.class));
+    }
+
+    @Benchmark
+    public void hashMapGet(final Blackhole blackhole) {
+        blackhole.consume(componentDbDataMap.get(ComponentDbSimple.class.getSimpleName()));
+        blackhole.consume(componentDbDataMap.get(ComponentDbComplex.class.getSimpleName()));
+    }
+
+    @Benchmark
+    public void slotHas(final Blackhole blackhole) {
+        blackhole.consume(entity.hasComponentDbData(ComponentDbSimple.class));
+        blackhole.consume(entity.hasComponentDbData(ComponentDbComplex.class));
+    }
+
+    @Benchmark
+    public void hashMapHas(final Blackhole blackhole) {
+        blackhole.consume(componentDbDataMap.containsKey(ComponentDbSimple.class.getSimpleName()));
+        blackhole.consume(componentDbDataMap.containsKey(ComponentDbComplex.class.getSimpleName()));
+    }
+}
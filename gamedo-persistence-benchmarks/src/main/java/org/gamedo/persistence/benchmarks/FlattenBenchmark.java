@@ -0,0 +1,61 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.bson.Document;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.listeners.EntityDbDataBeforeSaveEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 存储路径的开销：{@link MongoConverter#write}以及{@link EntityDbDataBeforeSaveEventListener#flatten}打散组件map，writeOnly作为
+ * 对照组，两者之差即为打散本身的开销
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class FlattenBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int size;
+
+    private MongoConverter converter;
+    private EntityDbDataBeforeSaveEventListener listener;
+    private EntityDbBenchmark entity;
+
+    @Setup
+    public void setup() {
+        converter = BenchmarkData.newConverter();
+        listener = new EntityDbDataBeforeSaveEventListener(converter);
+        entity = BenchmarkData.newEntity(size);
+    }
+
+    @Benchmark
+    public Document writeOnly() {
+        final Document document = new Document();
+        converter.write(entity, document);
+        return document;
+    }
+
+    @Benchmark
+    public Document writeAndFlatten() {
+        final Document document = new Document();
+        converter.write(entity, document);
+        listener.flatten(entity, document);
+        return document;
+    }
+}
@@ -0,0 +1,115 @@
+package org.gamedo.persistence.benchmarks;
+
+import com.mongodb.client.result.UpdateResult;
+import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.benchmarks.db.ComponentDbSimple;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.executor.PersistenceExecutor;
+import org.gamedo.persistence.listeners.ComponentDbDataAfterLoadEventListener;
+import org.gamedo.persistence.listeners.ComponentDbDataBeforeSaveEventListener;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
+import org.gamedo.persistence.listeners.EntityDbDataBeforeSaveEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.context.support.GenericApplicationContext;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.SimpleMongoClientDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 端到端的存储、更新和加载开销，需要一个可用的mongoDB（本地mongod或者任意兼容的替代品），连接串通过系统属性
+ * “gamedo.benchmark.mongo.uri”指定，默认为：mongodb://127.0.0.1:27017/gamedoBenchmark，基准测试结束后会删除所使用的collection
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MongoEndToEndBenchmark {
+
+    private static final String MONGO_URI_PROPERTY = "gamedo.benchmark.mongo.uri";
+    private static final String MONGO_URI_DEFAULT = "mongodb://127.0.0.1:27017/gamedoBenchmark";
+
+    @Param({"1", "10", "100"})
+    private int size;
+
+    private SimpleMongoClientDatabaseFactory databaseFactory;
+    private GenericApplicationContext applicationContext;
+    private PersistenceExecutor persistenceExecutor;
+    private GamedoMongoTemplate gamedoMongoTemplate;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        final MongoConverter converter = BenchmarkData.newConverter();
+
+        //MongoTemplate通过ApplicationContext发布映射事件，注册监听器后，加载路径才会将打散的组件重新组合
+        applicationContext = new GenericApplicationContext();
+        applicationContext.registerBean(EntityDbDataBeforeSaveEventListener.class, () -> new EntityDbDataBeforeSaveEventListener(converter));
+        applicationContext.registerBean(EntityDbDataAfterLoadEventListener.class, () -> new EntityDbDataAfterLoadEventListener(converter));
+        applicationContext.registerBean(ComponentDbDataBeforeSaveEventListener.class, () -> new ComponentDbDataBeforeSaveEventListener());
+        applicationContext.registerBean(ComponentDbDataAfterLoadEventListener.class, () -> new ComponentDbDataAfterLoadEventListener());
+        applicationContext.refresh();
+
+        databaseFactory = new SimpleMongoClientDatabaseFactory(System.getProperty(MONGO_URI_PROPERTY, MONGO_URI_DEFAULT));
+        final MongoTemplate mongoTemplate = new MongoTemplate(databaseFactory, converter);
+        mongoTemplate.setApplicationContext(applicationContext);
+
+        persistenceExecutor = new PersistenceExecutor();
+        gamedoMongoTemplate = new GamedoMongoTemplate(mongoTemplate, persistenceExecutor);
+        gamedoMongoTemplate.dropCollection(EntityDbBenchmark.class);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        gamedoMongoTemplate.dropCollection(EntityDbBenchmark.class);
+        persistenceExecutor.close();
+        applicationContext.close();
+        databaseFactory.destroy();
+    }
+
+    @State(Scope.Thread)
+    public static class EntityState {
+        private EntityDbBenchmark entity;
+        private ComponentDbSimple componentDbSimple;
+
+        @Setup(Level.Trial)
+        public void setup(MongoEndToEndBenchmark benchmark) {
+            entity = BenchmarkData.newEntity(benchmark.size);
+            componentDbSimple = entity.getComponentDbData(ComponentDbSimple.class);
+            benchmark.gamedoMongoTemplate.saveDbDataAsync(entity).join();
+        }
+    }
+
+    @Benchmark
+    public EntityDbBenchmark saveDbDataAsync(EntityState state) {
+        return gamedoMongoTemplate.saveDbDataAsync(state.entity).join();
+    }
+
+    @Benchmark
+    public UpdateResult updateEntityDirtyAsync(EntityState state) {
+        final ComponentDbSimple componentDbSimple = state.componentDbSimple;
+        componentDbSimple.setExp(componentDbSimple.getExp() + 1);
+        componentDbSimple.update("exp", componentDbSimple.getExp());
+
+        return gamedoMongoTemplate.updateEntityDirtyAsync(state.entity).join();
+    }
+
+    @Benchmark
+    public EntityDbBenchmark findById(EntityState state) {
+        return gamedoMongoTemplate.findById(state.entity.getId(), EntityDbBenchmark.class);
+    }
+}
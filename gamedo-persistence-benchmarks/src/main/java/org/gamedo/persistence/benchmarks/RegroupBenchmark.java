@@ -0,0 +1,63 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.bson.Document;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.convert.DbDataWriter;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 加载路径的开销：{@link EntityDbDataAfterLoadEventListener#onAfterLoad}将打散的组件重新组合，以及随后的{@link MongoConverter#read}。
+ * 由于重新组合会修改文档的顶层字段，每次调用前都会浅拷贝一次打散后的文档，浅拷贝的开销包含在结果中
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RegroupBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int size;
+
+    private MongoConverter converter;
+    private EntityDbDataAfterLoadEventListener listener;
+    private Document flattened;
+
+    @Setup
+    public void setup() {
+        converter = BenchmarkData.newConverter();
+        listener = new EntityDbDataAfterLoadEventListener(converter);
+        flattened = new DbDataWriter(converter).write(BenchmarkData.newEntity(size));
+    }
+
+    @Benchmark
+    public Document regroup() {
+        final Document document = new Document(flattened);
+        listener.onAfterLoad(new AfterLoadEvent<>(document, EntityDbData.class, "benchmark"));
+        return document;
+    }
+
+    @Benchmark
+    public EntityDbBenchmark regroupAndRead() {
+        final Document document = new Document(flattened);
+        listener.onAfterLoad(new AfterLoadEvent<>(document, EntityDbData.class, "benchmark"));
+        return converter.read(EntityDbBenchmark.class, document);
+    }
+}
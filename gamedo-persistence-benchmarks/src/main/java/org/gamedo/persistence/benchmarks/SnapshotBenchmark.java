@@ -0,0 +1,47 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.bson.Document;
+import org.gamedo.persistence.benchmarks.db.EntityDbBenchmark;
+import org.gamedo.persistence.convert.DbDataWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * saveDbDataAsync在调用线程上的开销：{@link DbDataWriter#write}将实体一次性转换为最终要存储的文档（快照），这部分开销由业务线程承担
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SnapshotBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int size;
+
+    private DbDataWriter dbDataWriter;
+    private EntityDbBenchmark entity;
+
+    @Setup
+    public void setup() {
+        dbDataWriter = new DbDataWriter(BenchmarkData.newConverter());
+        entity = BenchmarkData.newEntity(size);
+    }
+
+    @Benchmark
+    public Document snapshot() {
+        return dbDataWriter.write(entity);
+    }
+}
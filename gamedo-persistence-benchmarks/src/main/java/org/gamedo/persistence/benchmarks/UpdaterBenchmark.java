@@ -0,0 +1,103 @@
+package org.gamedo.persistence.benchmarks;
+
+import org.gamedo.persistence.benchmarks.db.ComponentDbComplex;
+import org.gamedo.persistence.db.CompactUpdater;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updater;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Updater#update(String, Object)}的开销，其中主要是{@link org.springframework.data.mongodb.core.convert.MongoConverter#convertToMongoType}
+ * 的开销，每次调用都使用一个新的更新器，与{@link org.gamedo.persistence.db.Updaters#detach}之后的使用方式一致。以compact开头的测试
+ * 使用{@link CompactUpdater}，并在最后调用{@link CompactUpdater#materialize()}，模拟摘下更新器时的转换
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpdaterBenchmark {
+
+    @Param({"1", "10", "100"})
+    private int size;
+
+    private ComponentDbComplex componentDbComplex;
+
+    @Setup
+    public void setup() {
+        BenchmarkData.newConverter();
+        componentDbComplex = BenchmarkData.newComponentDbComplex(size);
+    }
+
+    @Benchmark
+    public IUpdater updateSimpleValue() {
+        final Updater updater = new Updater("ComponentDbComplex.");
+        updater.update("stringValue", componentDbComplex.getStringValue());
+        return updater;
+    }
+
+    @Benchmark
+    public IUpdater updateInnerDataSet() {
+        final Updater updater = new Updater("ComponentDbComplex.");
+        updater.update("innerDataSet", componentDbComplex.getInnerDataSet());
+        return updater;
+    }
+
+    @Benchmark
+    public IUpdater updateWholeComponent() {
+        final Updater updater = new Updater("");
+        updater.update("ComponentDbComplex", componentDbComplex);
+        return updater;
+    }
+
+    @Benchmark
+    public IUpdater compactUpdateSimpleValue() {
+        final CompactUpdater updater = new CompactUpdater("ComponentDbComplex.");
+        updater.update("stringValue", componentDbComplex.getStringValue());
+        updater.materialize();
+        return updater;
+    }
+
+    @Benchmark
+    public IUpdater compactUpdateWholeComponent() {
+        final CompactUpdater updater = new CompactUpdater("");
+        updater.update("ComponentDbComplex", componentDbComplex);
+        updater.materialize();
+        return updater;
+    }
+
+    /**
+     * 同一个字段在两次存盘之间被更新size次
+     */
+    @Benchmark
+    public IUpdater updateHotField() {
+        final Updater updater = new Updater("ComponentDbComplex.");
+        for (int i = 0; i < size; i++) {
+            updater.update("intValue", i);
+        }
+        return updater;
+    }
+
+    @Benchmark
+    public IUpdater compactUpdateHotField() {
+        final CompactUpdater updater = new CompactUpdater("ComponentDbComplex.");
+        for (int i = 0; i < size; i++) {
+            updater.update("intValue", i);
+        }
+        updater.materialize();
+        return updater;
+    }
+}
@@ -0,0 +1,18 @@
+package org.gamedo.persistence.benchmarks.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * 只包含少量简单字段的组件
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("benchmark")
+public class ComponentDbSimple extends ComponentDbData<String> {
+    private String name;
+    private int level;
+    private long exp;
+}
@@ -0,0 +1,14 @@
+package org.gamedo.persistence.benchmarks.db;
+
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Map;
+
+@Document("benchmark")
+public class EntityDbBenchmark extends EntityDbData<String> {
+    public EntityDbBenchmark(String id, Map<String, ComponentDbData<String>> componentDbDataMap) {
+        super(id, componentDbDataMap);
+    }
+}
@@ -0,0 +1,289 @@
+package lombok.javac.handlers;
+
+import com.sun.tools.javac.code.Flags;
+import com.sun.tools.javac.tree.JCTree;
+import com.sun.tools.javac.tree.JCTree.JCAnnotation;
+import com.sun.tools.javac.util.List;
+import com.sun.tools.javac.util.ListBuffer;
+import com.sun.tools.javac.util.Name;
+import lombok.core.AST;
+import lombok.core.AnnotationValues;
+import lombok.javac.JavacAnnotationHandler;
+import lombok.javac.JavacNode;
+import lombok.javac.JavacTreeMaker;
+import org.gamedo.annotation.GamedoCodec;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.kohsuke.MetaInfServices;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+
+import static lombok.javac.Javac.CTC_BOOLEAN;
+import static lombok.javac.Javac.CTC_BYTE;
+import static lombok.javac.Javac.CTC_FLOAT;
+import static lombok.javac.Javac.CTC_SHORT;
+import static lombok.javac.Javac.CTC_VOID;
+import static lombok.javac.handlers.JavacHandlerUtil.*;
+
+@MetaInfServices
+public class HandleGamedoCodec extends JavacAnnotationHandler<GamedoCodec> {
+
+    private static final String CODEC_CLASS_NAME = DbDataCodecRegistry.GENERATED_CODEC_CLASS_NAME;
+    private static final String CODEC_SUPER_CLASS = "org.gamedo.persistence.codec.AbstractDbDataCodec";
+    private static final String FIELD_ANNOTATION = "org.springframework.data.mongodb.core.mapping.Field";
+    private static final String TRANSIENT_ANNOTATION = "org.springframework.data.annotation.Transient";
+    private static final String ID_ANNOTATION = "org.springframework.data.annotation.Id";
+
+    /**
+     * 会生成直接读写代码的字段类型，其余类型的字段由MongoConverter转换
+     */
+    private static final Map<String, FieldCodec> FIELD_CODECS = new HashMap<>();
+
+    static {
+        FIELD_CODECS.put("int", new FieldCodec("readInt32", null));
+        FIELD_CODECS.put("short", new FieldCodec("readInt32", CTC_SHORT));
+        FIELD_CODECS.put("byte", new FieldCodec("readInt32", CTC_BYTE));
+        FIELD_CODECS.put("long", new FieldCodec("readInt64", null));
+        FIELD_CODECS.put("float", new FieldCodec("readDouble", CTC_FLOAT));
+        FIELD_CODECS.put("double", new FieldCodec("readDouble", null));
+        FIELD_CODECS.put("boolean", new FieldCodec("readBoolean", null));
+        for (String prefix : new String[]{"", "java.lang."}) {
+            FIELD_CODECS.put(prefix + "String", new FieldCodec("readString", null));
+            FIELD_CODECS.put(prefix + "Integer", new FieldCodec("readNullableInt32", null));
+            FIELD_CODECS.put(prefix + "Long", new FieldCodec("readNullableInt64", null));
+            FIELD_CODECS.put(prefix + "Double", new FieldCodec("readNullableDouble", null));
+            FIELD_CODECS.put(prefix + "Boolean", new FieldCodec("readNullableBoolean", null));
+        }
+    }
+
+    @Override
+    public void handle(AnnotationValues<GamedoCodec> annotation, JCAnnotation ast, JavacNode annotationNode) {
+
+        deleteAnnotationIfNeccessary(annotationNode, GamedoCodec.class);
+
+        final JavacNode typeNode = annotationNode.up();
+        if (typeNode == null || typeNode.getKind() != AST.Kind.TYPE) {
+            annotationNode.addError("@" + GamedoCodec.class.getSimpleName() + " is only supported on a class.");
+            return;
+        }
+
+        final JCTree.JCClassDecl classDecl = (JCTree.JCClassDecl) typeNode.get();
+        final long invalidFlags = Flags.INTERFACE | Flags.ANNOTATION | Flags.ENUM | Flags.ABSTRACT;
+        if ((classDecl.mods.flags & invalidFlags) != 0 || !classDecl.typarams.isEmpty()) {
+            annotationNode.addError("@" + GamedoCodec.class.getSimpleName() + " is only supported on a non-generic concrete class.");
+            return;
+        }
+
+        if (typeNode.up() != null && typeNode.up().getKind() == AST.Kind.TYPE && (classDecl.mods.flags & Flags.STATIC) == 0) {
+            annotationNode.addError("@" + GamedoCodec.class.getSimpleName() + " is not supported on an inner class, make it static.");
+            return;
+        }
+
+        for (JavacNode node : typeNode.down()) {
+            if (node.getKind() == AST.Kind.TYPE && CODEC_CLASS_NAME.equals(node.getName())) {
+                typeNode.addWarning(CODEC_CLASS_NAME + " is present, ignore it.");
+                return;
+            }
+        }
+
+        final java.util.List<CodecField> codecFieldList = new ArrayList<>();
+        boolean valid = true;
+        for (JavacNode fieldNode : typeNode.down()) {
+            if (!fieldQualifies(fieldNode)) {
+                continue;
+            }
+
+            final JCTree.JCVariableDecl fieldDecl = (JCTree.JCVariableDecl) fieldNode.get();
+            if ((fieldDecl.mods.flags & Flags.FINAL) != 0) {
+                fieldNode.addError("@" + GamedoCodec.class.getSimpleName() +
+                        " does not support final field, remove the final modifier or mark it as transient.");
+                valid = false;
+                continue;
+            }
+
+            final FieldCodec fieldCodec = FIELD_CODECS.get(fieldDecl.vartype.toString());
+            if (fieldCodec != null) {
+                codecFieldList.add(new CodecField(fieldDecl.name, getFieldKey(fieldNode), fieldCodec));
+            }
+        }
+
+        if (valid) {
+            createCodecClass(annotationNode, typeNode, codecFieldList);
+        }
+    }
+
+    /**
+     * 生成嵌套的编解码器类，详见{@link GamedoCodec}
+     */
+    private void createCodecClass(JavacNode source, JavacNode typeNode, java.util.List<CodecField> codecFieldList) {
+        final JavacTreeMaker maker = typeNode.getTreeMaker();
+        final Name typeName = ((JCTree.JCClassDecl) typeNode.get()).name;
+
+        //public GeneratedCodec() { super(Type.class, "key1", "key2", ...); }
+        final ListBuffer<JCTree.JCExpression> superArgs = new ListBuffer<>();
+        superArgs.append(maker.Select(maker.Ident(typeName), typeNode.toName("class")));
+        for (CodecField codecField : codecFieldList) {
+            superArgs.append(maker.Literal(codecField.key));
+        }
+        final JCTree.JCMethodDecl constructor = maker.MethodDef(maker.Modifiers(Flags.PUBLIC),
+                typeNode.toName("<init>"),
+                null,
+                List.nil(),
+                List.nil(),
+                List.nil(),
+                maker.Block(0, List.of(maker.Exec(maker.Apply(List.nil(),
+                        maker.Ident(typeNode.toName("super")),
+                        superArgs.toList())))),
+                null);
+
+        //protected Type newInstance() { return new Type(); }
+        final JCTree.JCMethodDecl newInstance = maker.MethodDef(maker.Modifiers(Flags.PROTECTED),
+                typeNode.toName("newInstance"),
+                maker.Ident(typeName),
+                List.nil(),
+                List.nil(),
+                List.nil(),
+                maker.Block(0, List.of(maker.Return(maker.NewClass(null,
+                        List.nil(),
+                        maker.Ident(typeName),
+                        List.nil(),
+                        null)))),
+                null);
+
+        //protected void encodeFields(final BsonWriter writer, final Type value, final EncoderContext context)
+        final ListBuffer<JCTree.JCStatement> encodeStatements = new ListBuffer<>();
+        for (CodecField codecField : codecFieldList) {
+            //write(writer, "key", value.field);
+            encodeStatements.append(maker.Exec(maker.Apply(List.nil(),
+                    maker.Ident(typeNode.toName("write")),
+                    List.of(maker.Ident(typeNode.toName("writer")),
+                            maker.Literal(codecField.key),
+                            maker.Select(maker.Ident(typeNode.toName("value")), codecField.name)))));
+        }
+        final JCTree.JCMethodDecl encodeFields = maker.MethodDef(maker.Modifiers(Flags.PROTECTED),
+                typeNode.toName("encodeFields"),
+                maker.TypeIdent(CTC_VOID),
+                List.nil(),
+                List.of(param(typeNode, "writer", chainDotsString(typeNode, "org.bson.BsonWriter")),
+                        param(typeNode, "value", maker.Ident(typeName)),
+                        param(typeNode, "context", chainDotsString(typeNode, "org.bson.codecs.EncoderContext"))),
+                List.nil(),
+                maker.Block(0, encodeStatements.toList()),
+                null);
+
+        //protected boolean decodeField(final String key, final BsonReader reader, final Type value, final DecoderContext context)
+        final ListBuffer<JCTree.JCStatement> decodeStatements = new ListBuffer<>();
+        for (CodecField codecField : codecFieldList) {
+            //if ("key".equals(key)) { value.field = (type) readXxx(reader); return true; }
+            JCTree.JCExpression read = maker.Apply(List.nil(),
+                    maker.Ident(typeNode.toName(codecField.fieldCodec.readMethod)),
+                    List.of(maker.Ident(typeNode.toName("reader"))));
+            if (codecField.fieldCodec.castTag != null) {
+                read = maker.TypeCast(maker.TypeIdent(codecField.fieldCodec.castTag), read);
+            }
+
+            final JCTree.JCExpression condition = maker.Apply(List.nil(),
+                    maker.Select(maker.Literal(codecField.key), typeNode.toName("equals")),
+                    List.of(maker.Ident(typeNode.toName("key"))));
+            final JCTree.JCBlock then = maker.Block(0, List.of(
+                    maker.Exec(maker.Assign(maker.Select(maker.Ident(typeNode.toName("value")), codecField.name), read)),
+                    maker.Return(maker.Literal(CTC_BOOLEAN, 1))));
+            decodeStatements.append(maker.If(condition, then, null));
+        }
+        decodeStatements.append(maker.Return(maker.Literal(CTC_BOOLEAN, 0)));
+        final JCTree.JCMethodDecl decodeField = maker.MethodDef(maker.Modifiers(Flags.PROTECTED),
+                typeNode.toName("decodeField"),
+                maker.TypeIdent(CTC_BOOLEAN),
+                List.nil(),
+                List.of(param(typeNode, "key", chainDotsString(typeNode, "java.lang.String")),
+                        param(typeNode, "reader", chainDotsString(typeNode, "org.bson.BsonReader")),
+                        param(typeNode, "value", maker.Ident(typeName)),
+                        param(typeNode, "context", chainDotsString(typeNode, "org.bson.codecs.DecoderContext"))),
+                List.nil(),
+                maker.Block(0, decodeStatements.toList()),
+                null);
+
+        final JCTree.JCClassDecl codecClass = maker.ClassDef(maker.Modifiers(Flags.PUBLIC | Flags.STATIC | Flags.FINAL),
+                typeNode.toName(CODEC_CLASS_NAME),
+                List.nil(),
+                maker.TypeApply(chainDotsString(typeNode, CODEC_SUPER_CLASS), List.of(maker.Ident(typeName))),
+                List.nil(),
+                List.of(constructor, newInstance, encodeFields, decodeField));
+
+        injectType(typeNode, recursiveSetGeneratedBy(codecClass, source));
+    }
+
+    private static JCTree.JCVariableDecl param(JavacNode typeNode, String name, JCTree.JCExpression type) {
+        final JavacTreeMaker maker = typeNode.getTreeMaker();
+        return maker.VarDef(maker.Modifiers(Flags.PARAMETER | Flags.FINAL), typeNode.toName(name), type, null);
+    }
+
+    /**
+     * @return 字段存储到mongoDB中的名字，如果字段注解了{@code @Field}，则使用注解中指定的名字
+     */
+    private static String getFieldKey(JavacNode fieldNode) {
+        final JCTree.JCVariableDecl fieldDecl = (JCTree.JCVariableDecl) fieldNode.get();
+        for (JCAnnotation annotation : fieldDecl.mods.annotations) {
+            if (!typeMatches(FIELD_ANNOTATION, fieldNode, annotation.annotationType)) {
+                continue;
+            }
+
+            for (JCTree.JCExpression arg : annotation.args) {
+                JCTree.JCExpression value = arg;
+                if (arg instanceof JCTree.JCAssign) {
+                    final JCTree.JCAssign assign = (JCTree.JCAssign) arg;
+                    final String argName = assign.lhs.toString();
+                    if (!"value".equals(argName) && !"name".equals(argName)) {
+                        continue;
+                    }
+                    value = assign.rhs;
+                }
+
+                if (value instanceof JCTree.JCLiteral && ((JCTree.JCLiteral) value).getValue() instanceof String) {
+                    final String key = (String) ((JCTree.JCLiteral) value).getValue();
+                    if (!key.isEmpty()) {
+                        return key;
+                    }
+                }
+            }
+        }
+
+        return fieldNode.getName();
+    }
+
+    private static boolean fieldQualifies(JavacNode fieldNode) {
+        if (fieldNode.getKind() != AST.Kind.FIELD) return false;
+        final JCTree.JCVariableDecl fieldDecl = (JCTree.JCVariableDecl) fieldNode.get();
+        //Skip fields that start with $
+        if (fieldDecl.name.toString().startsWith("$")) return false;
+        //Skip static and transient fields.
+        if ((fieldDecl.mods.flags & (Flags.STATIC | Flags.TRANSIENT)) != 0) return false;
+        //the id is handled by the super class.
+        if ("id".equals(fieldDecl.name.toString())) return false;
+
+        return !hasAnnotation(TRANSIENT_ANNOTATION, fieldNode) && !hasAnnotation(ID_ANNOTATION, fieldNode);
+    }
+
+    private static final class FieldCodec {
+        private final String readMethod;
+        private final JavacTreeMaker.TypeTag castTag;
+
+        private FieldCodec(String readMethod, JavacTreeMaker.TypeTag castTag) {
+            this.readMethod = readMethod;
+            this.castTag = castTag;
+        }
+    }
+
+    private static final class CodecField {
+        private final Name name;
+        private final String key;
+        private final FieldCodec fieldCodec;
+
+        private CodecField(Name name, String key, FieldCodec fieldCodec) {
+            this.name = name;
+            this.key = key;
+            this.fieldCodec = fieldCodec;
+        }
+    }
+}
@@ -18,6 +18,18 @@ import lombok.javac.JavacNode;
 import lombok.javac.JavacTreeMaker;
 import org.kohsuke.MetaInfServices;
 
+import java.util.HashMap;
+import java.util.Map;
+
+import static lombok.javac.Javac.CTC_BOT;
+import static lombok.javac.Javac.CTC_BYTE;
+import static lombok.javac.Javac.CTC_DOUBLE;
+import static lombok.javac.Javac.CTC_EQUAL;
+import static lombok.javac.Javac.CTC_FLOAT;
+import static lombok.javac.Javac.CTC_INT;
+import static lombok.javac.Javac.CTC_LONG;
+import static lombok.javac.Javac.CTC_PLUS;
+import static lombok.javac.Javac.CTC_SHORT;
 import static lombok.javac.Javac.CTC_VOID;
 import static lombok.javac.handlers.JavacHandlerUtil.*;
 
@@ -25,6 +37,28 @@ import static lombok.javac.handlers.JavacHandlerUtil.*;
 @HandlerPriority(value = 0, subValue = 1) // we must run AFTER HandleSetter which is at 0 (default value)
 public class HandleUpdate extends JavacAnnotationHandler<Update> {
 
+    /**
+     * 会生成<b>increment</b>方法的字段类型，包装类型的增量参数使用对应的基本类型
+     */
+    private static final Map<String, JavacTreeMaker.TypeTag> NUMERIC_TYPE_TAGS = new HashMap<>();
+
+    static {
+        for (String prefix : new String[]{"", "java.lang."}) {
+            NUMERIC_TYPE_TAGS.put(prefix + "Byte", CTC_BYTE);
+            NUMERIC_TYPE_TAGS.put(prefix + "Short", CTC_SHORT);
+            NUMERIC_TYPE_TAGS.put(prefix + "Integer", CTC_INT);
+            NUMERIC_TYPE_TAGS.put(prefix + "Long", CTC_LONG);
+            NUMERIC_TYPE_TAGS.put(prefix + "Float", CTC_FLOAT);
+            NUMERIC_TYPE_TAGS.put(prefix + "Double", CTC_DOUBLE);
+        }
+        NUMERIC_TYPE_TAGS.put("byte", CTC_BYTE);
+        NUMERIC_TYPE_TAGS.put("short", CTC_SHORT);
+        NUMERIC_TYPE_TAGS.put("int", CTC_INT);
+        NUMERIC_TYPE_TAGS.put("long", CTC_LONG);
+        NUMERIC_TYPE_TAGS.put("float", CTC_FLOAT);
+        NUMERIC_TYPE_TAGS.put("double", CTC_DOUBLE);
+    }
+
     @Override
     public void handle(AnnotationValues<Update> annotation, JCAnnotation ast, JavacNode annotationNode) {
 
@@ -75,11 +109,6 @@ public class HandleUpdate extends JavacAnnotationHandler<Update> {
             return;
         }
 
-        if (updateMethodAlreadyPresent(fieldNode)) {
-            fieldNode.addWarning(HandlerUtil.buildAccessorName("update", fieldNode.getName()) + " is present, ignore it.");
-            return;
-        }
-
         if (JavacHandlerUtil.hasAnnotation(Update.Exclude.class, fieldNode)) {
             fieldNode.addWarning(Update.Exclude.class.getSimpleName() + " is present, ignore it.");
             return;
@@ -87,6 +116,17 @@ public class HandleUpdate extends JavacAnnotationHandler<Update> {
 
         deleteAnnotationIfNeccessary(fieldNode, Update.Exclude.class);
 
+        if (methodAlreadyPresent(fieldNode, "increment")) {
+            fieldNode.addWarning(HandlerUtil.buildAccessorName("increment", fieldNode.getName()) + " is present, ignore it.");
+        } else {
+            createIncrementMethodForField(source, fieldNode, accessLevel);
+        }
+
+        if (methodAlreadyPresent(fieldNode, "update")) {
+            fieldNode.addWarning(HandlerUtil.buildAccessorName("update", fieldNode.getName()) + " is present, ignore it.");
+            return;
+        }
+
         final JavacNode typeNode = fieldNode.up();
         final JavacTreeMaker typeMarker = typeNode.getTreeMaker();
         final long access = toJavacModifier(accessLevel);
@@ -139,12 +179,76 @@ public class HandleUpdate extends JavacAnnotationHandler<Update> {
         return expr;
     }
 
-    private boolean updateMethodAlreadyPresent(JavacNode fieldNode) {
-        String updateMethodName = HandlerUtil.buildAccessorName("update", fieldNode.getName());
+    /**
+     * 为数值类型的字段生成<b>increment</b>方法，例如：private int gold;将生成：
+     * <pre>
+     * public void incrementGold(final int delta) {
+     *      this.gold = (int) (this.gold + delta);
+     *      this.increment("gold", delta);
+     * }
+     * </pre>
+     * 包装类型的字段为null时被视为0，例如：private Integer gold;将生成：this.gold = (int) ((this.gold == null ? (int) 0 : this.gold) + delta);
+     */
+    private void createIncrementMethodForField(JavacNode source, JavacNode fieldNode, AccessLevel accessLevel) {
+        final JCTree.JCVariableDecl fieldDecl = (JCTree.JCVariableDecl) fieldNode.get();
+        final JavacTreeMaker.TypeTag typeTag = NUMERIC_TYPE_TAGS.get(fieldDecl.vartype.toString());
+        if (typeTag == null) {
+            return;
+        }
+
+        final JavacNode typeNode = fieldNode.up();
+        final JavacTreeMaker typeMarker = typeNode.getTreeMaker();
+        final long access = toJavacModifier(accessLevel);
+        final Name methodName = fieldNode.toName(HandlerUtil.buildAccessorName("increment", fieldNode.getName()));
+        final Name deltaName = fieldNode.toName("delta");
+        final JCTree.JCVariableDecl param = typeMarker.VarDef(typeMarker.Modifiers(Flags.PARAMETER | Flags.FINAL),
+                deltaName,
+                typeMarker.TypeIdent(typeTag),
+                null);
+
+        final ListBuffer<JCTree.JCStatement> statements = new ListBuffer<>();
+        //基本类型：this.x = (type) (this.x + delta);
+        //包装类型：this.x = (type) ((this.x == null ? 0 : this.x) + delta); 为null的字段视为0，与mongoDB的$inc一致
+        JCTree.JCExpression augend = typeMarker.Select(typeMarker.Ident(fieldNode.toName("this")), fieldDecl.name);
+        if (!(fieldDecl.vartype instanceof JCTree.JCPrimitiveTypeTree)) {
+            augend = typeMarker.Parens(typeMarker.Conditional(
+                    typeMarker.Binary(CTC_EQUAL, augend, typeMarker.Literal(CTC_BOT, null)),
+                    typeMarker.TypeCast(typeMarker.TypeIdent(typeTag), typeMarker.Literal(0)),
+                    typeMarker.Select(typeMarker.Ident(fieldNode.toName("this")), fieldDecl.name)));
+        }
+        final JCTree.JCExpression sum = typeMarker.Binary(CTC_PLUS, augend, typeMarker.Ident(deltaName));
+        statements.append(typeMarker.Exec(typeMarker.Assign(
+                typeMarker.Select(typeMarker.Ident(fieldNode.toName("this")), fieldDecl.name),
+                typeMarker.TypeCast(typeMarker.TypeIdent(typeTag), typeMarker.Parens(sum)))));
+        //this.increment("x", delta);
+        statements.append(typeMarker.Exec(typeMarker.Apply(
+                List.nil(),
+                memberAccess(fieldNode, fieldNode.getTreeMaker(), "increment"),
+                List.of(typeMarker.Literal(fieldNode.getName()),
+                        typeMarker.Ident(deltaName)
+                )
+        )));
+
+        final JCTree.JCBlock methodBody = typeMarker.Block(0, statements.toList());
+        final JCTree.JCMethodDecl methodDef = typeMarker.MethodDef(typeMarker.Modifiers(access),
+                methodName,
+                typeMarker.TypeIdent(CTC_VOID),
+                List.nil(),
+                List.of(param),
+                List.nil(),
+                methodBody,
+                null
+        );
+
+        JavacHandlerUtil.injectMethod(typeNode, recursiveSetGeneratedBy(methodDef, source));
+    }
+
+    private boolean methodAlreadyPresent(JavacNode fieldNode, String prefix) {
+        String methodName = HandlerUtil.buildAccessorName(prefix, fieldNode.getName());
 
-        if (updateMethodName != null) {
+        if (methodName != null) {
             for (JavacNode node : fieldNode.up().down()) {
-                if (node.getKind() == AST.Kind.METHOD && updateMethodName.equals(node.getName())) {
+                if (node.getKind() == AST.Kind.METHOD && methodName.equals(node.getName())) {
                     return true;
                 }
             }
@@ -0,0 +1,67 @@
+package org.gamedo.annotation;
+
+import org.gamedo.persistence.codec.AbstractDbDataCodec;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.EntityDbData;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 注解到{@link ComponentDbData}或{@link EntityDbData}的子类上，gamedo-persistence-lombok会在编译期为该类生成一个继承自
+ * {@link AbstractDbDataCodec}的嵌套类：{@value DbDataCodecRegistry#GENERATED_CODEC_CLASS_NAME}，存储和加载时直接读写打散后的文档，
+ * 不再经过MongoConverter的反射转换，例如：<p>
+ * <pre>
+ * &#64;GamedoCodec
+ * public class ComponentDbGold extends ComponentDbData&lt;String&gt; {
+ *     private int gold;
+ *     private String name;
+ * }
+ * </pre>
+ *
+ * 将自动生成：<p>
+ *
+ * <pre>
+ * public static final class GeneratedCodec extends AbstractDbDataCodec&lt;ComponentDbGold&gt; {
+ *     public GeneratedCodec() {
+ *         super(ComponentDbGold.class, "gold", "name");
+ *     }
+ *
+ *     protected ComponentDbGold newInstance() {
+ *         return new ComponentDbGold();
+ *     }
+ *
+ *     protected void encodeFields(final BsonWriter writer, final ComponentDbGold value, final EncoderContext context) {
+ *         write(writer, "gold", value.gold);
+ *         write(writer, "name", value.name);
+ *     }
+ *
+ *     protected boolean decodeField(final String key, final BsonReader reader, final ComponentDbGold value, final DecoderContext context) {
+ *         if ("gold".equals(key)) {
+ *             value.gold = readInt32(reader);
+ *             return true;
+ *         }
+ *         if ("name".equals(key)) {
+ *             value.name = readString(reader);
+ *             return true;
+ *         }
+ *         return false;
+ *     }
+ * }
+ * </pre>
+ * <b>注意：</b>
+ * <ul>
+ * <li>被注解的类必须有一个无参构造函数
+ * <li>只有基本类型（char除外）、对应的包装类型（Byte、Short、Float除外）以及String类型的字段会生成直接读写的代码，其余字段依然由
+ * MongoConverter进行转换
+ * <li>不支持final字段（可以将其声明为transient，不进行存储）
+ * <li>字段上的{@code @Field}注解会被识别，{@code @Transient}、{@code @Id}注解的字段会被忽略
+ * </ul>
+ */
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.SOURCE)
+public @interface GamedoCodec {
+}
@@ -21,19 +21,30 @@ import java.lang.annotation.Target;
  *      this.update("x", this.x);
  * }
  * </pre>
+ *
+ * 对于数值类型（包括包装类型）的字段，还会自动生成<b>increment</b>方法，该方法同时修改字段的值，并记录一个累加操作（$inc）：<p>
+ *
+ * <pre>
+ * public void incrementX(final int delta) {
+ *      this.x = (int) (this.x + delta);
+ *      this.increment("x", delta);
+ * }
+ * </pre>
+ *
+ * 包装类型的字段为null时被视为0，与mongoDB的$inc保持一致
  */
 @Target({ElementType.TYPE, ElementType.FIELD})
 @Retention(RetentionPolicy.SOURCE)
 public @interface Update {
 
     /**
-     * 生成的<b>update</b>方法的访问等级
+     * 生成的<b>update</b>以及<b>increment</b>方法的访问等级
      * @return 访问等级
      */
     AccessLevel value() default lombok.AccessLevel.PUBLIC;
 
     /**
-     * 注解在类的字段上，意味着该字段的<b>update</b>方法不会自动生成
+     * 注解在类的字段上，意味着该字段的<b>update</b>以及<b>increment</b>方法不会自动生成
      */
     @Target(ElementType.FIELD)
     @Retention(RetentionPolicy.SOURCE)
@@ -0,0 +1,162 @@
+package org.gamedo.persistence.lombok;
+
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonDocumentWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.gamedo.persistence.db.CompactUpdater;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.IUpdaterFactory;
+import org.gamedo.persistence.db.Updater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.lombok.db.ComponentDbGold;
+import org.gamedo.persistence.lombok.db.ComponentDbWallet;
+import org.gamedo.persistence.lombok.db.EntityDbGold;
+import org.gamedo.persistence.storage.StorageConfig;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+import java.util.Arrays;
+
+/**
+ * 测试由本工程的注解处理器生成的代码，测试类在编译时使用的就是本工程的lombok扩展
+ */
+class GamedoLombokTest {
+
+    private MongoConverter mongoConverter;
+    private MappingMongoConverter converter;
+
+    @BeforeEach
+    public void beforeEach() {
+        mongoConverter = Updater.getMongoConverter();
+
+        final MongoMappingContext mappingContext = new MongoMappingContext();
+        mappingContext.afterPropertiesSet();
+        converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, mappingContext);
+        converter.afterPropertiesSet();
+        Updater.setMongoConverter(converter);
+    }
+
+    @AfterEach
+    public void afterEach() {
+        Updater.setMongoConverter(mongoConverter);
+    }
+
+    private static ComponentDbWallet newComponentDbWallet(final IUpdaterFactory factory) {
+        final ComponentDbWallet componentDbWallet = new ComponentDbWallet();
+        componentDbWallet.setUpdater(factory.create(componentDbWallet.getUpdater().getPrefix()));
+        return componentDbWallet;
+    }
+
+    @Test
+    public void testGeneratedIncrement() {
+        for (IUpdaterFactory factory : Arrays.<IUpdaterFactory>asList(Updater::new, CompactUpdater::new)) {
+            final ComponentDbWallet componentDbWallet = newComponentDbWallet(factory);
+
+            //a null boxed field is treated as 0, just like $inc does
+            Assertions.assertNull(componentDbWallet.getGold());
+            Assertions.assertDoesNotThrow(() -> componentDbWallet.incrementGold(5));
+            Assertions.assertDoesNotThrow(() -> componentDbWallet.incrementRate(0.5));
+            componentDbWallet.incrementExp(1);
+            componentDbWallet.incrementExp(2);
+            Assertions.assertEquals(5, componentDbWallet.getGold());
+            Assertions.assertEquals(0.5, componentDbWallet.getRate());
+            Assertions.assertEquals(3L, componentDbWallet.getExp());
+
+            Document updateObject = componentDbWallet.getUpdater().getUpdateObject();
+            Assertions.assertEquals(5, updateObject.get("$inc", Document.class).get("ComponentDbWallet.gold"));
+            Assertions.assertEquals(3L, updateObject.get("$inc", Document.class).get("ComponentDbWallet.exp"));
+
+            //the generated update method overrides the pending delta
+            componentDbWallet.updateGold();
+            updateObject = componentDbWallet.getUpdater().getUpdateObject();
+            Assertions.assertEquals(5, updateObject.get("$set", Document.class).get("ComponentDbWallet.gold"));
+            Assertions.assertFalse(updateObject.get("$inc", Document.class).containsKey("ComponentDbWallet.gold"));
+        }
+    }
+
+    @Test
+    public void testConflictDeferred() {
+        for (IUpdaterFactory factory : Arrays.<IUpdaterFactory>asList(Updater::new, CompactUpdater::new)) {
+            final ComponentDbWallet componentDbWallet = newComponentDbWallet(factory);
+
+            componentDbWallet.incrementExp(10);
+            //$max can not be merged with the pending $inc, it is deferred to the next write instead of throwing
+            Assertions.assertDoesNotThrow(() -> componentDbWallet.max("exp", 100L));
+            componentDbWallet.incrementExp(1);
+            //an unset field incremented later is simply set to the delta
+            componentDbWallet.getUpdater().unset("rate");
+            componentDbWallet.incrementRate(1.5);
+
+            final IUpdater updater = Updaters.detach(componentDbWallet, factory, StorageConfig.DEFAULT);
+            final Document updateObject = updater.getUpdateObject();
+            Assertions.assertEquals(10L, updateObject.get("$inc", Document.class).get("ComponentDbWallet.exp"));
+            Assertions.assertNull(updateObject.get("$max"));
+            Assertions.assertEquals(1.5, updateObject.get("$set", Document.class).get("ComponentDbWallet.rate"));
+            Assertions.assertNull(updateObject.get("$unset"));
+
+            //the deferred operations are kept in order, one write after another
+            Assertions.assertTrue(componentDbWallet.isDirty());
+            final Document deferredObject = Updaters.detach(componentDbWallet, factory, StorageConfig.DEFAULT).getUpdateObject();
+            Assertions.assertEquals(100L, deferredObject.get("$max", Document.class).get("ComponentDbWallet.exp"));
+            Assertions.assertNull(deferredObject.get("$inc"));
+
+            Assertions.assertTrue(componentDbWallet.isDirty());
+            final Document deferredObjectNext = Updaters.detach(componentDbWallet, factory, StorageConfig.DEFAULT).getUpdateObject();
+            Assertions.assertEquals(1L, deferredObjectNext.get("$inc", Document.class).get("ComponentDbWallet.exp"));
+            Assertions.assertFalse(componentDbWallet.isDirty());
+        }
+    }
+
+    @Test
+    public void testGeneratedCodec() {
+        final DbDataCodecRegistry codecRegistry = new DbDataCodecRegistry(converter);
+        Assertions.assertTrue(codecRegistry.hasCodec(ComponentDbGold.class));
+        Assertions.assertTrue(codecRegistry.hasCodec(EntityDbGold.class));
+        Assertions.assertFalse(codecRegistry.hasCodec(ComponentDbWallet.class));
+
+        final EntityDbGold entityDbGold = new EntityDbGold();
+        final ComponentDbGold componentDbGold = new ComponentDbGold();
+        componentDbGold.setLevel(10);
+        componentDbGold.setExp(Integer.MAX_VALUE + 1L);
+        componentDbGold.setName("gold");
+        componentDbGold.getHeroList().addAll(Arrays.asList(1, 2, 3));
+        entityDbGold.addComponentDbData(componentDbGold);
+
+        final Codec<EntityDbGold> codec = codecRegistry.getCodecRegistry().get(EntityDbGold.class);
+        final BsonDocument document = new BsonDocument();
+        codec.encode(new BsonDocumentWriter(document), entityDbGold, EncoderContext.builder().build());
+
+        //the generated id is written back, so that the document can be updated later
+        Assertions.assertNotNull(entityDbGold.getId());
+        Assertions.assertEquals(entityDbGold.getId(), document.getObjectId("_id").getValue().toHexString());
+
+        final BsonDocument componentDocument = document.getDocument("ComponentDbGold");
+        Assertions.assertEquals(10, componentDocument.getInt32("level").getValue());
+        Assertions.assertEquals(Integer.MAX_VALUE + 1L, componentDocument.getInt64("exp").getValue());
+        Assertions.assertEquals("gold", componentDocument.getString("n").getValue());
+        //null fields are not written, the same as MongoConverter
+        Assertions.assertFalse(componentDocument.containsKey("vipLevel"));
+        Assertions.assertEquals(3, componentDocument.getArray("heroList").size());
+
+        final EntityDbGold entityDbGoldDecode = codec.decode(new BsonDocumentReader(document), DecoderContext.builder().build());
+        Assertions.assertEquals(entityDbGold.getId(), entityDbGoldDecode.getId());
+        final ComponentDbGold componentDbGoldDecode = entityDbGoldDecode.getComponentDbData(ComponentDbGold.class);
+        Assertions.assertNotNull(componentDbGoldDecode);
+        Assertions.assertEquals(componentDbGold.getLevel(), componentDbGoldDecode.getLevel());
+        Assertions.assertEquals(componentDbGold.getExp(), componentDbGoldDecode.getExp());
+        Assertions.assertEquals(componentDbGold.getName(), componentDbGoldDecode.getName());
+        Assertions.assertNull(componentDbGoldDecode.getVipLevel());
+        Assertions.assertEquals(componentDbGold.getHeroList(), componentDbGoldDecode.getHeroList());
+    }
+}
@@ -0,0 +1,24 @@
+package org.gamedo.persistence.lombok.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.gamedo.annotation.GamedoCodec;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@EqualsAndHashCode(callSuper = true)
+@Data
+@GamedoCodec
+@Document("gold")
+public class ComponentDbGold extends ComponentDbData<String> {
+    private int level;
+    private long exp;
+    @Field("n")
+    private String name;
+    private Integer vipLevel;
+    private List<Integer> heroList = new ArrayList<>();
+}
@@ -0,0 +1,13 @@
+package org.gamedo.persistence.lombok.db;
+
+import lombok.Getter;
+import org.gamedo.annotation.Update;
+import org.gamedo.persistence.db.ComponentDbData;
+
+@Getter
+@Update
+public class ComponentDbWallet extends ComponentDbData<String> {
+    private Integer gold;
+    private long exp;
+    private Double rate;
+}
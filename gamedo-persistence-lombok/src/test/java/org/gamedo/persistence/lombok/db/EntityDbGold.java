@@ -0,0 +1,10 @@
+package org.gamedo.persistence.lombok.db;
+
+import org.gamedo.annotation.GamedoCodec;
+import org.gamedo.persistence.db.EntityDbData;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+@GamedoCodec
+@Document("gold")
+public class EntityDbGold extends EntityDbData<String> {
+}
@@ -0,0 +1,29 @@
+package org.gamedo.persistence;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * 批量加载（例如：{@link IGamedoMongoTemplate#findComponentDbDataByIdsAsync(java.util.Collection, Class)}）的配置
+ */
+@Value
+@Builder
+public class BatchLoadConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final BatchLoadConfig DEFAULT = BatchLoadConfig.builder().build();
+
+    /**
+     * 单次$in查询包含的最大id数量，超过该数量时，会被拆分为多次查询
+     */
+    @Builder.Default
+    int chunkSize = 200;
+
+    /**
+     * 同一次批量加载中，最多同时执行的查询数量
+     */
+    @Builder.Default
+    int parallelism = 4;
+}
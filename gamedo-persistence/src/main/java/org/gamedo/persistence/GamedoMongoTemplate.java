@@ -1,42 +1,420 @@
 package org.gamedo.persistence;
 
+import com.mongodb.ClientSessionOptions;
+import com.mongodb.client.ClientSession;
+import com.mongodb.client.FindIterable;
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.MongoCursor;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Aggregates;
+import com.mongodb.client.model.Projections;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
 import com.mongodb.client.result.UpdateResult;
+import lombok.Getter;
+import lombok.Setter;
 import lombok.experimental.Delegate;
 import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.cache.EntityCache;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.gamedo.persistence.convert.DbDataReader;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.convert.DbDataWriter;
 import org.gamedo.persistence.db.ComponentDbData;
 import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
 import org.gamedo.persistence.db.Updater;
 import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.db.track.Trackables;
+import org.gamedo.persistence.executor.LaneTask;
+import org.gamedo.persistence.executor.OrderedLaneExecutor;
+import org.gamedo.persistence.executor.PersistenceExecutor;
+import org.gamedo.persistence.executor.PersistenceExecutorConfig;
+import org.gamedo.persistence.journal.JournalEntry;
+import org.gamedo.persistence.journal.JournalOperation;
+import org.gamedo.persistence.journal.WriteJournal;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
 import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.metrics.IPersistenceMetrics;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.gamedo.persistence.version.IVersionConflictHandler;
+import org.gamedo.persistence.version.VersionConflict;
+import org.gamedo.persistence.version.VersionConflictException;
+import org.gamedo.persistence.version.VersionConflictResolution;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.domain.Sort;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
-import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.convert.QueryMapper;
 import org.springframework.data.mongodb.core.index.IndexOperationsProvider;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
 import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Field;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.util.ClassUtils;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Spliterator;
+import java.util.Spliterators;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 @SuppressWarnings("unused")
 @Log4j2
-public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProvider, IGamedoMongoTemplate {
+public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProvider, IGamedoMongoTemplate, AutoCloseable {
 
-    private static final Executor ASYNC_POOL = ForkJoinPool.commonPool();
     @Delegate(types = MongoTemplate.class)
     private final MongoTemplate mongoTemplate;
+    /**
+     * 所有未指定线程池的*Async方法所使用的默认线程池
+     */
+    @Getter
+    private final Executor asyncExecutor;
+    /**
+     * 由本模板自己创建的线程池（使用{@link GamedoMongoTemplate#GamedoMongoTemplate(MongoTemplate)}构造时），在{@link GamedoMongoTemplate#close()}
+     * 时关闭；外部传入的线程池由外部负责关闭
+     */
+    private final PersistenceExecutor ownedExecutor;
+    /**
+     * 未指定线程池的并行扫描所使用的专用线程池，第一次使用时按照当时的{@link ScanConfig#getParallelism()}创建，在
+     * {@link GamedoMongoTemplate#close()}时关闭。扫描的游标会长时间占用线程，因此不使用{@link GamedoMongoTemplate#asyncExecutor}，
+     * 避免阻塞正常的读写
+     */
+    private PersistenceExecutor scanExecutor;
+    /**
+     * 保证同一个文档的写操作按照提交顺序执行
+     */
+    @Getter
+    private final OrderedLaneExecutor laneExecutor;
+    /**
+     * 批量加载的配置
+     */
+    @Getter
+    @Setter
+    private volatile BatchLoadConfig batchLoadConfig = BatchLoadConfig.DEFAULT;
+    /**
+     * 全表扫描的配置
+     */
+    @Getter
+    @Setter
+    private volatile ScanConfig scanConfig = ScanConfig.DEFAULT;
+    /**
+     * 可选的实体缓存，为null时不使用缓存
+     */
+    @Getter
+    @Setter
+    private volatile EntityCache entityCache;
+    /**
+     * 编译期生成的编解码器的注册表，存在编解码器的类型在存储和加载时不再经过{@link MongoTemplate}的反射转换
+     */
+    @Getter
+    private final DbDataCodecRegistry codecRegistry;
+    /**
+     * 存储、加载以及编解码共享的类型注册表
+     */
+    @Getter
+    private final DbDataTypeRegistry typeRegistry;
+    /**
+     * 版本冲突的处理者，只作用于注解了{@link org.gamedo.persistence.annotations.Versioned}的数据，详见{@link Versions}
+     */
+    @Getter
+    @Setter
+    private volatile IVersionConflictHandler versionConflictHandler = IVersionConflictHandler.ABORT;
+    /**
+     * 可选的写前日志，为null时不记录日志，详见{@link WriteJournal}
+     */
+    @Getter
+    @Setter
+    private volatile WriteJournal writeJournal;
+    /**
+     * 是否以{@link RawBsonDocument}读取不存在编译期生成的编解码器的实体：没有启用版本控制的组件以原始字节的切片保留在实体中，直到第一次
+     * 被访问才会被转换，未被访问的组件在完整存储时原样写回，详见{@link DbDataReader}。以这种方式读取的实体不会发布映射事件
+     */
+    @Getter
+    @Setter
+    private volatile boolean rawBsonRead;
+    /**
+     * 本模板的持久化设置（更新器工厂、已被标脏的实体的注册表、指标收集者等），与本模板的读写流程共享，详见{@link PersistenceSettings}
+     */
+    @Getter
+    private final PersistenceSettings settings;
+    private final DbDataWriter dbDataWriter;
+    private final DbDataReader dbDataReader;
+    private final QueryMapper queryMapper;
 
     public GamedoMongoTemplate(MongoTemplate mongoTemplate) {
+        this(mongoTemplate, new PersistenceExecutor(), new OrderedLaneExecutor(), null, null, true);
+    }
+
+    public GamedoMongoTemplate(MongoTemplate mongoTemplate, Executor asyncExecutor) {
+        this(mongoTemplate, asyncExecutor, new OrderedLaneExecutor());
+    }
+
+    public GamedoMongoTemplate(MongoTemplate mongoTemplate, Executor asyncExecutor, OrderedLaneExecutor laneExecutor) {
+        this(mongoTemplate, asyncExecutor, laneExecutor, null, null, false);
+    }
+
+    /**
+     * @param mongoTemplate 被代理的模板
+     * @param asyncExecutor 默认的持久化线程池，由调用者负责关闭
+     * @param laneExecutor  保证同一个文档的写操作顺序的执行器
+     * @param typeRegistry  类型注册表，应当与注册到spring中的映射事件监听器使用同一个实例，从而在存储和加载之间共享已注册的类型
+     */
+    public GamedoMongoTemplate(MongoTemplate mongoTemplate,
+                               Executor asyncExecutor,
+                               OrderedLaneExecutor laneExecutor,
+                               DbDataTypeRegistry typeRegistry) {
+        this(mongoTemplate, asyncExecutor, laneExecutor, typeRegistry, null);
+    }
+
+    /**
+     * @param mongoTemplate 被代理的模板
+     * @param asyncExecutor 默认的持久化线程池，由调用者负责关闭
+     * @param laneExecutor  保证同一个文档的写操作顺序的执行器
+     * @param typeRegistry  类型注册表，应当与注册到spring中的映射事件监听器使用同一个实例，从而在存储和加载之间共享已注册的类型
+     * @param settings      本模板的持久化设置，应当与注册到spring中的映射事件监听器使用同一个实例，为null时使用一个新的默认设置
+     */
+    public GamedoMongoTemplate(MongoTemplate mongoTemplate,
+                               Executor asyncExecutor,
+                               OrderedLaneExecutor laneExecutor,
+                               DbDataTypeRegistry typeRegistry,
+                               PersistenceSettings settings) {
+        this(mongoTemplate, asyncExecutor, laneExecutor, typeRegistry, settings, false);
+    }
+
+    private GamedoMongoTemplate(MongoTemplate mongoTemplate,
+                                Executor asyncExecutor,
+                                OrderedLaneExecutor laneExecutor,
+                                DbDataTypeRegistry typeRegistry,
+                                PersistenceSettings settings,
+                                boolean ownsExecutor) {
         this.mongoTemplate = mongoTemplate;
+        this.asyncExecutor = asyncExecutor;
+        this.laneExecutor = laneExecutor;
+        ownedExecutor = ownsExecutor ? (PersistenceExecutor) asyncExecutor : null;
+        this.typeRegistry = typeRegistry != null ? typeRegistry : new DbDataTypeRegistry(getConverter());
+        this.settings = settings != null ? settings : new PersistenceSettings();
+        codecRegistry = new DbDataCodecRegistry(getConverter(), this.typeRegistry, this.settings);
+        dbDataWriter = new DbDataWriter(getConverter(), codecRegistry, this.typeRegistry, this.settings);
+        dbDataReader = new DbDataReader(getConverter(), this.typeRegistry, this.settings);
+        queryMapper = new QueryMapper(getConverter());
         Updater.setMongoConverter(getConverter());
     }
 
+    /**
+     * 关闭由本模板自己创建的线程池（包括扫描专用的线程池），并等待已提交的异步任务执行完毕；外部传入的线程池不会被关闭
+     */
+    @Override
+    public void close() {
+        if (ownedExecutor != null) {
+            ownedExecutor.shutdown();
+        }
+
+        final PersistenceExecutor executor;
+        synchronized (this) {
+            executor = scanExecutor;
+            scanExecutor = null;
+        }
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * 如果设置了{@link GamedoMongoTemplate#getEntityCache()}，{@link EntityDbData}会优先从缓存中获取，未命中时加载并放入缓存
+     */
+    @Override
+    public <T> T findById(Object id, Class<T> entityClass) {
+        final EntityCache cache = entityCache;
+        if (cache == null || !EntityDbData.class.isAssignableFrom(entityClass)) {
+            return findByIdInner(id, entityClass);
+        }
+
+        return entityClass.cast(findEntityDbDataByIdCached(cache, id, entityClass.asSubclass(EntityDbData.class)));
+    }
+
+    private <T extends EntityDbData> T findEntityDbDataByIdCached(final EntityCache cache,
+                                                                  final Object id,
+                                                                  final Class<T> entityClass) {
+        return cache.get(entityClass, id, () -> findByIdInner(id, entityClass));
+    }
+
+    private <T> T findByIdInner(final Object id, final Class<T> entityClass) {
+        final long start = System.nanoTime();
+        try {
+            final String collectionName = getCollectionName(entityClass);
+            if (codecRegistry.hasCodec(entityClass)) {
+                return loadOverflowComponents(collectionName,
+                        findByCodec(new Query(Criteria.where(ID_FIELD_NAME).is(id)), entityClass, collectionName).first());
+            }
+
+            if (isRawBsonRead(entityClass)) {
+                return loadOverflowComponents(collectionName,
+                        findByRaw(new Query(Criteria.where(ID_FIELD_NAME).is(id)), entityClass, collectionName));
+            }
+
+            return loadOverflowComponents(collectionName, onLoaded(mongoTemplate.findById(id, entityClass, collectionName)));
+        } finally {
+            settings.getMetrics().recordFind(entityClass, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * 对通过映射事件加载的数据应用本模板的设置（{@link PersistenceSettings#onLoaded(DbData)}），事件监听器可能是多个模板共享的，使用的
+     * 不一定是本模板的设置。编解码器以及原始字节的读取流程本身就使用本模板的设置，不需要调用本方法
+     *
+     * @param data 查询的结果，不是{@link DbData}时直接返回
+     * @return 传入的查询结果
+     */
+    private <T> T onLoaded(final T data) {
+        if (data instanceof DbData) {
+            settings.onLoaded((DbData<?>) data);
+        }
+
+        return data;
+    }
+
+    /**
+     * 如果clazz存在编译期生成的编解码器，则使用该编解码器查询，否则等同于{@link MongoTemplate#findOne(Query, Class)}
+     */
+    private <T> T findOneInner(final Query query, final Class<T> clazz) {
+        return findOneInner(query, clazz, getCollectionName(clazz));
+    }
+
+    /**
+     * 同{@link GamedoMongoTemplate#findOneInner(Query, Class)}，但是从指定的collection中查询，查询到的实体会自动加载溢出存储的组件
+     */
+    private <T> T findOneInner(final Query query, final Class<T> clazz, final String collectionName) {
+        final long start = System.nanoTime();
+        try {
+            if (hasCodec(clazz)) {
+                return loadOverflowComponents(collectionName, findByCodec(query, clazz, collectionName).first());
+            }
+
+            if (isRawBsonRead(clazz)) {
+                return loadOverflowComponents(collectionName, findByRaw(query, clazz, collectionName));
+            }
+
+            return loadOverflowComponents(collectionName, onLoaded(findOne(query, clazz, collectionName)));
+        } finally {
+            settings.getMetrics().recordFind(clazz, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return 如果clazz存在编译期生成的编解码器，并且不是非内联存储的组件，返回true。生成的编解码器单独解码组件时只认识内联的布局
+     */
+    private boolean hasCodec(final Class<?> clazz) {
+        return codecRegistry.hasCodec(clazz) &&
+                (!ComponentDbData.class.isAssignableFrom(clazz) || ComponentStorages.isInline(clazz));
+    }
+
+    /**
+     * 使用编译期生成的编解码器直接将查询结果解码为clazz，结果不经过{@link MongoTemplate}的转换，因此也不会发布映射事件
+     */
+    private <T> FindIterable<T> findByCodec(final Query query, final Class<T> clazz, final String collectionName) {
+        final MongoPersistentEntity<?> entity = getConverter().getMappingContext().getPersistentEntity(clazz);
+        return getCollection(collectionName)
+                .withCodecRegistry(codecRegistry.getCodecRegistry())
+                .withDocumentClass(clazz)
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(query.getFieldsObject())
+                .batchSize(query.getMeta().getCursorBatchSize() == null ? 0 : query.getMeta().getCursorBatchSize());
+    }
+
+    private boolean isRawBsonRead(final Class<?> clazz) {
+        return rawBsonRead && EntityDbData.class.isAssignableFrom(clazz);
+    }
+
+    /**
+     * 以{@link RawBsonDocument}查询，并使用{@link DbDataReader}转换为实体，详见{@link GamedoMongoTemplate#isRawBsonRead()}
+     */
+    private <T> T findByRaw(final Query query, final Class<T> clazz, final String collectionName) {
+        final MongoPersistentEntity<?> entity = getConverter().getMappingContext().getPersistentEntity(clazz);
+        final RawBsonDocument rawDocument = getCollection(collectionName)
+                .withDocumentClass(RawBsonDocument.class)
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(query.getFieldsObject())
+                .first();
+
+        return rawDocument == null ? null : clazz.cast(dbDataReader.read(clazz.asSubclass(EntityDbData.class), rawDocument));
+    }
+
+    /**
+     * 从溢出collection中加载实体的溢出存储的组件（{@link EntityDbData#getOverflowComponentMap()}），溢出collection中缺失的组件依然保留
+     * 在{@link EntityDbData#getOverflowComponentMap()}中，从而在完整存储时保留它们的占位文档
+     *
+     * @param collectionName 实体所在的collection
+     * @param data           查询的结果，不是实体或者没有溢出存储的组件时直接返回
+     * @return 传入的查询结果
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private <T> T loadOverflowComponents(final String collectionName, final T data) {
+        if (!(data instanceof EntityDbData) || ((EntityDbData<?>) data).getOverflowComponentMap().isEmpty()) {
+            return data;
+        }
+
+        final EntityDbData entityDbData = (EntityDbData) data;
+        final Map<String, Class<?>> overflowComponentMap = new LinkedHashMap<>(entityDbData.getOverflowComponentMap());
+        final String overflowCollectionName = ComponentStorages.overflowCollectionName(collectionName);
+        final MongoPersistentEntity<?> entity = getConverter().getMappingContext().getPersistentEntity(data.getClass());
+        final Query query = new Query(Criteria.where(ID_FIELD_NAME).is(entityDbData.getId()));
+        final Document document = getCollection(overflowCollectionName)
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(Projections.include(new ArrayList<>(overflowComponentMap.keySet())))
+                .first();
+
+        overflowComponentMap.forEach((key, clazz) -> {
+            final Object value = document == null ? null : document.get(key);
+            if (!(value instanceof Document)) {
+                log.error(Markers.MongoDB, "overflow component not found, collection:{}, id:{}, component:{}",
+                        overflowCollectionName,
+                        entityDbData.getId(),
+                        key);
+                return;
+            }
+
+            final ComponentDbData<?> componentDbData = (ComponentDbData<?>) getConverter().read(clazz, (Document) value);
+            settings.onLoaded(componentDbData);
+            entityDbData.addComponentDbData(componentDbData);
+        });
+
+        return data;
+    }
+
     @Override
     public <T extends DbData> CompletableFuture<T> saveDbDataAsync(final T data) {
-        return saveAsyncInner(data, ASYNC_POOL);
+        return saveAsyncInner(data, asyncExecutor);
     }
 
     @Override
@@ -45,36 +423,223 @@ public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProv
     }
 
     private <T extends DbData> CompletableFuture<T> saveAsyncInner(final T data, Executor executor) {
-        final String className = data.getClass().getName();
-        final Object id = data.getId();
+        final Class<?> clazz = data.getClass();
+        final String className = clazz.getName();
+        final Object id = assignIdIfAbsent(data);
         final int hashCode = data.hashCode();
+        final String collectionName = getCollectionName(clazz);
+        notifyCache(collectionName, data);
 
-        final Document document = new Document();
-        final MongoConverter converter = getConverter();
-        //serialize to Document on the caller thread.
-        converter.write(data, document);
-        //deserialize back to DbData
-        @SuppressWarnings("unchecked") final T dbData = (T) converter.read(data.getClass(), document);
+        //存储之后，可追踪容器的后续修改需要记录到该数据的更新器中
+        Trackables.bind(data, settings.getWholeFieldRatio());
+        if (data instanceof EntityDbData) {
+            settings.attach((EntityDbData<?>) data);
+        }
+        //serialize to the final flattened Document on the caller thread, and only once.
+        final Bson document = dbDataWriter.encode(data);
+        final Map<String, DbData<?>> versionedDataMap = Versions.collectForSave(data);
+        final WriteJournal journal = writeJournal;
+        final long sequence = journal == null ? 0 : appendJournal(journal, collectionName, data, document);
+        //溢出存储的组件（已经记录在日志中）写入溢出collection，而不是实体文档
+        final Document overflowStash = ComponentStorages.removeOverflowStash(document);
 
-        return CompletableFuture.supplyAsync(() -> {
+        return acknowledgeJournal(journal, sequence, submitOrdered(collectionName, id, new SaveLaneTask<>(data, () -> {
 
             log.debug(Markers.MongoDB,
                     "saveAsync start, class:{}, id:{}, data:({}){}",
                     () -> className,
                     () -> id,
                     () -> hashCode,
-                    () -> dbData);
+                    () -> document);
 
-            final T savedData = save(dbData);
+            final IPersistenceMetrics metrics = settings.getMetrics();
+            final long start = System.nanoTime();
+            writeVersioned(collectionName, clazz, id, versionedDataMap, Collections.emptyList(), true,
+                    expectedMap -> saveDocument(collectionName, data, document, overflowStash, expectedMap));
+            metrics.recordSave(clazz, System.nanoTime() - start);
+            metrics.recordDocument(clazz, document);
             log.debug(Markers.MongoDB, "saveAsync finish, id:{}, hashCode:{}", () -> id, () -> hashCode);
 
-            return savedData;
-        }, executor);
+            return data;
+        }), executor));
+    }
+
+    /**
+     * 与{@link MongoTemplate#save(Object)}一致，如果数据的id为null，生成一个ObjectId，转换为id字段的类型之后写回到数据中（对于
+     * {@link EntityDbData}，同时写回到所有已加载的组件中）
+     *
+     * @param data 要存储的数据
+     * @return 数据的id
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private Object assignIdIfAbsent(final DbData data) {
+        final Object id = data.getId();
+        if (id != null) {
+            return id;
+        }
+
+        final MongoPersistentEntity<?> entity = getConverter().getMappingContext().getRequiredPersistentEntity(data.getClass());
+        final MongoPersistentProperty idProperty = entity.getIdProperty();
+        final Class<?> idType = idProperty == null ? ObjectId.class : idProperty.getType();
+        final ObjectId objectId = new ObjectId();
+        final Object idGenerated;
+        if (idType.isAssignableFrom(ObjectId.class)) {
+            idGenerated = objectId;
+        } else if (getConverter().getConversionService().canConvert(ObjectId.class, idType)) {
+            idGenerated = getConverter().getConversionService().convert(objectId, idType);
+        } else {
+            throw new IllegalStateException("the id can not be generated for type:" + idType.getName() +
+                    ", class:" + data.getClass().getName());
+        }
+
+        data.setId(idGenerated);
+        if (data instanceof EntityDbData) {
+            //组件与所属实体共享同一个id
+            for (Object componentDbData : ((EntityDbData<?>) data).getLoadedComponentDbDataCollection()) {
+                ((DbData) componentDbData).setId(idGenerated);
+            }
+        }
+        return idGenerated;
+    }
+
+    /**
+     * 将一个已经转换完毕的文档写入mongoDB：{@link ComponentDbData}只会覆盖所属文档中的组件字段，其他数据则覆盖整个文档。文档在写入之前被
+     * 编码一次，用于检查文档的大小（{@link ComponentStorages#checkSize(String, RawBsonDocument)}），编码的结果直接交给驱动写入
+     *
+     * @param collectionName 要写入的collection
+     * @param data           文档所对应的数据
+     * @param bson           已经转换完毕的文档，详见{@link DbDataWriter#encode(DbData)}
+     * @param overflowStash  溢出存储的组件，详见{@link ComponentStorages#removeOverflowStash(Bson)}，可以为null
+     * @param expectedMap    期望的版本号，详见{@link Versions}，写入的文档中的版本号为期望值加一
+     * @return 写入的结果
+     */
+    private UpdateResult saveDocument(final String collectionName,
+                                      final DbData<?> data,
+                                      final Bson bson,
+                                      final Document overflowStash,
+                                      final Map<String, Long> expectedMap) {
+        final BsonDocument document;
+        if (bson instanceof RawBsonDocument) {
+            ComponentStorages.checkSize(collectionName, (RawBsonDocument) bson, settings.getStorageConfig());
+            //编码后的文档不可修改，写入版本号之前需要先解码
+            document = expectedMap.isEmpty() ?
+                    (RawBsonDocument) bson :
+                    ((RawBsonDocument) bson).decode(new BsonDocumentCodec());
+            expectedMap.forEach((path, expected) -> Versions.stamp(document, path, expected + 1));
+        } else {
+            final Document source = (Document) bson;
+            source.computeIfAbsent(ID_FIELD_NAME, key -> new ObjectId());
+            expectedMap.forEach((path, expected) -> Versions.stamp(source, path, expected + 1));
+            final RawBsonDocument rawDocument = encode(collectionName, source);
+            ComponentStorages.checkSize(collectionName, rawDocument, settings.getStorageConfig());
+            document = rawDocument;
+        }
+
+        if (data instanceof ComponentDbData && ComponentStorages.policy(data.getClass()) == StoragePolicy.OVERFLOW) {
+            final String fieldName = data.getClass().getSimpleName();
+            return saveOverflowComponent(collectionName, data.getClass(), document.get(ID_FIELD_NAME), document.get(fieldName));
+        }
+
+        final UpdateResult result = saveBsonDocument(getCollection(collectionName).withDocumentClass(BsonDocument.class),
+                data,
+                document,
+                expectedMap);
+        if (overflowStash != null && (result.getMatchedCount() > 0 || result.getUpsertedId() != null)) {
+            saveOverflowStash(collectionName, document.get(ID_FIELD_NAME), overflowStash, isPartial(data));
+        }
+
+        return result;
+    }
+
+    /**
+     * 使用collection的编解码器将文档编码为{@link RawBsonDocument}，结果和驱动写入时的编码完全一致
+     */
+    private RawBsonDocument encode(final String collectionName, final Document document) {
+        return new RawBsonDocument(document, getCollection(collectionName).getCodecRegistry().get(Document.class));
+    }
+
+    /**
+     * 单独存储一个溢出存储的组件：组件写入溢出collection，实体文档中只写入占位文档
+     *
+     * @param collectionName 实体所在的collection
+     * @param clazz          组件的类型
+     * @param id             实体的id
+     * @param value          组件的内嵌文档
+     * @return 写入实体文档的结果
+     */
+    private UpdateResult saveOverflowComponent(final String collectionName,
+                                               final Class<?> clazz,
+                                               final Object id,
+                                               final Object value) {
+        final String fieldName = clazz.getSimpleName();
+        getCollection(ComponentStorages.overflowCollectionName(collectionName)).updateOne(Filters.eq(ID_FIELD_NAME, id),
+                Updates.set(fieldName, value),
+                new UpdateOptions().upsert(true));
+        return getCollection(collectionName).updateOne(Filters.eq(ID_FIELD_NAME, id),
+                Updates.set(fieldName, ComponentStorages.overflowStub(clazz)),
+                new UpdateOptions().upsert(true));
+    }
+
+    /**
+     * 将完整存储实体时暂存的溢出存储的组件写入溢出collection：完整存储覆盖整个溢出文档，只加载了部分组件的实体只覆盖已加载的组件
+     *
+     * @param collectionName 实体所在的collection
+     * @param id             实体的id
+     * @param overflowStash  组件类名到组件的内嵌文档的映射
+     * @param partial        实体是否只加载了部分组件
+     */
+    private void saveOverflowStash(final String collectionName,
+                                   final Object id,
+                                   final Document overflowStash,
+                                   final boolean partial) {
+        final String overflowCollectionName = ComponentStorages.overflowCollectionName(collectionName);
+        final MongoCollection<BsonDocument> collection = getCollection(overflowCollectionName)
+                .withDocumentClass(BsonDocument.class);
+        if (partial) {
+            collection.updateOne(Filters.eq(ID_FIELD_NAME, id),
+                    new Document("$set", overflowStash),
+                    new UpdateOptions().upsert(true));
+            return;
+        }
+
+        final Document document = new Document(ID_FIELD_NAME, id);
+        document.putAll(overflowStash);
+        final RawBsonDocument rawDocument = encode(overflowCollectionName, document);
+        ComponentStorages.checkSize(overflowCollectionName, rawDocument, settings.getStorageConfig());
+        collection.replaceOne(Filters.eq(ID_FIELD_NAME, id), rawDocument, new ReplaceOptions().upsert(true));
+    }
+
+    /**
+     * 同{@link GamedoMongoTemplate#saveDocument(String, DbData, Bson, Document, Map)}，文档已经被编码，总是包含“_id”字段
+     */
+    private static UpdateResult saveBsonDocument(final MongoCollection<BsonDocument> collection,
+                                                 final DbData<?> data,
+                                                 final BsonDocument document,
+                                                 final Map<String, Long> expectedMap) {
+        final Bson filter = Versions.filter(document.get(ID_FIELD_NAME), expectedMap);
+        final boolean upsert = !Versions.isGuarded(expectedMap);
+
+        if (data instanceof ComponentDbData) {
+            final String fieldName = data.getClass().getSimpleName();
+            return collection.updateOne(filter,
+                    Updates.set(fieldName, document.get(fieldName)),
+                    new UpdateOptions().upsert(upsert));
+        } else if (isPartial(data)) {
+            final BsonDocument documentSet = new BsonDocument();
+            document.forEach((key, value) -> {
+                if (!ID_FIELD_NAME.equals(key)) {
+                    documentSet.append(key, value);
+                }
+            });
+            return collection.updateOne(filter, new BsonDocument("$set", documentSet), new UpdateOptions().upsert(upsert));
+        } else {
+            return collection.replaceOne(filter, document, new ReplaceOptions().upsert(upsert));
+        }
     }
 
     @Override
     public <T extends DbData> CompletableFuture<UpdateResult> updateDbDataFirstAsync(final T data) {
-        return updateFirstAsyncInner(data, ASYNC_POOL);
+        return updateFirstAsyncInner(data, asyncExecutor);
     }
 
     @Override
@@ -82,11 +647,22 @@ public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProv
         return updateFirstAsyncInner(data, executor);
     }
 
+    @Override
+    public <T extends EntityDbData> CompletableFuture<UpdateResult> updateEntityDirtyAsync(final T data) {
+        return updateEntityDirtyAsyncInner(data, asyncExecutor);
+    }
+
+    @Override
+    public <T extends EntityDbData> CompletableFuture<UpdateResult> updateEntityDirtyAsync(final T data,
+                                                                                           final Executor executor) {
+        return updateEntityDirtyAsyncInner(data, executor);
+    }
+
     @Override
     public <V extends ComponentDbData> CompletableFuture<V> findComponentDbDataByIdAsync(Object id,
                                                                                          Class<V> componentClazz)
     {
-        return findComponentDbDataByIdInner(id, componentClazz, ASYNC_POOL);
+        return findComponentDbDataByIdInner(id, componentClazz, asyncExecutor);
     }
 
     @Override
@@ -99,14 +675,351 @@ public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProv
     private <V extends ComponentDbData> CompletableFuture<V> findComponentDbDataByIdInner(Object id,
                                                                                           Class<V> componentClazz,
                                                                                           Executor executor) {
+        final EntityCache cache = entityCache;
+        final V cached = cache == null ? null : cache.getComponentIfPresent(componentClazz, id);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
         final Query query = new Query();
         query.addCriteria(Criteria.where("_id").is(id));
         query.fields().include(componentClazz.getSimpleName()).include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
 
-        return CompletableFuture.supplyAsync(() -> find(query, componentClazz)
-                .stream()
-                .findFirst()
-                .orElse(null), executor);
+        final String collectionName = getComponentCollectionName(componentClazz);
+        return CompletableFuture.supplyAsync(() -> findOneInner(query, componentClazz, collectionName), executor);
+    }
+
+    @Override
+    public <T extends EntityDbData> CompletableFuture<T> findEntityDbDataByIdAsync(Object id,
+                                                                                 Class<T> entityClazz,
+                                                                                 Collection<Class<? extends ComponentDbData>> componentClazzList) {
+        return findEntityDbDataByIdInner(id, entityClazz, componentClazzList, asyncExecutor);
+    }
+
+    @Override
+    public <T extends EntityDbData> CompletableFuture<T> findEntityDbDataByIdAsync(Object id,
+                                                                                 Class<T> entityClazz,
+                                                                                 Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                                 Executor executor) {
+        return findEntityDbDataByIdInner(id, entityClazz, componentClazzList, executor);
+    }
+
+    private <T extends EntityDbData> CompletableFuture<T> findEntityDbDataByIdInner(final Object id,
+                                                                                  final Class<T> entityClazz,
+                                                                                  final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                                  final Executor executor) {
+        //缓存中的完整实体包含了所有的组件，可以直接使用
+        final EntityCache cache = entityCache;
+        final T cached = cache == null ? null : cache.getIfPresent(entityClazz, id);
+        if (cached != null) {
+            return CompletableFuture.completedFuture(cached);
+        }
+
+        final Query query = new Query();
+        query.addCriteria(Criteria.where(ID_FIELD_NAME).is(id));
+        final Field fields = query.fields()
+                .include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY)
+                .include(Versions.VERSION_FIELD_NAME);
+        componentClazzList.forEach(componentClazz -> fields.include(componentClazz.getSimpleName()));
+
+        return CompletableFuture.supplyAsync(() -> {
+            final T data = findOneInner(query, entityClazz);
+            if (data != null) {
+                data.setPartial(true);
+            }
+
+            log.debug(Markers.MongoDB, "findEntityDbDataByIdAsync, class:{}, id:{}, components:{}, data:{}",
+                    entityClazz::getName,
+                    () -> id,
+                    () -> componentClazzList,
+                    () -> data);
+            return data;
+        }, executor);
+    }
+
+    @Override
+    public <I, V extends ComponentDbData<I>> CompletableFuture<Map<I, V>> findComponentDbDataByIdsAsync(Collection<I> ids,
+                                                                                                      Class<V> componentClazz) {
+        return findComponentDbDataByIdsInner(ids, componentClazz, asyncExecutor);
+    }
+
+    @Override
+    public <I, V extends ComponentDbData<I>> CompletableFuture<Map<I, V>> findComponentDbDataByIdsAsync(Collection<I> ids,
+                                                                                                      Class<V> componentClazz,
+                                                                                                      Executor executor) {
+        return findComponentDbDataByIdsInner(ids, componentClazz, executor);
+    }
+
+    private <I, V extends ComponentDbData<I>> CompletableFuture<Map<I, V>> findComponentDbDataByIdsInner(final Collection<I> ids,
+                                                                                                       final Class<V> componentClazz,
+                                                                                                       final Executor executor) {
+        final EntityCache cache = entityCache;
+        final Map<I, V> cachedMap = new HashMap<>();
+        final List<I> idList = ids.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .filter(id -> {
+                    final V cached = cache == null ? null : cache.getComponentIfPresent(componentClazz, id);
+                    if (cached != null) {
+                        cachedMap.put(id, cached);
+                    }
+                    return cached == null;
+                })
+                .collect(Collectors.toList());
+        if (idList.isEmpty()) {
+            return CompletableFuture.completedFuture(cachedMap);
+        }
+
+        final BatchLoadConfig config = batchLoadConfig;
+        final int chunkSize = Math.max(1, config.getChunkSize());
+        final List<List<I>> chunkList = new ArrayList<>((idList.size() + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < idList.size(); i += chunkSize) {
+            chunkList.add(idList.subList(i, Math.min(i + chunkSize, idList.size())));
+        }
+
+        //每个worker顺序地执行分配给它的查询，从而将同时执行的查询数量限制在parallelism以内
+        final int workerCount = Math.max(1, Math.min(config.getParallelism(), chunkList.size()));
+        final List<CompletableFuture<Map<I, V>>> futureList = new ArrayList<>(workerCount);
+        for (int worker = 0; worker < workerCount; worker++) {
+            final int workerIndex = worker;
+            futureList.add(CompletableFuture.supplyAsync(() -> {
+                final Map<I, V> result = new HashMap<>(idList.size() / workerCount + 1);
+                for (int i = workerIndex; i < chunkList.size(); i += workerCount) {
+                    findComponentDbDataChunk(chunkList.get(i), componentClazz, result);
+                }
+                return result;
+            }, executor));
+        }
+
+        return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0]))
+                .thenApply(v -> {
+                    final Map<I, V> result = new HashMap<>(idList.size() + cachedMap.size());
+                    result.putAll(cachedMap);
+                    futureList.forEach(future -> result.putAll(future.join()));
+                    return result;
+                });
+    }
+
+    private <I, V extends ComponentDbData<I>> void findComponentDbDataChunk(final List<I> idChunk,
+                                                                           final Class<V> componentClazz,
+                                                                           final Map<I, V> result) {
+        final String fieldName = componentClazz.getSimpleName();
+        final Query query = new Query();
+        query.addCriteria(Criteria.where(ID_FIELD_NAME).in(idChunk).and(fieldName).exists(true));
+        query.fields().include(fieldName).include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+
+        log.debug(Markers.MongoDB, "findComponentDbDataByIdsAsync, class:{}, size:{}",
+                componentClazz::getName,
+                idChunk::size);
+
+        final String collectionName = getComponentCollectionName(componentClazz);
+        final long start = System.nanoTime();
+        try {
+            if (hasCodec(componentClazz)) {
+                try (MongoCursor<V> cursor = findByCodec(query, componentClazz, collectionName).iterator()) {
+                    while (cursor.hasNext()) {
+                        final V data = cursor.next();
+                        result.put(data.getId(), data);
+                    }
+                }
+                return;
+            }
+
+            try (CloseableIterator<V> iterator = stream(query, componentClazz, collectionName)) {
+                while (iterator.hasNext()) {
+                    final V data = onLoaded(iterator.next());
+                    result.put(data.getId(), data);
+                }
+            }
+        } finally {
+            settings.getMetrics().recordFind(componentClazz, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return 组件所在的collection，溢出存储的组件位于溢出collection中
+     */
+    private String getComponentCollectionName(final Class<?> componentClazz) {
+        final String collectionName = getCollectionName(componentClazz);
+        return ComponentStorages.policy(componentClazz) == StoragePolicy.OVERFLOW ?
+                ComponentStorages.overflowCollectionName(collectionName) :
+                collectionName;
+    }
+
+    @Override
+    public <T extends EntityDbData> Stream<T> streamEntityDbData(final Class<T> entityClazz,
+                                                                 final Collection<Class<? extends ComponentDbData>> componentClazzList) {
+        return streamEntityDbDataInner(entityClazz, componentClazzList, new Criteria(), scanConfig.getBatchSize());
+    }
+
+    @Override
+    public <T extends EntityDbData> long scanEntityDbData(final Class<T> entityClazz,
+                                                          final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                          final Consumer<? super T> consumer) {
+        return scanEntityDbDataInner(entityClazz, componentClazzList, new Criteria(), consumer, scanConfig.getBatchSize());
+    }
+
+    @Override
+    public <T extends EntityDbData> CompletableFuture<Long> scanEntityDbDataAsync(final Class<T> entityClazz,
+                                                                                final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                                final Consumer<? super T> consumer) {
+        return scanEntityDbDataAsyncInner(entityClazz, componentClazzList, consumer, getScanExecutor());
+    }
+
+    @Override
+    public <T extends EntityDbData> CompletableFuture<Long> scanEntityDbDataAsync(final Class<T> entityClazz,
+                                                                                final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                                final Consumer<? super T> consumer,
+                                                                                final Executor executor) {
+        return scanEntityDbDataAsyncInner(entityClazz, componentClazzList, consumer, executor);
+    }
+
+    private synchronized Executor getScanExecutor() {
+        if (scanExecutor == null) {
+            scanExecutor = new PersistenceExecutor(PersistenceExecutorConfig.builder()
+                    .threads(Math.max(1, scanConfig.getParallelism()))
+                    .threadNamePrefix("gamedo-persistence-scan-")
+                    .build());
+        }
+        return scanExecutor;
+    }
+
+    private <T extends EntityDbData> CompletableFuture<Long> scanEntityDbDataAsyncInner(final Class<T> entityClazz,
+                                                                                      final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                                      final Consumer<? super T> consumer,
+                                                                                      final Executor executor) {
+        final ScanConfig config = scanConfig;
+        final String collectionName = getCollectionName(entityClazz);
+
+        return CompletableFuture.supplyAsync(() -> splitIdRange(collectionName, config.getParallelism()), executor)
+                .thenCompose(boundaryList -> {
+                    log.debug(Markers.MongoDB, "scanEntityDbDataAsync, class:{}, partitions:{}",
+                            entityClazz::getName,
+                            () -> boundaryList.size() + 1);
+
+                    final List<CompletableFuture<Long>> futureList = new ArrayList<>(boundaryList.size() + 1);
+                    for (int i = 0; i <= boundaryList.size(); i++) {
+                        final Criteria criteria = partitionCriteria(boundaryList, i);
+                        futureList.add(CompletableFuture.supplyAsync(() -> scanEntityDbDataInner(entityClazz,
+                                componentClazzList,
+                                criteria,
+                                consumer,
+                                config.getBatchSize()), executor));
+                    }
+
+                    return CompletableFuture.allOf(futureList.toArray(new CompletableFuture[0]))
+                            .thenApply(v -> futureList.stream().mapToLong(CompletableFuture::join).sum());
+                });
+    }
+
+    private <T extends EntityDbData> long scanEntityDbDataInner(final Class<T> entityClazz,
+                                                                final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                final Criteria criteria,
+                                                                final Consumer<? super T> consumer,
+                                                                final int batchSize) {
+        long count = 0;
+        try (Stream<T> stream = streamEntityDbDataInner(entityClazz, componentClazzList, criteria, batchSize)) {
+            final Iterator<T> iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                consumer.accept(iterator.next());
+                count++;
+            }
+        }
+
+        final long scanCount = count;
+        log.debug(Markers.MongoDB, "scanEntityDbData finish, class:{}, criteria:{}, count:{}",
+                entityClazz::getName,
+                criteria::getCriteriaObject,
+                () -> scanCount);
+        return scanCount;
+    }
+
+    /**
+     * 以游标的方式查询满足criteria的实体，打散的组件由{@link EntityDbDataAfterLoadEventListener}（或者编译期生成的编解码器）逐个文档地
+     * 重新组合，返回的{@link Stream}关闭时游标也随之关闭
+     */
+    private <T extends EntityDbData> Stream<T> streamEntityDbDataInner(final Class<T> entityClazz,
+                                                                       final Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                       final Criteria criteria,
+                                                                       final int batchSize) {
+        //_id上总是有索引，按照_id排序不会带来额外的内存排序
+        final Query query = new Query(criteria)
+                .with(Sort.by(Sort.Direction.ASC, ID_FIELD_NAME))
+                .cursorBatchSize(Math.max(1, batchSize));
+        final boolean partial = componentClazzList != null && !componentClazzList.isEmpty();
+        if (partial) {
+            final Field fields = query.fields()
+                    .include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY)
+                    .include(Versions.VERSION_FIELD_NAME);
+            componentClazzList.forEach(componentClazz -> fields.include(componentClazz.getSimpleName()));
+        }
+
+        final String collectionName = getCollectionName(entityClazz);
+        final Stream<T> stream;
+        if (codecRegistry.hasCodec(entityClazz)) {
+            final MongoCursor<T> cursor = findByCodec(query, entityClazz, collectionName).iterator();
+            stream = StreamSupport.stream(Spliterators.spliteratorUnknownSize(cursor, Spliterator.NONNULL), false)
+                    .onClose(cursor::close);
+        } else {
+            stream = stream(query, entityClazz, collectionName).stream().map(this::onLoaded);
+        }
+
+        //溢出存储的组件需要逐个实体地从溢出collection中加载
+        return stream.map(data -> {
+            loadOverflowComponents(collectionName, data);
+            if (partial) {
+                data.setPartial(true);
+            }
+            return data;
+        });
+    }
+
+    /**
+     * 将collection按照_id的顺序大致均分为parallelism个分区，分区的边界由一次只投影_id的$bucketAuto聚合获得，不会读取文档本身，也不需要
+     * 为每个边界执行一次代价与偏移量成正比的skip查询
+     *
+     * @return 升序排列的分区边界，边界的数量为分区的数量减一，文档数量不足时可能少于parallelism - 1
+     */
+    private List<Object> splitIdRange(final String collectionName, final int parallelism) {
+        final MongoCollection<Document> collection = getCollection(collectionName);
+        if (parallelism <= 1 || collection.estimatedDocumentCount() < parallelism) {
+            return Collections.emptyList();
+        }
+
+        final List<Object> boundaryList = new ArrayList<>(parallelism - 1);
+        //每个桶的_id为{min: 桶内最小的_id（包含）, max: 下一个桶的min（不包含）}，除第一个桶之外，每个桶的min就是一个分区边界
+        final List<Document> bucketList = collection.aggregate(Arrays.asList(
+                Aggregates.project(Projections.include(ID_FIELD_NAME)),
+                Aggregates.bucketAuto("$" + ID_FIELD_NAME, parallelism)))
+                .allowDiskUse(true)
+                .into(new ArrayList<>(parallelism));
+        for (int i = 1; i < bucketList.size(); i++) {
+            final Object boundary = bucketList.get(i).get(ID_FIELD_NAME, Document.class).get("min");
+            if (boundary != null && (boundaryList.isEmpty() || !boundary.equals(boundaryList.get(boundaryList.size() - 1)))) {
+                boundaryList.add(boundary);
+            }
+        }
+
+        return boundaryList;
+    }
+
+    /**
+     * @return 第index个分区所对应的查询条件：[boundaryList[index - 1], boundaryList[index])，首尾两个分区不设下界和上界
+     */
+    private static Criteria partitionCriteria(final List<Object> boundaryList, final int index) {
+        if (boundaryList.isEmpty()) {
+            return new Criteria();
+        }
+
+        final Criteria criteria = Criteria.where(ID_FIELD_NAME);
+        if (index > 0) {
+            criteria.gte(boundaryList.get(index - 1));
+        }
+        if (index < boundaryList.size()) {
+            criteria.lt(boundaryList.get(index));
+        }
+
+        return criteria;
     }
 
     private <T extends DbData> CompletableFuture<UpdateResult> updateFirstAsyncInner(final T data, final Executor executor) {
@@ -117,6 +1030,7 @@ public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProv
         final String className = clazz.getName();
         final Object id = data.getId();
         if (!data.isDirty()) {
+            settings.getMetrics().onDirtySkip(clazz);
             log.warn(Markers.MongoDB, "the updater is not dirty, class:{}, id:{}, hashCode:{}, updater:{}",
                     className,
                     id,
@@ -127,23 +1041,598 @@ public class GamedoMongoTemplate implements MongoOperations, IndexOperationsProv
                     null));
         }
 
-        final Query query = new Query(Criteria.where("_id").is(id));
-        final Updater updateNew = new Updater(updater.getPrefix());
+        //压缩存储的组件被摘下的是改写后的更新器，详见Updaters#detach
+        final IUpdater updaterDetached = settings.detach(data);
+        if (Updaters.isEmpty(updaterDetached)) {
+            //可追踪容器的变化相互抵消了，空的更新会被mongoDB当作替换整个文档，不能写入
+            settings.getMetrics().onDirtySkip(clazz);
+            log.debug(Markers.MongoDB, "the updater is empty after materialized, class:{}, id:{}, hashCode:{}",
+                    className,
+                    id,
+                    hashCode);
+            return CompletableFuture.completedFuture(UpdateResult.acknowledged(0, 0L, null));
+        }
 
-        data.setUpdater(updateNew);
+        final String collectionName = getCollectionName(clazz);
+        notifyCache(collectionName, data);
+        final List<? extends UpdateDefinition> updaterList;
+        final List<? extends UpdateDefinition> overflowUpdaterList;
+        if (data instanceof ComponentDbData && ComponentStorages.policy(clazz) == StoragePolicy.OVERFLOW) {
+            //组件可能是在上次完整存储之后才被添加的，因此同时写入占位文档
+            updaterList = Collections.singletonList(new Update().set(clazz.getSimpleName(), ComponentStorages.overflowStub(clazz)));
+            overflowUpdaterList = Collections.singletonList(updaterDetached);
+        } else {
+            updaterList = Collections.singletonList(updaterDetached);
+            overflowUpdaterList = Collections.emptyList();
+        }
 
-        return CompletableFuture.supplyAsync(() -> {
-            log.debug(Markers.MongoDB, "updateFirstAsync start, class:{}, id:{}, updater:{}",
-                    () -> className,
-                    () -> id,
-                    () -> updater);
-            final UpdateResult updateResult = updateFirst(query, updater, clazz);
-            log.debug(Markers.MongoDB,
-                    "updateFirstAsync finish, id:{}, hashCode:{}, result:{}",
-                    () -> id,
-                    () -> hashCode,
-                    () -> updateResult);
-            return updateResult;
-        }, executor);
+        return submitUpdate(clazz, collectionName, id, updaterList, overflowUpdaterList, Versions.collectForUpdate(data), executor);
+    }
+
+    private <T extends EntityDbData<?>> CompletableFuture<UpdateResult> updateEntityDirtyAsyncInner(final T data,
+                                                                                                 final Executor executor) {
+        final Class<? extends EntityDbData> clazz = data.getClass();
+        final String className = clazz.getName();
+        final Object id = data.getId();
+        if (!Updaters.isAnyDirty(data)) {
+            settings.getMetrics().onDirtySkip(clazz);
+            log.warn(Markers.MongoDB, "the entity and its components are not dirty, class:{}, id:{}", className, id);
+            return CompletableFuture.completedFuture(UpdateResult.acknowledged(0, 0L, null));
+        }
+
+        settings.attach(data);
+        final Map<String, DbData<?>> versionedDataMap = Versions.collectDirty(data);
+        final Update stubUpdate = new Update();
+        final List<IUpdater> overflowUpdaterList = ComponentStorages.detachDirtyOverflow(data, stubUpdate,
+                settings.getUpdaterFactory(), settings.getStorageConfig());
+        final List<UpdateDefinition> updaterList = new ArrayList<>(settings.detachDirty(data));
+        if (!overflowUpdaterList.isEmpty()) {
+            updaterList.add(stubUpdate);
+        }
+        final List<Update> updateList = Updaters.merge(updaterList);
+        final List<Update> overflowUpdateList = Updaters.merge(overflowUpdaterList);
+
+        log.debug(Markers.MongoDB, "updateEntityDirtyAsync, class:{}, id:{}, updaterCount:{}, updateCount:{}, " +
+                        "overflowUpdateCount:{}",
+                () -> className,
+                () -> id,
+                () -> updaterList.size() + overflowUpdaterList.size(),
+                updateList::size,
+                overflowUpdateList::size);
+
+        final String collectionName = getCollectionName(clazz);
+        notifyCache(collectionName, data);
+        return submitUpdate(clazz, collectionName, id, updateList, overflowUpdateList, versionedDataMap, executor);
+    }
+
+    /**
+     * 记录日志并提交一次增量更新，溢出存储的组件的更新写入溢出collection，二者位于同一个有序通道中
+     */
+    private CompletableFuture<UpdateResult> submitUpdate(final Class<?> clazz,
+                                                         final String collectionName,
+                                                         final Object id,
+                                                         final List<? extends UpdateDefinition> updateList,
+                                                         final List<? extends UpdateDefinition> overflowUpdateList,
+                                                         final Map<String, DbData<?>> versionedDataMap,
+                                                         final Executor executor) {
+        final WriteJournal journal = writeJournal;
+        final long sequence = journal == null ? 0 : appendJournal(journal, collectionName, clazz, id, updateList);
+        final long overflowSequence = journal == null || overflowUpdateList.isEmpty() ? 0 :
+                appendJournal(journal, ComponentStorages.overflowCollectionName(collectionName), clazz, id, overflowUpdateList);
+
+        return acknowledgeJournal(journal, overflowSequence, acknowledgeJournal(journal, sequence, submitOrdered(collectionName,
+                id,
+                new UpdateLaneTask(clazz, collectionName, id, updateList, overflowUpdateList, versionedDataMap),
+                executor)));
+    }
+
+    /**
+     * 在写前日志中记录一次增量更新，记录失败时只打印日志，不影响本次写入
+     *
+     * @return 日志的序号，记录失败时返回0
+     */
+    private static long appendJournal(final WriteJournal journal,
+                                      final String collectionName,
+                                      final Class<?> clazz,
+                                      final Object id,
+                                      final List<? extends UpdateDefinition> updateList) {
+        try {
+            return journal.appendUpdate(collectionName, clazz.getName(), id, updateList);
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "append write journal failed, class:" + clazz.getName() + ", id:" + id, e);
+            return 0;
+        }
+    }
+
+    /**
+     * 在写前日志中记录一次存储，记录失败时只打印日志，不影响本次写入
+     *
+     * @return 日志的序号，记录失败时返回0
+     */
+    private static long appendJournal(final WriteJournal journal,
+                                      final String collectionName,
+                                      final DbData<?> data,
+                                      final Bson document) {
+        if (document instanceof Document) {
+            //重放时需要通过“_id”定位文档，因此在记录之前生成
+            ((Document) document).computeIfAbsent(ID_FIELD_NAME, key -> new ObjectId());
+        }
+
+        final JournalOperation operation = data instanceof ComponentDbData ? JournalOperation.SAVE_COMPONENT :
+                isPartial(data) ? JournalOperation.SAVE_PARTIAL : JournalOperation.SAVE;
+        final String fieldName = data instanceof ComponentDbData ? data.getClass().getSimpleName() : null;
+        try {
+            return journal.appendSave(collectionName, data.getClass().getName(), operation, fieldName, document);
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "append write journal failed, class:" + data.getClass().getName() +
+                    ", id:" + data.getId(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * 写入完成后确认对应的日志：写入成功，或者因为版本冲突而被放弃（重放也无法成功）时确认，其他异常则保留日志，等待下次启动时重放
+     *
+     * @return 传入的future
+     */
+    private static <R> CompletableFuture<R> acknowledgeJournal(final WriteJournal journal,
+                                                               final long sequence,
+                                                               final CompletableFuture<R> future) {
+        if (journal == null || sequence == 0) {
+            return future;
+        }
+
+        future.whenComplete((r, t) -> {
+            final Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+            if (cause == null || cause instanceof VersionConflictException) {
+                journal.acknowledge(sequence);
+            }
+        });
+        return future;
+    }
+
+    /**
+     * 重放{@link GamedoMongoTemplate#getWriteJournal()}中所有未被确认的日志，一般在启动时、开始处理业务之前同步调用一次。重放按照日志的
+     * 顺序执行，不校验版本号，成功之后确认对应的日志，失败的日志保留到下一次重放
+     * <p>
+     * 注意：重放的语义是至少一次，详见{@link WriteJournal}
+     *
+     * @return 成功重放的日志数量
+     */
+    public int replayWriteJournal() {
+        final WriteJournal journal = writeJournal;
+        if (journal == null) {
+            return 0;
+        }
+
+        final List<JournalEntry> entryList = journal.pending();
+        int count = 0;
+        for (JournalEntry entry : entryList) {
+            try {
+                replay(entry);
+                journal.acknowledge(entry.getSequence());
+                count++;
+            } catch (Exception e) {
+                log.error(Markers.GamedoPersistence, "replay write journal failed, entry:" + entry, e);
+            }
+        }
+
+        log.info(Markers.GamedoPersistence, "write journal replayed, pending:{}, replayed:{}", entryList.size(), count);
+        return count;
+    }
+
+    private void replay(final JournalEntry entry) throws ClassNotFoundException {
+        final Document document = entry.getDocument();
+        final MongoCollection<Document> collection = getCollection(entry.getCollectionName());
+        final Class<?> clazz = ClassUtils.forName(entry.getClassName(), getClass().getClassLoader());
+        //完整存储时暂存的溢出存储的组件
+        final Document overflowStash = ComponentStorages.removeOverflowStash(document);
+        switch (entry.getOperation()) {
+            case UPDATE:
+                final Query query = new Query(Criteria.where(ID_FIELD_NAME).is(entry.getId()));
+                //溢出文档可能尚不存在
+                final boolean upsert = ComponentStorages.isOverflowCollection(entry.getCollectionName());
+                for (Document updateObject : entry.getUpdateList()) {
+                    if (upsert) {
+                        upsert(query, Update.fromDocument(updateObject), clazz, entry.getCollectionName());
+                    } else {
+                        updateFirst(query, Update.fromDocument(updateObject), clazz, entry.getCollectionName());
+                    }
+                }
+                break;
+            case SAVE_COMPONENT:
+                if (ComponentStorages.policy(clazz) == StoragePolicy.OVERFLOW) {
+                    saveOverflowComponent(entry.getCollectionName(),
+                            clazz,
+                            document.get(ID_FIELD_NAME),
+                            document.get(entry.getFieldName()));
+                    break;
+                }
+                collection.updateOne(Filters.eq(ID_FIELD_NAME, document.get(ID_FIELD_NAME)),
+                        Updates.set(entry.getFieldName(), document.get(entry.getFieldName())),
+                        new UpdateOptions().upsert(true));
+                break;
+            case SAVE_PARTIAL:
+                final Document documentSet = new Document(document);
+                documentSet.remove(ID_FIELD_NAME);
+                collection.updateOne(Filters.eq(ID_FIELD_NAME, document.get(ID_FIELD_NAME)),
+                        new Document("$set", documentSet),
+                        new UpdateOptions().upsert(true));
+                if (overflowStash != null) {
+                    saveOverflowStash(entry.getCollectionName(), document.get(ID_FIELD_NAME), overflowStash, true);
+                }
+                break;
+            case SAVE:
+                collection.replaceOne(Filters.eq(ID_FIELD_NAME, document.get(ID_FIELD_NAME)),
+                        document,
+                        new ReplaceOptions().upsert(true));
+                if (overflowStash != null) {
+                    saveOverflowStash(entry.getCollectionName(), document.get(ID_FIELD_NAME), overflowStash, false);
+                }
+                break;
+            default:
+                throw new IllegalStateException("unknown journal operation:" + entry.getOperation());
+        }
+    }
+
+    /**
+     * 执行一次可能带有版本校验的写入：期望的版本号在执行时从数据中读取，写入成功后递增本地的版本号；校验版本号的写入没有匹配到任何文档时，
+     * 通知{@link GamedoMongoTemplate#getVersionConflictHandler()}，并放弃本次写入
+     *
+     * @param versionedDataMap 本次写入所涉及的、启用了版本控制的数据，为空时直接执行写入
+     * @param updateList       本次写入的增量更新，完整存储时为空列表
+     * @param save             是否为完整存储，完整存储直接写入新的版本号，因此写入之后本地的版本号总是已知的
+     * @param writer           以期望的版本号执行写入
+     * @return 写入的结果
+     * @throws VersionConflictException 如果发生了版本冲突
+     */
+    private UpdateResult writeVersioned(final String collectionName,
+                                        final Class<?> clazz,
+                                        final Object id,
+                                        final Map<String, DbData<?>> versionedDataMap,
+                                        final List<? extends UpdateDefinition> updateList,
+                                        final boolean save,
+                                        final Function<Map<String, Long>, UpdateResult> writer) {
+        if (versionedDataMap.isEmpty()) {
+            return writer.apply(Collections.emptyMap());
+        }
+
+        final Map<String, Long> expectedMap = Versions.expect(versionedDataMap);
+        final UpdateResult result = writer.apply(expectedMap);
+        if (result.getMatchedCount() > 0 || result.getUpsertedId() != null) {
+            advanceVersion(collectionName, clazz, id, versionedDataMap, expectedMap, save);
+            return result;
+        }
+
+        //没有校验版本号，说明文档不存在，和未启用版本控制时一样直接返回
+        if (!Versions.isGuarded(expectedMap)) {
+            return result;
+        }
+
+        final Document versionDocument = findVersion(collectionName, clazz, id, expectedMap.keySet());
+        final Map<String, Long> actualMap = new LinkedHashMap<>();
+        if (versionDocument != null) {
+            expectedMap.keySet().forEach(path -> actualMap.put(path, Versions.read(versionDocument, path)));
+        }
+
+        final VersionConflict conflict = new VersionConflict(collectionName,
+                id,
+                clazz,
+                Collections.unmodifiableMap(expectedMap),
+                Collections.unmodifiableMap(actualMap),
+                versionDocument != null,
+                Collections.unmodifiableList(updateList));
+        final VersionConflictResolution resolution = resolveConflict(conflict);
+        log.warn(Markers.MongoDB,
+                "version conflict, collection:{}, id:{}, class:{}, expected:{}, actual:{}, resolution:{}",
+                collectionName,
+                id,
+                clazz.getName(),
+                expectedMap,
+                actualMap,
+                resolution);
+
+        throw new VersionConflictException(conflict);
+    }
+
+    private VersionConflictResolution resolveConflict(final VersionConflict conflict) {
+        try {
+            return versionConflictHandler.onConflict(conflict);
+        } catch (Exception e) {
+            log.error(Markers.MongoDB, "exception caught on version conflict handler, conflict:" + conflict, e);
+            return VersionConflictResolution.ABORT;
+        }
+    }
+
+    /**
+     * 写入成功后递增本地的版本号，期望值未知（为0）的增量更新通过$inc递增了版本号，此时需要读取一次数据库中的版本号
+     */
+    private void advanceVersion(final String collectionName,
+                                final Class<?> clazz,
+                                final Object id,
+                                final Map<String, DbData<?>> versionedDataMap,
+                                final Map<String, Long> expectedMap,
+                                final boolean save) {
+        final Document versionDocument = save || !expectedMap.containsValue(0L) ?
+                null :
+                findVersion(collectionName, clazz, id, expectedMap.keySet());
+
+        expectedMap.forEach((path, expected) -> versionedDataMap.get(path).setVersion(save || expected > 0 ?
+                expected + 1 :
+                Versions.read(versionDocument, path)));
+    }
+
+    /**
+     * 只读取文档中指定路径的版本号
+     *
+     * @return 只包含版本号的文档，如果文档不存在，返回null
+     */
+    private Document findVersion(final String collectionName,
+                                 final Class<?> clazz,
+                                 final Object id,
+                                 final Collection<String> pathCollection) {
+        final MongoPersistentEntity<?> entity = getConverter().getMappingContext().getPersistentEntity(clazz);
+        final Query query = new Query(Criteria.where(ID_FIELD_NAME).is(id));
+        return getCollection(collectionName)
+                .find(queryMapper.getMappedObject(query.getQueryObject(), entity))
+                .projection(Projections.include(new ArrayList<>(pathCollection)))
+                .first();
+    }
+
+    private void notifyCache(final String collectionName, final DbData<?> data) {
+        final EntityCache cache = entityCache;
+        if (cache != null) {
+            cache.onWrite(collectionName, data);
+        }
+    }
+
+    /**
+     * @param collectionName 文档所在的collection
+     * @param id             文档的id
+     * @return 如果该文档有已经提交但尚未执行完毕的写操作，返回true
+     */
+    public boolean hasPendingWrite(final String collectionName, final Object id) {
+        return laneExecutor.isLaneActive(Arrays.asList(collectionName, id));
+    }
+
+    /**
+     * 将一个任务提交到文档所对应的有序通道中，它会在该文档所有已经提交的写操作执行完毕之后，在{@link GamedoMongoTemplate#asyncExecutor}中执行，
+     * 用于需要和写操作一样读取业务数据的场景，例如：判断缓存中的实体是否与mongoDB中的文档一致
+     *
+     * @param collectionName 文档所在的collection
+     * @param id             文档的id
+     * @param action         要执行的任务
+     * @param <R>            任务的执行结果类型
+     * @return 返回执行该任务的CompletableFuture
+     */
+    public <R> CompletableFuture<R> submitOrdered(final String collectionName, final Object id, final Supplier<R> action) {
+        return submitOrdered(collectionName, id, action::get, asyncExecutor);
+    }
+
+    private static boolean isPartial(final DbData<?> data) {
+        return data instanceof EntityDbData && ((EntityDbData<?>) data).isPartial();
+    }
+
+    /**
+     * 将一个写操作提交到id所对应的通道中，从而保证同一个文档的写操作按照提交顺序执行
+     */
+    private <R> CompletableFuture<R> submitOrdered(final String collectionName,
+                                                   final Object id,
+                                                   final LaneTask<R> task,
+                                                   final Executor executor) {
+        if (id == null) {
+            return CompletableFuture.supplyAsync(task::execute, executor);
+        }
+
+        return laneExecutor.submit(Arrays.asList(collectionName, id), task, executor);
+    }
+
+    /**
+     * 一次完整的存储，它可以取代排在它之前的、被它完全覆盖的更新和存储
+     */
+    private static final class SaveLaneTask<T extends DbData> implements LaneTask<T> {
+        private final T data;
+        private final Supplier<T> action;
+
+        private SaveLaneTask(T data, Supplier<T> action) {
+            this.data = data;
+            this.action = action;
+        }
+
+        @Override
+        public T execute() {
+            return action.get();
+        }
+
+        /**
+         * @param clazz 其他写操作所作用的数据类型
+         * @return 如果本存储完全覆盖了clazz类型的数据，返回true
+         */
+        private boolean covers(final Class<?> clazz) {
+            if (isPartial(data)) {
+                return false;
+            }
+
+            return data instanceof EntityDbData || data.getClass() == clazz;
+        }
+
+        @Override
+        public boolean isSupersededBy(LaneTask<?> later) {
+            return later instanceof SaveLaneTask && ((SaveLaneTask<?>) later).covers(data.getClass());
+        }
+
+        @Override
+        public T getSupersededResult() {
+            return data;
+        }
+    }
+
+    /**
+     * 一次增量更新，排在它之后的、相同数据类型的增量更新可以合并进来（后者的$set覆盖前者），启用了版本控制的数据合并后只校验并递增一次版本号，
+     * 合并后需要拆分成多个更新时则不合并。
+     * 溢出存储的组件的更新（{@link UpdateLaneTask#overflowUpdateList}）在实体文档的更新成功之后写入溢出collection
+     */
+    private final class UpdateLaneTask implements LaneTask<UpdateResult> {
+        private final Class<?> clazz;
+        private final String collectionName;
+        private final Object id;
+        private final List<? extends UpdateDefinition> updateList;
+        private final List<? extends UpdateDefinition> overflowUpdateList;
+        private final Map<String, DbData<?>> versionedDataMap;
+
+        private UpdateLaneTask(Class<?> clazz,
+                               String collectionName,
+                               Object id,
+                               List<? extends UpdateDefinition> updateList,
+                               List<? extends UpdateDefinition> overflowUpdateList,
+                               Map<String, DbData<?>> versionedDataMap) {
+            this.clazz = clazz;
+            this.collectionName = collectionName;
+            this.id = id;
+            this.updateList = updateList;
+            this.overflowUpdateList = overflowUpdateList;
+            this.versionedDataMap = versionedDataMap;
+        }
+
+        @Override
+        public UpdateResult execute() {
+            if (updateList.isEmpty() && overflowUpdateList.isEmpty()) {
+                //合并之后没有任何需要写入的内容，和没有被标脏时一样，不校验版本号也不访问数据库
+                return UpdateResult.acknowledged(0, 0L, null);
+            }
+
+            final IPersistenceMetrics metrics = settings.getMetrics();
+            updateList.forEach(update -> metrics.recordUpdateDefinition(clazz, update));
+
+            final long start = System.nanoTime();
+            try {
+                final UpdateResult result = writeVersioned(collectionName, clazz, id, versionedDataMap, updateList, false,
+                        expectedMap -> execute(Versions.query(id, expectedMap),
+                                expectedMap.isEmpty() ? updateList : Versions.bump(updateList, expectedMap),
+                                Versions.isGuarded(expectedMap)));
+                executeOverflow();
+                return result;
+            } finally {
+                metrics.recordUpdate(clazz, System.nanoTime() - start);
+            }
+        }
+
+        private void executeOverflow() {
+            if (overflowUpdateList.isEmpty()) {
+                return;
+            }
+
+            final String overflowCollectionName = ComponentStorages.overflowCollectionName(collectionName);
+            final Query query = new Query(Criteria.where(ID_FIELD_NAME).is(id));
+            log.debug(Markers.MongoDB, "updateFirstAsync overflow, class:{}, collection:{}, query:{}, updates:{}",
+                    clazz::getName,
+                    () -> overflowCollectionName,
+                    query::getQueryObject,
+                    () -> overflowUpdateList);
+            //组件可能是在上次完整存储之后才被添加的，溢出文档可能尚不存在
+            overflowUpdateList.forEach(update -> upsert(query, update, clazz, overflowCollectionName));
+        }
+
+        private UpdateResult execute(final Query query,
+                                     final List<? extends UpdateDefinition> updateList,
+                                     final boolean guarded) {
+            log.debug(Markers.MongoDB, "updateFirstAsync start, class:{}, query:{}, updates:{}",
+                    clazz::getName,
+                    query::getQueryObject,
+                    () -> updateList);
+
+            final UpdateResult result;
+            if (updateList.size() == 1) {
+                result = updateFirst(query, updateList.get(0), clazz);
+            } else if (guarded) {
+                result = executeInTransaction(query, updateList);
+            } else {
+                long matchedCount = 0;
+                long modifiedCount = 0;
+                for (UpdateDefinition update : updateList) {
+                    final UpdateResult updateResult = updateFirst(query, update, clazz);
+                    matchedCount = Math.max(matchedCount, updateResult.getMatchedCount());
+                    modifiedCount = Math.max(modifiedCount, updateResult.getModifiedCount());
+                }
+                result = UpdateResult.acknowledged(matchedCount, modifiedCount, null);
+            }
+
+            log.debug(Markers.MongoDB, "updateFirstAsync finish, class:{}, query:{}, result:{}",
+                    clazz::getName,
+                    query::getQueryObject,
+                    () -> result);
+            return result;
+        }
+
+        /**
+         * 校验版本号的增量更新被拆分成了多个（路径冲突，详见{@link Updaters#merge(List)}）时，在一个事务中执行：只有最后一个更新递增版本号，
+         * 如果逐个执行，中途发生的版本冲突会使得前面的更新已经生效而版本号没有变化。事务要求mongoDB以副本集（或者分片集群）的方式运行，
+         * 不支持事务时拒绝本次写入，所有的更新都不会生效
+         */
+        private UpdateResult executeInTransaction(final Query query, final List<? extends UpdateDefinition> updateList) {
+            try (ClientSession session = mongoTemplate.getMongoDatabaseFactory().getSession(ClientSessionOptions.builder().build())) {
+                final MongoTemplate sessionTemplate = mongoTemplate.withSession(session);
+                session.startTransaction();
+                long modifiedCount = 0;
+                for (UpdateDefinition update : updateList) {
+                    final UpdateResult updateResult = sessionTemplate.updateFirst(query, update, clazz);
+                    if (updateResult.getMatchedCount() == 0) {
+                        //版本冲突，前面的更新全部回滚
+                        session.abortTransaction();
+                        return updateResult;
+                    }
+                    modifiedCount = Math.max(modifiedCount, updateResult.getModifiedCount());
+                }
+                session.commitTransaction();
+                return UpdateResult.acknowledged(1, modifiedCount, null);
+            } catch (RuntimeException e) {
+                //会话关闭时，尚未提交的事务会被回滚
+                throw new IllegalStateException("the split updates of versioned data must be written in a transaction, " +
+                        "none of them is applied, transactions require a replica set, class:" + clazz.getName() +
+                        ", id:" + id + ", updates:" + updateList, e);
+            }
+        }
+
+        @Override
+        public LaneTask<UpdateResult> merge(LaneTask<?> later) {
+            if (!(later instanceof UpdateLaneTask) || ((UpdateLaneTask) later).clazz != clazz) {
+                return null;
+            }
+
+            final UpdateLaneTask laterTask = (UpdateLaneTask) later;
+            final List<UpdateDefinition> updateListMerged = new ArrayList<>(updateList);
+            updateListMerged.addAll(laterTask.updateList);
+            final List<UpdateDefinition> overflowUpdateListMerged = new ArrayList<>(overflowUpdateList);
+            overflowUpdateListMerged.addAll(laterTask.overflowUpdateList);
+
+            Map<String, DbData<?>> versionedDataMapMerged = versionedDataMap;
+            if (!laterTask.versionedDataMap.isEmpty()) {
+                versionedDataMapMerged = new LinkedHashMap<>(versionedDataMap);
+                laterTask.versionedDataMap.forEach(versionedDataMapMerged::putIfAbsent);
+            }
+
+            final List<Update> updateListMergedFinal = Updaters.merge(updateListMerged);
+            if (!versionedDataMapMerged.isEmpty() && updateListMergedFinal.size() > 1) {
+                //启用了版本控制的数据，不通过合并产生需要在事务中执行的拆分更新，两次写入各自校验版本号
+                return null;
+            }
+
+            return new UpdateLaneTask(clazz,
+                    collectionName,
+                    id,
+                    updateListMergedFinal,
+                    Updaters.merge(overflowUpdateListMerged),
+                    versionedDataMapMerged);
+        }
+
+        @Override
+        public boolean isSupersededBy(LaneTask<?> later) {
+            return later instanceof SaveLaneTask && ((SaveLaneTask<?>) later).covers(clazz);
+        }
+
+        @Override
+        public UpdateResult getSupersededResult() {
+            return SUPERSEDED_UPDATE_RESULT;
+        }
     }
 }
@@ -0,0 +1,342 @@
+package org.gamedo.persistence;
+
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoCollection;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.experimental.Delegate;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.convert.DbDataWriter;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.db.track.Trackables;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Objects;
+import java.util.stream.Collectors;
+
+/**
+ * {@link GamedoMongoTemplate}的响应式版本，所有的读写操作都委托给{@link ReactiveMongoTemplate}以及mongoDB的reactive-streams驱动。
+ * 存储和加载的文档布局与{@link GamedoMongoTemplate}完全一致：存储时直接使用{@link DbDataWriter}生成打散后的文档，加载时
+ * {@link ReactiveMongoTemplate}会发布与{@link org.springframework.data.mongodb.core.MongoTemplate}相同的映射事件，因此四个
+ * 实体/组件的事件监听器同时适用于两个模板
+ * <p>
+ * 注意：本模板不支持写入溢出存储（{@link StoragePolicy#OVERFLOW}）的组件，包含这些组件的存储和增量更新会以{@link IllegalStateException}
+ * 失败，压缩存储的组件不受影响，详见{@link ComponentStorages}
+ */
+@SuppressWarnings("unused")
+@Log4j2
+public class GamedoReactiveMongoTemplate implements ReactiveMongoOperations, IGamedoReactiveMongoTemplate {
+
+    public static final int DEFAULT_CONCURRENCY = 64;
+
+    @Delegate(types = ReactiveMongoTemplate.class)
+    private final ReactiveMongoTemplate reactiveMongoTemplate;
+    /**
+     * 批量存储、批量更新时，最多同时执行的写操作数量
+     */
+    @Getter
+    @Setter
+    private volatile int concurrency = DEFAULT_CONCURRENCY;
+    /**
+     * 批量加载的配置
+     */
+    @Getter
+    @Setter
+    private volatile BatchLoadConfig batchLoadConfig = BatchLoadConfig.DEFAULT;
+    /**
+     * 编译期生成的编解码器的注册表，存在编解码器的类型在存储时不再经过{@link ReactiveMongoTemplate}的反射转换
+     */
+    @Getter
+    private final DbDataCodecRegistry codecRegistry;
+    /**
+     * 本模板的持久化设置，详见{@link PersistenceSettings}
+     */
+    @Getter
+    private final PersistenceSettings settings;
+    private final DbDataWriter dbDataWriter;
+
+    public GamedoReactiveMongoTemplate(ReactiveMongoTemplate reactiveMongoTemplate) {
+        this(reactiveMongoTemplate, null);
+    }
+
+    /**
+     * @param reactiveMongoTemplate 被代理的模板
+     * @param typeRegistry          类型注册表，应当与注册到spring中的映射事件监听器使用同一个实例，为null时创建一个新的注册表
+     */
+    public GamedoReactiveMongoTemplate(ReactiveMongoTemplate reactiveMongoTemplate, DbDataTypeRegistry typeRegistry) {
+        this(reactiveMongoTemplate, typeRegistry, null);
+    }
+
+    /**
+     * @param reactiveMongoTemplate 被代理的模板
+     * @param typeRegistry          类型注册表，应当与注册到spring中的映射事件监听器使用同一个实例，为null时创建一个新的注册表
+     * @param settings              本模板的持久化设置，为null时使用一个新的默认设置
+     */
+    public GamedoReactiveMongoTemplate(ReactiveMongoTemplate reactiveMongoTemplate,
+                                       DbDataTypeRegistry typeRegistry,
+                                       PersistenceSettings settings) {
+        this.reactiveMongoTemplate = reactiveMongoTemplate;
+        final DbDataTypeRegistry registry = typeRegistry != null ? typeRegistry : new DbDataTypeRegistry(getConverter());
+        this.settings = settings != null ? settings : new PersistenceSettings();
+        codecRegistry = new DbDataCodecRegistry(getConverter(), registry, this.settings);
+        dbDataWriter = new DbDataWriter(getConverter(), codecRegistry, registry, this.settings);
+        Updater.setMongoConverterIfAbsent(getConverter());
+    }
+
+    @Override
+    public <T extends DbData> Mono<T> saveDbData(final T data) {
+        final Class<?> clazz = data.getClass();
+        final String className = clazz.getName();
+        final Object id = data.getId();
+        final int hashCode = data.hashCode();
+        final String collectionName = getCollectionName(clazz);
+        if (ComponentStorages.isAnyOverflow(data)) {
+            return Mono.error(overflowNotSupported(data));
+        }
+
+        //存储之后，可追踪容器的后续修改需要记录到该数据的更新器中
+        Trackables.bind(data, settings.getWholeFieldRatio());
+        if (data instanceof EntityDbData) {
+            settings.attach((EntityDbData<?>) data);
+        }
+        //serialize to the final flattened Document on the caller thread, and only once.
+        final Bson document = dbDataWriter.encode(data);
+
+        return saveDocument(collectionName, data, document)
+                .doOnSubscribe(subscription -> log.debug(Markers.MongoDB,
+                        "saveDbData start, class:{}, id:{}, data:({}){}",
+                        () -> className,
+                        () -> id,
+                        () -> hashCode,
+                        () -> document))
+                .doOnSuccess(result -> log.debug(Markers.MongoDB, "saveDbData finish, id:{}, hashCode:{}",
+                        () -> id,
+                        () -> hashCode))
+                .thenReturn(data);
+    }
+
+    @Override
+    public <T extends DbData> Flux<T> saveDbData(final Flux<T> dataFlux) {
+        return dataFlux.flatMap(this::saveDbData, concurrency);
+    }
+
+    private static IllegalStateException overflowNotSupported(final DbData<?> data) {
+        return new IllegalStateException("overflow components are not supported by the reactive template, use " +
+                "GamedoMongoTemplate instead, class:" + data.getClass().getName() + ", id:" + data.getId());
+    }
+
+    private Mono<UpdateResult> saveDocument(final String collectionName, final DbData<?> data, final Bson bson) {
+        if (bson instanceof RawBsonDocument) {
+            return getCollection(collectionName)
+                    .flatMap(collection -> saveRawDocument(collection.withDocumentClass(RawBsonDocument.class),
+                            data,
+                            (RawBsonDocument) bson));
+        }
+
+        final Document document = (Document) bson;
+        final Object documentId = document.computeIfAbsent(IGamedoMongoTemplate.ID_FIELD_NAME, key -> new ObjectId());
+        final Bson filter = Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, documentId);
+
+        return getCollection(collectionName).flatMap(collection -> {
+            if (data instanceof ComponentDbData) {
+                final String fieldName = data.getClass().getSimpleName();
+                return Mono.from(collection.updateOne(filter,
+                        Updates.set(fieldName, document.get(fieldName)),
+                        new UpdateOptions().upsert(true)));
+            } else if (data instanceof EntityDbData && ((EntityDbData<?>) data).isPartial()) {
+                //只加载了部分组件的实体，只覆盖已加载的字段，避免删除未加载的组件
+                final Document documentSet = new Document(document);
+                documentSet.remove(IGamedoMongoTemplate.ID_FIELD_NAME);
+                return Mono.from(collection.updateOne(filter,
+                        new Document("$set", documentSet),
+                        new UpdateOptions().upsert(true)));
+            } else {
+                return Mono.from(collection.replaceOne(filter, document, new ReplaceOptions().upsert(true)));
+            }
+        });
+    }
+
+    private static Mono<UpdateResult> saveRawDocument(final MongoCollection<RawBsonDocument> collection,
+                                                      final DbData<?> data,
+                                                      final RawBsonDocument document) {
+        final Bson filter = Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, document.get(IGamedoMongoTemplate.ID_FIELD_NAME));
+
+        if (data instanceof ComponentDbData) {
+            final String fieldName = data.getClass().getSimpleName();
+            return Mono.from(collection.updateOne(filter,
+                    Updates.set(fieldName, document.get(fieldName)),
+                    new UpdateOptions().upsert(true)));
+        } else if (data instanceof EntityDbData && ((EntityDbData<?>) data).isPartial()) {
+            final BsonDocument documentSet = new BsonDocument();
+            document.forEach((key, value) -> {
+                if (!IGamedoMongoTemplate.ID_FIELD_NAME.equals(key)) {
+                    documentSet.append(key, value);
+                }
+            });
+            return Mono.from(collection.updateOne(filter,
+                    new BsonDocument("$set", documentSet),
+                    new UpdateOptions().upsert(true)));
+        } else {
+            return Mono.from(collection.replaceOne(filter, document, new ReplaceOptions().upsert(true)));
+        }
+    }
+
+    @Override
+    public <T extends DbData> Mono<UpdateResult> updateDbDataFirst(final T data) {
+        //订阅时才摘下更新器，没有被订阅的Mono不会清除数据的脏标记
+        return Mono.defer(() -> updateDbDataFirstInner(data));
+    }
+
+    private <T extends DbData> Mono<UpdateResult> updateDbDataFirstInner(final T data) {
+        final IUpdater updater = data.getUpdater();
+        final int hashCode = updater.hashCode();
+        final Class<? extends DbData> clazz = data.getClass();
+        final String className = clazz.getName();
+        final Object id = data.getId();
+        if (!data.isDirty()) {
+            log.warn(Markers.MongoDB, "the updater is not dirty, class:{}, id:{}, hashCode:{}, updater:{}",
+                    className,
+                    id,
+                    hashCode,
+                    updater);
+            return Mono.just(UpdateResult.acknowledged(0, 0L, null));
+        }
+
+        if (ComponentStorages.isAnyOverflow(data)) {
+            return Mono.error(overflowNotSupported(data));
+        }
+
+        final Query query = new Query(Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).is(id));
+
+        //压缩存储的组件被摘下的是改写后的更新器，详见Updaters#detach
+        final IUpdater updaterDetached = settings.detach(data);
+        if (Updaters.isEmpty(updaterDetached)) {
+            //可追踪容器的变化相互抵消了，空的更新会被mongoDB当作替换整个文档，不能写入
+            log.debug(Markers.MongoDB, "the updater is empty after materialized, class:{}, id:{}", className, id);
+            return Mono.just(UpdateResult.acknowledged(0, 0L, null));
+        }
+
+        return updateFirst(query, updaterDetached, clazz)
+                .doOnSubscribe(subscription -> log.debug(Markers.MongoDB,
+                        "updateDbDataFirst start, class:{}, id:{}, updater:({}){}",
+                        () -> className,
+                        () -> id,
+                        () -> hashCode,
+                        () -> updater))
+                .doOnSuccess(result -> log.debug(Markers.MongoDB, "updateDbDataFirst finish, id:{}, hashCode:{}, result:{}",
+                        () -> id,
+                        () -> hashCode,
+                        () -> result));
+    }
+
+    @Override
+    public <T extends DbData> Flux<UpdateResult> updateDbDataFirst(final Flux<T> dataFlux) {
+        return dataFlux.flatMap(this::updateDbDataFirst, concurrency);
+    }
+
+    @Override
+    public <T extends EntityDbData> Mono<UpdateResult> updateEntityDirty(final T data) {
+        //订阅时才摘下更新器，没有被订阅的Mono不会清除数据的脏标记
+        return Mono.defer(() -> updateEntityDirtyInner(data));
+    }
+
+    private <T extends EntityDbData> Mono<UpdateResult> updateEntityDirtyInner(final T data) {
+        final Class<? extends EntityDbData> clazz = data.getClass();
+        final String className = clazz.getName();
+        final Object id = data.getId();
+        if (!Updaters.isAnyDirty(data)) {
+            log.warn(Markers.MongoDB, "the entity and its components are not dirty, class:{}, id:{}", className, id);
+            return Mono.just(UpdateResult.acknowledged(0, 0L, null));
+        }
+
+        if (ComponentStorages.isAnyOverflow(data)) {
+            return Mono.error(overflowNotSupported(data));
+        }
+
+        final Query query = new Query(Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).is(id));
+        final List<IUpdater> updaterList = settings.detachDirty((EntityDbData<?>) data);
+        final List<Update> updateList = Updaters.merge(updaterList);
+
+        log.debug(Markers.MongoDB, "updateEntityDirty, class:{}, id:{}, updaterCount:{}, updateCount:{}",
+                () -> className,
+                () -> id,
+                updaterList::size,
+                updateList::size);
+
+        //存在冲突路径时，需要按顺序依次执行
+        return Flux.fromIterable(updateList)
+                .concatMap(update -> updateFirst(query, update, clazz))
+                .collectList()
+                .map(resultList -> {
+                    if (resultList.size() == 1) {
+                        return resultList.get(0);
+                    }
+
+                    final long matchedCount = resultList.stream().mapToLong(UpdateResult::getMatchedCount).max().orElse(0);
+                    final long modifiedCount = resultList.stream().mapToLong(UpdateResult::getModifiedCount).max().orElse(0);
+                    return UpdateResult.acknowledged(matchedCount, modifiedCount, null);
+                });
+    }
+
+    @Override
+    public <V extends ComponentDbData> Mono<V> findComponentDbDataById(final Object id, final Class<V> componentClazz) {
+        final Query query = new Query();
+        query.addCriteria(Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).is(id));
+        query.fields().include(componentClazz.getSimpleName()).include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+
+        return findOne(query, componentClazz).doOnNext(settings::onLoaded);
+    }
+
+    @Override
+    public <V extends ComponentDbData> Flux<V> findComponentDbDataByIds(final Collection<?> ids, final Class<V> componentClazz) {
+        final List<?> idList = ids.stream()
+                .filter(Objects::nonNull)
+                .distinct()
+                .collect(Collectors.toList());
+
+        final BatchLoadConfig config = batchLoadConfig;
+        final int chunkSize = Math.max(1, config.getChunkSize());
+        final List<List<?>> chunkList = new ArrayList<>((idList.size() + chunkSize - 1) / chunkSize);
+        for (int i = 0; i < idList.size(); i += chunkSize) {
+            chunkList.add(idList.subList(i, Math.min(i + chunkSize, idList.size())));
+        }
+
+        final String fieldName = componentClazz.getSimpleName();
+        return Flux.fromIterable(chunkList)
+                .flatMap(idChunk -> {
+                    final Query query = new Query();
+                    query.addCriteria(Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).in(idChunk).and(fieldName).exists(true));
+                    query.fields().include(fieldName).include(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+                    return find(query, componentClazz).doOnNext(settings::onLoaded);
+                }, Math.max(1, config.getParallelism()));
+    }
+}
@@ -3,13 +3,20 @@ package org.gamedo.persistence;
 import com.mongodb.client.result.UpdateResult;
 import org.gamedo.persistence.db.ComponentDbData;
 import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.Updaters;
 import org.springframework.data.mongodb.core.MongoTemplate;
 import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.mongodb.core.query.UpdateDefinition;
 
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.Executor;
-import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
 
 @SuppressWarnings("unused")
 public interface IGamedoMongoTemplate {
@@ -17,7 +24,23 @@ public interface IGamedoMongoTemplate {
     String ID_FIELD_NAME = "_id";
 
     /**
-     * 使用{@link ForkJoinPool#commonPool()}线程池，异步存储一个{@link DbData}
+     * 启用了{@link org.gamedo.persistence.executor.OrderedLaneExecutor#isMergeEnabled()}时，尚未执行的增量更新可能被排在其后、完全覆盖
+     * 它的存储所取代而不再单独执行，此时该更新的结果为本实例（可以通过==判断），文档的最终状态以取代它的存储为准：该存储成功时本结果才会
+     * 返回，失败时被取代的更新以同样的异常失败
+     */
+    UpdateResult SUPERSEDED_UPDATE_RESULT = UpdateResult.acknowledged(0, 0L, null);
+
+    /**
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），异步存储一个{@link DbData}，data会在调用线程上被一次性
+     * 地转换为最终要存储的文档，随后在线程池中直接写入mongoDB，不会再经过二次转换。与{@link MongoTemplate#save(Object)}的区别在于：
+     * <ul>
+     * <li>如果data是{@link ComponentDbData}，只会对所属文档中该组件对应的字段执行$set（文档不存在时插入），不会影响其他组件；否则覆盖整个
+     * 文档（不存在时插入）
+     * <li>转换不经过{@link MongoTemplate}，因此不会发布BeforeConvertEvent、BeforeSaveEvent以及AfterSaveEvent等映射事件，gamedo自身的
+     * BeforeSave监听器的打散逻辑会被直接应用
+     * <li>与{@link MongoTemplate#save(Object)}一样，如果data的id为null，会在调用线程上生成一个ObjectId（并转换为id字段的类型）写回到
+     * data中，之后再进行转换
+     * </ul>
      *
      * @param data 要存储的数据
      * @param <T>  要存储的数据类型
@@ -26,7 +49,7 @@ public interface IGamedoMongoTemplate {
     <T extends DbData> CompletableFuture<T> saveDbDataAsync(T data);
 
     /**
-     * 使用指定的线程池异步存储一个{@link DbData}
+     * 使用指定的线程池异步存储一个{@link DbData}，语义同{@link IGamedoMongoTemplate#saveDbDataAsync(DbData)}
      *
      * @param data     要存储的数据
      * @param executor 要执行存储操作的线程池
@@ -36,9 +59,10 @@ public interface IGamedoMongoTemplate {
     <T extends DbData> CompletableFuture<T> saveDbDataAsync(T data, Executor executor);
 
     /**
-     * 使用{@link ForkJoinPool#commonPool()}线程池，异步更新id为{@link DbData#getId()}的文档，<b>注意：</b>执行本方法前，需要确保本
-     * data已经被持久化到mongoDB中，否则update操作不会被执行，本方法和{@linkplain MongoTemplate#updateFirst(Query, UpdateDefinition, Class)}
-     * 具有相同的语义
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），异步更新id为{@link DbData#getId()}的文档，<b>注意：</b>
+     * 执行本方法前，需要确保本data已经被持久化到mongoDB中，否则update操作不会被执行，本方法和
+     * {@linkplain MongoTemplate#updateFirst(Query, UpdateDefinition, Class)}具有相同的语义。被后续的存储取代的更新返回
+     * {@link IGamedoMongoTemplate#SUPERSEDED_UPDATE_RESULT}
      *
      * @param data 要更新的数据
      * @param <T>  要更新的数据类型
@@ -47,9 +71,8 @@ public interface IGamedoMongoTemplate {
     <T extends DbData> CompletableFuture<UpdateResult> updateDbDataFirstAsync(T data);
 
     /**
-     * 使用{@link ForkJoinPool#commonPool()}线程池，异步更新id为{@link DbData#getId()}的文档，<b>注意：</b>执行本方法前，需要确保本
-     * data已经被持久化到mongoDB中，否则update操作不会被执行，本方法和{@linkplain MongoTemplate#updateFirst(Query, UpdateDefinition, Class)}
-     * 具有相同的语义
+     * 使用指定的线程池，异步更新id为{@link DbData#getId()}的文档，<b>注意：</b>执行本方法前，需要确保本data已经被持久化到mongoDB中，
+     * 否则update操作不会被执行，本方法和{@linkplain MongoTemplate#updateFirst(Query, UpdateDefinition, Class)}具有相同的语义
      *
      * @param data     要更新的数据
      * @param executor 要执行更新操作的线程池
@@ -59,7 +82,30 @@ public interface IGamedoMongoTemplate {
     <T extends DbData> CompletableFuture<UpdateResult> updateDbDataFirstAsync(T data, Executor executor);
 
     /**
-     * 使用{@link ForkJoinPool#commonPool()}线程池，异步加载一个组件数据
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），将实体本身以及所有被标脏的组件
+     * （{@link EntityDbData#getDirtyComponentDbData()}）的增量更新合并为一个{@link Update}，从而对每个实体文档只执行一次更新操作。如果
+     * 不同更新器之间存在冲突的路径（例如：“ComponentDbBag”和“ComponentDbBag.itemList”），冲突会被安全地解决，详见
+     * {@link Updaters#merge(List)}
+     *
+     * @param data 要更新的实体
+     * @param <T>  实体类型
+     * @return 返回执行该操作的CompletableFuture
+     */
+    <T extends EntityDbData> CompletableFuture<UpdateResult> updateEntityDirtyAsync(T data);
+
+    /**
+     * 使用指定的线程池，将实体本身以及所有被标脏的组件的增量更新合并为一个{@link Update}，详见
+     * {@link IGamedoMongoTemplate#updateEntityDirtyAsync(EntityDbData)}
+     *
+     * @param data     要更新的实体
+     * @param executor 要执行更新操作的线程池
+     * @param <T>      实体类型
+     * @return 返回执行该操作的CompletableFuture
+     */
+    <T extends EntityDbData> CompletableFuture<UpdateResult> updateEntityDirtyAsync(T data, Executor executor);
+
+    /**
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），异步加载一个组件数据
      *
      * @param id             组件所属文档的Id
      * @param componentClazz 组件所属{@link Class}
@@ -69,7 +115,7 @@ public interface IGamedoMongoTemplate {
     <V extends ComponentDbData> CompletableFuture<V> findComponentDbDataByIdAsync(Object id, Class<V> componentClazz);
 
     /**
-     * 使用{@link ForkJoinPool#commonPool()}线程池，异步加载一个组件数据
+     * 使用指定的线程池，异步加载一个组件数据
      *
      * @param id             组件所属文档的Id
      * @param componentClazz 组件所属{@link Class}
@@ -78,4 +124,126 @@ public interface IGamedoMongoTemplate {
      * @return 返回执行该操作的CompletableFuture，如果数据未加载到，则内部值为null
      */
     <V extends ComponentDbData> CompletableFuture<V> findComponentDbDataByIdAsync(Object id, Class<V> componentClazz, Executor executor);
+
+    /**
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），通过一次查询异步加载一个实体中指定的若干个组件，查询只投影
+     * 这些组件对应的字段以及_class字段，从而避免传输和解码整个文档。返回的实体只包含已加载的组件，且{@link EntityDbData#isPartial()}
+     * 为true：对它调用{@link IGamedoMongoTemplate#saveDbDataAsync(DbData)}时，只会覆盖已加载的组件，而不会覆盖整个文档。<b>注意：</b>
+     * 不要使用{@link MongoTemplate#save(Object)}存储这样的实体，否则未加载的组件会被删除
+     *
+     * @param id                 实体的Id
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}
+     * @param <T>                实体类型
+     * @return 返回执行该操作的CompletableFuture，如果数据未加载到，则内部值为null
+     */
+    <T extends EntityDbData> CompletableFuture<T> findEntityDbDataByIdAsync(Object id,
+                                                                          Class<T> entityClazz,
+                                                                          Collection<Class<? extends ComponentDbData>> componentClazzList);
+
+    /**
+     * 使用指定的线程池，通过一次查询异步加载一个实体中指定的若干个组件，详见
+     * {@link IGamedoMongoTemplate#findEntityDbDataByIdAsync(Object, Class, Collection)}
+     *
+     * @param id                 实体的Id
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}
+     * @param executor           要执行加载操作的线程池
+     * @param <T>                实体类型
+     * @return 返回执行该操作的CompletableFuture，如果数据未加载到，则内部值为null
+     */
+    <T extends EntityDbData> CompletableFuture<T> findEntityDbDataByIdAsync(Object id,
+                                                                          Class<T> entityClazz,
+                                                                          Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                          Executor executor);
+
+    /**
+     * 使用默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}），异步批量加载多个文档中的同一个组件数据，ids会按照
+     * {@link BatchLoadConfig#getChunkSize()}拆分为多次$in查询，每次查询只投影该组件对应的字段，查询之间的并发度由
+     * {@link BatchLoadConfig#getParallelism()}控制
+     *
+     * @param ids            组件所属文档的Id
+     * @param componentClazz 组件所属{@link Class}
+     * @param <I>            id类型
+     * @param <V>            组件类型
+     * @return 返回执行该操作的CompletableFuture，内部值为id到组件的映射，未加载到的id不会出现在其中
+     */
+    <I, V extends ComponentDbData<I>> CompletableFuture<Map<I, V>> findComponentDbDataByIdsAsync(Collection<I> ids,
+                                                                                               Class<V> componentClazz);
+
+    /**
+     * 使用指定的线程池，异步批量加载多个文档中的同一个组件数据，详见
+     * {@link IGamedoMongoTemplate#findComponentDbDataByIdsAsync(Collection, Class)}
+     *
+     * @param ids            组件所属文档的Id
+     * @param componentClazz 组件所属{@link Class}
+     * @param executor       要执行加载操作的线程池
+     * @param <I>            id类型
+     * @param <V>            组件类型
+     * @return 返回执行该操作的CompletableFuture，内部值为id到组件的映射，未加载到的id不会出现在其中
+     */
+    <I, V extends ComponentDbData<I>> CompletableFuture<Map<I, V>> findComponentDbDataByIdsAsync(Collection<I> ids,
+                                                                                               Class<V> componentClazz,
+                                                                                               Executor executor);
+
+    /**
+     * 以游标的方式扫描实体所在的整个collection，游标每次拉取{@link ScanConfig#getBatchSize()}个文档，打散的组件会被逐个文档地重新组合为实体，
+     * 因此扫描过程中的内存占用与collection的大小无关。如果componentClazzList不为空，则只投影这些组件对应的字段，返回的实体
+     * {@link EntityDbData#isPartial()}为true，语义同{@link IGamedoMongoTemplate#findEntityDbDataByIdAsync(Object, Class, Collection)}。
+     * 扫描的实体不会经过也不会放入实体缓存。<b>注意：</b>返回的{@link Stream}持有一个打开的游标，使用完毕后必须关闭它（例如使用
+     * try-with-resources）
+     *
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}，为空时加载全部组件
+     * @param <T>                实体类型
+     * @return 按照_id升序排列的实体流
+     */
+    <T extends EntityDbData> Stream<T> streamEntityDbData(Class<T> entityClazz,
+                                                          Collection<Class<? extends ComponentDbData>> componentClazzList);
+
+    /**
+     * 在调用线程上扫描实体所在的整个collection，并将每个实体交给consumer处理，游标在扫描结束（或者consumer抛出异常）时自动关闭，详见
+     * {@link IGamedoMongoTemplate#streamEntityDbData(Class, Collection)}
+     *
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}，为空时加载全部组件
+     * @param consumer           实体的处理者
+     * @param <T>                实体类型
+     * @return 扫描的实体数量
+     */
+    <T extends EntityDbData> long scanEntityDbData(Class<T> entityClazz,
+                                                   Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                   Consumer<? super T> consumer);
+
+    /**
+     * 使用扫描专用的线程池，并行地扫描实体所在的整个collection：collection按照_id的范围被拆分为{@link ScanConfig#getParallelism()}个分区，
+     * 每个分区在线程池中由一个独立的游标顺序扫描。扫描专用的线程池与默认的持久化线程池（{@link GamedoMongoTemplate#getAsyncExecutor()}）
+     * 相互独立，长时间运行的扫描不会阻塞正常的读写。<b>注意：</b>consumer会在多个线程中
+     * 被并发调用，它必须是线程安全的；只有当所有文档的_id类型相同时，分区才能覆盖所有文档
+     *
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}，为空时加载全部组件
+     * @param consumer           实体的处理者
+     * @param <T>                实体类型
+     * @return 返回执行该操作的CompletableFuture，内部值为扫描的实体数量
+     */
+    <T extends EntityDbData> CompletableFuture<Long> scanEntityDbDataAsync(Class<T> entityClazz,
+                                                                         Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                         Consumer<? super T> consumer);
+
+    /**
+     * 使用指定的线程池并行地扫描实体所在的整个collection，详见
+     * {@link IGamedoMongoTemplate#scanEntityDbDataAsync(Class, Collection, Consumer)}
+     *
+     * @param entityClazz        实体所属{@link Class}
+     * @param componentClazzList 要加载的组件所属{@link Class}，为空时加载全部组件
+     * @param consumer           实体的处理者
+     * @param executor           要执行扫描操作的线程池
+     * @param <T>                实体类型
+     * @return 返回执行该操作的CompletableFuture，内部值为扫描的实体数量
+     */
+    <T extends EntityDbData> CompletableFuture<Long> scanEntityDbDataAsync(Class<T> entityClazz,
+                                                                         Collection<Class<? extends ComponentDbData>> componentClazzList,
+                                                                         Consumer<? super T> consumer,
+                                                                         Executor executor);
 }
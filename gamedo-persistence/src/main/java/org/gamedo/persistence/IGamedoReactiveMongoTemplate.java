@@ -0,0 +1,97 @@
+package org.gamedo.persistence;
+
+import com.mongodb.client.result.UpdateResult;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.Updaters;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * {@link IGamedoMongoTemplate}的响应式版本，基于{@link ReactiveMongoTemplate}以及mongoDB的reactive-streams驱动，写操作不会阻塞任何线程。
+ * 与{@link IGamedoMongoTemplate}一样，数据的转换（存储时）以及更新器的摘取（更新时）都在调用线程上、调用方法时立即完成，返回的
+ * {@link Mono}/{@link Flux}被订阅时才会真正写入mongoDB，<b>注意：</b>如果返回值没有被订阅，写操作不会被执行
+ */
+@SuppressWarnings("unused")
+public interface IGamedoReactiveMongoTemplate {
+
+    /**
+     * 存储一个{@link DbData}，语义同{@link IGamedoMongoTemplate#saveDbDataAsync(DbData)}
+     *
+     * @param data 要存储的数据
+     * @param <T>  要存储的数据类型
+     * @return 订阅后执行存储的Mono，存储完成后发出data本身
+     */
+    <T extends DbData> Mono<T> saveDbData(T data);
+
+    /**
+     * 批量存储，每一个元素到达时立即在发出该元素的线程上完成转换，最多同时执行
+     * {@link GamedoReactiveMongoTemplate#getConcurrency()}个存储操作。<b>注意：</b>同一个文档的多次存储之间不保证执行顺序
+     *
+     * @param dataFlux 要存储的数据
+     * @param <T>      要存储的数据类型
+     * @return 订阅后执行存储的Flux，每完成一个存储，发出对应的数据
+     */
+    <T extends DbData> Flux<T> saveDbData(Flux<T> dataFlux);
+
+    /**
+     * 更新id为{@link DbData#getId()}的文档，语义同{@link IGamedoMongoTemplate#updateDbDataFirstAsync(DbData)}，本方法和
+     * {@link ReactiveMongoTemplate#updateFirst(Query, UpdateDefinition, Class)}具有相同的语义。更新器在订阅时才被摘下，因此在订阅之前
+     * 对data的修改同样会被写入，而没有被订阅的Mono不会清除data的脏标记
+     *
+     * @param data 要更新的数据
+     * @param <T>  要更新的数据类型
+     * @return 订阅后执行更新的Mono
+     */
+    <T extends DbData> Mono<UpdateResult> updateDbDataFirst(T data);
+
+    /**
+     * 批量更新，最多同时执行{@link GamedoReactiveMongoTemplate#getConcurrency()}个更新操作。<b>注意：</b>同一个文档的多次更新之间不保证
+     * 执行顺序
+     *
+     * @param dataFlux 要更新的数据
+     * @param <T>      要更新的数据类型
+     * @return 订阅后执行更新的Flux，每完成一个更新，发出对应的结果
+     */
+    <T extends DbData> Flux<UpdateResult> updateDbDataFirst(Flux<T> dataFlux);
+
+    /**
+     * 将实体本身以及所有被标脏的组件的增量更新合并为一个{@link Update}，详见
+     * {@link IGamedoMongoTemplate#updateEntityDirtyAsync(EntityDbData)}以及{@link Updaters#merge(List)}。与
+     * {@link IGamedoReactiveMongoTemplate#updateDbDataFirst(DbData)}一样，更新器在订阅时才被摘下
+     *
+     * @param data 要更新的实体
+     * @param <T>  实体类型
+     * @return 订阅后执行更新的Mono
+     */
+    <T extends EntityDbData> Mono<UpdateResult> updateEntityDirty(T data);
+
+    /**
+     * 加载一个组件数据
+     *
+     * @param id             组件所属文档的Id
+     * @param componentClazz 组件所属{@link Class}
+     * @param <V>            组件类型
+     * @return 订阅后执行加载的Mono，如果数据未加载到，则为空
+     */
+    <V extends ComponentDbData> Mono<V> findComponentDbDataById(Object id, Class<V> componentClazz);
+
+    /**
+     * 批量加载多个文档中的同一个组件数据，ids会按照{@link BatchLoadConfig#getChunkSize()}拆分为多次$in查询，查询之间的并发度由
+     * {@link BatchLoadConfig#getParallelism()}控制
+     *
+     * @param ids            组件所属文档的Id
+     * @param componentClazz 组件所属{@link Class}
+     * @param <V>            组件类型
+     * @return 订阅后执行加载的Flux，未加载到的id不会出现在其中
+     */
+    <V extends ComponentDbData> Flux<V> findComponentDbDataByIds(Collection<?> ids, Class<V> componentClazz);
+}
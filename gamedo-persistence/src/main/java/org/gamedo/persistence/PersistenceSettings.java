@@ -0,0 +1,159 @@
+package org.gamedo.persistence;
+
+import lombok.Getter;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.DirtyEntities;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.IUpdaterFactory;
+import org.gamedo.persistence.db.Updater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.db.track.Trackables;
+import org.gamedo.persistence.metrics.IPersistenceMetrics;
+import org.gamedo.persistence.storage.StorageConfig;
+
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * 一个模板（{@link GamedoMongoTemplate}、{@link GamedoReactiveMongoTemplate}）的持久化设置，每个模板持有自己的实例，并与它的读写流程
+ * （转换、编解码以及映射事件监听器）共享，因此同一个进程中的多个模板可以使用不同的设置。设置在修改之后立即对之后的读写生效：
+ * <ul>
+ * <li>模板加载的数据：可追踪容器按照{@link PersistenceSettings#getWholeFieldRatio()}绑定，未被标脏的更新器被替换为
+ * {@link PersistenceSettings#getUpdaterFactory()}创建的更新器，实体被设置为使用{@link PersistenceSettings#getDirtyEntities()}和
+ * {@link PersistenceSettings#getStorageConfig()}
+ * <li>模板存盘的数据：摘下的更新器由{@link PersistenceSettings#getUpdaterFactory()}创建的更新器替换，因此新创建的数据在第一次存盘之后
+ * 也会使用该工厂
+ * </ul>
+ */
+@Getter
+public class PersistenceSettings {
+
+    /**
+     * 为数据创建新的更新器的工厂
+     */
+    private volatile IUpdaterFactory updaterFactory = IUpdaterFactory.DEFAULT;
+    /**
+     * 可选的已被标脏的实体的注册表，为null时不注册
+     */
+    private volatile DirtyEntities dirtyEntities;
+    /**
+     * 指标收集者
+     */
+    private volatile IPersistenceMetrics metrics = IPersistenceMetrics.NOOP;
+    /**
+     * 可追踪容器中被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set
+     */
+    private volatile double wholeFieldRatio = Trackables.DEFAULT_WHOLE_FIELD_RATIO;
+    /**
+     * 组件存储方式以及文档大小检查的配置，包括压缩算法
+     */
+    private volatile StorageConfig storageConfig = StorageConfig.DEFAULT;
+
+    /**
+     * @param updaterFactory 新的更新器工厂，例如{@link org.gamedo.persistence.db.CompactUpdater}::new
+     */
+    public void setUpdaterFactory(final IUpdaterFactory updaterFactory) {
+        this.updaterFactory = Objects.requireNonNull(updaterFactory);
+    }
+
+    /**
+     * 设置已被标脏的实体的注册表，只影响之后被加载或者存储的实体
+     *
+     * @param dirtyEntities 注册表，为null时不注册
+     */
+    public void setDirtyEntities(final DirtyEntities dirtyEntities) {
+        this.dirtyEntities = dirtyEntities;
+    }
+
+    /**
+     * @param metrics 新的指标收集者
+     */
+    public void setMetrics(final IPersistenceMetrics metrics) {
+        this.metrics = Objects.requireNonNull(metrics);
+    }
+
+    /**
+     * 设置退化为整个字段$set的阈值，只影响之后被绑定的可追踪容器
+     *
+     * @param ratio 被修改的元素数量占容器大小的比例，取值范围为[0, 1]，0意味着总是对整个字段进行$set
+     */
+    public void setWholeFieldRatio(final double ratio) {
+        if (ratio < 0 || ratio > 1) {
+            throw new IllegalArgumentException("the ratio should be in [0, 1], ratio:" + ratio);
+        }
+        wholeFieldRatio = ratio;
+    }
+
+    /**
+     * @param storageConfig 新的存储配置
+     */
+    public void setStorageConfig(final StorageConfig storageConfig) {
+        this.storageConfig = Objects.requireNonNull(storageConfig);
+    }
+
+    /**
+     * 对刚刚加载的数据应用本设置：绑定可追踪容器，将未被标脏的更新器替换为{@link PersistenceSettings#getUpdaterFactory()}创建的更新器，
+     * 如果是实体，设置它的注册表以及存储配置。模板在返回查询结果之前总是调用本方法，因此即使映射事件监听器使用的是另一份设置，模板加载的数据
+     * 最终也使用该模板的设置
+     *
+     * @param data 刚刚加载的数据
+     */
+    public void onLoaded(final DbData<?> data) {
+        if (data == null) {
+            return;
+        }
+
+        Trackables.bind(data, wholeFieldRatio);
+        final IUpdaterFactory factory = updaterFactory;
+        renewUpdater(data, factory);
+        if (data instanceof EntityDbData) {
+            final EntityDbData<?> entityDbData = (EntityDbData<?>) data;
+            entityDbData.getLoadedComponentDbDataCollection().forEach(c -> renewUpdater(c, factory));
+            entityDbData.setStorageConfig(storageConfig);
+            entityDbData.setDirtyEntities(dirtyEntities);
+        }
+    }
+
+    /**
+     * 设置实体的存储配置以及注册表，已经设置了注册表的实体保留它原来的注册表
+     *
+     * @param entityDbData 要设置的实体
+     */
+    public void attach(final EntityDbData<?> entityDbData) {
+        entityDbData.setStorageConfig(storageConfig);
+        final DirtyEntities registry = dirtyEntities;
+        if (registry != null && entityDbData.getDirtyEntities() == null) {
+            entityDbData.setDirtyEntities(registry);
+        }
+    }
+
+    /**
+     * 使用本设置摘下更新器，详见{@link Updaters#detach(DbData, IUpdaterFactory, StorageConfig)}
+     *
+     * @param data 要摘下更新器的数据
+     * @return 被摘下的更新器
+     */
+    public IUpdater detach(final DbData<?> data) {
+        return Updaters.detach(data, updaterFactory, storageConfig);
+    }
+
+    /**
+     * 使用本设置摘下实体本身以及所有被标脏的组件的更新器，详见{@link Updaters#detachDirty(EntityDbData, IUpdaterFactory, StorageConfig)}
+     *
+     * @param entityDbData 要摘下更新器的实体
+     * @return 被摘下的更新器列表，实体本身的更新器（如果被标脏）总是位于第一个
+     */
+    public List<IUpdater> detachDirty(final EntityDbData<?> entityDbData) {
+        return Updaters.detachDirty(entityDbData, updaterFactory, storageConfig);
+    }
+
+    private static void renewUpdater(final DbData<?> data, final IUpdaterFactory factory) {
+        final IUpdater updater = data.getUpdater();
+        if (updater.isDirty() || (factory == IUpdaterFactory.DEFAULT && updater.getClass() == Updater.class)) {
+            return;
+        }
+
+        data.setUpdater(factory.create(updater.getPrefix()));
+    }
+}
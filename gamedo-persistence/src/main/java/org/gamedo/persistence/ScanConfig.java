@@ -0,0 +1,29 @@
+package org.gamedo.persistence;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * 全表扫描（例如：{@link IGamedoMongoTemplate#streamEntityDbData(Class, java.util.Collection)}）的配置
+ */
+@Value
+@Builder
+public class ScanConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final ScanConfig DEFAULT = ScanConfig.builder().build();
+
+    /**
+     * 游标每次从mongoDB拉取的文档数量，同时也决定了扫描过程中驻留在内存中的文档数量的上限
+     */
+    @Builder.Default
+    int batchSize = 500;
+
+    /**
+     * 并行扫描时，按照_id范围拆分的分区数量，每个分区由一个独立的游标顺序扫描
+     */
+    @Builder.Default
+    int parallelism = 4;
+}
@@ -0,0 +1,28 @@
+package org.gamedo.persistence.annotations;
+
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StoragePolicy;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 指定一个组件在实体文档中的存储方式，没有注解的组件总是内联存储（{@link StoragePolicy#INLINE}），详见{@link ComponentStorages}
+ * <p>
+ * 注意：非内联存储的组件不能同时启用版本控制（{@link Versioned}）
+ */
+@Documented
+@Inherited
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ComponentStorage {
+
+    /**
+     * @return 组件的存储方式
+     */
+    StoragePolicy value();
+}
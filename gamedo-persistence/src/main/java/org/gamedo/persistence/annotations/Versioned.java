@@ -0,0 +1,21 @@
+package org.gamedo.persistence.annotations;
+
+import org.gamedo.persistence.version.Versions;
+
+import java.lang.annotation.Documented;
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Inherited;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * 意味着这个实体或组件启用乐观版本控制：文档中额外维护一个版本号字段（{@value Versions#VERSION_FIELD_NAME}，组件的版本号位于组件的内嵌
+ * 文档中），通过GamedoMongoTemplate执行的增量更新和存储都会校验并递增该版本号，详见{@link Versions}
+ */
+@Documented
+@Inherited
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Versioned {
+}
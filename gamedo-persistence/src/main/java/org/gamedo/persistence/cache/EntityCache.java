@@ -0,0 +1,619 @@
+package org.gamedo.persistence.cache;
+
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.logging.Markers;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * 位于{@link GamedoMongoTemplate}之前的进程内实体缓存，以（实体类型，id）为key缓存完整加载的{@link EntityDbData}：
+ * <ul>
+ * <li>读穿透：{@link GamedoMongoTemplate#findById(Object, Class)}和
+ * {@link GamedoMongoTemplate#findComponentDbDataByIdAsync(Object, Class)}等方法优先从缓存中获取，未命中时从mongoDB加载并放入缓存
+ * <li>淘汰：缓存按照key的hash被分为{@link EntityCacheConfig#getConcurrencyLevel()}个段，每个段独立加锁，容量为
+ * {@link EntityCacheConfig#getMaxSize()}的均分，段内的实体数量超过其容量时，淘汰段内最久未被访问的实体（因此淘汰顺序是近似的LRU）；
+ * 超过{@link EntityCacheConfig#getExpireAfterAccess()}未被访问的实体，会在空闲清理时被淘汰
+ * <li>延迟写：实体离开缓存（被淘汰、被替换或者被移除）时，如果还有未持久化的更新，会先通过
+ * {@link GamedoMongoTemplate#updateEntityDirtyAsync(EntityDbData)}写入，在写入完成之前，对同一个实体的加载会等待写入完成，从而不会
+ * 读到旧的数据，也不会丢失更新
+ * </ul>
+ * 由于同一个collection中的实体和组件共享同一个文档，缓存内部实际使用（collection，id）作为key。模板的存储和更新方法会通知缓存：如果
+ * 写入的数据不是缓存中的实例（或者其组件），缓存中的实例会被移除，从而保证缓存与mongoDB的一致性。被移除的实例未持久化的更新先于本次写入
+ * 提交到同一个有序通道中，因此本次写入的结果总是最终结果
+ */
+@Log4j2
+public class EntityCache implements AutoCloseable {
+
+    private final GamedoMongoTemplate gamedoMongoTemplate;
+    @Getter
+    private final EntityCacheConfig config;
+    private final Segment[] segments;
+    /**
+     * 离开缓存且尚未写入完成的实体（在实体离开段时于段锁内占位），在写入完成之前，对同一个实体的加载需要等待
+     */
+    private final Map<Object, CompletableFuture<?>> flushingMap = new ConcurrentHashMap<>();
+    /**
+     * 当前线程正在写入的、已经离开缓存的实体，它的写入通知（{@link EntityCache#onWrite(String, DbData)}）需要被忽略，否则会替换掉取代
+     * 它的新实例
+     */
+    private final ThreadLocal<EntityDbData<?>> removedFlushing = new ThreadLocal<>();
+
+    private final LongAdder hitCount = new LongAdder();
+    private final LongAdder missCount = new LongAdder();
+    private final LongAdder evictionCount = new LongAdder();
+    private final LongAdder flushOnEvictionCount = new LongAdder();
+
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> sweepFuture;
+
+    public EntityCache(GamedoMongoTemplate gamedoMongoTemplate) {
+        this(gamedoMongoTemplate, EntityCacheConfig.DEFAULT);
+    }
+
+    public EntityCache(GamedoMongoTemplate gamedoMongoTemplate, EntityCacheConfig config) {
+        this.gamedoMongoTemplate = gamedoMongoTemplate;
+        this.config = config;
+
+        //容量小于段数时减少段数，保证总容量不超过maxSize，且每个段至少能容纳一个实体
+        final int segmentCount = Math.max(1, Math.min(config.getConcurrencyLevel(), config.getMaxSize()));
+        segments = new Segment[segmentCount];
+        for (int i = 0; i < segmentCount; i++) {
+            segments[i] = new Segment(config.getMaxSize() / segmentCount + (i < config.getMaxSize() % segmentCount ? 1 : 0));
+        }
+    }
+
+    /**
+     * 从缓存中获取一个实体，未命中时通过loader加载并放入缓存
+     *
+     * @param entityClazz 实体所属{@link Class}
+     * @param id          实体的id
+     * @param loader      未命中时的加载器，返回null意味着数据不存在
+     * @param <T>         实体类型
+     * @return 缓存中或者新加载的实体，如果数据不存在，返回null
+     */
+    public <T extends EntityDbData<?>> T get(final Class<T> entityClazz, final Object id, final Supplier<T> loader) {
+        final Object key = key(entityClazz, id);
+        final EntityDbData<?> cached = getIfPresent(key);
+        if (entityClazz.isInstance(cached)) {
+            hitCount.increment();
+            return entityClazz.cast(cached);
+        }
+
+        missCount.increment();
+        awaitFlush(key);
+
+        final T data = loader.get();
+        if (data == null || data.isPartial()) {
+            return data;
+        }
+
+        //并发加载时，以先放入缓存的实例为准，保证同一个实体只有一个实例
+        final EntityDbData<?> exist = putIfAbsent(key, data);
+        return entityClazz.isInstance(exist) ? entityClazz.cast(exist) : data;
+    }
+
+    /**
+     * 从缓存中获取一个实体，不会触发加载
+     *
+     * @param entityClazz 实体所属{@link Class}
+     * @param id          实体的id
+     * @param <T>         实体类型
+     * @return 缓存中的实体，未命中时返回null
+     */
+    public <T extends EntityDbData<?>> T getIfPresent(final Class<T> entityClazz, final Object id) {
+        final EntityDbData<?> cached = getIfPresent(key(entityClazz, id));
+        if (entityClazz.isInstance(cached)) {
+            hitCount.increment();
+            return entityClazz.cast(cached);
+        }
+
+        missCount.increment();
+        return null;
+    }
+
+    /**
+     * 从缓存的实体中获取一个组件，不会触发加载
+     *
+     * @param componentClazz 组件所属{@link Class}
+     * @param id             组件所属文档的id
+     * @param <V>            组件类型
+     * @return 缓存的实体中的组件，未命中时返回null
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    public <V extends ComponentDbData> V getComponentIfPresent(final Class<V> componentClazz, final Object id) {
+        final EntityDbData entityDbData = getIfPresent(key(componentClazz, id));
+        final ComponentDbData componentDbData = entityDbData == null ? null : entityDbData.getComponentDbData(componentClazz);
+        if (componentDbData == null) {
+            missCount.increment();
+            return null;
+        }
+
+        hitCount.increment();
+        return componentClazz.cast(componentDbData);
+    }
+
+    /**
+     * 将一个完整加载的实体放入缓存，如果缓存中已经存在其他实例，则替换之，被替换的实例未持久化的更新会被写入
+     *
+     * @param data 要放入缓存的实体
+     */
+    public void put(final EntityDbData<?> data) {
+        if (data.getId() == null || data.isPartial()) {
+            return;
+        }
+
+        final Object key = key(data.getClass(), data.getId());
+        final Segment segment = segment(key);
+        final Removal previous;
+        final List<Removal> evictedList;
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.put(key, new Entry(data));
+            previous = entry != null && entry.data != data ? removal(key, entry.data) : null;
+            evictedList = segment.evictOverflow();
+        }
+
+        if (previous != null) {
+            flushOnRemoval(previous);
+        }
+        evictedList.forEach(this::flushOnEviction);
+    }
+
+    /**
+     * 当有数据被存储或者更新时，由{@link GamedoMongoTemplate}调用：如果写入的数据不是缓存中的实例（也不是缓存实例中的组件），缓存中的
+     * 实例就不再与mongoDB一致，因此将其移除；如果写入的是一个完整的实体，则使用它替换缓存中的实例
+     *
+     * @param collectionName 写入的collection
+     * @param data           写入的数据
+     */
+    public void onWrite(final String collectionName, final DbData<?> data) {
+        final Object id = data.getId();
+        if (id == null) {
+            return;
+        }
+
+        if (data == removedFlushing.get()) {
+            return;
+        }
+
+        final Object key = Arrays.asList(collectionName, id);
+        final Segment segment = segment(key);
+        final Removal removed;
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.get(key);
+            if (entry == null || isSameInstance(entry.data, data)) {
+                return;
+            }
+
+            removed = removal(key, entry.data);
+            if (data instanceof EntityDbData && !((EntityDbData<?>) data).isPartial()) {
+                entry.data = (EntityDbData<?>) data;
+                entry.touch();
+            } else {
+                segment.entryMap.remove(key);
+            }
+        }
+
+        flushOnRemoval(removed);
+        log.debug(Markers.GamedoPersistence, "entity cache invalidated by write, key:{}, data class:{}",
+                () -> key,
+                data::getClass);
+    }
+
+    /**
+     * 从缓存中移除一个实体，该实体未持久化的更新会被写入
+     *
+     * @param entityClazz 实体所属{@link Class}
+     * @param id          实体的id
+     * @return 被移除的实体，如果不存在，返回null
+     */
+    public EntityDbData<?> invalidate(final Class<?> entityClazz, final Object id) {
+        return invalidate(key(entityClazz, id));
+    }
+
+    /**
+     * 以（collection，id）从缓存中移除一个实体，该实体未持久化的更新会被写入
+     *
+     * @param collectionName 实体所在的collection
+     * @param id             实体的id
+     * @return 被移除的实体，如果不存在，返回null
+     */
+    public EntityDbData<?> invalidate(final String collectionName, final Object id) {
+        return invalidate(Arrays.asList(collectionName, id));
+    }
+
+    /**
+     * 从缓存中移除某个collection中的所有实体，这些实体未持久化的更新会被写入
+     *
+     * @param collectionName 实体所在的collection
+     * @return 被移除的实体数量
+     */
+    public int invalidateAll(final String collectionName) {
+        final List<Removal> removedList = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                final Iterator<Map.Entry<Object, Entry>> iterator = segment.entryMap.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<Object, Entry> entry = iterator.next();
+                    if (collectionName.equals(((List<?>) entry.getKey()).get(0))) {
+                        iterator.remove();
+                        removedList.add(removal(entry.getKey(), entry.getValue().data));
+                    }
+                }
+            }
+        }
+
+        removedList.forEach(this::flushOnRemoval);
+        return removedList.size();
+    }
+
+    /**
+     * 以（collection，id）获取缓存中的实体，不会刷新它的空闲时间，也不计入命中统计
+     *
+     * @param collectionName 实体所在的collection
+     * @param id             实体的id
+     * @return 缓存中的实体，未命中时返回null
+     */
+    public EntityDbData<?> peek(final String collectionName, final Object id) {
+        final Object key = Arrays.asList(collectionName, id);
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.get(key);
+            return entry == null ? null : entry.data;
+        }
+    }
+
+    /**
+     * 淘汰所有超过{@link EntityCacheConfig#getExpireAfterAccess()}未被访问的实体
+     *
+     * @return 本次淘汰的实体数量
+     */
+    public int sweep() {
+        final long expireNanos = config.getExpireAfterAccess().toNanos();
+        final long now = System.nanoTime();
+        final List<Removal> evictedList = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                //访问顺序的LinkedHashMap，越靠前越久未被访问
+                final Iterator<Map.Entry<Object, Entry>> iterator = segment.entryMap.entrySet().iterator();
+                while (iterator.hasNext()) {
+                    final Map.Entry<Object, Entry> entry = iterator.next();
+                    if (now - entry.getValue().lastAccessNanos < expireNanos) {
+                        break;
+                    }
+
+                    iterator.remove();
+                    evictedList.add(removal(entry.getKey(), entry.getValue().data));
+                }
+            }
+        }
+
+        evictedList.forEach(this::flushOnEviction);
+        return evictedList.size();
+    }
+
+    /**
+     * 淘汰所有的实体，未持久化的更新会被写入
+     *
+     * @return 返回所有写入完成的CompletableFuture
+     */
+    public CompletableFuture<Void> evictAll() {
+        final List<Removal> evictedList = new ArrayList<>();
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                segment.entryMap.forEach((key, entry) -> evictedList.add(removal(key, entry.data)));
+                segment.entryMap.clear();
+            }
+        }
+
+        evictedList.forEach(this::flushOnEviction);
+        return CompletableFuture.allOf(flushingMap.values().toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * 启动空闲清理，按照{@link EntityCacheConfig#getSweepInterval()}周期性地执行{@link EntityCache#sweep()}
+     */
+    public synchronized void start() {
+        if (sweepFuture != null) {
+            return;
+        }
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "gamedo-entity-cache");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long interval = config.getSweepInterval().toMillis();
+        sweepFuture = scheduledExecutorService.scheduleWithFixedDelay(this::sweepSafely,
+                interval,
+                interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止空闲清理
+     */
+    public synchronized void stop() {
+        if (sweepFuture == null) {
+            return;
+        }
+
+        sweepFuture.cancel(false);
+        scheduledExecutorService.shutdown();
+        sweepFuture = null;
+        scheduledExecutorService = null;
+    }
+
+    /**
+     * 停止空闲清理，淘汰所有的实体并等待未持久化的更新写入完成
+     */
+    @Override
+    public void close() {
+        stop();
+        evictAll().join();
+    }
+
+    /**
+     * @return 当前缓存的实体数量
+     */
+    public int size() {
+        int size = 0;
+        for (Segment segment : segments) {
+            synchronized (segment) {
+                size += segment.entryMap.size();
+            }
+        }
+
+        return size;
+    }
+
+    /**
+     * @return 缓存命中次数
+     */
+    public long getHitCount() {
+        return hitCount.sum();
+    }
+
+    /**
+     * @return 缓存未命中次数
+     */
+    public long getMissCount() {
+        return missCount.sum();
+    }
+
+    /**
+     * @return 因为容量或者空闲时间而被淘汰的实体数量
+     */
+    public long getEvictionCount() {
+        return evictionCount.sum();
+    }
+
+    /**
+     * @return 离开缓存（被淘汰、被替换或者被移除）时仍有未持久化的更新、因而需要先写入的实体数量
+     */
+    public long getFlushOnEvictionCount() {
+        return flushOnEvictionCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityCache{" +
+                "size=" + size() +
+                ", hit=" + getHitCount() +
+                ", miss=" + getMissCount() +
+                ", eviction=" + getEvictionCount() +
+                ", flushOnEviction=" + getFlushOnEvictionCount() +
+                '}';
+    }
+
+    private Object key(final Class<?> clazz, final Object id) {
+        return Arrays.asList(gamedoMongoTemplate.getCollectionName(clazz), id);
+    }
+
+    private Segment segment(final Object key) {
+        final int hashCode = key.hashCode();
+        return segments[((hashCode ^ (hashCode >>> 16)) & Integer.MAX_VALUE) % segments.length];
+    }
+
+    private EntityDbData<?> getIfPresent(final Object key) {
+        final Segment segment = segment(key);
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.get(key);
+            if (entry == null) {
+                return null;
+            }
+
+            entry.touch();
+            return entry.data;
+        }
+    }
+
+    private EntityDbData<?> putIfAbsent(final Object key, final EntityDbData<?> data) {
+        final Segment segment = segment(key);
+        final List<Removal> evictedList;
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.get(key);
+            if (entry != null) {
+                entry.touch();
+                return entry.data;
+            }
+
+            segment.entryMap.put(key, new Entry(data));
+            evictedList = segment.evictOverflow();
+        }
+
+        evictedList.forEach(this::flushOnEviction);
+        return data;
+    }
+
+    private EntityDbData<?> invalidate(final Object key) {
+        final Segment segment = segment(key);
+        final Removal removal;
+        synchronized (segment) {
+            final Entry entry = segment.entryMap.remove(key);
+            removal = entry == null ? null : removal(key, entry.data);
+        }
+
+        if (removal == null) {
+            return null;
+        }
+
+        flushOnRemoval(removal);
+        return removal.data;
+    }
+
+    /**
+     * 实体离开缓存时调用，调用者必须持有key所在段的锁：在实体离开段的同时为它的写入占位，因此从实体离开缓存到写入被提交之间，对同一个实体
+     * 的加载也会等待，而不会读到旧的数据
+     */
+    private Removal removal(final Object key, final EntityDbData<?> data) {
+        final CompletableFuture<Void> flushing = new CompletableFuture<>();
+        flushingMap.put(key, flushing);
+        return new Removal(key, data, flushing);
+    }
+
+    private void flushOnEviction(final Removal removal) {
+        evictionCount.increment();
+        flushOnRemoval(removal);
+    }
+
+    /**
+     * 实体离开缓存后，写入它未持久化的更新，写入完成后（或者没有需要写入的更新时）完成占位
+     */
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private void flushOnRemoval(final Removal removal) {
+        final EntityDbData<?> data = removal.data;
+        if (!Updaters.isAnyDirty(data)) {
+            removal.complete();
+            return;
+        }
+
+        flushOnEvictionCount.increment();
+        final CompletableFuture<?> future;
+        removedFlushing.set(data);
+        try {
+            future = gamedoMongoTemplate.updateEntityDirtyAsync((EntityDbData) data);
+        } catch (RuntimeException e) {
+            removal.complete();
+            throw e;
+        } finally {
+            removedFlushing.remove();
+        }
+        future.whenComplete((result, throwable) -> {
+            removal.complete();
+            if (throwable != null) {
+                log.error(Markers.GamedoPersistence, "exception caught on flushing entity removed from cache, key:" +
+                        removal.key, throwable);
+            }
+        });
+    }
+
+    private void awaitFlush(final Object key) {
+        final CompletableFuture<?> future = flushingMap.get(key);
+        if (future == null) {
+            return;
+        }
+
+        try {
+            future.join();
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "exception caught on waiting evicted entity flush, key:" + key, e);
+        }
+    }
+
+    private void sweepSafely() {
+        try {
+            final int count = sweep();
+            log.debug(Markers.GamedoPersistence, "entity cache sweep finish, evicted:{}, cache:{}", count, this);
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "exception caught on entity cache sweep.", e);
+        }
+    }
+
+    @SuppressWarnings({"rawtypes", "unchecked"})
+    private static boolean isSameInstance(final EntityDbData cached, final DbData<?> data) {
+        if (cached == data) {
+            return true;
+        }
+
+        //缓存实例中的组件一定已经被实例化过，不需要实例化懒加载的组件
+        return data instanceof ComponentDbData && cached.getLoadedComponentDbData((Class) data.getClass()) == data;
+    }
+
+    private final class Segment {
+        private final LinkedHashMap<Object, Entry> entryMap = new LinkedHashMap<>(16, 0.75f, true);
+        private final int maxSize;
+
+        private Segment(int maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * 调用者必须持有本段的锁
+         */
+        private List<Removal> evictOverflow() {
+            final int overflow = entryMap.size() - maxSize;
+            if (overflow <= 0) {
+                return new ArrayList<>(0);
+            }
+
+            final List<Removal> evictedList = new ArrayList<>(overflow);
+            final Iterator<Map.Entry<Object, Entry>> iterator = entryMap.entrySet().iterator();
+            while (iterator.hasNext() && evictedList.size() < overflow) {
+                final Map.Entry<Object, Entry> entry = iterator.next();
+                evictedList.add(removal(entry.getKey(), entry.getValue().data));
+                iterator.remove();
+            }
+
+            return evictedList;
+        }
+    }
+
+    private static final class Entry {
+        private volatile EntityDbData<?> data;
+        private volatile long lastAccessNanos = System.nanoTime();
+
+        private Entry(EntityDbData<?> data) {
+            this.data = data;
+        }
+
+        private void touch() {
+            lastAccessNanos = System.nanoTime();
+        }
+    }
+
+    /**
+     * 一个离开缓存的实体，以及为它的写入占位的future
+     */
+    @RequiredArgsConstructor
+    private final class Removal {
+        private final Object key;
+        private final EntityDbData<?> data;
+        private final CompletableFuture<Void> flushing;
+
+        private void complete() {
+            flushingMap.remove(key, flushing);
+            flushing.complete(null);
+        }
+    }
+}
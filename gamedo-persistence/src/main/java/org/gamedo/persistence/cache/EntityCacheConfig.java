@@ -0,0 +1,43 @@
+package org.gamedo.persistence.cache;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * {@link EntityCache}的配置
+ */
+@Value
+@Builder
+public class EntityCacheConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final EntityCacheConfig DEFAULT = EntityCacheConfig.builder().build();
+
+    /**
+     * 最多缓存的实体数量，超过该数量时，最久未被访问的实体会被淘汰
+     */
+    @Builder.Default
+    int maxSize = 10000;
+
+    /**
+     * 缓存被划分的段数，每个段独立加锁，段数越多，并发访问时的锁竞争越少，但淘汰顺序越偏离全局的LRU
+     */
+    @Builder.Default
+    int concurrencyLevel = 16;
+
+    /**
+     * 实体在超过该时长未被访问后，会在下一次清理时被淘汰
+     */
+    @Builder.Default
+    Duration expireAfterAccess = Duration.ofMinutes(30);
+
+    /**
+     * 两次空闲清理之间的时间间隔
+     */
+    @Builder.Default
+    Duration sweepInterval = Duration.ofSeconds(10);
+}
@@ -0,0 +1,70 @@
+package org.gamedo.persistence.changestream;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * {@link EntityChangeWatcher}的配置
+ */
+@Value
+@Builder
+public class ChangeStreamConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final ChangeStreamConfig DEFAULT = ChangeStreamConfig.builder().build();
+
+    /**
+     * 当前节点的名称，用于区分不同节点持久化的resume token，同一个副本集上的多个节点必须使用不同的名称
+     */
+    @Builder.Default
+    String nodeName = "gamedo";
+
+    /**
+     * 其他节点修改了缓存中的实体时的处理方式
+     */
+    @Builder.Default
+    Mode mode = Mode.INVALIDATE;
+
+    /**
+     * 持久化resume token的collection
+     */
+    @Builder.Default
+    String resumeTokenCollection = "gamedo_resume_token";
+
+    /**
+     * 两次持久化resume token之间的最小时间间隔
+     */
+    @Builder.Default
+    Duration resumeTokenSaveInterval = Duration.ofSeconds(1);
+
+    /**
+     * 游标在没有新事件时，单次等待的最长时间，同时也决定了停止监听时的最长等待时间
+     */
+    @Builder.Default
+    Duration maxAwaitTime = Duration.ofSeconds(1);
+
+    /**
+     * 监听出错（例如：网络断开、主节点切换）后，重新监听之前的等待时间
+     */
+    @Builder.Default
+    Duration reconnectInterval = Duration.ofSeconds(5);
+
+    public enum Mode {
+        /**
+         * 从缓存中移除被修改的实体，下次访问时重新从mongoDB加载
+         */
+        INVALIDATE,
+        /**
+         * 曾经用于使用变更后的组件替换缓存实体中对应的组件，但是业务代码持有的组件实例会因此被悄悄换掉，并且替换发生在监听线程中，与业务线程
+         * 之间没有同步，现在等同于{@link Mode#INVALIDATE}，保留它只是为了兼容已有的配置
+         *
+         * @deprecated 使用{@link Mode#INVALIDATE}
+         */
+        @Deprecated
+        PATCH,
+    }
+}
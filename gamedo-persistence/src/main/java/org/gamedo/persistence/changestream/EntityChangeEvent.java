@@ -0,0 +1,71 @@
+package org.gamedo.persistence.changestream;
+
+import com.mongodb.client.model.changestream.OperationType;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.ToString;
+import org.gamedo.persistence.db.ComponentDbData;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Supplier;
+
+/**
+ * 一个实体文档的变更事件
+ */
+@Getter
+@ToString(exclude = {"componentDecoder", "changedComponentMap"})
+public class EntityChangeEvent {
+    /**
+     * 文档所在的collection
+     */
+    private final String collectionName;
+    /**
+     * 文档的id
+     */
+    private final Object id;
+    /**
+     * 变更的类型
+     */
+    private final OperationType operationType;
+    /**
+     * 被修改或者删除的顶层字段，对于insert、replace和delete，为空集合（意味着整个文档都发生了变化）
+     */
+    private final Set<String> changedFieldSet;
+    /**
+     * 被修改的组件的解码器，只有在第一次调用{@link EntityChangeEvent#getChangedComponentMap()}时才执行
+     */
+    @Getter(AccessLevel.NONE)
+    private final Supplier<Map<String, ComponentDbData<?>>> componentDecoder;
+    /**
+     * 从变更后的文档中解码出来的、被修改的组件，key为组件所属{@link Class}的简化名称
+     */
+    @Getter(AccessLevel.NONE)
+    private Map<String, ComponentDbData<?>> changedComponentMap;
+
+    public EntityChangeEvent(String collectionName,
+                             Object id,
+                             OperationType operationType,
+                             Set<String> changedFieldSet,
+                             Supplier<Map<String, ComponentDbData<?>>> componentDecoder) {
+        this.collectionName = collectionName;
+        this.id = id;
+        this.operationType = operationType;
+        this.changedFieldSet = changedFieldSet;
+        this.componentDecoder = componentDecoder;
+    }
+
+    /**
+     * 获取从变更后的文档中解码出来的、被修改的组件，解码在第一次调用时才执行，没有监听者关心组件内容时不会产生解码的开销。解码出来的组件是独立
+     * 的新实例，与缓存中的实体无关
+     *
+     * @return 被修改的组件，key为组件所属{@link Class}的简化名称
+     */
+    public synchronized Map<String, ComponentDbData<?>> getChangedComponentMap() {
+        if (changedComponentMap == null) {
+            changedComponentMap = componentDecoder.get();
+        }
+
+        return changedComponentMap;
+    }
+}
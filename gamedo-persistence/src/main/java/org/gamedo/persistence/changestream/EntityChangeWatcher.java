@@ -0,0 +1,556 @@
+package org.gamedo.persistence.changestream;
+
+import com.mongodb.MongoClientSettings;
+import com.mongodb.MongoServerException;
+import com.mongodb.client.ChangeStreamIterable;
+import com.mongodb.client.MongoChangeStreamCursor;
+import com.mongodb.client.model.changestream.ChangeStreamDocument;
+import com.mongodb.client.model.changestream.FullDocument;
+import com.mongodb.client.model.changestream.OperationType;
+import com.mongodb.client.model.changestream.UpdateDescription;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.cache.EntityCache;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.convert.DbDataWriter;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 基于mongoDB change stream的实体变更监听器：多个游戏服节点共享同一个副本集时，GM工具或者其他节点对实体文档的修改会使本节点
+ * {@link EntityCache}中的实体过期。本监听器为每个已注册实体类型所在的collection启动一个监听线程：
+ * <ul>
+ * <li>对于insert、update、replace、delete事件，从缓存中移除实体；collection被删除或重命名时，移除该collection的所有缓存实体。
+ * 对于update事件，只有监听者通过{@link EntityChangeEvent#getChangedComponentMap()}获取时，才会解码被修改的顶层字段（也就是被修改的组件）
+ * <li>本节点自身写入所产生的事件（变更后的字段与缓存实例序列化的结果一致）会被忽略。缓存实例由业务线程修改，因此这一比较不在监听线程中
+ * 进行，而是提交到该文档的有序通道中，在本节点之前提交的写操作执行完毕之后，像存储一样只读取缓存实例；缓存实例如果还有未持久化的更新，
+ * 总是从缓存中移除该实体。监听器从不修改缓存实例，也不替换其中的组件，业务代码持有的实例不会在它不知情的情况下被换掉
+ * <li>处理过的位置（resume token）会被周期性地持久化到{@link IResumeTokenStore}中，重启或者重连时从该位置继续监听，token失效时从
+ * 当前位置重新开始监听，并移除该collection的所有缓存实体
+ * </ul>
+ * <b>注意：</b>change stream要求mongoDB以副本集（或者分片集群）的方式运行，单节点的副本集即可满足要求
+ */
+@Log4j2
+public class EntityChangeWatcher implements AutoCloseable {
+
+    /**
+     * ChangeStreamHistoryLost：resume token对应的位置已经不在oplog中
+     */
+    private static final int CHANGE_STREAM_HISTORY_LOST = 286;
+    /**
+     * ChangeStreamFatalError：旧版本mongoDB中resume token无法使用时的错误码
+     */
+    private static final int CHANGE_STREAM_FATAL_ERROR = 280;
+
+    private final GamedoMongoTemplate gamedoMongoTemplate;
+    @Getter
+    private final ChangeStreamConfig config;
+    private final IResumeTokenStore resumeTokenStore;
+    private final MongoConverter converter;
+    private final DbDataTypeRegistry typeRegistry;
+    private final DbDataWriter dbDataWriter;
+    private final Codec<Document> documentCodec = MongoClientSettings.getDefaultCodecRegistry().get(Document.class);
+    private final Set<String> collectionNameSet = ConcurrentHashMap.newKeySet();
+    private final List<IEntityChangeListener> listenerList = new CopyOnWriteArrayList<>();
+    private final Map<String, Thread> watchThreadMap = new HashMap<>();
+    private volatile boolean running;
+
+    private final LongAdder eventCount = new LongAdder();
+    private final LongAdder echoCount = new LongAdder();
+    private final LongAdder invalidateCount = new LongAdder();
+
+    public EntityChangeWatcher(GamedoMongoTemplate gamedoMongoTemplate) {
+        this(gamedoMongoTemplate, ChangeStreamConfig.DEFAULT);
+    }
+
+    public EntityChangeWatcher(GamedoMongoTemplate gamedoMongoTemplate, ChangeStreamConfig config) {
+        this(gamedoMongoTemplate, config, new MongoResumeTokenStore(gamedoMongoTemplate, config.getResumeTokenCollection()));
+    }
+
+    public EntityChangeWatcher(GamedoMongoTemplate gamedoMongoTemplate,
+                               ChangeStreamConfig config,
+                               IResumeTokenStore resumeTokenStore) {
+        this(gamedoMongoTemplate, config, resumeTokenStore, gamedoMongoTemplate.getTypeRegistry());
+    }
+
+    /**
+     * @param gamedoMongoTemplate 要监听的模板，变更会作用于它的{@link GamedoMongoTemplate#getEntityCache()}
+     * @param config              监听器配置
+     * @param resumeTokenStore    resume token的存储
+     * @param typeRegistry        用于识别文档中组件的类型注册表
+     */
+    public EntityChangeWatcher(GamedoMongoTemplate gamedoMongoTemplate,
+                               ChangeStreamConfig config,
+                               IResumeTokenStore resumeTokenStore,
+                               DbDataTypeRegistry typeRegistry) {
+        this.gamedoMongoTemplate = gamedoMongoTemplate;
+        this.config = config;
+        this.resumeTokenStore = resumeTokenStore;
+        this.typeRegistry = typeRegistry;
+
+        converter = gamedoMongoTemplate.getConverter();
+        dbDataWriter = new DbDataWriter(converter, null, typeRegistry, gamedoMongoTemplate.getSettings());
+    }
+
+    /**
+     * 注册一个需要监听的实体类型，如果监听器已经启动，并且该类型所在的collection尚未被监听，则立即开始监听
+     *
+     * @param entityClazz 实体所属{@link Class}
+     */
+    public synchronized void register(final Class<? extends EntityDbData> entityClazz) {
+        typeRegistry.register(entityClazz);
+
+        final String collectionName = gamedoMongoTemplate.getCollectionName(entityClazz);
+        if (collectionNameSet.add(collectionName) && running) {
+            startWatch(collectionName);
+        }
+    }
+
+    /**
+     * 添加一个变更监听者，<b>注意：</b>监听者会收到所有已注册collection的变更事件，包括本节点自身写入所产生的事件
+     *
+     * @param listener 要添加的监听者
+     */
+    public void addListener(final IEntityChangeListener listener) {
+        listenerList.add(listener);
+    }
+
+    /**
+     * 启动所有已注册collection的监听
+     */
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+
+        running = true;
+        collectionNameSet.forEach(this::startWatch);
+    }
+
+    /**
+     * 停止监听，并等待所有监听线程退出，退出前会持久化最后处理的resume token
+     */
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+
+        running = false;
+        watchThreadMap.values().forEach(thread -> {
+            try {
+                thread.join(config.getMaxAwaitTime().toMillis() * 2 + config.getReconnectInterval().toMillis());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        watchThreadMap.clear();
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * @return 收到的变更事件数量
+     */
+    public long getEventCount() {
+        return eventCount.sum();
+    }
+
+    /**
+     * @return 被识别为本节点自身写入、因而被忽略的事件数量
+     */
+    public long getEchoCount() {
+        return echoCount.sum();
+    }
+
+    /**
+     * @return 因为变更而从缓存中移除的实体数量
+     */
+    public long getInvalidateCount() {
+        return invalidateCount.sum();
+    }
+
+    @Override
+    public String toString() {
+        return "EntityChangeWatcher{" +
+                "collections=" + collectionNameSet +
+                ", event=" + getEventCount() +
+                ", echo=" + getEchoCount() +
+                ", invalidate=" + getInvalidateCount() +
+                '}';
+    }
+
+    private void startWatch(final String collectionName) {
+        final Thread thread = new Thread(() -> watch(collectionName), "gamedo-change-stream-" + collectionName);
+        thread.setDaemon(true);
+        thread.start();
+        watchThreadMap.put(collectionName, thread);
+    }
+
+    private void watch(final String collectionName) {
+        final String tokenKey = config.getNodeName() + ":" + collectionName;
+        BsonDocument resumeToken = loadResumeToken(tokenKey);
+        log.info(Markers.GamedoPersistence, "change stream watch start, collection:{}, resumeToken:{}", collectionName, resumeToken);
+
+        while (running) {
+            try (MongoChangeStreamCursor<ChangeStreamDocument<Document>> cursor = openCursor(collectionName, resumeToken)) {
+                long lastSaveNanos = System.nanoTime();
+                BsonDocument savedToken = resumeToken;
+                while (running) {
+                    final ChangeStreamDocument<Document> change = cursor.tryNext();
+                    if (change != null) {
+                        handleChangeSafely(collectionName, change);
+                        if (change.getOperationType() == OperationType.INVALIDATE) {
+                            //the stream is closed after an invalidate event, start over from the current position
+                            resumeToken = null;
+                            resumeTokenStore.remove(tokenKey);
+                            break;
+                        }
+                    }
+
+                    final BsonDocument token = cursor.getResumeToken();
+                    if (token != null) {
+                        resumeToken = token;
+                    }
+
+                    final long now = System.nanoTime();
+                    if (resumeToken != null && resumeToken != savedToken &&
+                            now - lastSaveNanos >= config.getResumeTokenSaveInterval().toNanos()) {
+                        resumeTokenStore.save(tokenKey, resumeToken);
+                        savedToken = resumeToken;
+                        lastSaveNanos = now;
+                    }
+                }
+
+                if (resumeToken != null && resumeToken != savedToken) {
+                    resumeTokenStore.save(tokenKey, resumeToken);
+                }
+            } catch (MongoServerException e) {
+                if (e.getCode() == CHANGE_STREAM_HISTORY_LOST || e.getCode() == CHANGE_STREAM_FATAL_ERROR) {
+                    //changes between the token and now are lost, the cached entities may be stale
+                    log.warn(Markers.GamedoPersistence, "resume token is no longer valid, watch from now on, collection:{}, token:{}",
+                            collectionName,
+                            resumeToken);
+                    resumeToken = null;
+                    resumeTokenStore.remove(tokenKey);
+                    invalidateAll(collectionName);
+                    continue;
+                }
+
+                onWatchError(collectionName, e);
+            } catch (Exception e) {
+                onWatchError(collectionName, e);
+            }
+        }
+
+        log.info(Markers.GamedoPersistence, "change stream watch stop, collection:{}, resumeToken:{}", collectionName, resumeToken);
+    }
+
+    private MongoChangeStreamCursor<ChangeStreamDocument<Document>> openCursor(final String collectionName,
+                                                                               final BsonDocument resumeToken) {
+        ChangeStreamIterable<Document> iterable = gamedoMongoTemplate.getCollection(collectionName)
+                .watch()
+                .fullDocument(FullDocument.UPDATE_LOOKUP)
+                .maxAwaitTime(config.getMaxAwaitTime().toMillis(), TimeUnit.MILLISECONDS);
+        if (resumeToken != null) {
+            iterable = iterable.resumeAfter(resumeToken);
+        }
+
+        return iterable.cursor();
+    }
+
+    private BsonDocument loadResumeToken(final String tokenKey) {
+        try {
+            return resumeTokenStore.load(tokenKey);
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "exception caught on loading resume token, key:" + tokenKey, e);
+            return null;
+        }
+    }
+
+    private void onWatchError(final String collectionName, final Exception e) {
+        if (!running) {
+            return;
+        }
+
+        log.error(Markers.GamedoPersistence, "exception caught on watching change stream, retry after " +
+                config.getReconnectInterval() + ", collection:" + collectionName, e);
+        try {
+            Thread.sleep(config.getReconnectInterval().toMillis());
+        } catch (InterruptedException interruptedException) {
+            Thread.currentThread().interrupt();
+            running = false;
+        }
+    }
+
+    private void handleChangeSafely(final String collectionName, final ChangeStreamDocument<Document> change) {
+        try {
+            handleChange(collectionName, change);
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "exception caught on handling change, collection:" + collectionName +
+                    ", change:" + change, e);
+            //can not tell whether the cached entity is stale, drop it
+            final Object id = decodeId(change.getDocumentKey());
+            if (id != null) {
+                invalidate(collectionName, id);
+            }
+        }
+    }
+
+    private void handleChange(final String collectionName, final ChangeStreamDocument<Document> change) {
+        eventCount.increment();
+
+        final OperationType operationType = change.getOperationType();
+        switch (operationType) {
+            case INSERT:
+            case UPDATE:
+            case REPLACE:
+            case DELETE:
+                break;
+            case DROP:
+            case RENAME:
+            case DROP_DATABASE:
+            case INVALIDATE:
+                invalidateAll(collectionName);
+                return;
+            default:
+                return;
+        }
+
+        final Object id = decodeId(change.getDocumentKey());
+        if (id == null) {
+            return;
+        }
+
+        final Document fullDocument = change.getFullDocument();
+        final Set<String> changedFieldSet = changedFields(change.getUpdateDescription());
+        final Set<String> comparedFieldSet = operationType == OperationType.UPDATE ? changedFieldSet : null;
+
+        log.debug(Markers.GamedoPersistence, "change received, collection:{}, id:{}, operation:{}, fields:{}",
+                () -> collectionName,
+                () -> id,
+                () -> operationType,
+                () -> changedFieldSet);
+
+        if (!listenerList.isEmpty()) {
+            final EntityChangeEvent event = new EntityChangeEvent(collectionName,
+                    id,
+                    operationType,
+                    changedFieldSet,
+                    () -> fullDocument == null ?
+                            Collections.emptyMap() :
+                            decodeComponents(fullDocument, comparedFieldSet != null ? comparedFieldSet : fullDocument.keySet()));
+            listenerList.forEach(listener -> listener.onChange(event));
+        }
+
+        final EntityCache cache = gamedoMongoTemplate.getEntityCache();
+        final Object cacheId = cache == null ? null : findCachedId(cache, collectionName, id);
+        if (cacheId == null) {
+            return;
+        }
+
+        if (fullDocument == null) {
+            invalidate(collectionName, cacheId);
+            return;
+        }
+
+        //the cached entity is owned by the business threads, only read it in the lane of the document, just like a save does
+        gamedoMongoTemplate.submitOrdered(collectionName, cacheId, () -> {
+            reconcile(collectionName, cacheId, fullDocument, comparedFieldSet);
+            return null;
+        });
+    }
+
+    /**
+     * 在文档的有序通道中执行：本节点在此之前提交的写操作都已经执行完毕，如果缓存实例与变更后的文档一致，说明是本节点自身的写入，保留缓存实例，
+     * 否则从缓存中移除
+     *
+     * @param comparedFieldSet 被修改的顶层字段，为null时比较整个文档
+     */
+    private void reconcile(final String collectionName,
+                           final Object cacheId,
+                           final Document fullDocument,
+                           final Set<String> comparedFieldSet) {
+        final EntityCache cache = gamedoMongoTemplate.getEntityCache();
+        final EntityDbData<?> cached = cache == null ? null : cache.peek(collectionName, cacheId);
+        if (cached == null) {
+            return;
+        }
+
+        try {
+            if (isEcho(cached, fullDocument, comparedFieldSet)) {
+                echoCount.increment();
+                return;
+            }
+
+            if (Updaters.isAnyDirty(cached)) {
+                log.warn(Markers.GamedoPersistence, "the cached entity is modified by others while it has pending writes, " +
+                        "invalidate it, collection:{}, id:{}, fields:{}", collectionName, cacheId, comparedFieldSet);
+            }
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "exception caught on comparing cached entity, collection:" + collectionName +
+                    ", id:" + cacheId, e);
+        }
+
+        invalidate(collectionName, cacheId);
+    }
+
+    /**
+     * 缓存的key使用的是实体的id，而事件中的id是mongoDB中存储的类型，对于String类型的id，mongoDB中存储的可能是{@link ObjectId}
+     */
+    private static Object findCachedId(final EntityCache cache, final String collectionName, final Object id) {
+        if (cache.peek(collectionName, id) != null) {
+            return id;
+        }
+
+        if (id instanceof ObjectId) {
+            final String hexString = ((ObjectId) id).toHexString();
+            return cache.peek(collectionName, hexString) != null ? hexString : null;
+        }
+
+        return null;
+    }
+
+    /**
+     * @param changedFieldSet 被修改的顶层字段，为null时比较整个文档
+     * @return 如果变更后的字段与缓存实例序列化后的结果一致（例如：本节点自身的写入），返回true
+     */
+    private boolean isEcho(final EntityDbData<?> cached, final Document fullDocument, final Set<String> changedFieldSet) {
+        final Document localDocument = dbDataWriter.write(cached);
+        final Document localCompared = new Document();
+        final Document remoteCompared = new Document();
+        final Set<String> keySet = changedFieldSet != null ? changedFieldSet : new HashSet<>(fullDocument.keySet());
+        if (changedFieldSet == null) {
+            keySet.addAll(localDocument.keySet());
+            keySet.remove(IGamedoMongoTemplate.ID_FIELD_NAME);
+        }
+
+        keySet.forEach(key -> {
+            localCompared.put(key, localDocument.get(key));
+            remoteCompared.put(key, fullDocument.get(key));
+        });
+
+        //compare in the BSON representation, e.g. a short field is written as Short but read back as Integer
+        return toBsonDocument(localCompared).equals(toBsonDocument(remoteCompared));
+    }
+
+    private static BsonDocument toBsonDocument(final Document document) {
+        return document.toBsonDocument(BsonDocument.class, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    /**
+     * 从变更后的文档中解码指定的顶层字段中的组件，由{@link EntityChangeEvent#getChangedComponentMap()}按需调用，解码出的组件是独立的新实例
+     */
+    private Map<String, ComponentDbData<?>> decodeComponents(final Document fullDocument, final Set<String> fieldSet) {
+        final Map<String, ComponentDbData<?>> componentMap = new HashMap<>(fieldSet.size());
+        for (String key : fieldSet) {
+            final Object value = fullDocument.get(key);
+            if (!(value instanceof Document)) {
+                continue;
+            }
+
+            final Document documentNested = (Document) value;
+            final Object className = documentNested.get(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+            if (!(className instanceof String) || !typeRegistry.isComponent((String) className)) {
+                continue;
+            }
+
+            //溢出存储的组件的内容不在实体文档中，压缩存储的组件需要先解压
+            if (ComponentStorages.isOverflowStub(documentNested)) {
+                continue;
+            }
+
+            final Document document = new Document(ComponentStorages.decompress(documentNested,
+                    gamedoMongoTemplate.getSettings().getStorageConfig()));
+            document.put(IGamedoMongoTemplate.ID_FIELD_NAME, fullDocument.get(IGamedoMongoTemplate.ID_FIELD_NAME));
+            final ComponentDbData<?> componentDbData =
+                    (ComponentDbData<?>) converter.read(typeRegistry.resolve((String) className), document);
+            Versions.load(componentDbData, documentNested);
+            gamedoMongoTemplate.getSettings().onLoaded(componentDbData);
+            componentMap.put(key, componentDbData);
+        }
+
+        return componentMap;
+    }
+
+    /**
+     * @return 被修改或者删除的顶层字段，例如：“ComponentDbBag.itemList.0”对应的顶层字段为“ComponentDbBag”
+     */
+    private static Set<String> changedFields(final UpdateDescription updateDescription) {
+        if (updateDescription == null) {
+            return Collections.emptySet();
+        }
+
+        final Set<String> fieldSet = new HashSet<>();
+        if (updateDescription.getUpdatedFields() != null) {
+            updateDescription.getUpdatedFields().keySet().forEach(key -> fieldSet.add(topLevelField(key)));
+        }
+        if (updateDescription.getRemovedFields() != null) {
+            updateDescription.getRemovedFields().forEach(key -> fieldSet.add(topLevelField(key)));
+        }
+
+        return fieldSet;
+    }
+
+    private static String topLevelField(final String path) {
+        final int index = path.indexOf('.');
+        return index < 0 ? path : path.substring(0, index);
+    }
+
+    private Object decodeId(final BsonDocument documentKey) {
+        if (documentKey == null || !documentKey.containsKey(IGamedoMongoTemplate.ID_FIELD_NAME)) {
+            return null;
+        }
+
+        return documentCodec.decode(new BsonDocumentReader(documentKey), DecoderContext.builder().build())
+                .get(IGamedoMongoTemplate.ID_FIELD_NAME);
+    }
+
+    private void invalidate(final String collectionName, final Object id) {
+        final EntityCache cache = gamedoMongoTemplate.getEntityCache();
+        if (cache != null && cache.invalidate(collectionName, id) != null) {
+            invalidateCount.increment();
+            log.debug(Markers.GamedoPersistence, "cached entity invalidated by change stream, collection:{}, id:{}",
+                    collectionName,
+                    id);
+        }
+    }
+
+    private void invalidateAll(final String collectionName) {
+        final EntityCache cache = gamedoMongoTemplate.getEntityCache();
+        if (cache != null) {
+            final int count = cache.invalidateAll(collectionName);
+            invalidateCount.add(count);
+            log.info(Markers.GamedoPersistence, "all cached entities invalidated by change stream, collection:{}, count:{}",
+                    collectionName,
+                    count);
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package org.gamedo.persistence.changestream;
+
+/**
+ * 实体文档变更的监听者，由{@link EntityChangeWatcher}在监听线程上回调，<b>注意：</b>回调中不要执行耗时的操作，否则会阻塞后续事件的处理
+ */
+@FunctionalInterface
+public interface IEntityChangeListener {
+
+    /**
+     * 当一个已注册实体类型的文档被其他节点（或者其他工具）修改时回调
+     *
+     * @param event 变更事件
+     */
+    void onChange(EntityChangeEvent event);
+}
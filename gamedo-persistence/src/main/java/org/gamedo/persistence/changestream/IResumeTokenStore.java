@@ -0,0 +1,30 @@
+package org.gamedo.persistence.changestream;
+
+import org.bson.BsonDocument;
+
+/**
+ * change stream的resume token的存储，{@link EntityChangeWatcher}重启时从上一次处理的位置继续监听
+ */
+public interface IResumeTokenStore {
+
+    /**
+     * @param key token的key，由节点名称和collection组成
+     * @return 上一次保存的token，如果不存在，返回null
+     */
+    BsonDocument load(String key);
+
+    /**
+     * 保存一个token，覆盖之前保存的token
+     *
+     * @param key   token的key
+     * @param token 要保存的token
+     */
+    void save(String key, BsonDocument token);
+
+    /**
+     * 删除一个token（例如：token已经失效时）
+     *
+     * @param key token的key
+     */
+    void remove(String key);
+}
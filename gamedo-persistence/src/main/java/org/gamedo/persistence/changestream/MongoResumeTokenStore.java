@@ -0,0 +1,42 @@
+package org.gamedo.persistence.changestream;
+
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.ReplaceOptions;
+import org.bson.BsonDocument;
+import org.bson.BsonString;
+import org.bson.Document;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+/**
+ * 将resume token保存在mongoDB的一个collection中，每个key对应一个文档：{_id: key, token: {...}}
+ */
+public class MongoResumeTokenStore implements IResumeTokenStore {
+
+    private static final String TOKEN_FIELD_NAME = "token";
+
+    private final MongoCollection<BsonDocument> collection;
+
+    public MongoResumeTokenStore(MongoOperations mongoOperations, String collectionName) {
+        collection = mongoOperations.getCollection(collectionName).withDocumentClass(BsonDocument.class);
+    }
+
+    @Override
+    public BsonDocument load(final String key) {
+        final BsonDocument document = collection.find(Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, key)).first();
+        return document == null || !document.isDocument(TOKEN_FIELD_NAME) ? null : document.getDocument(TOKEN_FIELD_NAME);
+    }
+
+    @Override
+    public void save(final String key, final BsonDocument token) {
+        final BsonDocument document = new BsonDocument(IGamedoMongoTemplate.ID_FIELD_NAME, new BsonString(key))
+                .append(TOKEN_FIELD_NAME, token);
+        collection.replaceOne(Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, key), document, new ReplaceOptions().upsert(true));
+    }
+
+    @Override
+    public void remove(final String key) {
+        collection.deleteOne(Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, key));
+    }
+}
@@ -0,0 +1,507 @@
+package org.gamedo.persistence.codec;
+
+import org.bson.BsonInvalidOperationException;
+import org.bson.BsonReader;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.annotations.ComponentMap;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
+import org.gamedo.persistence.listeners.EntityDbDataBeforeSaveEventListener;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.mapping.PersistentPropertyAccessor;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
+import org.springframework.data.util.TypeInformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * {@link DbData}编解码器的基类，gamedo-persistence-lombok为注解了{@code @GamedoCodec}的类在编译期生成的嵌套类
+ * {@value DbDataCodecRegistry#GENERATED_CODEC_CLASS_NAME}就继承自本类。编解码器直接读写最终存储的文档布局：组件的字段嵌套在以组件类名
+ * （{@link Class#getSimpleName()}）命名的字段中，实体的组件被打散为顶层字段，因此既不需要{@link MongoConverter}的反射转换以及
+ * {@link Document}中间结构，也不需要{@link EntityDbDataBeforeSaveEventListener}、{@link EntityDbDataAfterLoadEventListener}等
+ * 监听器的后处理。
+ * <p>
+ * 生成的代码只直接读写基本类型、包装类型以及{@link String}类型的字段，其余字段（包括父类中声明的字段）依然交给{@link MongoConverter}：
+ * 编码时使用{@link MongoConverter#convertToMongoType(Object, TypeInformation)}逐个转换，解码时先收集到一个{@link Document}中，最后
+ * 通过{@link MongoConverter#read(Class, org.bson.conversions.Bson)}一次性转换并复制到目标对象上
+ *
+ * @param <T> 要编解码的类型
+ */
+@SuppressWarnings({"rawtypes", "unchecked"})
+public abstract class AbstractDbDataCodec<T extends DbData> implements Codec<T> {
+
+    private static final String TYPE_KEY = DefaultMongoTypeMapper.DEFAULT_TYPE_KEY;
+
+    private final Class<T> clazz;
+    private final Set<String> generatedKeySet;
+    private final boolean entity;
+    private final boolean versioned;
+    /**
+     * 单独存储组件时，组件的字段所在的内嵌文档的名字
+     */
+    private final String componentKey;
+    private DbDataCodecRegistry registry;
+    private MongoConverter converter;
+    private MongoPersistentEntity<?> persistentEntity;
+    private MongoPersistentProperty idProperty;
+    private String typeAlias;
+    /**
+     * 生成的代码没有覆盖到、需要由{@link MongoConverter}转换的属性
+     */
+    private MongoPersistentProperty[] convertedProperties;
+    private Map<String, MongoPersistentProperty> convertedPropertyMap;
+
+    /**
+     * @param clazz         要编解码的类型
+     * @param generatedKeys 由生成的代码直接读写的字段名（存储到mongoDB中的字段名）
+     */
+    protected AbstractDbDataCodec(final Class<T> clazz, final String... generatedKeys) {
+        this.clazz = clazz;
+        generatedKeySet = new HashSet<>(Arrays.asList(generatedKeys));
+        entity = EntityDbData.class.isAssignableFrom(clazz);
+        versioned = Versions.isVersioned(clazz);
+        componentKey = clazz.getSimpleName();
+    }
+
+    /**
+     * 解析需要由{@link MongoConverter}转换的属性，由{@link DbDataCodecRegistry}在创建编解码器后调用
+     *
+     * @throws IllegalStateException 如果存在生成的代码没有覆盖到、且无法在创建之后被赋值的属性
+     */
+    void init(final DbDataCodecRegistry registry, final MongoConverter converter) {
+        this.registry = registry;
+        this.converter = converter;
+        persistentEntity = converter.getMappingContext().getRequiredPersistentEntity(clazz);
+        idProperty = persistentEntity.getIdProperty();
+
+        final Object alias = persistentEntity.getTypeAlias().getValue();
+        typeAlias = alias != null ? alias.toString() : clazz.getName();
+
+        final List<MongoPersistentProperty> propertyList = new ArrayList<>();
+        for (MongoPersistentProperty property : persistentEntity) {
+            if (property.isIdProperty() || property.isAnnotationPresent(ComponentMap.class) ||
+                    generatedKeySet.contains(property.getFieldName())) {
+                continue;
+            }
+
+            if (property.isImmutable()) {
+                throw new IllegalStateException("the property is immutable, class:" + clazz.getName() +
+                        ", property:" + property.getName());
+            }
+            propertyList.add(property);
+        }
+
+        convertedProperties = propertyList.toArray(new MongoPersistentProperty[0]);
+        convertedPropertyMap = new HashMap<>(convertedProperties.length * 2);
+        for (MongoPersistentProperty property : convertedProperties) {
+            convertedPropertyMap.put(property.getFieldName(), property);
+        }
+    }
+
+    @Override
+    public Class<T> getEncoderClass() {
+        return clazz;
+    }
+
+    /**
+     * 创建一个空的实例，解码的结果会直接写入该实例中
+     *
+     * @return 新创建的实例
+     */
+    protected abstract T newInstance();
+
+    /**
+     * 写入由生成的代码直接处理的字段
+     *
+     * @param writer  写入器
+     * @param value   要编码的对象
+     * @param context 编码上下文
+     */
+    protected abstract void encodeFields(BsonWriter writer, T value, EncoderContext context);
+
+    /**
+     * 读取一个由生成的代码直接处理的字段，调用时字段名已经被读取
+     *
+     * @param key     字段名
+     * @param reader  读取器
+     * @param value   解码的目标对象
+     * @param context 解码上下文
+     * @return 如果该字段已被读取，返回true，否则返回false，且reader的状态不变
+     */
+    protected abstract boolean decodeField(String key, BsonReader reader, T value, DecoderContext context);
+
+    @Override
+    public void encode(final BsonWriter writer, final T value, final EncoderContext context) {
+        writer.writeStartDocument();
+        writer.writeName(IGamedoMongoTemplate.ID_FIELD_NAME);
+        writeId(writer, value, context);
+
+        if (entity) {
+            encodeBody(writer, value, context);
+            for (ComponentDbData<?> componentDbData : ((EntityDbData<?>) value).getLoadedComponentDbDataCollection()) {
+                writer.writeName(componentDbData.getClass().getSimpleName());
+                registry.encodeComponent(writer, componentDbData, context);
+            }
+            //懒加载模式下尚未实例化的组件，原样写回
+            ((EntityDbData<?>) value).getRawComponentMap().forEach((key, raw) -> {
+                writer.writeName(key);
+                registry.writeValue(writer, raw, context);
+            });
+        } else {
+            writer.writeStartDocument(componentKey);
+            encodeBody(writer, value, context);
+            writer.writeEndDocument();
+        }
+
+        writer.writeEndDocument();
+    }
+
+    /**
+     * 将一个嵌套在实体中的组件编码为一个不包含“_id”的内嵌文档
+     */
+    void encodeNested(final BsonWriter writer, final T value, final EncoderContext context) {
+        writer.writeStartDocument();
+        encodeBody(writer, value, context);
+        writer.writeEndDocument();
+    }
+
+    private void encodeBody(final BsonWriter writer, final T value, final EncoderContext context) {
+        //“_class”写在最前面，加载实体时预读组件类型只需要读取第一个字段
+        writer.writeString(TYPE_KEY, typeAlias);
+        if (versioned) {
+            writer.writeInt64(Versions.VERSION_FIELD_NAME, value.getVersion());
+        }
+        encodeFields(writer, value, context);
+
+        if (convertedProperties.length > 0) {
+            final PersistentPropertyAccessor<T> accessor = persistentEntity.getPropertyAccessor(value);
+            for (MongoPersistentProperty property : convertedProperties) {
+                final Object propertyValue = accessor.getProperty(property);
+                //和MongoConverter一样，值为null的属性不会被写入
+                if (propertyValue != null) {
+                    writer.writeName(property.getFieldName());
+                    registry.writeValue(writer,
+                            converter.convertToMongoType(propertyValue, property.getTypeInformation()),
+                            context);
+                }
+            }
+        }
+    }
+
+    private void writeId(final BsonWriter writer, final T value, final EncoderContext context) {
+        Object id = value.getId();
+        if (id == null) {
+            //与MongoConverter一致：生成的id需要回写到对象上，否则之后的更新无法定位到刚刚插入的文档
+            id = generateId();
+            value.setId(id);
+        }
+
+        final Object mongoId = idProperty == null ? id : converter.convertId(id, idProperty.getFieldType());
+        registry.writeValue(writer, mongoId, context);
+    }
+
+    /**
+     * 为一个还没有id的对象生成id，只支持{@link ObjectId}以及{@link String}类型的id
+     *
+     * @throws IllegalStateException 如果id是其他类型
+     */
+    private Object generateId() {
+        final Class<?> idType = idProperty == null ? ObjectId.class : idProperty.getType();
+        if (idType.isAssignableFrom(ObjectId.class)) {
+            return new ObjectId();
+        }
+
+        if (idType == String.class) {
+            return new ObjectId().toString();
+        }
+
+        throw new IllegalStateException("can not generate an id, the id must be an ObjectId or a String, class:" +
+                clazz.getName() + ", id type:" + idType.getName());
+    }
+
+    @Override
+    public T decode(final BsonReader reader, final DecoderContext context) {
+        final T value = newInstance();
+        Document convertedDocument = null;
+        List<ComponentDbData<?>> componentList = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            final String key = reader.readName();
+            if (IGamedoMongoTemplate.ID_FIELD_NAME.equals(key)) {
+                value.setId(readId(reader, context));
+                continue;
+            }
+
+            if (!entity) {
+                //单独加载组件时，文档中只有“_id”和组件所在的内嵌文档是有意义的
+                if (componentKey.equals(key)) {
+                    convertedDocument = decodeBody(reader, value, context);
+                } else {
+                    reader.skipValue();
+                }
+                continue;
+            }
+
+            if (TYPE_KEY.equals(key)) {
+                reader.skipValue();
+            } else if (Versions.VERSION_FIELD_NAME.equals(key)) {
+                readVersion(reader, value);
+            } else if (decodeField(key, reader, value, context)) {
+                continue;
+            } else if (convertedPropertyMap.containsKey(key)) {
+                convertedDocument = putConverted(convertedDocument, key, registry.readValue(reader, context));
+            } else {
+                //其余的内嵌文档是被打散的组件
+                final ComponentDbData<?> componentDbData = registry.decodeComponent(reader, context, (EntityDbData<?>) value);
+                if (componentDbData != null) {
+                    if (componentList == null) {
+                        componentList = new ArrayList<>();
+                    }
+                    componentList.add(componentDbData);
+                }
+            }
+        }
+        reader.readEndDocument();
+
+        applyConverted(value, convertedDocument);
+        if (componentList != null) {
+            for (ComponentDbData componentDbData : componentList) {
+                ((EntityDbData) value).addComponentDbData(componentDbData);
+            }
+        }
+
+        registry.getSettings().onLoaded(value);
+        return value;
+    }
+
+    /**
+     * 解码一个嵌套在实体中的组件，调用时reader位于该组件的内嵌文档上
+     */
+    T decodeNested(final BsonReader reader, final DecoderContext context) {
+        final T value = newInstance();
+        applyConverted(value, decodeBody(reader, value, context));
+        return value;
+    }
+
+    private Document decodeBody(final BsonReader reader, final T value, final DecoderContext context) {
+        Document convertedDocument = null;
+
+        reader.readStartDocument();
+        while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+            final String key = reader.readName();
+            if (Versions.VERSION_FIELD_NAME.equals(key)) {
+                readVersion(reader, value);
+                continue;
+            }
+
+            if (decodeField(key, reader, value, context)) {
+                continue;
+            }
+
+            if (convertedPropertyMap.containsKey(key)) {
+                convertedDocument = putConverted(convertedDocument, key, registry.readValue(reader, context));
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.readEndDocument();
+
+        return convertedDocument;
+    }
+
+    private void readVersion(final BsonReader reader, final T value) {
+        if (versioned) {
+            value.setVersion(readInt64(reader));
+        } else {
+            reader.skipValue();
+        }
+    }
+
+    private static Document putConverted(final Document convertedDocument, final String key, final Object value) {
+        final Document document = convertedDocument != null ? convertedDocument : new Document();
+        document.put(key, value);
+        return document;
+    }
+
+    /**
+     * 使用{@link MongoConverter}将生成的代码没有覆盖到的字段一次性转换，并复制到目标对象上
+     */
+    private void applyConverted(final T value, final Document convertedDocument) {
+        if (convertedDocument == null) {
+            return;
+        }
+
+        final T converted = converter.read(clazz, convertedDocument);
+        final PersistentPropertyAccessor<T> source = persistentEntity.getPropertyAccessor(converted);
+        final PersistentPropertyAccessor<T> target = persistentEntity.getPropertyAccessor(value);
+        for (String key : convertedDocument.keySet()) {
+            final MongoPersistentProperty property = convertedPropertyMap.get(key);
+            target.setProperty(property, source.getProperty(property));
+        }
+    }
+
+    private Object readId(final BsonReader reader, final DecoderContext context) {
+        final Object id = registry.readValue(reader, context);
+        if (id == null || idProperty == null || idProperty.getType().isInstance(id)) {
+            return id;
+        }
+
+        return converter.getConversionService().convert(id, idProperty.getType());
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final int value) {
+        writer.writeInt32(key, value);
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final long value) {
+        writer.writeInt64(key, value);
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final double value) {
+        writer.writeDouble(key, value);
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final boolean value) {
+        writer.writeBoolean(key, value);
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final String value) {
+        if (value != null) {
+            writer.writeString(key, value);
+        }
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final Integer value) {
+        if (value != null) {
+            writer.writeInt32(key, value);
+        }
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final Long value) {
+        if (value != null) {
+            writer.writeInt64(key, value);
+        }
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final Double value) {
+        if (value != null) {
+            writer.writeDouble(key, value);
+        }
+    }
+
+    protected static void write(final BsonWriter writer, final String key, final Boolean value) {
+        if (value != null) {
+            writer.writeBoolean(key, value);
+        }
+    }
+
+    protected static int readInt32(final BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.INT32) {
+            return reader.readInt32();
+        }
+
+        final Number number = readNumber(reader);
+        return number != null ? number.intValue() : 0;
+    }
+
+    protected static long readInt64(final BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.INT64) {
+            return reader.readInt64();
+        }
+
+        final Number number = readNumber(reader);
+        return number != null ? number.longValue() : 0L;
+    }
+
+    protected static double readDouble(final BsonReader reader) {
+        if (reader.getCurrentBsonType() == BsonType.DOUBLE) {
+            return reader.readDouble();
+        }
+
+        final Number number = readNumber(reader);
+        return number != null ? number.doubleValue() : 0.0;
+    }
+
+    protected static boolean readBoolean(final BsonReader reader) {
+        final Boolean value = readNullableBoolean(reader);
+        return value != null && value;
+    }
+
+    protected static String readString(final BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case STRING:
+                return reader.readString();
+            case SYMBOL:
+                return reader.readSymbol();
+            case NULL:
+                reader.readNull();
+                return null;
+            default:
+                throw new BsonInvalidOperationException("can not read a String from:" + reader.getCurrentBsonType());
+        }
+    }
+
+    protected static Integer readNullableInt32(final BsonReader reader) {
+        final Number number = readNumber(reader);
+        return number != null ? number.intValue() : null;
+    }
+
+    protected static Long readNullableInt64(final BsonReader reader) {
+        final Number number = readNumber(reader);
+        return number != null ? number.longValue() : null;
+    }
+
+    protected static Double readNullableDouble(final BsonReader reader) {
+        final Number number = readNumber(reader);
+        return number != null ? number.doubleValue() : null;
+    }
+
+    protected static Boolean readNullableBoolean(final BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case BOOLEAN:
+                return reader.readBoolean();
+            case NULL:
+                reader.readNull();
+                return null;
+            default:
+                throw new BsonInvalidOperationException("can not read a Boolean from:" + reader.getCurrentBsonType());
+        }
+    }
+
+    private static Number readNumber(final BsonReader reader) {
+        switch (reader.getCurrentBsonType()) {
+            case INT32:
+                return reader.readInt32();
+            case INT64:
+                return reader.readInt64();
+            case DOUBLE:
+                return reader.readDouble();
+            case DECIMAL128:
+                return reader.readDecimal128().bigDecimalValue();
+            case NULL:
+                reader.readNull();
+                return null;
+            default:
+                throw new BsonInvalidOperationException("can not read a Number from:" + reader.getCurrentBsonType());
+        }
+    }
+}
@@ -0,0 +1,267 @@
+package org.gamedo.persistence.codec;
+
+import com.mongodb.MongoClientSettings;
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonReader;
+import org.bson.BsonReaderMark;
+import org.bson.BsonType;
+import org.bson.BsonWriter;
+import org.bson.Document;
+import org.bson.codecs.BsonTypeClassMap;
+import org.bson.codecs.BsonTypeCodecMap;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecProvider;
+import org.bson.codecs.configuration.CodecRegistries;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.ComponentSlots;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 编译期生成的{@link DbData}编解码器的注册表：对于注解了{@code @GamedoCodec}的类，gamedo-persistence-lombok会生成一个名为
+ * {@value #GENERATED_CODEC_CLASS_NAME}的嵌套类，本注册表在第一次使用某个类型时查找并实例化它，查找的结果（包括没有找到）会被缓存。
+ * <p>
+ * 本类同时也是一个{@link CodecProvider}，{@link DbDataCodecRegistry#getCodecRegistry()}返回的{@link CodecRegistry}可以直接通过
+ * {@link com.mongodb.client.MongoCollection#withCodecRegistry(CodecRegistry)}交给mongoDB的驱动使用
+ */
+@Log4j2
+public class DbDataCodecRegistry implements CodecProvider {
+
+    /**
+     * 生成的编解码器的类名（嵌套在被注解的类中）
+     */
+    public static final String GENERATED_CODEC_CLASS_NAME = "GeneratedCodec";
+
+    private static final ClassValue<Class<?>> GENERATED_CODEC_CLASS = new ClassValue<Class<?>>() {
+        @Override
+        protected Class<?> computeValue(Class<?> type) {
+            try {
+                final Class<?> codecClass = Class.forName(type.getName() + "$" + GENERATED_CODEC_CLASS_NAME,
+                        false,
+                        type.getClassLoader());
+                return AbstractDbDataCodec.class.isAssignableFrom(codecClass) ? codecClass : null;
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+    };
+
+    private final MongoConverter converter;
+    private final DbDataTypeRegistry typeRegistry;
+    private final ConcurrentHashMap<Class<?>, Optional<AbstractDbDataCodec<?>>> codecMap = new ConcurrentHashMap<>();
+    /**
+     * 包含了本注册表以及mongoDB驱动默认编解码器的{@link CodecRegistry}
+     */
+    @Getter
+    private final CodecRegistry codecRegistry;
+    private final Codec<Document> documentCodec;
+    private final BsonTypeCodecMap bsonTypeCodecMap;
+    /**
+     * 所属模板的持久化设置，解码得到的数据会应用该设置
+     */
+    @Getter
+    private final PersistenceSettings settings;
+
+    public DbDataCodecRegistry(MongoConverter converter) {
+        this(converter, new DbDataTypeRegistry(converter));
+    }
+
+    public DbDataCodecRegistry(MongoConverter converter, DbDataTypeRegistry typeRegistry) {
+        this(converter, typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param converter    转换器
+     * @param typeRegistry 类型注册表
+     * @param settings     所属模板的持久化设置
+     */
+    public DbDataCodecRegistry(MongoConverter converter, DbDataTypeRegistry typeRegistry, PersistenceSettings settings) {
+        this.converter = converter;
+        this.typeRegistry = typeRegistry;
+        this.settings = settings;
+
+        final CodecRegistry defaultCodecRegistry = MongoClientSettings.getDefaultCodecRegistry();
+        codecRegistry = CodecRegistries.fromRegistries(CodecRegistries.fromProviders(this), defaultCodecRegistry);
+        documentCodec = defaultCodecRegistry.get(Document.class);
+        bsonTypeCodecMap = new BsonTypeCodecMap(new BsonTypeClassMap(), defaultCodecRegistry);
+    }
+
+    /**
+     * @param clazz 要查询的类型
+     * @param <T>   类型
+     * @return 该类型编译期生成的编解码器，如果没有，返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends DbData> AbstractDbDataCodec<T> getCodec(final Class<T> clazz) {
+        return (AbstractDbDataCodec<T>) findCodec(clazz);
+    }
+
+    /**
+     * @param clazz 要查询的类型
+     * @return 如果该类型存在编译期生成的编解码器，返回true
+     */
+    public boolean hasCodec(final Class<?> clazz) {
+        return findCodec(clazz) != null;
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> Codec<T> get(final Class<T> clazz, final CodecRegistry registry) {
+        return (Codec<T>) findCodec(clazz);
+    }
+
+    private AbstractDbDataCodec<?> findCodec(final Class<?> clazz) {
+        final Optional<AbstractDbDataCodec<?>> optional = codecMap.get(clazz);
+        if (optional != null) {
+            return optional.orElse(null);
+        }
+
+        return codecMap.computeIfAbsent(clazz, this::createCodec).orElse(null);
+    }
+
+    private Optional<AbstractDbDataCodec<?>> createCodec(final Class<?> clazz) {
+        final Class<?> codecClass = DbData.class.isAssignableFrom(clazz) ? GENERATED_CODEC_CLASS.get(clazz) : null;
+        if (codecClass == null) {
+            return Optional.empty();
+        }
+
+        try {
+            final AbstractDbDataCodec<?> codec = (AbstractDbDataCodec<?>) codecClass.getDeclaredConstructor().newInstance();
+            codec.init(this, converter);
+            typeRegistry.register(clazz);
+
+            log.info(Markers.GamedoPersistence, "generated codec found, class:{}", clazz.getName());
+            return Optional.of(codec);
+        } catch (Exception e) {
+            //无法使用生成的编解码器时，回退到MongoConverter
+            log.error(Markers.GamedoPersistence, "create generated codec failed, fall back to MongoConverter, class:" +
+                    clazz.getName(), e);
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * 编码一个嵌套在实体中的组件，如果组件没有生成的编解码器，则使用{@link MongoConverter}
+     */
+    @SuppressWarnings("unchecked")
+    void encodeComponent(final BsonWriter writer, final ComponentDbData<?> componentDbData, final EncoderContext context) {
+        final AbstractDbDataCodec<ComponentDbData<?>> codec =
+                (AbstractDbDataCodec<ComponentDbData<?>>) findCodec(componentDbData.getClass());
+        if (codec != null) {
+            codec.encodeNested(writer, componentDbData, context);
+            return;
+        }
+
+        final Document document = new Document();
+        converter.write(componentDbData, document);
+        document.remove(IGamedoMongoTemplate.ID_FIELD_NAME);
+        context.encodeWithChildContext(documentCodec, writer, document);
+    }
+
+    /**
+     * 解码一个被打散的组件，调用时字段名已经被读取，如果当前的值不是一个组件，则跳过它。压缩存储的组件被解压后再转换，溢出存储的组件的占位
+     * 文档被跳过，并记录到所属的实体中，详见{@link ComponentStorages}
+     *
+     * @param owner 组件所属的实体
+     * @return 解码后的组件，如果当前的值不是一个组件，或者是一个溢出存储的组件，返回null
+     */
+    ComponentDbData<?> decodeComponent(final BsonReader reader, final DecoderContext context, final EntityDbData<?> owner) {
+        final Class<?> clazz = reader.getCurrentBsonType() == BsonType.DOCUMENT ? peekComponentClass(reader) : null;
+        if (clazz == null) {
+            reader.skipValue();
+            return null;
+        }
+
+        if (!ComponentStorages.isInline(clazz)) {
+            final Document document = documentCodec.decode(reader, context);
+            if (ComponentStorages.isOverflowStub(document)) {
+                owner.addOverflowComponent(ComponentSlots.key(clazz), clazz);
+                return null;
+            }
+
+            return (ComponentDbData<?>) converter.read(clazz, ComponentStorages.decompress(document, settings.getStorageConfig()));
+        }
+
+        final AbstractDbDataCodec<?> codec = findCodec(clazz);
+        if (codec != null) {
+            return (ComponentDbData<?>) codec.decodeNested(reader, context);
+        }
+
+        return (ComponentDbData<?>) converter.read(clazz, documentCodec.decode(reader, context));
+    }
+
+    /**
+     * 预读当前内嵌文档的“_class”字段，读取完毕后reader会被重置到预读之前的状态
+     */
+    private Class<?> peekComponentClass(final BsonReader reader) {
+        final BsonReaderMark mark = reader.getMark();
+        try {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                final String key = reader.readName();
+                if (DefaultMongoTypeMapper.DEFAULT_TYPE_KEY.equals(key) && reader.getCurrentBsonType() == BsonType.STRING) {
+                    final String className = reader.readString();
+                    return typeRegistry.isComponent(className) ? typeRegistry.resolve(className) : null;
+                }
+                reader.skipValue();
+            }
+            return null;
+        } finally {
+            mark.reset();
+        }
+    }
+
+    /**
+     * 写入一个已经转换为mongoDB类型的值
+     */
+    @SuppressWarnings("unchecked")
+    void writeValue(final BsonWriter writer, final Object value, final EncoderContext context) {
+        if (value == null) {
+            writer.writeNull();
+            return;
+        }
+
+        final Codec<Object> codec = (Codec<Object>) codecRegistry.get(value.getClass());
+        context.encodeWithChildContext(codec, writer, value);
+    }
+
+    /**
+     * 以mongoDB驱动的默认类型读取当前的值，内嵌文档读取为{@link Document}，数组读取为{@link List}
+     */
+    Object readValue(final BsonReader reader, final DecoderContext context) {
+        final BsonType bsonType = reader.getCurrentBsonType();
+        switch (bsonType) {
+            case NULL:
+                reader.readNull();
+                return null;
+            case DOCUMENT:
+                return documentCodec.decode(reader, context);
+            case ARRAY:
+                final List<Object> list = new ArrayList<>();
+                reader.readStartArray();
+                while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                    list.add(readValue(reader, context));
+                }
+                reader.readEndArray();
+                return list;
+            default:
+                return bsonTypeCodecMap.get(bsonType).decode(reader, context);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.gamedo.persistence.convert;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+/**
+ * 将以{@link RawBsonDocument}读取的实体文档转换为{@link EntityDbData}，是{@link DbDataWriter}的逆过程：直接应用
+ * {@link EntityDbDataAfterLoadEventListener}的重新组合逻辑，没有启用版本控制的组件以原始字节的切片保留在实体中，只有在第一次被访问时
+ * 才会经过{@link MongoConverter}，详见{@link EntityDbDataAfterLoadEventListener#regroup(RawBsonDocument)}
+ */
+public class DbDataReader {
+
+    private final MongoConverter converter;
+    private final EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener;
+
+    public DbDataReader(MongoConverter converter) {
+        this(converter, new DbDataTypeRegistry(converter));
+    }
+
+    /**
+     * @param converter    转换器
+     * @param typeRegistry 用于解析文档中组件类型的注册表
+     */
+    public DbDataReader(MongoConverter converter, DbDataTypeRegistry typeRegistry) {
+        this(converter, typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param converter    转换器
+     * @param typeRegistry 用于解析文档中组件类型的注册表
+     * @param settings     所属模板的持久化设置
+     */
+    public DbDataReader(MongoConverter converter, DbDataTypeRegistry typeRegistry, PersistenceSettings settings) {
+        this.converter = converter;
+        entityDbDataAfterLoadEventListener = new EntityDbDataAfterLoadEventListener(converter, typeRegistry, settings);
+    }
+
+    /**
+     * 将原始文档转换为实体
+     *
+     * @param clazz       实体的类型
+     * @param rawDocument 从数据库中读取的原始文档
+     * @param <T>         实体的类型
+     * @return 转换后的实体
+     */
+    public <T extends EntityDbData> T read(final Class<T> clazz, final RawBsonDocument rawDocument) {
+        final Document document = entityDbDataAfterLoadEventListener.regroup(rawDocument);
+        final T data = converter.read(clazz, document);
+        entityDbDataAfterLoadEventListener.afterConvert((EntityDbData<?>) data, document);
+        return data;
+    }
+}
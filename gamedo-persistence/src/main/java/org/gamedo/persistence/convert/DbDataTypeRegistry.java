@@ -0,0 +1,161 @@
+package org.gamedo.persistence.convert;
+
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.logging.Markers;
+import org.springframework.beans.factory.config.BeanDefinition;
+import org.springframework.context.annotation.ClassPathScanningCandidateComponentProvider;
+import org.springframework.core.type.filter.AssignableTypeFilter;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
+import org.springframework.util.ClassUtils;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 类型解析注册表：缓存文档中“_class”字段的值到{@link Class}的映射，以及该类型是否为{@link EntityDbData}、{@link ComponentDbData}的判断
+ * 结果，用于替代每次加载文档时都要执行的{@link Class#forName(String)}（它需要获取类加载器的锁，在并发加载时开销明显）。
+ * <p>
+ * 注册表在创建时会使用{@link MongoConverter}的mappingContext中已知的所有实体进行预填充，也可以通过
+ * {@link DbDataTypeRegistry#scan(String...)}扫描指定包下所有的{@link EntityDbData}和{@link ComponentDbData}子类进行预填充。未预填充
+ * 的类型会在第一次解析时被缓存，解析失败的结果同样会被缓存，避免重复尝试加载
+ */
+@Log4j2
+public class DbDataTypeRegistry {
+
+    private static final TypeInfo NOT_FOUND = new TypeInfo(null);
+
+    private final ConcurrentHashMap<String, TypeInfo> typeInfoMap = new ConcurrentHashMap<>();
+    private final ClassLoader classLoader;
+
+    public DbDataTypeRegistry() {
+        this(ClassUtils.getDefaultClassLoader());
+    }
+
+    public DbDataTypeRegistry(ClassLoader classLoader) {
+        this.classLoader = classLoader;
+    }
+
+    /**
+     * 创建注册表，并使用converter的mappingContext中已知的所有实体进行预填充
+     *
+     * @param converter 转换器
+     */
+    public DbDataTypeRegistry(MongoConverter converter) {
+        this();
+
+        for (MongoPersistentEntity<?> entity : converter.getMappingContext().getPersistentEntities()) {
+            final Class<?> type = entity.getType();
+            register(type);
+
+            final Object alias = entity.getTypeAlias().getValue();
+            if (alias != null) {
+                typeInfoMap.putIfAbsent(alias.toString(), new TypeInfo(type));
+            }
+        }
+    }
+
+    /**
+     * 注册一个类型
+     *
+     * @param clazz 要注册的类型
+     */
+    public void register(final Class<?> clazz) {
+        typeInfoMap.putIfAbsent(clazz.getName(), new TypeInfo(clazz));
+    }
+
+    /**
+     * 扫描指定包（包括子包）下所有的{@link EntityDbData}和{@link ComponentDbData}子类，并注册之
+     *
+     * @param basePackages 要扫描的包
+     * @return 本次注册的类型数量
+     */
+    public int scan(final String... basePackages) {
+        final ClassPathScanningCandidateComponentProvider provider = new ClassPathScanningCandidateComponentProvider(false);
+        provider.addIncludeFilter(new AssignableTypeFilter(EntityDbData.class));
+        provider.addIncludeFilter(new AssignableTypeFilter(ComponentDbData.class));
+
+        int count = 0;
+        for (String basePackage : basePackages) {
+            for (BeanDefinition beanDefinition : provider.findCandidateComponents(basePackage)) {
+                final String className = beanDefinition.getBeanClassName();
+                if (className != null && resolve(className) != null) {
+                    count++;
+                }
+            }
+        }
+
+        log.info(Markers.GamedoPersistence, "DbData types scanned, packages:{}, count:{}, total:{}",
+                basePackages,
+                count,
+                typeInfoMap.size());
+        return count;
+    }
+
+    /**
+     * @param className 类名（或者类型别名），一般来自文档的“_class”字段
+     * @return 对应的{@link Class}，如果无法解析，返回null
+     */
+    public Class<?> resolve(final String className) {
+        return getTypeInfo(className).clazz;
+    }
+
+    /**
+     * @param className 类名（或者类型别名）
+     * @return 如果该类型是{@link EntityDbData}的子类，返回true
+     */
+    public boolean isEntity(final String className) {
+        return getTypeInfo(className).entity;
+    }
+
+    /**
+     * @param className 类名（或者类型别名）
+     * @return 如果该类型是{@link ComponentDbData}的子类，返回true
+     */
+    public boolean isComponent(final String className) {
+        return getTypeInfo(className).component;
+    }
+
+    /**
+     * @return 已缓存的类型数量（包括解析失败的类型）
+     */
+    public int size() {
+        return typeInfoMap.size();
+    }
+
+    private TypeInfo getTypeInfo(final String className) {
+        if (className == null) {
+            return NOT_FOUND;
+        }
+
+        //先get再computeIfAbsent，命中时避免computeIfAbsent的锁
+        final TypeInfo typeInfo = typeInfoMap.get(className);
+        if (typeInfo != null) {
+            return typeInfo;
+        }
+
+        return typeInfoMap.computeIfAbsent(className, this::load);
+    }
+
+    private TypeInfo load(final String className) {
+        try {
+            return new TypeInfo(ClassUtils.forName(className, classLoader));
+        } catch (ClassNotFoundException | LinkageError e) {
+            log.error(Markers.MongoDB, "class not found, className:" + className, e);
+            return NOT_FOUND;
+        }
+    }
+
+    private static final class TypeInfo {
+        private final Class<?> clazz;
+        private final boolean entity;
+        private final boolean component;
+
+        private TypeInfo(Class<?> clazz) {
+            this.clazz = clazz;
+            entity = clazz != null && EntityDbData.class.isAssignableFrom(clazz);
+            component = clazz != null && ComponentDbData.class.isAssignableFrom(clazz);
+        }
+    }
+}
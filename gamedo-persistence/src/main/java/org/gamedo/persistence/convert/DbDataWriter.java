@@ -0,0 +1,104 @@
+package org.gamedo.persistence.convert;
+
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.conversions.Bson;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.codec.AbstractDbDataCodec;
+import org.gamedo.persistence.codec.DbDataCodecRegistry;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.listeners.ComponentDbDataBeforeSaveEventListener;
+import org.gamedo.persistence.listeners.EntityDbDataBeforeSaveEventListener;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+
+/**
+ * 将{@link DbData}一次性转换为最终要存储的{@link Document}：先使用{@link MongoConverter}进行转换，再直接应用
+ * {@link EntityDbDataBeforeSaveEventListener}或{@link ComponentDbDataBeforeSaveEventListener}的打散逻辑，转换的结果可以直接写入
+ * mongoDB，而无需再次经过{@link MongoConverter}。如果设置了{@link DbDataCodecRegistry}，且数据的类型存在编译期生成的编解码器，
+ * {@link DbDataWriter#encode(DbData)}会直接使用该编解码器将数据编码为{@link RawBsonDocument}
+ */
+public class DbDataWriter {
+
+    private final MongoConverter converter;
+    private final EntityDbDataBeforeSaveEventListener entityDbDataBeforeSaveEventListener;
+    private final ComponentDbDataBeforeSaveEventListener componentDbDataBeforeSaveEventListener;
+    private final DbDataCodecRegistry codecRegistry;
+    private final PersistenceSettings settings;
+
+    public DbDataWriter(MongoConverter converter) {
+        this(converter, null);
+    }
+
+    /**
+     * @param converter     转换器
+     * @param codecRegistry 编译期生成的编解码器的注册表，为null时总是使用converter
+     */
+    public DbDataWriter(MongoConverter converter, DbDataCodecRegistry codecRegistry) {
+        this(converter, codecRegistry, new DbDataTypeRegistry(converter));
+    }
+
+    /**
+     * @param converter     转换器
+     * @param codecRegistry 编译期生成的编解码器的注册表，为null时总是使用converter
+     * @param typeRegistry  类型注册表，存储过的类型会被注册到其中，应当与加载时使用的注册表是同一个实例
+     */
+    public DbDataWriter(MongoConverter converter, DbDataCodecRegistry codecRegistry, DbDataTypeRegistry typeRegistry) {
+        this(converter, codecRegistry, typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param converter     转换器
+     * @param codecRegistry 编译期生成的编解码器的注册表，为null时总是使用converter
+     * @param typeRegistry  类型注册表，存储过的类型会被注册到其中，应当与加载时使用的注册表是同一个实例
+     * @param settings      所属模板的持久化设置
+     */
+    public DbDataWriter(MongoConverter converter,
+                        DbDataCodecRegistry codecRegistry,
+                        DbDataTypeRegistry typeRegistry,
+                        PersistenceSettings settings) {
+        this.converter = converter;
+        this.codecRegistry = codecRegistry;
+        this.settings = settings;
+        entityDbDataBeforeSaveEventListener = new EntityDbDataBeforeSaveEventListener(converter, typeRegistry, settings);
+        componentDbDataBeforeSaveEventListener = new ComponentDbDataBeforeSaveEventListener(typeRegistry, settings);
+    }
+
+    /**
+     * 将{@link DbData}转换为最终要存储的{@link Document}
+     *
+     * @param data 要转换的数据
+     * @return 转换后的文档，其布局和通过{@link org.springframework.data.mongodb.core.MongoTemplate#save(Object)}存储时一致
+     */
+    public Document write(final DbData<?> data) {
+        final Document document = new Document();
+        converter.write(data, document);
+
+        if (data instanceof EntityDbData) {
+            entityDbDataBeforeSaveEventListener.flatten((EntityDbData<?>) data, document);
+        } else if (data instanceof ComponentDbData) {
+            componentDbDataBeforeSaveEventListener.nest((ComponentDbData<?>) data, document);
+        }
+
+        return document;
+    }
+
+    /**
+     * 将{@link DbData}转换为最终要存储的文档：如果数据的类型存在编译期生成的编解码器，返回编码后的{@link RawBsonDocument}，否则返回
+     * {@link DbDataWriter#write(DbData)}的结果。包含非内联存储的组件（{@link ComponentStorages}）的数据总是使用后者
+     *
+     * @param data 要转换的数据
+     * @return 转换后的文档
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    public Bson encode(final DbData<?> data) {
+        final AbstractDbDataCodec codec = codecRegistry != null ? codecRegistry.getCodec(data.getClass()) : null;
+        if (codec != null && ComponentStorages.isAllInline(data)) {
+            return new RawBsonDocument(data, codec);
+        }
+
+        return write(data);
+    }
+}
@@ -0,0 +1,543 @@
+package org.gamedo.persistence.db;
+
+import lombok.experimental.Delegate;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.gamedo.persistence.db.track.ITrackable;
+import org.gamedo.persistence.logging.Markers;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+import org.springframework.data.util.ClassTypeInformation;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 低分配的增量更新器，与{@link Updater}相比：
+ * <ul>
+ * <li>{@link CompactUpdater#update(String, Object)}只记录每个字段最新的原始值（后者直接覆盖前者），不做任何字符串拼接和类型转换，适合两次
+ * 存盘之间会被频繁更新的字段（例如金币、经验），累加类操作（{@link CompactUpdater#increment(String, Number)}等）同样只在本地合并原始值
+ * <li>字段名存储在一个按插入顺序排列的紧凑数组中，并使用开放寻址的索引表进行查找，不会为每个字段创建Map.Entry
+ * <li>带前缀的完整字段名（例如：“ComponentDbBag.itemList”）在所有相同前缀的更新器之间共享缓存，只在第一次使用时拼接一次
+ * <li>原始值到mongoDB类型的转换被推迟到{@link CompactUpdater#materialize()}（{@link Updaters#detach(DbData)}时自动调用），
+ * 每个字段只转换一次
+ * </ul>
+ * <b>注意：</b>由于转换被推迟，如果传入的值是一个可变对象，那么最终持久化的是{@link Updaters#detach(DbData)}时该对象的状态，而不是调用
+ * {@link CompactUpdater#update(String, Object)}时的状态。本类与{@link Updater}一样，不是线程安全的
+ */
+@Log4j2
+public class CompactUpdater implements IUpdater {
+
+    private static final ConcurrentHashMap<String, KeyCache> PREFIX_2_KEY_CACHE = new ConcurrentHashMap<>();
+    private static final Object UNCONVERTED = new Object();
+    private static final int INITIAL_CAPACITY = 4;
+    private static final byte OP_SET = 0;
+    private static final byte OP_INC = 1;
+    private static final byte OP_MIN = 2;
+    private static final byte OP_MAX = 3;
+    private static final byte OP_PUSH = 4;
+    private static final byte OP_ADD_TO_SET = 5;
+    private static final byte OP_UNSET = 6;
+    private static final String[] OP_NAMES = {Updater.SET, Updater.INC, Updater.MIN, Updater.MAX, Updater.PUSH,
+            Updater.ADD_TO_SET, Updater.UNSET};
+    /**
+     * 每个前缀最多缓存的完整字段名数量，避免动态生成的字段名（例如Map的key）导致缓存无限增长
+     */
+    private static final int MAX_CACHED_KEY_COUNT = 1024;
+
+    private final KeyCache keyCache;
+    /**
+     * 按插入顺序排列的字段名（不包含前缀）
+     */
+    private String[] keys = new String[INITIAL_CAPACITY];
+    /**
+     * 字段对应的操作
+     */
+    private byte[] ops = new byte[INITIAL_CAPACITY];
+    /**
+     * 字段对应的最新原始值，对于$push，是尚未存盘的所有元素
+     */
+    private Object[] values = new Object[INITIAL_CAPACITY];
+    /**
+     * 字段对应的已转换的值，{@link CompactUpdater#UNCONVERTED}代表尚未转换
+     */
+    private Object[] mongoValues = new Object[INITIAL_CAPACITY];
+    /**
+     * 字段最后一次被修改时的序号，详见{@link IUpdater#getMutationSequence(String)}
+     */
+    private long[] sequences = new long[INITIAL_CAPACITY];
+    /**
+     * 开放寻址的索引表，存储的是字段在{@link CompactUpdater#keys}中的下标+1，0代表空槽位，长度总是2的幂，且至少为字段数量的2倍
+     */
+    private int[] table = new int[INITIAL_CAPACITY * 2];
+    private int size;
+    /**
+     * 转换后的更新，任何字段被更新后都会被置空，并在下一次{@link CompactUpdater#materialize()}时重新生成
+     */
+    private Update update;
+    /**
+     * 已注册的、发生了变化的可追踪容器
+     */
+    private List<ITrackable> trackableList;
+    /**
+     * 正在写入的可追踪容器的修改序号，详见{@link ITrackable#getMutationSequence()}
+     */
+    private long trackableSequence;
+    /**
+     * 被标脏时的回调
+     */
+    private Runnable dirtyListener;
+    /**
+     * 是否已经执行过{@link CompactUpdater#dirtyListener}，注册可追踪容器时就会执行，即使容器的变化最终相互抵消
+     */
+    private boolean dirtyNotified;
+    /**
+     * 无法与本更新器中尚未存盘的操作合并的后续操作，详见{@link IUpdater#detachDeferred()}，第一次出现冲突时才创建
+     */
+    private IUpdater deferred;
+    /**
+     * 已经被推迟的字段名（不包含前缀），这些字段上之后的所有操作都会被记录到{@link CompactUpdater#deferred}中，以保持操作的顺序
+     */
+    private Set<String> deferredKeySet;
+
+    public CompactUpdater(final String prefix) {
+        keyCache = PREFIX_2_KEY_CACHE.computeIfAbsent(prefix, KeyCache::new);
+    }
+
+    @Override
+    public String getPrefix() {
+        return keyCache.prefix;
+    }
+
+    @Override
+    public void update(final String key, final Object value) {
+        if (isDeferred(key)) {
+            deferred.update(key, value);
+            return;
+        }
+
+        final int index = indexOf(key);
+        if (index < 0) {
+            add(key, OP_SET, value);
+            return;
+        }
+
+        ops[index] = OP_SET;
+        changed(index, value);
+    }
+
+    @Override
+    public void increment(final String key, final Number delta) {
+        if (isDeferred(key)) {
+            deferred.increment(key, delta);
+            return;
+        }
+
+        final int index = indexOf(key);
+        if (index < 0) {
+            add(key, OP_INC, delta);
+            return;
+        }
+
+        if (ops[index] == OP_UNSET) {
+            //被删除的字段再累加，结果就是累加值本身
+            ops[index] = OP_SET;
+            changed(index, delta);
+            return;
+        }
+
+        if ((ops[index] != OP_INC && ops[index] != OP_SET) || !(values[index] instanceof Number)) {
+            defer(key, ops[index], OP_INC).increment(key, delta);
+            return;
+        }
+
+        changed(index, Updaters.add((Number) values[index], delta));
+    }
+
+    @Override
+    public void min(final String key, final Object value) {
+        compareAndUpdate(OP_MIN, key, value);
+    }
+
+    @Override
+    public void max(final String key, final Object value) {
+        compareAndUpdate(OP_MAX, key, value);
+    }
+
+    @Override
+    public void push(final String key, final Object value) {
+        appendToArray(OP_PUSH, key, value);
+    }
+
+    @Override
+    public void addToSet(final String key, final Object value) {
+        appendToArray(OP_ADD_TO_SET, key, value);
+    }
+
+    @Override
+    public void unset(final String key) {
+        if (isDeferred(key)) {
+            deferred.unset(key);
+            return;
+        }
+
+        final int index = indexOf(key);
+        if (index < 0) {
+            add(key, OP_UNSET, null);
+            return;
+        }
+
+        ops[index] = OP_UNSET;
+        changed(index, null);
+    }
+
+    @Override
+    public void track(final ITrackable trackable) {
+        if (trackableList == null) {
+            trackableList = new ArrayList<>(1);
+        }
+        trackableList.add(trackable);
+        notifyDirty();
+    }
+
+    @Override
+    public boolean isDirty() {
+        return size > 0 || Updaters.isAnyChanged(trackableList);
+    }
+
+    @Override
+    public boolean setDirtyListener(final Runnable listener) {
+        dirtyListener = listener;
+        if (listener != null && isDirty()) {
+            listener.run();
+        }
+        return true;
+    }
+
+    /**
+     * 将已注册的可追踪容器的变化写入本更新器，然后将所有尚未转换的原始值转换为mongoDB类型，并生成最终的{@link Update}，已经转换过的
+     * 字段不会被重复转换
+     */
+    @Override
+    public void materialize() {
+        if (trackableList != null) {
+            final List<ITrackable> list = trackableList;
+            trackableList = null;
+            for (ITrackable trackable : list) {
+                trackableSequence = trackable.getMutationSequence();
+                trackable.flushTo(this);
+            }
+            trackableSequence = 0;
+        }
+
+        update();
+    }
+
+    @Override
+    public IUpdater detachDeferred() {
+        final IUpdater updater = deferred;
+        deferred = null;
+        deferredKeySet = null;
+        return updater;
+    }
+
+    @Override
+    public long getMutationSequence(final String path) {
+        final String prefix = keyCache.prefix;
+        if (!path.startsWith(prefix)) {
+            return 0;
+        }
+
+        final int index = indexOf(prefix.isEmpty() ? path : path.substring(prefix.length()));
+        return index < 0 ? 0 : sequences[index];
+    }
+
+    /**
+     * @return 已被更新的字段数量
+     */
+    public int size() {
+        return size;
+    }
+
+    @Delegate(types = UpdateDefinition.class)
+    private Update update() {
+        if (update != null) {
+            return update;
+        }
+
+        final MongoConverter mongoConverter = Updater.getMongoConverter();
+        final Update newUpdate = new Update();
+        for (int i = 0; i < size; i++) {
+            if (mongoValues[i] == UNCONVERTED) {
+                mongoValues[i] = convert(mongoConverter, ops[i], values[i]);
+            }
+
+            final String prefixedKey = keyCache.get(keys[i]);
+            switch (ops[i]) {
+                case OP_INC:
+                    newUpdate.inc(prefixedKey, (Number) mongoValues[i]);
+                    break;
+                case OP_MIN:
+                    newUpdate.min(prefixedKey, mongoValues[i]);
+                    break;
+                case OP_MAX:
+                    newUpdate.max(prefixedKey, mongoValues[i]);
+                    break;
+                case OP_PUSH:
+                    newUpdate.push(prefixedKey, mongoValues[i]);
+                    break;
+                case OP_ADD_TO_SET:
+                    newUpdate.addToSet(prefixedKey, mongoValues[i]);
+                    break;
+                case OP_UNSET:
+                    newUpdate.unset(prefixedKey);
+                    break;
+                default:
+                    newUpdate.set(prefixedKey, mongoValues[i]);
+            }
+        }
+
+        update = newUpdate;
+        return update;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void appendToArray(final byte op, final String key, final Object value) {
+        if (isDeferred(key)) {
+            appendToArray(deferred, op, key, value);
+            return;
+        }
+
+        final int index = indexOf(key);
+        if (index < 0) {
+            final List<Object> list = new ArrayList<>(1);
+            list.add(value);
+            add(key, op, list);
+            return;
+        }
+
+        final List<Object> list;
+        if (ops[index] == OP_UNSET) {
+            ops[index] = OP_SET;
+            list = new ArrayList<>(1);
+        } else if (ops[index] == op) {
+            list = (List<Object>) values[index];
+        } else if (ops[index] == OP_SET && values[index] instanceof Collection) {
+            list = new ArrayList<>((Collection<?>) values[index]);
+            if (op == OP_ADD_TO_SET && list.contains(value)) {
+                changed(index, list);
+                return;
+            }
+        } else {
+            appendToArray(defer(key, ops[index], op), op, key, value);
+            return;
+        }
+
+        list.add(value);
+        changed(index, list);
+    }
+
+    private void compareAndUpdate(final byte op, final String key, final Object value) {
+        if (isDeferred(key)) {
+            compareAndUpdate(deferred, op, key, value);
+            return;
+        }
+
+        final int index = indexOf(key);
+        if (index < 0) {
+            add(key, op, value);
+            return;
+        }
+
+        if (ops[index] == OP_UNSET) {
+            ops[index] = OP_SET;
+            changed(index, value);
+            return;
+        }
+
+        if ((ops[index] != op && ops[index] != OP_SET) || !Updaters.isComparable(value, values[index])) {
+            compareAndUpdate(defer(key, ops[index], op), op, key, value);
+            return;
+        }
+
+        final int compare = Updaters.compare(value, values[index]);
+        if (op == OP_MIN ? compare < 0 : compare > 0) {
+            changed(index, value);
+        }
+    }
+
+    private static void appendToArray(final IUpdater updater, final byte op, final String key, final Object value) {
+        if (op == OP_PUSH) {
+            updater.push(key, value);
+        } else {
+            updater.addToSet(key, value);
+        }
+    }
+
+    private static void compareAndUpdate(final IUpdater updater, final byte op, final String key, final Object value) {
+        if (op == OP_MIN) {
+            updater.min(key, value);
+        } else {
+            updater.max(key, value);
+        }
+    }
+
+    private boolean isDeferred(final String key) {
+        return deferredKeySet != null && deferredKeySet.contains(key);
+    }
+
+    /**
+     * 将某个字段标记为被推迟，该字段上之后的所有操作（包括本次无法合并的操作）都会被记录到{@link CompactUpdater#deferred}中
+     *
+     * @return 用于记录被推迟的操作的更新器
+     */
+    private IUpdater defer(final String key, final byte opExist, final byte op) {
+        if (deferred == null) {
+            deferred = new CompactUpdater(keyCache.prefix);
+            deferredKeySet = new HashSet<>();
+        }
+        deferredKeySet.add(key);
+        log.debug(Markers.MongoDB, "the path has a pending {} that can not be merged with {}, defer to the next write, " +
+                "path:{}", OP_NAMES[opExist], OP_NAMES[op], keyCache.get(key));
+        return deferred;
+    }
+
+    private static Object convert(final MongoConverter mongoConverter, final byte op, final Object value) {
+        switch (op) {
+            case OP_INC:
+                return value;
+            case OP_UNSET:
+                return null;
+            case OP_PUSH:
+            case OP_ADD_TO_SET:
+                final List<?> list = (List<?>) value;
+                final List<Object> mongoList = new ArrayList<>(list.size());
+                for (Object element : list) {
+                    mongoList.add(mongoConverter.convertToMongoType(element, ClassTypeInformation.OBJECT));
+                }
+                return new Document(Updater.EACH, mongoList);
+            default:
+                return mongoConverter.convertToMongoType(value, ClassTypeInformation.OBJECT);
+        }
+    }
+
+    /**
+     * @return 字段在{@link CompactUpdater#keys}中的下标，不存在时返回-1
+     */
+    private int indexOf(final String key) {
+        final int mask = table.length - 1;
+        for (int slot = key.hashCode() & mask, index = table[slot]; index != 0; slot = (slot + 1) & mask, index = table[slot]) {
+            final String exist = keys[index - 1];
+            if (exist == key || exist.equals(key)) {
+                return index - 1;
+            }
+        }
+
+        return -1;
+    }
+
+    private void add(final String key, final byte op, final Object value) {
+        if (size == keys.length) {
+            grow();
+        }
+
+        final int mask = table.length - 1;
+        int slot = key.hashCode() & mask;
+        while (table[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+
+        keys[size] = key;
+        ops[size] = op;
+        values[size] = value;
+        mongoValues[size] = UNCONVERTED;
+        sequences[size] = nextSequence();
+        table[slot] = ++size;
+        update = null;
+        notifyDirty();
+    }
+
+    private void notifyDirty() {
+        if (dirtyNotified) {
+            return;
+        }
+
+        dirtyNotified = true;
+        if (dirtyListener != null) {
+            dirtyListener.run();
+        }
+    }
+
+    private void changed(final int index, final Object value) {
+        values[index] = value;
+        mongoValues[index] = UNCONVERTED;
+        sequences[index] = nextSequence();
+        update = null;
+    }
+
+    private long nextSequence() {
+        return trackableSequence != 0 ? trackableSequence : Updaters.nextMutationSequence();
+    }
+
+    private void grow() {
+        final int capacity = keys.length << 1;
+        keys = Arrays.copyOf(keys, capacity);
+        ops = Arrays.copyOf(ops, capacity);
+        values = Arrays.copyOf(values, capacity);
+        mongoValues = Arrays.copyOf(mongoValues, capacity);
+        sequences = Arrays.copyOf(sequences, capacity);
+        table = new int[capacity << 1];
+
+        final int mask = table.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = keys[i].hashCode() & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = i + 1;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CompactUpdater{" +
+                "prefix='" + keyCache.prefix + '\'' +
+                ", keys=" + Arrays.toString(Arrays.copyOf(keys, size)) +
+                '}';
+    }
+
+    /**
+     * 同一个前缀下，字段名到带前缀的完整字段名的缓存
+     */
+    private static final class KeyCache {
+        private final String prefix;
+        private final ConcurrentHashMap<String, String> key2PrefixedKey = new ConcurrentHashMap<>();
+
+        private KeyCache(String prefix) {
+            this.prefix = prefix;
+        }
+
+        String get(final String key) {
+            if (prefix.isEmpty()) {
+                return key;
+            }
+
+            final String prefixedKey = key2PrefixedKey.get(key);
+            if (prefixedKey != null) {
+                return prefixedKey;
+            }
+
+            if (key2PrefixedKey.size() >= MAX_CACHED_KEY_COUNT) {
+                return prefix + key;
+            }
+
+            return key2PrefixedKey.computeIfAbsent(key, k -> prefix + k);
+        }
+    }
+}
@@ -1,6 +1,10 @@
 package org.gamedo.persistence.db;
 
+import lombok.AccessLevel;
 import lombok.Data;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
 import org.springframework.data.annotation.Transient;
 
 /**
@@ -19,10 +23,33 @@ public abstract class ComponentDbData<I> implements DbData<I> {
      */
     @Transient
     private transient volatile IUpdater updater;
+    /**
+     * 本地已知的版本号，详见{@link DbData#getVersion()}
+     */
+    @Transient
+    private transient volatile long version;
+    /**
+     * 所属的{@link EntityDbData}，更新器被标脏或者被替换时，通知它维护已被标脏的组件的索引
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient volatile EntityDbData<I> owner;
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final transient Runnable dirtyListener = () -> {
+        final EntityDbData<I> entityDbData = owner;
+        if (entityDbData != null) {
+            entityDbData.markComponentDirty(this);
+        }
+    };
 
     protected ComponentDbData() {
         //We use the class's simple name as the field name.
-        updater = new Updater(getClass().getSimpleName() + ".");
+        setUpdater(IUpdaterFactory.DEFAULT.create(getClass().getSimpleName() + "."));
     }
 
     @Override
@@ -32,7 +59,24 @@ public abstract class ComponentDbData<I> implements DbData<I> {
 
     @Override
     public void setUpdater(IUpdater update) {
-        updater = update;
+        final IUpdater updaterOld = updater;
+        if (updaterOld != null) {
+            updaterOld.setDirtyListener(null);
+        }
+
+        final EntityDbData<I> entityDbData = owner;
+        if (entityDbData != null) {
+            entityDbData.clearComponentDirty(this);
+        }
+        updater = Updaters.observe(update, dirtyListener);
+    }
+
+    EntityDbData<I> getOwner() {
+        return owner;
+    }
+
+    void setOwner(final EntityDbData<I> owner) {
+        this.owner = owner;
     }
 
     @Override
@@ -0,0 +1,52 @@
+package org.gamedo.persistence.db;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 为每一个{@link ComponentDbData}的子类分配一个全局唯一、从0开始连续递增的槽位，{@link EntityDbData}以槽位为下标，使用数组存储组件以及
+ * 已被标脏的组件的位图，从而使得按照类型访问组件时只需要一次数组访问，而不需要计算{@link Class#getSimpleName()}并查找HashMap。槽位在该
+ * 类型第一次被使用时分配，并且在进程的生命周期内保持不变
+ */
+public final class ComponentSlots {
+
+    private static final AtomicInteger SLOT_COUNT = new AtomicInteger();
+    private static final ClassValue<Integer> SLOT = new ClassValue<Integer>() {
+        @Override
+        protected Integer computeValue(Class<?> type) {
+            return SLOT_COUNT.getAndIncrement();
+        }
+    };
+
+    private static final ClassValue<String> KEY = new ClassValue<String>() {
+        @Override
+        protected String computeValue(Class<?> type) {
+            return type.getSimpleName();
+        }
+    };
+
+    private ComponentSlots() {
+    }
+
+    /**
+     * @param clazz 组件的类型
+     * @return 该类型的槽位
+     */
+    public static int slot(final Class<?> clazz) {
+        return SLOT.get(clazz);
+    }
+
+    /**
+     * @param clazz 组件的类型
+     * @return 该类型在文档中的字段名，也即{@link Class#getSimpleName()}，结果会被缓存
+     */
+    public static String key(final Class<?> clazz) {
+        return KEY.get(clazz);
+    }
+
+    /**
+     * @return 已经分配的槽位数量
+     */
+    public static int count() {
+        return SLOT_COUNT.get();
+    }
+}
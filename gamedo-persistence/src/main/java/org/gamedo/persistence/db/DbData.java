@@ -31,6 +31,23 @@ public interface DbData<I> {
      */
     void setUpdater(IUpdater updater);
 
+    /**
+     * 获取本地已知的版本号，只有注解了{@link org.gamedo.persistence.annotations.Versioned}的数据才会维护版本号，详见
+     * {@link org.gamedo.persistence.version.Versions}
+     * @return 本地已知的版本号，0意味着未知，默认实现不维护版本号，总是返回0
+     */
+    default long getVersion() {
+        return 0;
+    }
+
+    /**
+     * 设置本地已知的版本号，由加载和写入流程维护，一般不需要手动调用，默认实现不维护版本号，启用了版本控制的数据需要实现本方法以及
+     * {@link DbData#getVersion()}
+     * @param version 新的版本号
+     */
+    default void setVersion(long version) {
+    }
+
     /**
      * 更新一个字段：key的值为value，实现类需要将value序列化为mongoDB原生的存储数据
      * @param key 要更新的字段名.
@@ -40,6 +57,42 @@ public interface DbData<I> {
         getUpdater().update(key, value);
     }
 
+    /**
+     * 对一个字段进行累加，详见{@link IUpdater#increment(String, Number)}
+     * @param key 要累加的字段名
+     * @param delta 累加值
+     */
+    default void increment(String key, Number delta) {
+        getUpdater().increment(key, delta);
+    }
+
+    /**
+     * 详见{@link IUpdater#min(String, Object)}
+     * @param key 字段名
+     * @param value 要比较的值
+     */
+    default void min(String key, Object value) {
+        getUpdater().min(key, value);
+    }
+
+    /**
+     * 详见{@link IUpdater#max(String, Object)}
+     * @param key 字段名
+     * @param value 要比较的值
+     */
+    default void max(String key, Object value) {
+        getUpdater().max(key, value);
+    }
+
+    /**
+     * 详见{@link IUpdater#push(String, Object)}
+     * @param key 数组字段名
+     * @param value 要添加的元素
+     */
+    default void push(String key, Object value) {
+        getUpdater().push(key, value);
+    }
+
     /**
      * 当前{@link DbData}是否已经更新过，返回true意味着更新方法：{@link DbData#update(String, Object)}被调用过，且没有持久化到db中；
      * false意味着当前更新器的更新方法没有被调用
@@ -0,0 +1,65 @@
+package org.gamedo.persistence.db;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+/**
+ * 已被标脏的实体的注册表：设置了注册表的实体（{@link EntityDbData#setDirtyEntities(DirtyEntities)}）本身或者它的任意一个组件被标脏时
+ * （{@link IUpdater#setDirtyListener(Runnable)}），实体会被注册到这里，每个实体最多注册一次，直到它被{@link DirtyEntities#drain(Consumer)}
+ * 取出为止。定时存盘时只需要遍历注册表，而不需要遍历所有的在线实体，例如：
+ * <pre>
+ * final DirtyEntities dirtyEntities = new DirtyEntities();
+ * gamedoMongoTemplate.getSettings().setDirtyEntities(dirtyEntities);
+ * ...
+ * dirtyEntities.drain(gamedoMongoTemplate::updateEntityDirtyAsync);
+ * </pre>
+ * 模板加载或者存储的实体会自动设置该模板的注册表（{@link org.gamedo.persistence.PersistenceSettings#getDirtyEntities()}）。被标脏的
+ * 实体在被取出之前会一直被注册表引用，因此需要定期调用{@link DirtyEntities#drain(Consumer)}
+ */
+public class DirtyEntities {
+
+    private final Queue<EntityDbData<?>> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger size = new AtomicInteger();
+
+    /**
+     * @return 当前注册的实体数量
+     */
+    public int size() {
+        return size.get();
+    }
+
+    void register(final EntityDbData<?> entityDbData) {
+        if (entityDbData.markDirtyRegistered()) {
+            size.incrementAndGet();
+            queue.offer(entityDbData);
+        }
+    }
+
+    /**
+     * 取出调用时已经注册的所有实体，对其中依然被标脏的实体（{@link Updaters#isAnyDirty(EntityDbData)}）执行consumer，实体在执行consumer
+     * 之前被注销，因此执行期间或者之后再次被标脏的实体会被重新注册。和{@link IUpdater}一样，本方法应该在修改这些实体的线程上调用
+     *
+     * @param consumer 对每一个已被标脏的实体执行的操作，一般为摘下更新器并存盘
+     * @return 执行了consumer的实体数量
+     */
+    public int drain(final Consumer<? super EntityDbData<?>> consumer) {
+        int count = 0;
+        for (int i = size.get(); i > 0; i--) {
+            final EntityDbData<?> entityDbData = queue.poll();
+            if (entityDbData == null) {
+                break;
+            }
+
+            size.decrementAndGet();
+            entityDbData.clearDirtyRegistered();
+            if (Updaters.isAnyDirty(entityDbData)) {
+                consumer.accept(entityDbData);
+                count++;
+            }
+        }
+
+        return count;
+    }
+}
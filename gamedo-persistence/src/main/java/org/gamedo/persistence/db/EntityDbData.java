@@ -4,17 +4,29 @@ import lombok.AccessLevel;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+import org.bson.conversions.Bson;
 import org.gamedo.persistence.GamedoMongoTemplate;
 import org.gamedo.persistence.annotations.ComponentMap;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StorageConfig;
 import org.springframework.data.annotation.Id;
 import org.springframework.data.annotation.PersistenceConstructor;
 import org.springframework.data.annotation.Transient;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+import java.util.function.Function;
 
 /**
  * {@link EntityDbData}代表一个实体的存储数据（以后统称该类为实体存储类），一般情况下该实体不包含实质性的存储数据，要存储的数据都以组件的形式
@@ -42,13 +54,17 @@ import java.util.stream.Collectors;
 @Data
 @EqualsAndHashCode(of = {"id", "componentDbDataMap"})
 public class EntityDbData<I> implements DbData<I> {
+    private static final long[] EMPTY_BITS = new long[0];
+    private static final ComponentDbData<?>[] EMPTY_COMPONENTS = new ComponentDbData<?>[0];
+
     /**
      * 映射到mongoDB的_id字段
      */
     @Id
     public volatile I id;
     /**
-     * 组件所属的{@link Class}的简化名称（{@link Class#getSimpleName()}）到组件的映射
+     * 组件所属的{@link Class}的简化名称（{@link Class#getSimpleName()}）到组件的映射，只用于和BSON之间的映射（打散和重新组合），按照类型
+     * 访问组件时使用{@link EntityDbData#slotComponents}
      */
     @Getter(AccessLevel.NONE)
     @ComponentMap
@@ -58,6 +74,91 @@ public class EntityDbData<I> implements DbData<I> {
      */
     @Transient
     private transient volatile IUpdater updater;
+    /**
+     * 是否只加载了部分组件（详见{@link GamedoMongoTemplate#findEntityDbDataByIdAsync(Object, Class, Collection)}），对于只加载了部分
+     * 组件的实体，异步存储时只会覆盖已加载的组件，而不会覆盖整个文档
+     */
+    @Transient
+    private transient volatile boolean partial;
+    /**
+     * 本地已知的版本号，详见{@link DbData#getVersion()}
+     */
+    @Transient
+    private transient volatile long version;
+    /**
+     * 懒加载模式下尚未实例化的组件：组件类名到加载时原始的内嵌文档的映射，详见{@link EntityDbData#setRawComponents(Map, Function)}
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient Map<String, Bson> rawComponentMap;
+    /**
+     * 将原始的内嵌文档实例化为组件
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient Function<Bson, ComponentDbData<?>> rawComponentDecoder;
+    /**
+     * 加载时遇到的、尚未从溢出collection中加载的组件：组件类名到组件类型的映射，完整存储时这些组件的占位文档会被原样保留，详见
+     * {@link ComponentStorages}
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient Map<String, Class<?>> overflowComponentMap;
+    /**
+     * 已被标脏的组件的位图，下标为组件的槽位（{@link ComponentSlots#slot(Class)}），由组件的更新器在被标脏时置位，在被替换时清除
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient long[] dirtyComponentBits = EMPTY_BITS;
+    /**
+     * 以槽位（{@link ComponentSlots#slot(Class)}）为下标存储的已实例化的组件，和{@link EntityDbData#componentDbDataMap}保持同步，按照
+     * 类型访问组件时只需要一次数组访问
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient ComponentDbData<?>[] slotComponents = EMPTY_COMPONENTS;
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient int dirtyComponentCount;
+    /**
+     * 已被标脏的实体的注册表，为null时不注册，详见{@link EntityDbData#setDirtyEntities(DirtyEntities)}
+     */
+    @Transient
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private transient volatile DirtyEntities dirtyEntities;
+    /**
+     * 整体更新压缩存储的组件时（{@link EntityDbData#updateComponentDbData(Class)}）使用的存储配置，由加载或者存储本实体的模板设置，详见
+     * {@link org.gamedo.persistence.PersistenceSettings#getStorageConfig()}
+     */
+    @Transient
+    @ToString.Exclude
+    private transient volatile StorageConfig storageConfig = StorageConfig.DEFAULT;
+    /**
+     * 是否已经注册到{@link EntityDbData#dirtyEntities}
+     */
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final transient AtomicBoolean dirtyRegistered = new AtomicBoolean();
+    @Transient
+    @Getter(AccessLevel.NONE)
+    @Setter(AccessLevel.NONE)
+    @ToString.Exclude
+    private final transient Runnable dirtyListener = this::registerDirty;
 
     public EntityDbData() {
        this(null, null);
@@ -70,10 +171,8 @@ public class EntityDbData<I> implements DbData<I> {
     @PersistenceConstructor
     public EntityDbData(final I id, final Map<String, ComponentDbData<I>> componentDbDataMap) {
         this.id = id;
-        this.componentDbDataMap = new HashMap<>(componentDbDataMap == null ? Collections.emptyMap() : componentDbDataMap);
-        this.componentDbDataMap.forEach((s, dbData) -> dbData.setId(this.id));
-
-        updater = new Updater("");
+        setComponentDbDataMap(componentDbDataMap);
+        setUpdater(IUpdaterFactory.DEFAULT.create(""));
     }
 
     /**
@@ -94,7 +193,22 @@ public class EntityDbData<I> implements DbData<I> {
 
         dbData.setId(id);
 
-        return (T) componentDbDataMap.put(dbData.getClass().getSimpleName(), dbData);
+        final String key = ComponentSlots.key(dbData.getClass());
+        if (rawComponentMap != null && rawComponentMap.remove(key) != null && rawComponentMap.isEmpty()) {
+            rawComponentMap = null;
+            rawComponentDecoder = null;
+        }
+        if (overflowComponentMap != null && overflowComponentMap.remove(key) != null && overflowComponentMap.isEmpty()) {
+            overflowComponentMap = null;
+        }
+
+        final ComponentDbData<I> componentDbDataOld = componentDbDataMap.put(key, dbData);
+        if (componentDbDataOld != null) {
+            detach(componentDbDataOld);
+        }
+        attach(dbData);
+
+        return (T) componentDbDataOld;
     }
 
     /**
@@ -102,29 +216,265 @@ public class EntityDbData<I> implements DbData<I> {
      * @param dbData 要获取的组件的{@link Class}
      * @param <T> 组件类型
      * @return 如果包含指定类型的组件，则返回该组件，否则返回null
+     * @throws IllegalStateException 如果懒加载的组件实例化失败，此时原始的内嵌文档被保留，完整存储时原样写回
      */
     @SuppressWarnings("unchecked")
     public <T extends ComponentDbData<I>> T getComponentDbData(final Class<T> dbData) {
-        try {
-            return (T) componentDbDataMap.get(dbData.getSimpleName());
-        } catch (Exception e) {
+        final ComponentDbData<?> componentDbData = getSlotComponent(ComponentSlots.slot(dbData));
+        if (componentDbData != null || rawComponentMap == null) {
+            return (T) componentDbData;
+        }
+
+        return (T) materialize(ComponentSlots.key(dbData));
+    }
+
+    /**
+     * 获取一个已实例化的、类型为T的组件，不会实例化懒加载的组件
+     * @param dbData 要获取的组件的{@link Class}
+     * @param <T> 组件类型
+     * @return 如果包含指定类型的、已实例化的组件，则返回该组件，否则返回null
+     */
+    @SuppressWarnings("unchecked")
+    public <T extends ComponentDbData<I>> T getLoadedComponentDbData(final Class<T> dbData) {
+        return (T) getSlotComponent(ComponentSlots.slot(dbData));
+    }
+
+    private ComponentDbData<?> getSlotComponent(final int slot) {
+        final ComponentDbData<?>[] components = slotComponents;
+        return slot < components.length ? components[slot] : null;
+    }
+
+    /**
+     * 替换所有的组件，一般只由映射框架调用
+     * @param componentDbDataMap 组件类名到组件的映射
+     */
+    public void setComponentDbDataMap(final Map<String, ComponentDbData<I>> componentDbDataMap) {
+        if (this.componentDbDataMap != null) {
+            this.componentDbDataMap.values().forEach(this::detach);
+        }
+
+        this.componentDbDataMap = new HashMap<>(componentDbDataMap == null ? Collections.emptyMap() : componentDbDataMap);
+        this.componentDbDataMap.values().forEach(dbData -> {
+            dbData.setId(id);
+            attach(dbData);
+        });
+    }
+
+    /**
+     * 设置懒加载的组件：这些组件在第一次通过{@link EntityDbData#getComponentDbData(Class)}访问时才被实例化，从未被访问过的组件在完整存
+     * 储时直接写回原始的内嵌文档，而不需要再次经过转换
+     *
+     * @param rawComponentMap 组件类名到原始的内嵌文档的映射
+     * @param decoder         将原始的内嵌文档实例化为组件
+     */
+    public void setRawComponents(final Map<String, ? extends Bson> rawComponentMap,
+                                 final Function<Bson, ComponentDbData<?>> decoder) {
+        this.rawComponentMap = rawComponentMap.isEmpty() ? null : new LinkedHashMap<>(rawComponentMap);
+        rawComponentDecoder = this.rawComponentMap == null ? null : decoder;
+    }
+
+    /**
+     * @return 尚未实例化的组件的类名到原始的内嵌文档的只读映射
+     */
+    public Map<String, Bson> getRawComponentMap() {
+        return rawComponentMap == null ? Collections.emptyMap() : Collections.unmodifiableMap(rawComponentMap);
+    }
+
+    /**
+     * 记录一个尚未从溢出collection中加载的组件，一般只由加载流程调用，组件被添加（{@link EntityDbData#addComponentDbData(ComponentDbData)}）
+     * 后自动移除
+     *
+     * @param key   组件类名
+     * @param clazz 组件类型
+     */
+    public void addOverflowComponent(final String key, final Class<?> clazz) {
+        if (overflowComponentMap == null) {
+            overflowComponentMap = new LinkedHashMap<>();
+        }
+        overflowComponentMap.put(key, clazz);
+    }
+
+    /**
+     * @return 尚未从溢出collection中加载的组件的类名到组件类型的只读映射
+     */
+    public Map<String, Class<?>> getOverflowComponentMap() {
+        return overflowComponentMap == null ? Collections.emptyMap() : Collections.unmodifiableMap(overflowComponentMap);
+    }
+
+    /**
+     * 实例化一个懒加载的组件，实例化成功之后才移除原始的内嵌文档，失败时组件依然以原始的内嵌文档的形式存在，不会在完整存储时丢失
+     */
+    @SuppressWarnings("unchecked")
+    private ComponentDbData<I> materialize(final String key) {
+        final Bson raw = rawComponentMap.get(key);
+        if (raw == null) {
             return null;
         }
+
+        final ComponentDbData<I> componentDbData;
+        try {
+            componentDbData = (ComponentDbData<I>) rawComponentDecoder.apply(raw);
+        } catch (RuntimeException e) {
+            throw new IllegalStateException("decode lazy component failed, id:" + id + ", component:" + key, e);
+        }
+
+        rawComponentMap.remove(key);
+        if (rawComponentMap.isEmpty()) {
+            rawComponentMap = null;
+            rawComponentDecoder = null;
+        }
+
+        componentDbData.setId(id);
+        componentDbDataMap.put(key, componentDbData);
+        attach(componentDbData);
+        return componentDbData;
+    }
+
+    private void materializeAll() {
+        if (rawComponentMap != null) {
+            new ArrayList<>(rawComponentMap.keySet()).forEach(this::materialize);
+        }
     }
 
     /**
-     * 获取已被标脏的组件集合
+     * 获取已被标脏的组件集合，开销与被标脏的组件数量成正比，没有被标脏的组件时不会分配内存
      * @return 已被标脏的组件集合
      */
     public Set<ComponentDbData<I>> getDirtyComponentDbData() {
-        return componentDbDataMap.values()
-                .stream()
-                .filter(DbData::isDirty)
-                .collect(Collectors.toSet());
+        if (dirtyComponentCount == 0) {
+            return Collections.emptySet();
+        }
+
+        final Set<ComponentDbData<I>> dirtySet = new HashSet<>(dirtyComponentCount * 2);
+        forEachDirtyComponentDbData(dirtySet::add);
+        return dirtySet;
+    }
+
+    /**
+     * 遍历已被标脏的组件，不会分配内存，action中可以摘下组件的更新器（{@link Updaters#detach(DbData)}）
+     * @param action 对每一个已被标脏的组件执行的操作
+     */
+    @SuppressWarnings("unchecked")
+    public void forEachDirtyComponentDbData(final Consumer<? super ComponentDbData<I>> action) {
+        final long[] bits = dirtyComponentBits;
+        for (int word = 0, remaining = dirtyComponentCount; word < bits.length && remaining > 0; word++) {
+            long value = bits[word];
+            while (value != 0) {
+                final int slot = (word << 6) | Long.numberOfTrailingZeros(value);
+                value &= value - 1;
+                remaining--;
+                action.accept((ComponentDbData<I>) slotComponents[slot]);
+            }
+        }
+    }
+
+    /**
+     * @return 如果至少有一个组件被标脏，返回true
+     */
+    public boolean hasDirtyComponentDbData() {
+        return dirtyComponentCount > 0;
+    }
+
+    private void attach(final ComponentDbData<I> componentDbData) {
+        final int slot = ComponentSlots.slot(componentDbData.getClass());
+        if (slot >= slotComponents.length) {
+            slotComponents = Arrays.copyOf(slotComponents, Math.max(slot + 1, ComponentSlots.count()));
+        }
+
+        slotComponents[slot] = componentDbData;
+        componentDbData.setOwner(this);
+        if (componentDbData.isDirty()) {
+            markComponentDirty(componentDbData);
+        }
+    }
+
+    private void detach(final ComponentDbData<I> componentDbData) {
+        clearComponentDirty(componentDbData);
+        componentDbData.setOwner(null);
+        final int slot = ComponentSlots.slot(componentDbData.getClass());
+        if (slotComponents[slot] == componentDbData) {
+            slotComponents[slot] = null;
+        }
+    }
+
+    void markComponentDirty(final ComponentDbData<?> componentDbData) {
+        final int slot = ComponentSlots.slot(componentDbData.getClass());
+        if (slot >= slotComponents.length || slotComponents[slot] != componentDbData) {
+            return;
+        }
+
+        final int word = slot >>> 6;
+        if (word >= dirtyComponentBits.length) {
+            dirtyComponentBits = Arrays.copyOf(dirtyComponentBits, Math.max(word + 1, (slotComponents.length + 63) >>> 6));
+        }
+
+        final long bit = 1L << slot;
+        if ((dirtyComponentBits[word] & bit) == 0) {
+            dirtyComponentBits[word] |= bit;
+            dirtyComponentCount++;
+            registerDirty();
+        }
+    }
+
+    void clearComponentDirty(final ComponentDbData<?> componentDbData) {
+        final int slot = ComponentSlots.slot(componentDbData.getClass());
+        final int word = slot >>> 6;
+        if (word >= dirtyComponentBits.length || slotComponents[slot] != componentDbData) {
+            return;
+        }
+
+        final long bit = 1L << slot;
+        if ((dirtyComponentBits[word] & bit) != 0) {
+            dirtyComponentBits[word] &= ~bit;
+            dirtyComponentCount--;
+        }
+    }
+
+    /**
+     * 设置已被标脏的实体的注册表，之后本实体或者它的任意一个组件被标脏时会被注册到其中。如果本实体已经被标脏，立即注册
+     *
+     * @param dirtyEntities 注册表，为null时不再注册
+     */
+    public void setDirtyEntities(final DirtyEntities dirtyEntities) {
+        this.dirtyEntities = dirtyEntities;
+        if (dirtyEntities != null && Updaters.isAnyDirty(this)) {
+            dirtyEntities.register(this);
+        }
+    }
+
+    private void registerDirty() {
+        final DirtyEntities registry = dirtyEntities;
+        if (registry != null) {
+            registry.register(this);
+        }
+    }
+
+    boolean markDirtyRegistered() {
+        return dirtyRegistered.compareAndSet(false, true);
+    }
+
+    void clearDirtyRegistered() {
+        dirtyRegistered.set(false);
+    }
+
+    /**
+     * @return 所有组件的只读视图，尚未实例化的组件会被全部实例化
+     */
+    public Collection<ComponentDbData<I>> getComponentDbDataCollection() {
+        materializeAll();
+        return Collections.unmodifiableCollection(componentDbDataMap.values());
+    }
+
+    /**
+     * @return 已实例化的组件的只读视图，不包括懒加载模式下尚未被访问过的组件（它们不可能被修改过）
+     */
+    public Collection<ComponentDbData<I>> getLoadedComponentDbDataCollection() {
+        return Collections.unmodifiableCollection(componentDbDataMap.values());
     }
 
     public <T extends ComponentDbData<I>> boolean hasComponentDbData(final Class<T> dbData) {
-        return componentDbDataMap.containsKey(dbData.getSimpleName());
+        return getSlotComponent(ComponentSlots.slot(dbData)) != null ||
+                rawComponentMap != null && rawComponentMap.containsKey(ComponentSlots.key(dbData));
     }
 
     @Override
@@ -144,14 +494,26 @@ public class EntityDbData<I> implements DbData<I> {
 
     @Override
     public void setUpdater(IUpdater update) {
-        updater = update;
+        final IUpdater updaterOld = updater;
+        if (updaterOld != null) {
+            updaterOld.setDirtyListener(null);
+        }
+
+        updater = Updaters.observe(update, dirtyListener);
     }
 
     /**
      * 将所有的组件都更新
      */
     public void updateAllComponentDbData() {
-        componentDbDataMap.forEach((key, componentDbData) -> updater.update(key, componentDbData));
+        componentDbDataMap.forEach((key, componentDbData) -> {
+            final Object value = ComponentStorages.toUpdateValue(componentDbData, storageConfig);
+            if (value != null) {
+                updater.update(key, value);
+            }
+        });
+        //尚未实例化的组件没有被修改过，直接使用原始的内嵌文档
+        getRawComponentMap().forEach((key, raw) -> updater.update(key, raw));
     }
 
     /**
@@ -163,13 +525,16 @@ public class EntityDbData<I> implements DbData<I> {
     @SuppressWarnings("UnusedReturnValue")
     public <T extends ComponentDbData<I>> boolean updateComponentDbData(Class<T> dbData) {
 
-        final String key = dbData.getSimpleName();
+        final String key = ComponentSlots.key(dbData);
         final T componentDbData = getComponentDbData(dbData);
         if (componentDbData == null) {
             return false;
         }
 
-        updater.update(key, componentDbData);
+        final Object value = ComponentStorages.toUpdateValue(componentDbData, storageConfig);
+        if (value != null) {
+            updater.update(key, value);
+        }
         return true;
     }
 }
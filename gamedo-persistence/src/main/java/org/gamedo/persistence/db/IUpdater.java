@@ -1,7 +1,10 @@
 package org.gamedo.persistence.db;
 
+import org.gamedo.persistence.db.track.ITrackable;
 import org.springframework.data.mongodb.core.query.UpdateDefinition;
 
+import java.util.List;
+
 /**
  * 一个包含前缀的增量更新器，该更新器负责对某一个文档（可能为内嵌文档）进行更新，假如有一个数据库，名为：player，其中一条文档记录为：
  * <pre>
@@ -37,10 +40,130 @@ public interface IUpdater extends UpdateDefinition {
      */
     void update(String key, Object value);
 
+    /**
+     * 对字段进行原子性的累加（$inc），适用于金币、击杀数等计数类字段，避免“读取-修改-写入”带来的并发更新丢失，本地合并规则为：
+     * <ul>
+     * <li>多次累加同一个字段，会被合并为一个$inc，例如increment("x", 1)调用两次等价于increment("x", 2)
+     * <li>如果该字段已经有一个尚未存盘的{@link IUpdater#update(String, Object)}（$set），且其值为数字，那么累加值会直接合并到$set中
+     * <li>之后对同一个字段调用{@link IUpdater#update(String, Object)}时，会覆盖尚未存盘的累加值
+     * <li>如果该字段已经有一个尚未存盘的{@link IUpdater#unset(String)}，那么两者被合并为对累加值的$set
+     * <li>如果该字段已经有一个尚未存盘的其他类型的操作（$min、$max、$push），或者$set的值不是数字，那么本次操作以及该字段之后的所有操作
+     * 都会被推迟到下一次写入，详见{@link IUpdater#detachDeferred()}
+     * </ul>
+     * @param key 要累加的字段名
+     * @param delta 累加值，可以为负数
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void increment(String key, Number delta) {
+        throw Updaters.unsupported(this, "$inc");
+    }
+
+    /**
+     * 如果value小于数据库中该字段的值，则将该字段更新为value（$min），多次调用时本地只保留最小值，合并规则同
+     * {@link IUpdater#increment(String, Number)}
+     * @param key 字段名
+     * @param value 要比较的值
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void min(String key, Object value) {
+        throw Updaters.unsupported(this, "$min");
+    }
+
+    /**
+     * 如果value大于数据库中该字段的值，则将该字段更新为value（$max），多次调用时本地只保留最大值，合并规则同
+     * {@link IUpdater#increment(String, Number)}
+     * @param key 字段名
+     * @param value 要比较的值
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void max(String key, Object value) {
+        throw Updaters.unsupported(this, "$max");
+    }
+
+    /**
+     * 向数组字段的末尾添加一个元素（$push），多次调用会被合并为一个$push $each，如果该字段已经有一个尚未存盘的$set，且其值为数组，那么
+     * 元素会直接添加到$set的数组中，无法合并的操作会被推迟到下一次写入
+     * @param key 数组字段名
+     * @param value 要添加的元素
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void push(String key, Object value) {
+        throw Updaters.unsupported(this, "$push");
+    }
+
+    /**
+     * 向数组字段中添加一个尚不存在的元素（$addToSet），多次调用会被合并为一个$addToSet $each，合并规则同
+     * {@link IUpdater#push(String, Object)}
+     * @param key 数组字段名
+     * @param value 要添加的元素
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void addToSet(String key, Object value) {
+        throw Updaters.unsupported(this, "$addToSet");
+    }
+
+    /**
+     * 删除一个字段（$unset），之后对同一个字段调用{@link IUpdater#update(String, Object)}时，会覆盖本次删除
+     * @param key 要删除的字段名
+     * @throws UnsupportedOperationException 默认实现不支持本操作
+     */
+    default void unset(String key) {
+        throw Updaters.unsupported(this, "$unset");
+    }
+
+    /**
+     * 注册一个发生了变化的可追踪容器，本更新器被摘下时（{@link IUpdater#materialize()}），会调用{@link ITrackable#flushTo(IUpdater)}
+     * 将容器的变化写入本更新器，注册后{@link IUpdater#isDirty()}返回true
+     * @param trackable 发生了变化的可追踪容器
+     * @throws UnsupportedOperationException 默认实现不支持可追踪容器
+     */
+    default void track(ITrackable trackable) {
+        throw Updaters.unsupported(this, "tracked containers");
+    }
+
+    /**
+     * 获取某个路径最后一次被修改时的序号（详见{@link Updaters#nextMutationSequence()}），{@link Updaters#merge(List)}据此判断不同更新器
+     * 之间的冲突路径谁先谁后
+     * @param path 包含前缀的完整路径
+     * @return 最后一次被修改时的序号，0代表未知
+     */
+    default long getMutationSequence(String path) {
+        return 0;
+    }
+
     /**
      * 当前{@link IUpdater}是否已经更新过，返回true意味着更新方法：{@link IUpdater#update(String, Object)}被调用过；false意味着当前
      * 更新器的更新方法没有被调用
      * @return true意味着{@linkplain IUpdater#update(String, Object)}被调用过；false意味着当前更新器的更新方法没有被调用
      */
     boolean isDirty();
+
+    /**
+     * 设置本更新器被标脏（{@link IUpdater#isDirty()}由false变为true）时的回调，{@link EntityDbData}通过它维护已被标脏的组件的索引，详见
+     * {@link EntityDbData#forEachDirtyComponentDbData(java.util.function.Consumer)}。回调在标脏的线程上同步执行，且每个更新器最多执行
+     * 一次，如果设置时本更新器已经被标脏，立即执行回调
+     * @param listener 回调，为null时清除回调
+     * @return 是否支持标脏回调，默认实现不支持，返回false，此时{@link EntityDbData}和{@link ComponentDbData}会用一个在每次修改之后检查
+     * {@link IUpdater#isDirty()}的更新器包装本更新器
+     */
+    default boolean setDirtyListener(Runnable listener) {
+        return false;
+    }
+
+    /**
+     * 将已注册的可追踪容器的变化写入本更新器，并将记录的值最终转换为mongoDB原生的存储数据，{@link Updaters#detach(DbData)}摘下更新器后
+     * 会在调用线程上立即调用本方法，此后更新器会被交给其他线程持久化，默认实现没有需要转换的内容
+     */
+    default void materialize() {
+    }
+
+    /**
+     * 摘下无法与本更新器中尚未存盘的操作合并的后续操作（例如：对一个已经有$min的字段调用{@link IUpdater#increment(String, Number)}），
+     * 这些操作在调用时不会抛出异常，而是按照调用顺序被记录在另一个相同前缀的更新器中，{@link Updaters#detach(DbData)}会在
+     * {@link IUpdater#materialize()}之后调用本方法，并将返回的更新器设置为数据的新更新器，从而在下一次写入时存盘
+     * @return 记录了被推迟的操作的更新器，没有被推迟的操作时返回null
+     */
+    default IUpdater detachDeferred() {
+        return null;
+    }
 }
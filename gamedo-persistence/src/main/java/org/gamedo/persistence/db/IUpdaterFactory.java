@@ -0,0 +1,24 @@
+package org.gamedo.persistence.db;
+
+import org.gamedo.persistence.storage.StorageConfig;
+
+/**
+ * {@link IUpdater}的工厂，{@link Updaters#detach(DbData, IUpdaterFactory, StorageConfig)}使用它为数据创建新的更新器。每个模板都有自己的
+ * 工厂（{@link org.gamedo.persistence.PersistenceSettings#setUpdaterFactory(IUpdaterFactory)}），默认的工厂创建{@link Updater}，可以
+ * 替换为其他实现，例如{@link CompactUpdater}：模板加载的数据以及经过模板存盘的数据都会使用该模板的工厂创建的更新器
+ */
+@FunctionalInterface
+public interface IUpdaterFactory {
+
+    /**
+     * 默认的工厂，创建{@link Updater}，新创建的{@link ComponentDbData}和{@link EntityDbData}使用的就是该工厂创建的更新器
+     */
+    IUpdaterFactory DEFAULT = Updater::new;
+
+    /**
+     * 创建一个更新器
+     * @param prefix 更新器的前缀，详见{@link IUpdater#getPrefix()}
+     * @return 新创建的更新器
+     */
+    IUpdater create(String prefix);
+}
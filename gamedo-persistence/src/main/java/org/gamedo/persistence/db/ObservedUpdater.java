@@ -0,0 +1,141 @@
+package org.gamedo.persistence.db;
+
+import org.bson.Document;
+import org.gamedo.persistence.db.track.ITrackable;
+
+import java.util.List;
+
+/**
+ * 不支持标脏回调（{@link IUpdater#setDirtyListener(Runnable)}返回false）的更新器的包装：每一次修改之后检查被包装的更新器是否已经被标脏，
+ * 从而为其补充标脏回调，详见{@link Updaters#observe(IUpdater, Runnable)}
+ */
+final class ObservedUpdater implements IUpdater {
+
+    private final IUpdater updater;
+    private Runnable dirtyListener;
+    private boolean dirtyNotified;
+
+    ObservedUpdater(IUpdater updater) {
+        this.updater = updater;
+    }
+
+    @Override
+    public String getPrefix() {
+        return updater.getPrefix();
+    }
+
+    @Override
+    public void update(final String key, final Object value) {
+        updater.update(key, value);
+        checkDirty();
+    }
+
+    @Override
+    public void increment(final String key, final Number delta) {
+        updater.increment(key, delta);
+        checkDirty();
+    }
+
+    @Override
+    public void min(final String key, final Object value) {
+        updater.min(key, value);
+        checkDirty();
+    }
+
+    @Override
+    public void max(final String key, final Object value) {
+        updater.max(key, value);
+        checkDirty();
+    }
+
+    @Override
+    public void push(final String key, final Object value) {
+        updater.push(key, value);
+        checkDirty();
+    }
+
+    @Override
+    public void addToSet(final String key, final Object value) {
+        updater.addToSet(key, value);
+        checkDirty();
+    }
+
+    @Override
+    public void unset(final String key) {
+        updater.unset(key);
+        checkDirty();
+    }
+
+    @Override
+    public void track(final ITrackable trackable) {
+        updater.track(trackable);
+        checkDirty();
+    }
+
+    @Override
+    public long getMutationSequence(final String path) {
+        return updater.getMutationSequence(path);
+    }
+
+    @Override
+    public boolean isDirty() {
+        return updater.isDirty();
+    }
+
+    @Override
+    public boolean setDirtyListener(final Runnable listener) {
+        dirtyListener = listener;
+        dirtyNotified = false;
+        checkDirty();
+        return true;
+    }
+
+    @Override
+    public void materialize() {
+        updater.materialize();
+    }
+
+    @Override
+    public IUpdater detachDeferred() {
+        return updater.detachDeferred();
+    }
+
+    @Override
+    public Boolean isIsolated() {
+        return updater.isIsolated();
+    }
+
+    @Override
+    public Document getUpdateObject() {
+        return updater.getUpdateObject();
+    }
+
+    @Override
+    public boolean modifies(final String key) {
+        return updater.modifies(key);
+    }
+
+    @Override
+    public void inc(final String key) {
+        updater.inc(key);
+        checkDirty();
+    }
+
+    @Override
+    public List<ArrayFilter> getArrayFilters() {
+        return updater.getArrayFilters();
+    }
+
+    @Override
+    public String toString() {
+        return updater.toString();
+    }
+
+    private void checkDirty() {
+        final Runnable listener = dirtyListener;
+        if (listener != null && !dirtyNotified && updater.isDirty()) {
+            dirtyNotified = true;
+            listener.run();
+        }
+    }
+}
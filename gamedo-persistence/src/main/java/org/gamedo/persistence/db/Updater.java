@@ -3,40 +3,425 @@ package org.gamedo.persistence.db;
 import lombok.Getter;
 import lombok.Setter;
 import lombok.experimental.Delegate;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.gamedo.persistence.db.track.ITrackable;
+import org.gamedo.persistence.logging.Markers;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.data.util.ClassTypeInformation;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * 增量更新器的默认实现
  */
+@Log4j2
 public class Updater implements IUpdater
 {
+    static final String SET = "$set";
+    static final String INC = "$inc";
+    static final String MIN = "$min";
+    static final String MAX = "$max";
+    static final String PUSH = "$push";
+    static final String ADD_TO_SET = "$addToSet";
+    static final String UNSET = "$unset";
+    static final String EACH = "$each";
+
+    @Getter
     @Setter
     private static volatile MongoConverter mongoConverter;
 
     @Getter
     private final String prefix;
     private boolean isDirty;
+    /**
+     * 是否已经执行过{@link Updater#dirtyListener}，注册可追踪容器时就会执行，即使容器的变化最终相互抵消
+     */
+    private boolean dirtyNotified;
     @Delegate
-    private final Update update;
+    private Update update;
+    /**
+     * 尚未存盘的累加类操作（$inc、$min、$max、$push）的字段到操作符的映射，第一次调用累加类操作时才创建
+     */
+    private Map<String, String> path2DeltaOp;
+    /**
+     * 已注册的、发生了变化的可追踪容器
+     */
+    private List<ITrackable> trackableList;
+    /**
+     * 每个路径最后一次被修改时的序号，详见{@link IUpdater#getMutationSequence(String)}
+     */
+    private Map<String, Long> path2Sequence;
+    /**
+     * 正在写入的可追踪容器的修改序号，详见{@link ITrackable#getMutationSequence()}
+     */
+    private long trackableSequence;
+    /**
+     * 被标脏时的回调
+     */
+    private Runnable dirtyListener;
+    /**
+     * 无法与本更新器中尚未存盘的操作合并的后续操作，详见{@link IUpdater#detachDeferred()}，第一次出现冲突时才创建
+     */
+    private IUpdater deferred;
+    /**
+     * 已经被推迟的路径，这些路径上之后的所有操作都会被记录到{@link Updater#deferred}中，以保持操作的顺序
+     */
+    private Set<String> deferredPathSet;
 
     public Updater(final String prefix) {
         this.prefix = prefix;
         update = new Update();
     }
 
+    /**
+     * 只有在尚未设置{@link MongoConverter}时才设置，供响应式模板等辅助模板使用，避免覆盖{@link org.gamedo.persistence.GamedoMongoTemplate}
+     * 所设置的转换器
+     *
+     * @param converter 转换器
+     */
+    public static synchronized void setMongoConverterIfAbsent(final MongoConverter converter) {
+        if (mongoConverter == null) {
+            mongoConverter = converter;
+        }
+    }
+
     @Override
     public void update(final String key, final Object value) {
+        final String path = prefix + key;
+        if (isDeferred(path)) {
+            deferred.update(key, value);
+            return;
+        }
+
         final Object mongoType = mongoConverter.convertToMongoType(value, ClassTypeInformation.OBJECT);
 
-        update.set(prefix + key, mongoType);
-        isDirty = true;
+        removePendingOp(path, false);
+        update.set(path, mongoType);
+        mutated(path);
+        markDirty();
+    }
+
+    @Override
+    public void increment(final String key, final Number delta) {
+        final String path = prefix + key;
+        if (isDeferred(path)) {
+            deferred.increment(key, delta);
+            return;
+        }
+
+        final String opExist = getPendingOp(path);
+        if (opExist == null) {
+            update.inc(path, delta);
+            addDeltaOp(path, INC);
+        } else if (UNSET.equals(opExist)) {
+            //被删除的字段再累加，结果就是累加值本身
+            setAfterUnset(path, delta);
+        } else if ((INC.equals(opExist) || SET.equals(opExist)) && getPendingDocument(opExist).get(path) instanceof Number) {
+            final Document document = getPendingDocument(opExist);
+            document.put(path, Updaters.add((Number) document.get(path), delta));
+        } else {
+            defer(path, opExist, INC).increment(key, delta);
+            return;
+        }
+
+        mutated(path);
+        markDirty();
+    }
+
+    @Override
+    public void min(final String key, final Object value) {
+        compareAndUpdate(MIN, key, value);
+    }
+
+    @Override
+    public void max(final String key, final Object value) {
+        compareAndUpdate(MAX, key, value);
+    }
+
+    @Override
+    public void push(final String key, final Object value) {
+        appendToArray(PUSH, key, value);
+    }
+
+    @Override
+    public void addToSet(final String key, final Object value) {
+        appendToArray(ADD_TO_SET, key, value);
+    }
+
+    @Override
+    public void unset(final String key) {
+        final String path = prefix + key;
+        if (isDeferred(path)) {
+            deferred.unset(key);
+            return;
+        }
+
+        removePendingOp(path, true);
+        update.unset(path);
+        addDeltaOp(path, UNSET);
+        mutated(path);
+        markDirty();
+    }
+
+    @Override
+    public void track(final ITrackable trackable) {
+        if (trackableList == null) {
+            trackableList = new ArrayList<>(1);
+        }
+        trackableList.add(trackable);
+        //容器的变化可能相互抵消（例如添加后又删除同一个元素），因此只通知，是否真的脏由isDirty()判断
+        notifyDirty();
+    }
+
+    @Override
+    public void materialize() {
+        if (trackableList == null) {
+            return;
+        }
+
+        final List<ITrackable> list = trackableList;
+        trackableList = null;
+        for (ITrackable trackable : list) {
+            trackableSequence = trackable.getMutationSequence();
+            trackable.flushTo(this);
+        }
+        trackableSequence = 0;
+    }
+
+    @Override
+    public IUpdater detachDeferred() {
+        final IUpdater updater = deferred;
+        deferred = null;
+        deferredPathSet = null;
+        return updater;
+    }
+
+    @Override
+    public long getMutationSequence(final String path) {
+        final Long sequence = path2Sequence == null ? null : path2Sequence.get(path);
+        return sequence == null ? 0 : sequence;
     }
 
     @Override
     public boolean isDirty() {
-        return isDirty;
+        return isDirty || Updaters.isAnyChanged(trackableList);
+    }
+
+    @Override
+    public boolean setDirtyListener(final Runnable listener) {
+        dirtyListener = listener;
+        if (listener != null && isDirty()) {
+            listener.run();
+        }
+        return true;
+    }
+
+    private void markDirty() {
+        if (isDirty) {
+            return;
+        }
+
+        isDirty = true;
+        notifyDirty();
+    }
+
+    private void notifyDirty() {
+        if (dirtyNotified) {
+            return;
+        }
+
+        dirtyNotified = true;
+        if (dirtyListener != null) {
+            dirtyListener.run();
+        }
+    }
+
+    private void mutated(final String path) {
+        if (path2Sequence == null) {
+            path2Sequence = new HashMap<>();
+        }
+        path2Sequence.put(path, trackableSequence != 0 ? trackableSequence : Updaters.nextMutationSequence());
+    }
+
+    private void appendToArray(final String op, final String key, final Object value) {
+        final String path = prefix + key;
+        if (isDeferred(path)) {
+            if (PUSH.equals(op)) {
+                deferred.push(key, value);
+            } else {
+                deferred.addToSet(key, value);
+            }
+            return;
+        }
+
+        final Object mongoType = mongoConverter.convertToMongoType(value, ClassTypeInformation.OBJECT);
+        final String opExist = getPendingOp(path);
+        if (opExist == null) {
+            final List<Object> list = new ArrayList<>(1);
+            list.add(mongoType);
+            if (PUSH.equals(op)) {
+                update.push(path, new Document(EACH, list));
+            } else {
+                update.addToSet(path, new Document(EACH, list));
+            }
+            addDeltaOp(path, op);
+        } else if (UNSET.equals(opExist)) {
+            final List<Object> list = new ArrayList<>(1);
+            list.add(mongoType);
+            setAfterUnset(path, list);
+        } else if (op.equals(opExist)) {
+            final Document each = (Document) getPendingDocument(opExist).get(path);
+            each.getList(EACH, Object.class).add(mongoType);
+        } else if (SET.equals(opExist) && getPendingDocument(opExist).get(path) instanceof List) {
+            final Document document = getPendingDocument(opExist);
+            final List<Object> list = new ArrayList<>((List<?>) document.get(path));
+            if (PUSH.equals(op) || !list.contains(mongoType)) {
+                list.add(mongoType);
+            }
+            document.put(path, list);
+        } else {
+            final IUpdater updater = defer(path, opExist, op);
+            if (PUSH.equals(op)) {
+                updater.push(key, value);
+            } else {
+                updater.addToSet(key, value);
+            }
+            return;
+        }
+
+        mutated(path);
+        markDirty();
     }
 
+    private void compareAndUpdate(final String op, final String key, final Object value) {
+        final String path = prefix + key;
+        if (isDeferred(path)) {
+            if (MIN.equals(op)) {
+                deferred.min(key, value);
+            } else {
+                deferred.max(key, value);
+            }
+            return;
+        }
+
+        final Object mongoType = mongoConverter.convertToMongoType(value, ClassTypeInformation.OBJECT);
+        final String opExist = getPendingOp(path);
+        if (opExist == null) {
+            if (MIN.equals(op)) {
+                update.min(path, mongoType);
+            } else {
+                update.max(path, mongoType);
+            }
+            addDeltaOp(path, op);
+        } else if (UNSET.equals(opExist)) {
+            setAfterUnset(path, mongoType);
+        } else if ((op.equals(opExist) || SET.equals(opExist)) &&
+                Updaters.isComparable(mongoType, getPendingDocument(opExist).get(path))) {
+            final Document document = getPendingDocument(opExist);
+            final int compare = Updaters.compare(mongoType, document.get(path));
+            if (MIN.equals(op) ? compare < 0 : compare > 0) {
+                document.put(path, mongoType);
+            }
+        } else {
+            final IUpdater updater = defer(path, opExist, op);
+            if (MIN.equals(op)) {
+                updater.min(key, value);
+            } else {
+                updater.max(key, value);
+            }
+            return;
+        }
+
+        mutated(path);
+        markDirty();
+    }
+
+    /**
+     * 将一个尚未存盘的$unset改写为$set，被删除的字段再执行累加类操作时，结果是确定的
+     */
+    private void setAfterUnset(final String path, final Object mongoType) {
+        removePendingOp(path, false);
+        update.set(path, mongoType);
+    }
+
+    private boolean isDeferred(final String path) {
+        return deferredPathSet != null && deferredPathSet.contains(path);
+    }
+
+    /**
+     * 将某个路径标记为被推迟，该路径上之后的所有操作（包括本次无法合并的操作）都会被记录到{@link Updater#deferred}中
+     *
+     * @return 用于记录被推迟的操作的更新器
+     */
+    private IUpdater defer(final String path, final String opExist, final String op) {
+        if (deferred == null) {
+            deferred = new Updater(prefix);
+            deferredPathSet = new HashSet<>();
+        }
+        deferredPathSet.add(path);
+        log.debug(Markers.MongoDB, "the path has a pending {} that can not be merged with {}, defer to the next write, " +
+                "path:{}", opExist, op, path);
+        return deferred;
+    }
+
+    private String getPendingOp(final String path) {
+        if (path2DeltaOp != null) {
+            final String op = path2DeltaOp.get(path);
+            if (op != null) {
+                return op;
+            }
+        }
+
+        return update.modifies(path) ? SET : null;
+    }
+
+    /**
+     * 获取某个操作符对应的内嵌文档，{@link Update#getUpdateObject()}返回的是一个浅拷贝，因此对内嵌文档的修改会直接作用于{@link Update}
+     */
+    private Document getPendingDocument(final String op) {
+        return (Document) update.getUpdateObject().get(op);
+    }
+
+    private void addDeltaOp(final String path, final String op) {
+        if (path2DeltaOp == null) {
+            path2DeltaOp = new HashMap<>();
+        }
+        path2DeltaOp.put(path, op);
+    }
+
+    /**
+     * 删除某个字段上尚未存盘的操作
+     *
+     * @param path       字段的完整路径
+     * @param includeSet 是否也删除$set，对于马上就要被$set覆盖的字段，不需要删除
+     */
+    private void removePendingOp(final String path, final boolean includeSet) {
+        String op = path2DeltaOp == null ? null : path2DeltaOp.remove(path);
+        if (op == null) {
+            if (!includeSet || !update.modifies(path)) {
+                return;
+            }
+            op = SET;
+        }
+
+        final Document updateObject = update.getUpdateObject();
+        final Document document = (Document) updateObject.get(op);
+        if (document == null) {
+            return;
+        }
+
+        document.remove(path);
+        if (document.isEmpty()) {
+            //mongoDB不允许空的操作符，只能重新生成一个不包含该操作符的Update
+            updateObject.remove(op);
+            update = Update.fromDocument(updateObject);
+        }
+    }
 }
@@ -0,0 +1,418 @@
+package org.gamedo.persistence.db;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.gamedo.persistence.db.track.ITrackable;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StorageConfig;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link IUpdater}相关的工具方法
+ */
+@Log4j2
+public final class Updaters {
+
+    private static final String SET = "$set";
+    private static final AtomicLong MUTATION_SEQUENCE = new AtomicLong();
+
+    private Updaters() {
+    }
+
+    /**
+     * 生成一个全局递增的修改序号，更新器每次修改一个路径时都会记录一个新的序号（详见{@link IUpdater#getMutationSequence(String)}），
+     * 从而在{@link Updaters#merge(List)}时按照真实的修改顺序，而不是更新器在列表中的位置，处理不同更新器之间的冲突路径
+     *
+     * @return 新的修改序号，总是大于0
+     */
+    public static long nextMutationSequence() {
+        return MUTATION_SEQUENCE.incrementAndGet();
+    }
+
+    /**
+     * 使用默认的更新器工厂（{@link IUpdaterFactory#DEFAULT}）和默认的存储配置（{@link StorageConfig#DEFAULT}）摘下更新器，详见
+     * {@link Updaters#detach(DbData, IUpdaterFactory, StorageConfig)}
+     *
+     * @param data 要摘下更新器的数据
+     * @return 被摘下的更新器
+     */
+    public static IUpdater detach(final DbData<?> data) {
+        return detach(data, IUpdaterFactory.DEFAULT, StorageConfig.DEFAULT);
+    }
+
+    /**
+     * 将{@link DbData}当前的更新器摘下，并为其设置一个由factory创建的、相同前缀的更新器，被摘下的更新器会立即执行{@link IUpdater#materialize()}。
+     * 如果被摘下的更新器中有被推迟的操作（详见{@link IUpdater#detachDeferred()}），那么记录了这些操作的更新器会成为新的更新器，数据仍然是脏的，
+     * 这些操作会在下一次写入时存盘。
+     * 压缩存储（{@link StoragePolicy#COMPRESSED}）的组件无法部分更新，此时返回的是一个对整个组件执行$set的更新器
+     *
+     * @param data    要摘下更新器的数据
+     * @param factory 创建新的更新器的工厂
+     * @param config  存储配置，用于改写压缩存储的组件的更新
+     * @return 被摘下的更新器
+     */
+    public static IUpdater detach(final DbData<?> data, final IUpdaterFactory factory, final StorageConfig config) {
+        final IUpdater updater = data.getUpdater();
+        data.setUpdater(factory.create(updater.getPrefix()));
+        updater.materialize();
+        final IUpdater deferred = updater.detachDeferred();
+        if (data instanceof ComponentDbData && updater.isDirty() &&
+                ComponentStorages.policy(data.getClass()) == StoragePolicy.COMPRESSED) {
+            //对整个组件的$set已经包含了被推迟的操作的结果
+            return ComponentStorages.rewriteCompressed((ComponentDbData<?>) data, factory, config);
+        }
+
+        if (deferred != null) {
+            //新的更新器是在本线程上刚刚创建的，不可能已经被修改过，直接替换即可，数据会因此被重新标脏
+            log.debug(Markers.MongoDB, "the updater has deferred operations, they will be written next time, prefix:{}",
+                    updater.getPrefix());
+            data.setUpdater(deferred);
+        }
+        return updater;
+    }
+
+    /**
+     * 为更新器设置标脏回调，如果更新器不支持标脏回调（{@link IUpdater#setDirtyListener(Runnable)}返回false），返回一个在每次修改之后
+     * 检查{@link IUpdater#isDirty()}的包装更新器
+     *
+     * @param updater  要设置回调的更新器
+     * @param listener 标脏回调
+     * @return 支持标脏回调的更新器
+     */
+    static IUpdater observe(final IUpdater updater, final Runnable listener) {
+        if (updater.setDirtyListener(listener)) {
+            return updater;
+        }
+
+        final ObservedUpdater observedUpdater = new ObservedUpdater(updater);
+        observedUpdater.setDirtyListener(listener);
+        return observedUpdater;
+    }
+
+    static UnsupportedOperationException unsupported(final IUpdater updater, final String operation) {
+        return new UnsupportedOperationException(updater.getClass().getName() + " does not support " + operation +
+                ", prefix:" + updater.getPrefix());
+    }
+
+    /**
+     * 判断一个更新是否不包含任何操作，mongoDB会把空的更新当作替换整个文档，因此空的更新不能被写入
+     *
+     * @param update 要检查的更新
+     * @return 不包含任何操作时返回true
+     */
+    public static boolean isEmpty(final UpdateDefinition update) {
+        return update.getUpdateObject().isEmpty();
+    }
+
+    /**
+     * 判断已注册的可追踪容器中是否有任何一个存在尚未写入的变化
+     */
+    static boolean isAnyChanged(final List<ITrackable> trackableList) {
+        if (trackableList == null) {
+            return false;
+        }
+
+        for (ITrackable trackable : trackableList) {
+            if (trackable.isChanged()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 判断一个实体或者它的任意一个组件是否已经被标脏
+     *
+     * @param entityDbData 要检查的实体
+     * @return 实体本身或者任意一个组件被标脏时，返回true
+     */
+    public static boolean isAnyDirty(final EntityDbData<?> entityDbData) {
+        return entityDbData.isDirty() || entityDbData.hasDirtyComponentDbData();
+    }
+
+    /**
+     * 使用默认的更新器工厂和存储配置摘下更新器，详见{@link Updaters#detachDirty(EntityDbData, IUpdaterFactory, StorageConfig)}
+     *
+     * @param entityDbData 要摘下更新器的实体
+     * @return 被摘下的更新器列表，实体本身的更新器（如果被标脏）总是位于第一个
+     */
+    public static List<IUpdater> detachDirty(final EntityDbData<?> entityDbData) {
+        return detachDirty(entityDbData, IUpdaterFactory.DEFAULT, StorageConfig.DEFAULT);
+    }
+
+    /**
+     * 将实体本身以及所有被标脏的组件的更新器摘下
+     *
+     * @param entityDbData 要摘下更新器的实体
+     * @param factory      创建新的更新器的工厂
+     * @param config       存储配置
+     * @return 被摘下的更新器列表，实体本身的更新器（如果被标脏）总是位于第一个
+     */
+    public static List<IUpdater> detachDirty(final EntityDbData<?> entityDbData,
+                                             final IUpdaterFactory factory,
+                                             final StorageConfig config) {
+        final List<IUpdater> updaterList = new ArrayList<>();
+        if (entityDbData.isDirty()) {
+            updaterList.add(detach(entityDbData, factory, config));
+        }
+
+        entityDbData.forEachDirtyComponentDbData(componentDbData ->
+                updaterList.add(detach(componentDbData, factory, config)));
+
+        return updaterList;
+    }
+
+    /**
+     * 将同一个文档的多个更新器（例如：实体的更新器和多个组件的更新器）合并为尽可能少的{@link Update}，合并规则如下：
+     * <ul>
+     * <li>按照每个路径最后一次被修改的顺序（详见{@link IUpdater#getMutationSequence(String)}）合并，修改序号未知的路径（例如普通的
+     * {@link Update}）排在最前面，并保持它们在列表中的顺序。因此，即使一个过期的子路径的$set位于列表的后面，也不会覆盖较新的父路径的$set
+     * <li>相同路径的$set，后者覆盖前者
+     * <li>如果后者的路径是前者的父路径（例如：“ComponentDbBag”和“ComponentDbBag.itemList”），后者将覆盖前者的整个子树，因此前者被丢弃
+     * <li>如果后者的路径是前者的子路径，且两者都是$set，并且前者的值是一个内嵌文档，那么后者的值会被合并进前者的内嵌文档中
+     * <li>其余无法安全合并的冲突路径，会被放入一个新的{@link Update}中，调用者需要按照顺序依次执行返回的{@link Update}
+     * </ul>
+     *
+     * @param updaterList 要合并的更新器（也可以是{@link Update}），它们必须作用于同一个文档
+     * @return 合并后的更新列表，绝大多数情况下只包含一个元素，如果所有的更新器都不脏，返回空列表
+     */
+    public static List<Update> merge(final List<? extends UpdateDefinition> updaterList) {
+        final List<PathOp> pathOpList = new ArrayList<>();
+        for (UpdateDefinition updater : updaterList) {
+            final Document updateObject = updater.getUpdateObject();
+            for (Map.Entry<String, Object> opEntry : updateObject.entrySet()) {
+                final String op = opEntry.getKey();
+                final Document pathDocument = (Document) opEntry.getValue();
+                for (Map.Entry<String, Object> pathEntry : pathDocument.entrySet()) {
+                    final String path = pathEntry.getKey();
+                    final long sequence = updater instanceof IUpdater ? ((IUpdater) updater).getMutationSequence(path) : 0;
+                    pathOpList.add(new PathOp(op, path, pathEntry.getValue(), sequence));
+                }
+            }
+        }
+
+        //只有一个更新器时，它内部不存在需要排序的冲突
+        if (updaterList.size() > 1) {
+            pathOpList.sort(Comparator.comparingLong(pathOp -> pathOp.sequence));
+        }
+
+        final List<Update> updateList = new ArrayList<>(1);
+        Bucket bucket = new Bucket();
+        for (PathOp pathOp : pathOpList) {
+            if (!bucket.add(pathOp.op, pathOp.path, pathOp.value)) {
+                log.debug(Markers.MongoDB, "conflict update path, op:{}, path:{}, start a new update.",
+                        pathOp.op,
+                        pathOp.path);
+                updateList.add(bucket.toUpdate());
+                bucket = new Bucket();
+                bucket.add(pathOp.op, pathOp.path, pathOp.value);
+            }
+        }
+
+        if (!bucket.isEmpty()) {
+            updateList.add(bucket.toUpdate());
+        }
+
+        return updateList;
+    }
+
+    /**
+     * 合并两次累加的值，整数之间的累加结果仍为整数（int溢出时提升为long），存在浮点数时结果为double
+     */
+    static Number add(final Number a, final Number b) {
+        if (isFloating(a) || isFloating(b)) {
+            return a.doubleValue() + b.doubleValue();
+        }
+
+        final long sum = a.longValue() + b.longValue();
+        if (isInt(a) && isInt(b) && sum == (int) sum) {
+            return (int) sum;
+        }
+
+        return sum;
+    }
+
+    /**
+     * 比较两个值的大小，用于合并$min和$max，数字之间按照数值比较，其他类型必须是相同类型的{@link Comparable}
+     */
+    @SuppressWarnings("unchecked")
+    static int compare(final Object a, final Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            final Number numberA = (Number) a;
+            final Number numberB = (Number) b;
+            return isFloating(numberA) || isFloating(numberB) ?
+                    Double.compare(numberA.doubleValue(), numberB.doubleValue()) :
+                    Long.compare(numberA.longValue(), numberB.longValue());
+        }
+
+        if (a instanceof Comparable && b != null && a.getClass() == b.getClass()) {
+            return ((Comparable<Object>) a).compareTo(b);
+        }
+
+        throw new IllegalStateException("the values are not comparable, a:" + a + ", b:" + b);
+    }
+
+    /**
+     * 判断两个值能否通过{@link Updaters#compare(Object, Object)}比较大小
+     */
+    static boolean isComparable(final Object a, final Object b) {
+        return a instanceof Number && b instanceof Number ||
+                a instanceof Comparable && b != null && a.getClass() == b.getClass();
+    }
+
+    private static boolean isFloating(final Number number) {
+        return number instanceof Double || number instanceof Float || number instanceof BigDecimal;
+    }
+
+    private static boolean isInt(final Number number) {
+        return number instanceof Integer || number instanceof Short || number instanceof Byte;
+    }
+
+    /**
+     * 一个路径上的操作，以及它最后一次被修改时的序号
+     */
+    @RequiredArgsConstructor
+    private static final class PathOp {
+        private final String op;
+        private final String path;
+        private final Object value;
+        private final long sequence;
+    }
+
+    /**
+     * 一个不包含冲突路径的更新
+     */
+    private static final class Bucket {
+        private final Map<String, Map<String, Object>> op2PathValue = new LinkedHashMap<>();
+        private final Map<String, String> path2Op = new HashMap<>();
+        /**
+         * 合并时复制出来的、属于本更新的内嵌文档
+         */
+        private final Set<Document> ownedSet = Collections.newSetFromMap(new IdentityHashMap<>());
+
+        boolean isEmpty() {
+            return path2Op.isEmpty();
+        }
+
+        boolean add(final String op, final String path, final Object value) {
+            final String opExist = path2Op.get(path);
+            if (opExist != null) {
+                if (!SET.equals(op) || !SET.equals(opExist)) {
+                    return false;
+                }
+
+                op2PathValue.get(SET).put(path, value);
+                return true;
+            }
+
+            //检查父路径
+            for (int index = path.indexOf('.'); index > 0; index = path.indexOf('.', index + 1)) {
+                final String ancestor = path.substring(0, index);
+                final String ancestorOp = path2Op.get(ancestor);
+                if (ancestorOp == null) {
+                    continue;
+                }
+
+                return SET.equals(op) && SET.equals(ancestorOp) && fold(ancestor, path.substring(index + 1), value);
+            }
+
+            //检查子路径，后写入的父路径覆盖之前所有的子路径
+            final String descendantPrefix = path + ".";
+            if (SET.equals(op)) {
+                path2Op.entrySet().removeIf(entry -> {
+                    final boolean isDescendant = entry.getKey().startsWith(descendantPrefix);
+                    if (isDescendant) {
+                        op2PathValue.get(entry.getValue()).remove(entry.getKey());
+                    }
+                    return isDescendant;
+                });
+            } else if (path2Op.keySet().stream().anyMatch(key -> key.startsWith(descendantPrefix))) {
+                return false;
+            }
+
+            op2PathValue.computeIfAbsent(op, key -> new LinkedHashMap<>()).put(path, value);
+            path2Op.put(path, op);
+            return true;
+        }
+
+        /**
+         * 将子路径的值合并进父路径的内嵌文档中。内嵌文档来自调用者的更新，因此合并沿途的文档都会先被复制（每个文档只复制一次），调用者的更新
+         * 不会被修改，合并失败时也不会留下一半的修改
+         */
+        private boolean fold(final String ancestor, final String relativePath, final Object value) {
+            final Map<String, Object> setPathValue = op2PathValue.get(SET);
+            if (!(setPathValue.get(ancestor) instanceof Document)) {
+                return false;
+            }
+
+            final String[] keys = relativePath.split("\\.");
+            Document document = (Document) setPathValue.get(ancestor);
+            for (int i = 0; i < keys.length - 1; i++) {
+                final Object nested = document.get(keys[i]);
+                if (nested != null && !(nested instanceof Document)) {
+                    return false;
+                }
+                document = (Document) nested;
+                if (document == null) {
+                    break;
+                }
+            }
+
+            document = owned(setPathValue, ancestor);
+            for (int i = 0; i < keys.length - 1; i++) {
+                final Object nested = document.get(keys[i]);
+                final Document nestedOwned = nested == null ? new Document() : copy((Document) nested);
+                if (nestedOwned != nested) {
+                    document.put(keys[i], nestedOwned);
+                }
+                document = nestedOwned;
+            }
+
+            document.put(keys[keys.length - 1], value);
+            return true;
+        }
+
+        private Document owned(final Map<String, Object> setPathValue, final String ancestor) {
+            final Document document = copy((Document) setPathValue.get(ancestor));
+            setPathValue.put(ancestor, document);
+            return document;
+        }
+
+        private Document copy(final Document document) {
+            if (ownedSet.contains(document)) {
+                return document;
+            }
+
+            final Document copy = new Document(document);
+            ownedSet.add(copy);
+            return copy;
+        }
+
+        Update toUpdate() {
+            final Document document = new Document();
+            op2PathValue.forEach((op, pathValue) -> {
+                if (!pathValue.isEmpty()) {
+                    document.put(op, new Document(pathValue));
+                }
+            });
+
+            return Update.fromDocument(document);
+        }
+    }
+}
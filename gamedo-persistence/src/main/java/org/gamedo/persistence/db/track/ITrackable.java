@@ -0,0 +1,58 @@
+package org.gamedo.persistence.db.track;
+
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updaters;
+
+/**
+ * 可追踪变化的容器（{@link TrackedMap}、{@link TrackedList}、{@link TrackedSet}），作为{@link DbData}的字段使用时，只记录两次存盘之间
+ * 被修改的元素，存盘时只为这些元素生成增量更新（例如：“ComponentDbBag.itemMap.1001”的$set或者$unset），而不是每次都将整个字段序列化并
+ * 覆盖。当被修改的元素超过一定比例（详见{@link ITrackable#bind(DbData, String, double)}）时，会退化为对整个字段的$set。
+ * <p>
+ * 容器需要先通过{@link ITrackable#bind(DbData, String)}绑定到所属的{@link DbData}上才会开始记录变化，一般情况下不需要手动绑定：从mongoDB
+ * 中加载数据以及完整存储数据时，gamedo-persistence会通过{@link Trackables#bind(DbData, double)}按照所属模板的阈值
+ * （{@link org.gamedo.persistence.PersistenceSettings#getWholeFieldRatio()}）自动绑定。绑定后，第一次修改会将容器注册到所属
+ * {@link DbData}当前的{@link IUpdater}中（详见{@link IUpdater#track(ITrackable)}），并在该更新器被摘下时
+ * （{@link IUpdater#materialize()}）生成增量更新
+ */
+public interface ITrackable {
+
+    /**
+     * 绑定到所属的{@link DbData}，并清空已记录的变化，也即认为当前容器的内容与mongoDB中的数据一致
+     *
+     * @param owner 所属的数据
+     * @param key   该容器在所属数据中的字段名
+     */
+    default void bind(DbData<?> owner, String key) {
+        bind(owner, key, Trackables.DEFAULT_WHOLE_FIELD_RATIO);
+    }
+
+    /**
+     * 绑定到所属的{@link DbData}，并清空已记录的变化，也即认为当前容器的内容与mongoDB中的数据一致
+     *
+     * @param owner           所属的数据
+     * @param key             该容器在所属数据中的字段名
+     * @param wholeFieldRatio 被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set，取值范围为[0, 1]
+     */
+    void bind(DbData<?> owner, String key, double wholeFieldRatio);
+
+    /**
+     * 将记录的变化写入到更新器中，并清空已记录的变化
+     *
+     * @param updater 要写入的更新器
+     */
+    void flushTo(IUpdater updater);
+
+    /**
+     * @return 自上次绑定或者{@link ITrackable#flushTo(IUpdater)}以来，是否有变化
+     */
+    boolean isChanged();
+
+    /**
+     * @return 最后一次变化时的序号（详见{@link Updaters#nextMutationSequence()}），{@link ITrackable#flushTo(IUpdater)}生成的增量更新
+     * 以该序号作为它们的修改序号，0代表未知
+     */
+    default long getMutationSequence() {
+        return 0;
+    }
+}
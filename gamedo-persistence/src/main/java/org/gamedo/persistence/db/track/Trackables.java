@@ -0,0 +1,125 @@
+package org.gamedo.persistence.db.track;
+
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.logging.Markers;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link ITrackable}相关的工具方法
+ */
+@Log4j2
+public final class Trackables {
+
+    private static final ClassValue<TrackableField[]> TRACKABLE_FIELDS = new ClassValue<TrackableField[]>() {
+        @Override
+        protected TrackableField[] computeValue(Class<?> type) {
+            return findTrackableFields(type);
+        }
+    };
+
+    /**
+     * 默认的退化阈值：被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set
+     */
+    public static final double DEFAULT_WHOLE_FIELD_RATIO = 0.5;
+
+    private Trackables() {
+    }
+
+    /**
+     * 使用默认的退化阈值（{@link Trackables#DEFAULT_WHOLE_FIELD_RATIO}）绑定数据，详见{@link Trackables#bind(DbData, double)}
+     *
+     * @param data 要绑定的数据
+     */
+    public static void bind(final DbData<?> data) {
+        bind(data, DEFAULT_WHOLE_FIELD_RATIO);
+    }
+
+    /**
+     * 将数据中所有类型为{@link ITrackable}的字段绑定到该数据上，如果数据是一个{@link EntityDbData}，它的所有组件也会被绑定
+     *
+     * @param data            要绑定的数据
+     * @param wholeFieldRatio 被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set，0意味着总是对整个字段进行$set
+     */
+    public static void bind(final DbData<?> data, final double wholeFieldRatio) {
+        if (data == null) {
+            return;
+        }
+
+        bindFields(data, wholeFieldRatio);
+        if (data instanceof EntityDbData) {
+            for (ComponentDbData<?> componentDbData : ((EntityDbData<?>) data).getLoadedComponentDbDataCollection()) {
+                bindFields(componentDbData, wholeFieldRatio);
+            }
+        }
+    }
+
+    private static void bindFields(final DbData<?> data, final double wholeFieldRatio) {
+        for (TrackableField trackableField : TRACKABLE_FIELDS.get(data.getClass())) {
+            try {
+                final Object value = trackableField.field.get(data);
+                if (value instanceof ITrackable) {
+                    ((ITrackable) value).bind(data, trackableField.key, wholeFieldRatio);
+                }
+            } catch (IllegalAccessException e) {
+                log.error(Markers.GamedoPersistence, "bind trackable field failed, class:" + data.getClass().getName() +
+                        ", field:" + trackableField.field.getName(), e);
+            }
+        }
+    }
+
+    private static TrackableField[] findTrackableFields(final Class<?> clazz) {
+        final List<TrackableField> fieldList = new ArrayList<>();
+        for (Class<?> c = clazz; c != null && c != Object.class; c = c.getSuperclass()) {
+            for (java.lang.reflect.Field field : c.getDeclaredFields()) {
+                final int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)) {
+                    continue;
+                }
+
+                final Class<?> type = field.getType();
+                if (!ITrackable.class.isAssignableFrom(type) && !Map.class.isAssignableFrom(type) &&
+                        !Collection.class.isAssignableFrom(type) && type != Object.class) {
+                    continue;
+                }
+
+                field.setAccessible(true);
+                fieldList.add(new TrackableField(field, getFieldName(field)));
+            }
+        }
+
+        return fieldList.toArray(new TrackableField[0]);
+    }
+
+    private static String getFieldName(final java.lang.reflect.Field field) {
+        final Field annotation = field.getAnnotation(Field.class);
+        if (annotation != null) {
+            if (!annotation.value().isEmpty()) {
+                return annotation.value();
+            }
+            if (!annotation.name().isEmpty()) {
+                return annotation.name();
+            }
+        }
+
+        return field.getName();
+    }
+
+    private static final class TrackableField {
+        private final java.lang.reflect.Field field;
+        private final String key;
+
+        private TrackableField(java.lang.reflect.Field field, String key) {
+            this.field = field;
+            this.key = key;
+        }
+    }
+}
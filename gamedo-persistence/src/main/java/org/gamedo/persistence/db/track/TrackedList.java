@@ -0,0 +1,174 @@
+package org.gamedo.persistence.db.track;
+
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.IUpdater;
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * 可追踪变化的{@link List}，记录两次存盘之间被{@link TrackedList#set(int, Object)}的下标以及追加到末尾的元素，存盘时为被修改的下标生成
+ * “字段名.下标”的$set，为追加的元素生成$push。以下情况会退化为对整个字段的$set：
+ * <ul>
+ * <li>在上次存盘时已经存在的元素之前插入或者删除元素（下标会发生移动）
+ * <li>同时存在下标修改和末尾追加（mongoDB不允许在一次更新中同时修改数组的元素和数组本身）
+ * <li>变化的元素数量超过阈值（详见{@link org.gamedo.persistence.PersistenceSettings#setWholeFieldRatio(double)}）
+ * </ul>
+ * 字段的声明类型必须为{@link TrackedList}，直接修改元素内部的字段不会被追踪，需要调用{@link TrackedList#markChanged(int)}。与
+ * {@link ArrayList}一样，本类不是线程安全的
+ *
+ * @param <E> 元素类型
+ */
+public class TrackedList<E> extends AbstractList<E> implements RandomAccess, ITrackable {
+
+    private final List<E> list;
+    private final Tracker tracker = new Tracker();
+    /**
+     * 上次存盘时的元素数量，不小于该值的下标都属于追加的元素
+     */
+    private int baseSize;
+    /**
+     * 自上次存盘以来，被修改的（小于{@link TrackedList#baseSize}的）下标
+     */
+    private BitSet changedIndexSet;
+    private boolean wholeChanged;
+
+    public TrackedList() {
+        this(new ArrayList<>());
+    }
+
+    /**
+     * @param list 被包装的list，之后对它的直接修改不会被追踪
+     */
+    public TrackedList(final List<E> list) {
+        this.list = list;
+    }
+
+    @Override
+    public E get(final int index) {
+        return list.get(index);
+    }
+
+    @Override
+    public int size() {
+        return list.size();
+    }
+
+    @Override
+    public E set(final int index, final E element) {
+        final E old = list.set(index, element);
+        changed(index);
+        return old;
+    }
+
+    @Override
+    public void add(final int index, final E element) {
+        list.add(index, element);
+        modCount++;
+        structureChanged(index);
+    }
+
+    @Override
+    public E remove(final int index) {
+        final E old = list.remove(index);
+        modCount++;
+        structureChanged(index);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (list.isEmpty()) {
+            return;
+        }
+
+        list.clear();
+        modCount++;
+        structureChanged(0);
+    }
+
+    /**
+     * 标记某个下标的元素已经被修改，用于元素内部的字段被直接修改的情况
+     *
+     * @param index 被修改的下标
+     */
+    public void markChanged(final int index) {
+        changed(index);
+    }
+
+    @Override
+    public void bind(final DbData<?> owner, final String key, final double wholeFieldRatio) {
+        tracker.bind(owner, key, wholeFieldRatio);
+        reset();
+    }
+
+    @Override
+    public void flushTo(final IUpdater updater) {
+        if (!isChanged()) {
+            return;
+        }
+
+        final String key = tracker.getKey();
+        final int changedCount = changedIndexSet == null ? 0 : changedIndexSet.cardinality();
+        final int appendedCount = Math.max(0, list.size() - baseSize);
+        if (wholeChanged || (changedCount > 0 && appendedCount > 0) ||
+                tracker.isWholeField(updater, changedCount + appendedCount, list.size())) {
+            updater.update(key, list);
+        } else if (changedCount > 0) {
+            for (int i = changedIndexSet.nextSetBit(0); i >= 0; i = changedIndexSet.nextSetBit(i + 1)) {
+                updater.update(key + "." + i, list.get(i));
+            }
+        } else {
+            for (int i = baseSize; i < list.size(); i++) {
+                updater.push(key, list.get(i));
+            }
+        }
+
+        reset();
+    }
+
+    @Override
+    public long getMutationSequence() {
+        return tracker.getMutationSequence();
+    }
+
+    @Override
+    public boolean isChanged() {
+        //追加的元素又被删除时，不算作变化
+        return wholeChanged || list.size() > baseSize || (changedIndexSet != null && !changedIndexSet.isEmpty());
+    }
+
+    private void changed(final int index) {
+        if (!tracker.isBound()) {
+            return;
+        }
+
+        if (index < baseSize) {
+            if (changedIndexSet == null) {
+                changedIndexSet = new BitSet(baseSize);
+            }
+            changedIndexSet.set(index);
+        }
+        tracker.changed(this);
+    }
+
+    private void structureChanged(final int index) {
+        if (!tracker.isBound()) {
+            return;
+        }
+
+        if (index < baseSize) {
+            wholeChanged = true;
+        }
+        tracker.changed(this);
+    }
+
+    private void reset() {
+        baseSize = list.size();
+        changedIndexSet = null;
+        wholeChanged = false;
+    }
+}
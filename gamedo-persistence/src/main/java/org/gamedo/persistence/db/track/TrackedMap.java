@@ -0,0 +1,245 @@
+package org.gamedo.persistence.db.track;
+
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.IUpdater;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 可追踪变化的{@link Map}，记录两次存盘之间被put或者remove的key，存盘时为每个key生成“字段名.key”的$set（put）或者$unset（remove），
+ * 例如：
+ * <pre>
+ * private TrackedMap&lt;Long, Item&gt; itemMap = new TrackedMap&lt;&gt;();
+ * ...
+ * itemMap.put(1001L, item);
+ * itemMap.remove(1002L);
+ * </pre>
+ * 存盘时会生成：{$set: {"ComponentDbBag.itemMap.1001": {...}}, $unset: {"ComponentDbBag.itemMap.1002": ""}}。
+ * <p>
+ * <b>注意：</b>
+ * <ul>
+ * <li>字段的声明类型必须为{@link TrackedMap}，否则从mongoDB中加载时，会被替换为普通的{@link HashMap}
+ * <li>直接修改value内部的字段不会被追踪，需要调用{@link TrackedMap#markChanged(Object)}
+ * <li>key的字符串形式中包含“.”或者以“$”开头时，无法生成对应的路径，会退化为对整个字段的$set
+ * </ul>
+ * 与{@link HashMap}一样，本类不是线程安全的
+ *
+ * @param <K> key的类型
+ * @param <V> value的类型
+ */
+public class TrackedMap<K, V> extends AbstractMap<K, V> implements ITrackable {
+
+    private final Map<K, V> map;
+    private final Tracker tracker = new Tracker();
+    /**
+     * 自上次存盘以来，被put或者remove的key
+     */
+    private Set<Object> changedKeySet;
+    /**
+     * 是否发生了无法逐个key追踪的变化（例如：{@link TrackedMap#clear()}）
+     */
+    private boolean wholeChanged;
+
+    public TrackedMap() {
+        this(new HashMap<>());
+    }
+
+    /**
+     * @param map 被包装的map，之后对它的直接修改不会被追踪
+     */
+    public TrackedMap(final Map<K, V> map) {
+        this.map = map;
+    }
+
+    @Override
+    public int size() {
+        return map.size();
+    }
+
+    @Override
+    public boolean containsKey(final Object key) {
+        return map.containsKey(key);
+    }
+
+    @Override
+    public boolean containsValue(final Object value) {
+        return map.containsValue(value);
+    }
+
+    @Override
+    public V get(final Object key) {
+        return map.get(key);
+    }
+
+    @Override
+    public V put(final K key, final V value) {
+        final V old = map.put(key, value);
+        changed(key);
+        return old;
+    }
+
+    @Override
+    public V remove(final Object key) {
+        if (!map.containsKey(key)) {
+            return null;
+        }
+
+        final V old = map.remove(key);
+        changed(key);
+        return old;
+    }
+
+    @Override
+    public void clear() {
+        if (map.isEmpty()) {
+            return;
+        }
+
+        map.clear();
+        wholeChanged = true;
+        tracker.changed(this);
+    }
+
+    @Override
+    public Set<Entry<K, V>> entrySet() {
+        return new AbstractSet<Entry<K, V>>() {
+            @Override
+            public Iterator<Entry<K, V>> iterator() {
+                final Iterator<Entry<K, V>> iterator = map.entrySet().iterator();
+                return new Iterator<Entry<K, V>>() {
+                    private Entry<K, V> current;
+
+                    @Override
+                    public boolean hasNext() {
+                        return iterator.hasNext();
+                    }
+
+                    @Override
+                    public Entry<K, V> next() {
+                        current = iterator.next();
+                        return new TrackedEntry(current);
+                    }
+
+                    @Override
+                    public void remove() {
+                        iterator.remove();
+                        changed(current.getKey());
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return map.size();
+            }
+        };
+    }
+
+    /**
+     * 标记某个key的value已经被修改，用于value内部的字段被直接修改的情况
+     *
+     * @param key 被修改的key
+     */
+    public void markChanged(final K key) {
+        changed(key);
+    }
+
+    @Override
+    public void bind(final DbData<?> owner, final String key, final double wholeFieldRatio) {
+        tracker.bind(owner, key, wholeFieldRatio);
+        reset();
+    }
+
+    @Override
+    public void flushTo(final IUpdater updater) {
+        if (!isChanged()) {
+            return;
+        }
+
+        final String key = tracker.getKey();
+        if (wholeChanged || tracker.isWholeField(updater, changedKeySet.size(), map.size()) || !isValidKeySet()) {
+            updater.update(key, map);
+        } else {
+            for (Object changedKey : changedKeySet) {
+                final String path = key + "." + toKeyString(changedKey);
+                if (map.containsKey(changedKey)) {
+                    updater.update(path, map.get(changedKey));
+                } else {
+                    updater.unset(path);
+                }
+            }
+        }
+
+        reset();
+    }
+
+    @Override
+    public long getMutationSequence() {
+        return tracker.getMutationSequence();
+    }
+
+    @Override
+    public boolean isChanged() {
+        return wholeChanged || (changedKeySet != null && !changedKeySet.isEmpty());
+    }
+
+    private void changed(final Object key) {
+        if (!tracker.isBound()) {
+            return;
+        }
+
+        if (!wholeChanged) {
+            if (changedKeySet == null) {
+                changedKeySet = new LinkedHashSet<>();
+            }
+            changedKeySet.add(key);
+        }
+        tracker.changed(this);
+    }
+
+    private void reset() {
+        changedKeySet = null;
+        wholeChanged = false;
+    }
+
+    private boolean isValidKeySet() {
+        for (Object changedKey : changedKeySet) {
+            final String keyString = toKeyString(changedKey);
+            if (keyString.isEmpty() || keyString.indexOf('.') >= 0 || keyString.charAt(0) == '$') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 与{@link org.springframework.data.mongodb.core.convert.MappingMongoConverter}写入map时使用的key保持一致
+     */
+    private static String toKeyString(final Object key) {
+        return key instanceof Enum ? ((Enum<?>) key).name() : String.valueOf(key);
+    }
+
+    private final class TrackedEntry extends SimpleEntry<K, V> {
+        private static final long serialVersionUID = 1L;
+        private final transient Entry<K, V> entry;
+
+        private TrackedEntry(Entry<K, V> entry) {
+            super(entry);
+            this.entry = entry;
+        }
+
+        @Override
+        public V setValue(final V value) {
+            super.setValue(value);
+            final V old = entry.setValue(value);
+            changed(entry.getKey());
+            return old;
+        }
+    }
+}
@@ -0,0 +1,166 @@
+package org.gamedo.persistence.db.track;
+
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.IUpdater;
+
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * 可追踪变化的{@link Set}，记录两次存盘之间新添加的元素，存盘时为它们生成$addToSet。删除一个上次存盘时已经存在的元素，或者新添加的元素
+ * 数量超过阈值（详见{@link org.gamedo.persistence.PersistenceSettings#setWholeFieldRatio(double)}）时，会退化为对整个字段的$set。字段的声明类型必须为
+ * {@link TrackedSet}。与{@link LinkedHashSet}一样，本类不是线程安全的
+ *
+ * @param <E> 元素类型
+ */
+public class TrackedSet<E> extends AbstractSet<E> implements ITrackable {
+
+    private final Set<E> set;
+    private final Tracker tracker = new Tracker();
+    /**
+     * 自上次存盘以来，新添加的元素
+     */
+    private Set<E> addedSet;
+    private boolean wholeChanged;
+
+    public TrackedSet() {
+        this(new LinkedHashSet<>());
+    }
+
+    /**
+     * @param set 被包装的set，之后对它的直接修改不会被追踪
+     */
+    public TrackedSet(final Set<E> set) {
+        this.set = set;
+    }
+
+    @Override
+    public int size() {
+        return set.size();
+    }
+
+    @Override
+    public boolean contains(final Object o) {
+        return set.contains(o);
+    }
+
+    @Override
+    public boolean add(final E e) {
+        if (!set.add(e)) {
+            return false;
+        }
+
+        if (tracker.isBound()) {
+            if (!wholeChanged) {
+                if (addedSet == null) {
+                    addedSet = new LinkedHashSet<>();
+                }
+                addedSet.add(e);
+            }
+            tracker.changed(this);
+        }
+        return true;
+    }
+
+    @Override
+    public boolean remove(final Object o) {
+        if (!set.remove(o)) {
+            return false;
+        }
+
+        removed(o);
+        return true;
+    }
+
+    @Override
+    public void clear() {
+        if (set.isEmpty()) {
+            return;
+        }
+
+        set.clear();
+        if (tracker.isBound()) {
+            wholeChanged = true;
+            tracker.changed(this);
+        }
+    }
+
+    @Override
+    public Iterator<E> iterator() {
+        final Iterator<E> iterator = set.iterator();
+        return new Iterator<E>() {
+            private E current;
+
+            @Override
+            public boolean hasNext() {
+                return iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                current = iterator.next();
+                return current;
+            }
+
+            @Override
+            public void remove() {
+                iterator.remove();
+                removed(current);
+            }
+        };
+    }
+
+    @Override
+    public void bind(final DbData<?> owner, final String key, final double wholeFieldRatio) {
+        tracker.bind(owner, key, wholeFieldRatio);
+        reset();
+    }
+
+    @Override
+    public void flushTo(final IUpdater updater) {
+        if (!isChanged()) {
+            return;
+        }
+
+        final String key = tracker.getKey();
+        if (wholeChanged || tracker.isWholeField(updater, addedSet.size(), set.size())) {
+            updater.update(key, set);
+        } else {
+            for (E e : addedSet) {
+                updater.addToSet(key, e);
+            }
+        }
+
+        reset();
+    }
+
+    @Override
+    public long getMutationSequence() {
+        return tracker.getMutationSequence();
+    }
+
+    @Override
+    public boolean isChanged() {
+        return wholeChanged || (addedSet != null && !addedSet.isEmpty());
+    }
+
+    private void removed(final Object o) {
+        if (!tracker.isBound()) {
+            return;
+        }
+
+        //删除的是本次新添加的元素时，只需要不再添加它即可
+        if (addedSet == null || !addedSet.remove(o)) {
+            wholeChanged = true;
+            addedSet = null;
+        }
+        tracker.changed(this);
+    }
+
+    private void reset() {
+        addedSet = null;
+        wholeChanged = false;
+    }
+}
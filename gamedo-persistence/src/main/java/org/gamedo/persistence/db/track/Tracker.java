@@ -0,0 +1,66 @@
+package org.gamedo.persistence.db.track;
+
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updaters;
+
+/**
+ * 可追踪容器的绑定状态，负责在容器第一次发生变化时，将其注册到所属{@link DbData}当前的更新器中
+ */
+final class Tracker {
+    private DbData<?> owner;
+    private String key;
+    /**
+     * 被修改的元素数量超过容器大小的该比例时，退化为对整个字段的$set
+     */
+    private double wholeFieldRatio = Trackables.DEFAULT_WHOLE_FIELD_RATIO;
+    /**
+     * 已注册的更新器，更新器被摘下后，所属数据会持有一个新的更新器，下一次变化时需要重新注册
+     */
+    private IUpdater registeredUpdater;
+    /**
+     * 最后一次变化时的序号
+     */
+    private long mutationSequence;
+
+    void bind(final DbData<?> owner, final String key, final double wholeFieldRatio) {
+        this.owner = owner;
+        this.key = key;
+        this.wholeFieldRatio = wholeFieldRatio;
+        registeredUpdater = null;
+    }
+
+    String getKey() {
+        return key;
+    }
+
+    boolean isBound() {
+        return owner != null;
+    }
+
+    long getMutationSequence() {
+        return mutationSequence;
+    }
+
+    void changed(final ITrackable trackable) {
+        if (owner == null) {
+            return;
+        }
+
+        mutationSequence = Updaters.nextMutationSequence();
+
+        final IUpdater updater = owner.getUpdater();
+        if (updater != registeredUpdater) {
+            updater.track(trackable);
+            registeredUpdater = updater;
+        }
+    }
+
+    /**
+     * @return 变化的元素数量超过阈值，或者整个字段已经被{@link IUpdater#update(String, Object)}时，返回true
+     */
+    boolean isWholeField(final IUpdater updater, final int changedCount, final int size) {
+        return changedCount > wholeFieldRatio * Math.max(size, 1) ||
+                updater.modifies(updater.getPrefix() + key);
+    }
+}
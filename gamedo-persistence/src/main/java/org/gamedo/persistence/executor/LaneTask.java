@@ -0,0 +1,43 @@
+package org.gamedo.persistence.executor;
+
+/**
+ * 提交给{@link OrderedLaneExecutor}的任务，同一条通道（lane）内的任务严格按照提交顺序（FIFO）执行
+ *
+ * @param <R> 任务的执行结果类型
+ */
+public interface LaneTask<R> {
+
+    /**
+     * 执行任务
+     *
+     * @return 执行结果
+     */
+    R execute();
+
+    /**
+     * 尝试将一个排在本任务之后、且尚未开始执行的任务合并进本任务，只有在{@link OrderedLaneExecutor#isMergeEnabled()}为true时才会调用
+     *
+     * @param later 排在本任务之后的任务
+     * @return 合并后的任务，它的执行结果同时作为本任务和later的结果；如果无法合并，返回null
+     */
+    default LaneTask<R> merge(LaneTask<?> later) {
+        return null;
+    }
+
+    /**
+     * 本任务（尚未开始执行）是否可以被排在其后的later任务完全取代，只有在{@link OrderedLaneExecutor#isMergeEnabled()}为true时才会调用
+     *
+     * @param later 排在本任务之后的任务
+     * @return 如果later执行完毕后，本任务的执行与否对最终结果没有影响，返回true
+     */
+    default boolean isSupersededBy(LaneTask<?> later) {
+        return false;
+    }
+
+    /**
+     * @return 本任务被取代时，作为本任务的执行结果
+     */
+    default R getSupersededResult() {
+        return null;
+    }
+}
@@ -0,0 +1,264 @@
+package org.gamedo.persistence.executor;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.logging.Markers;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * 按通道（lane）保证执行顺序的执行器：相同通道（例如：同一个collection中相同id的文档）的任务严格按照提交顺序依次执行，不同通道的任务则完全并行。
+ * 本执行器内部不使用显式的锁，通道的入队、出队都通过{@link ConcurrentHashMap#compute}对单个通道原子地完成（任务的合并在compute之外计算，
+ * compute中只确认队尾的任务没有变化），通道中的任务执行完毕后，通道会被自动回收。
+ * <p>
+ * 当{@link OrderedLaneExecutor#isMergeEnabled()}为true时，尚未开始执行的任务会被尽可能地合并：
+ * <ul>
+ * <li>新提交的任务如果可以完全取代（{@link LaneTask#isSupersededBy(LaneTask)}）排队中的任务，则排队中的任务会被移除
+ * <li>新提交的任务如果可以与队尾的任务合并（{@link LaneTask#merge(LaneTask)}），则两者合并为一个任务
+ * </ul>
+ */
+@Log4j2
+public class OrderedLaneExecutor {
+
+    /**
+     * 单次调度中，一个通道最多连续执行的任务数量，超过该数量后，通道会被重新提交到线程池，避免热点通道长期占用线程。重新提交时如果线程池
+     * 拒绝执行或由调用者执行，则当前线程继续执行该通道，因此通道一旦开始执行，就不会因为线程池饱和而被阻塞或者被丢弃
+     */
+    private static final int MAX_TASKS_PER_DRAIN = 16;
+
+    private final ConcurrentHashMap<Object, Lane> laneMap = new ConcurrentHashMap<>();
+    @Getter
+    private final boolean mergeEnabled;
+
+    public OrderedLaneExecutor() {
+        this(false);
+    }
+
+    public OrderedLaneExecutor(boolean mergeEnabled) {
+        this.mergeEnabled = mergeEnabled;
+    }
+
+    /**
+     * 提交一个任务到指定的通道中
+     *
+     * @param laneKey  通道的key，必须正确地实现equals和hashCode
+     * @param task     要执行的任务
+     * @param executor 当通道空闲时，用于执行该通道的线程池
+     * @param <R>      任务的执行结果类型
+     * @return 返回执行该任务的CompletableFuture
+     */
+    @SuppressWarnings("unchecked")
+    public <R> CompletableFuture<R> submit(final Object laneKey, final LaneTask<R> task, final Executor executor) {
+        final Entry entry = new Entry((LaneTask<Object>) task);
+        final boolean[] idle = {false};
+        //合并在compute之外计算，compute只负责确认队尾的任务没有变化并替换，避免在持有通道的锁时执行耗时的合并
+        final Entry[] last = {null};
+        final Object[] lastTask = {null};
+        LaneTask<Object> merged = null;
+        while (true) {
+            final Entry expected = last[0];
+            final Object expectedTask = lastTask[0];
+            final LaneTask<Object> mergedTask = merged;
+            final boolean[] done = {false};
+            laneMap.compute(laneKey, (key, lane) -> {
+                if (lane == null) {
+                    lane = new Lane();
+                    idle[0] = true;
+                }
+
+                if (!mergeEnabled) {
+                    lane.pending.addLast(entry);
+                    done[0] = true;
+                    return lane;
+                }
+
+                lane.supersede(entry);
+                final Entry entryLast = lane.pending.peekLast();
+                if (entryLast != null && entryLast == expected && entryLast.task == expectedTask) {
+                    if (mergedTask != null) {
+                        entryLast.task = mergedTask;
+                        entryLast.merged.add(entry);
+                    } else {
+                        lane.pending.addLast(entry);
+                    }
+                    done[0] = true;
+                } else if (entryLast == null) {
+                    lane.pending.addLast(entry);
+                    done[0] = true;
+                } else {
+                    last[0] = entryLast;
+                    lastTask[0] = entryLast.task;
+                }
+
+                return lane;
+            });
+
+            if (done[0]) {
+                break;
+            }
+
+            //第一次尝试合并，或者队尾的任务在合并期间发生了变化，重新计算合并
+            try {
+                merged = ((LaneTask<Object>) lastTask[0]).merge(entry.task);
+            } catch (Throwable throwable) {
+                //被取代的任务已经挂在新提交的任务上，新提交的任务必须入队
+                log.error(Markers.GamedoPersistence, "exception caught on lane task merge, lane:" + laneKey, throwable);
+                merged = null;
+            }
+        }
+
+        if (idle[0]) {
+            schedule(laneKey, executor);
+        }
+
+        return (CompletableFuture<R>) entry.future;
+    }
+
+    /**
+     * @param laneKey 通道的key
+     * @return 如果该通道中有正在执行或者排队的任务，返回true
+     */
+    public boolean isLaneActive(final Object laneKey) {
+        return laneMap.containsKey(laneKey);
+    }
+
+    /**
+     * @return 当前正在执行或有任务排队的通道数量
+     */
+    public int getActiveLaneCount() {
+        return laneMap.size();
+    }
+
+    private void schedule(final Object laneKey, final Executor executor) {
+        try {
+            executor.execute(() -> drain(laneKey, executor));
+        } catch (RejectedExecutionException e) {
+            //线程池拒绝执行时，将通道中所有的任务都置为失败，并回收通道
+            final Lane lane = laneMap.remove(laneKey);
+            if (lane != null) {
+                lane.pending.forEach(entry -> entry.complete(null, e));
+            }
+            throw e;
+        }
+    }
+
+    private void drain(final Object laneKey, final Executor executor) {
+        while (true) {
+            for (int i = 0; i < MAX_TASKS_PER_DRAIN; i++) {
+                final Entry entry = poll(laneKey);
+                if (entry == null) {
+                    return;
+                }
+
+                try {
+                    entry.complete(entry.task.execute(), null);
+                } catch (Throwable throwable) {
+                    log.error(Markers.GamedoPersistence, "exception caught on lane task, lane:" + laneKey, throwable);
+                    entry.complete(null, throwable);
+                }
+            }
+
+            if (reschedule(laneKey, executor)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 通道连续执行了{@link OrderedLaneExecutor#MAX_TASKS_PER_DRAIN}个任务后，将通道重新提交到线程池。如果线程池拒绝执行，或者以caller-runs
+     * 的方式在当前线程中执行，则由当前线程继续执行该通道：通道此时仍然处于活跃状态，既不能丢弃其中的任务，也不能在当前线程中递归执行
+     *
+     * @param laneKey  通道的key
+     * @param executor 执行该通道的线程池
+     * @return 如果通道已经交给线程池的其他调度执行，返回true，否则当前线程需要继续执行该通道
+     */
+    private boolean reschedule(final Object laneKey, final Executor executor) {
+        final Thread thread = Thread.currentThread();
+        final boolean[] state = {false, false};
+        try {
+            executor.execute(() -> {
+                //线程池以caller-runs的方式执行，直接返回，由外层的drain继续执行
+                if (Thread.currentThread() == thread && !state[0]) {
+                    state[1] = true;
+                    return;
+                }
+
+                drain(laneKey, executor);
+            });
+        } catch (RejectedExecutionException e) {
+            log.warn(Markers.GamedoPersistence, "lane rescheduling rejected, continue draining on current thread, lane:{}",
+                    laneKey);
+            return false;
+        } finally {
+            state[0] = true;
+        }
+
+        return !state[1];
+    }
+
+    private Entry poll(final Object laneKey) {
+        final Entry[] polled = {null};
+        laneMap.computeIfPresent(laneKey, (key, lane) -> {
+            polled[0] = lane.pending.pollFirst();
+            //通道中没有任务了，回收通道
+            return polled[0] == null ? null : lane;
+        });
+
+        return polled[0];
+    }
+
+    private static final class Lane {
+        private final ArrayDeque<Entry> pending = new ArrayDeque<>();
+
+        /**
+         * 移除排队中的、可以被新提交的任务完全取代的任务
+         *
+         * @param entry 新提交的任务
+         */
+        private void supersede(final Entry entry) {
+            final Iterator<Entry> iterator = pending.iterator();
+            while (iterator.hasNext()) {
+                final Entry entryPending = iterator.next();
+                if (entryPending.task.isSupersededBy(entry.task)) {
+                    iterator.remove();
+                    entry.superseded.add(entryPending);
+                }
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final CompletableFuture<Object> future = new CompletableFuture<>();
+        /**
+         * 被合并进本任务的任务，它们和本任务共享执行结果
+         */
+        private final List<Entry> merged = new ArrayList<>(0);
+        /**
+         * 被本任务取代的任务，它们在本任务完成后，以{@link LaneTask#getSupersededResult()}作为结果
+         */
+        private final List<Entry> superseded = new ArrayList<>(0);
+        private LaneTask<Object> task;
+
+        private Entry(LaneTask<Object> task) {
+            this.task = task;
+        }
+
+        private void complete(final Object result, final Throwable throwable) {
+            if (throwable != null) {
+                future.completeExceptionally(throwable);
+            } else {
+                future.complete(result);
+            }
+
+            merged.forEach(entry -> entry.complete(result, throwable));
+            superseded.forEach(entry -> entry.complete(entry.task.getSupersededResult(), throwable));
+        }
+    }
+}
@@ -0,0 +1,323 @@
+package org.gamedo.persistence.executor;
+
+import lombok.Getter;
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.logging.Markers;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 持久化专用的线程池，用于替代{@link java.util.concurrent.ForkJoinPool#commonPool()}：mongoDB的io操作是阻塞的，放在commonPool中执行会
+ * 饿死并行流等其他commonPool的使用者，且commonPool的队列是无界的。本线程池：
+ * <ul>
+ * <li>支持固定数量的平台线程，或者每个任务一个虚拟线程（jdk21及以上）
+ * <li>使用有界队列，队列满时按照{@link PersistenceExecutorConfig.RejectionPolicy}进行处理，但是由本线程池自己的线程提交任务（例如
+ * {@link OrderedLaneExecutor}的通道在执行完一批任务后重新提交自己）时，{@link PersistenceExecutorConfig.RejectionPolicy#CALLER_BLOCKS}
+ * 会退化为{@link PersistenceExecutorConfig.RejectionPolicy#CALLER_RUNS}：工作线程阻塞等待一个只能由工作线程消费的队列会导致死锁
+ * <li>统计队列深度、等待时间等指标
+ * </ul>
+ */
+@Log4j2
+public class PersistenceExecutor implements Executor, AutoCloseable {
+
+    /**
+     * 当前线程正在为哪个线程池执行任务
+     */
+    private static final ThreadLocal<PersistenceExecutor> CURRENT = new ThreadLocal<>();
+
+    @Getter
+    private final PersistenceExecutorConfig config;
+    @Getter
+    private final PersistenceExecutorConfig.Mode mode;
+    private final ExecutorService executorService;
+    /**
+     * {@link PersistenceExecutorConfig.Mode#VIRTUAL}模式下，限制同时执行的任务数量
+     */
+    private final Semaphore permits;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final LongAdder submittedCount = new LongAdder();
+    private final LongAdder completedCount = new LongAdder();
+    private final LongAdder rejectedCount = new LongAdder();
+    private final LongAdder totalWaitNanos = new LongAdder();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+
+    public PersistenceExecutor() {
+        this(PersistenceExecutorConfig.DEFAULT);
+    }
+
+    public PersistenceExecutor(PersistenceExecutorConfig config) {
+        this.config = config;
+
+        final ExecutorService virtualExecutorService = config.getMode() == PersistenceExecutorConfig.Mode.VIRTUAL ?
+                newVirtualThreadPerTaskExecutor() : null;
+        if (virtualExecutorService != null) {
+            mode = PersistenceExecutorConfig.Mode.VIRTUAL;
+            executorService = virtualExecutorService;
+            permits = new Semaphore(config.getQueueCapacity());
+        } else {
+            mode = PersistenceExecutorConfig.Mode.PLATFORM;
+            executorService = new ThreadPoolExecutor(config.getThreads(),
+                    config.getThreads(),
+                    0L,
+                    TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<>(config.getQueueCapacity()),
+                    newThreadFactory(config.getThreadNamePrefix()),
+                    newRejectedExecutionHandler(config.getRejectionPolicy()));
+            permits = null;
+        }
+
+        log.info(Markers.GamedoPersistence, "persistence executor created, mode:{}, config:{}", mode, config);
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        final TimedTask task = new TimedTask(command);
+
+        queueDepth.incrementAndGet();
+        submittedCount.increment();
+        try {
+            if (permits == null) {
+                executorService.execute(task);
+            } else {
+                executeVirtual(task);
+            }
+        } catch (RejectedExecutionException e) {
+            queueDepth.decrementAndGet();
+            rejectedCount.increment();
+            throw e;
+        }
+    }
+
+    private void executeVirtual(final TimedTask task) {
+        switch (config.getRejectionPolicy()) {
+            case ABORT:
+                if (!permits.tryAcquire()) {
+                    throw new RejectedExecutionException("too many persistence tasks in flight, capacity:" +
+                            config.getQueueCapacity());
+                }
+                break;
+            case CALLER_RUNS:
+                if (!permits.tryAcquire()) {
+                    rejectedCount.increment();
+                    task.run();
+                    return;
+                }
+                break;
+            case CALLER_BLOCKS:
+                if (isWorkerThread()) {
+                    if (!permits.tryAcquire()) {
+                        rejectedCount.increment();
+                        task.run();
+                        return;
+                    }
+                } else {
+                    permits.acquireUninterruptibly();
+                }
+                break;
+        }
+
+        try {
+            executorService.execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    permits.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * @return 如果当前线程是本线程池的工作线程（或者正在以caller-runs的方式执行本线程池的任务），返回true
+     */
+    public boolean isWorkerThread() {
+        return CURRENT.get() == this;
+    }
+
+    /**
+     * @return 已提交但尚未开始执行的任务数量
+     */
+    public int getQueueDepth() {
+        return queueDepth.get();
+    }
+
+    /**
+     * @return 已提交的任务总数
+     */
+    public long getSubmittedCount() {
+        return submittedCount.sum();
+    }
+
+    /**
+     * @return 已执行完毕的任务总数
+     */
+    public long getCompletedCount() {
+        return completedCount.sum();
+    }
+
+    /**
+     * @return 因为队列满而被拒绝（包括{@link PersistenceExecutorConfig.RejectionPolicy#CALLER_RUNS}策略下由调用者执行）的任务总数
+     */
+    public long getRejectedCount() {
+        return rejectedCount.sum();
+    }
+
+    /**
+     * @return 任务从提交到开始执行的平均等待时间（纳秒）
+     */
+    public long getAverageWaitNanos() {
+        final long completed = completedCount.sum();
+        return completed == 0 ? 0 : totalWaitNanos.sum() / completed;
+    }
+
+    /**
+     * @return 任务从提交到开始执行的最长等待时间（纳秒）
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * 关闭线程池，并在{@link PersistenceExecutorConfig#getShutdownTimeout()}内等待已提交的任务执行完毕
+     */
+    public void shutdown() {
+        executorService.shutdown();
+        try {
+            if (!executorService.awaitTermination(config.getShutdownTimeout().toMillis(), TimeUnit.MILLISECONDS)) {
+                log.warn(Markers.GamedoPersistence, "persistence executor shutdown timeout, queue depth:{}",
+                        queueDepth.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    @Override
+    public void close() {
+        shutdown();
+    }
+
+    @Override
+    public String toString() {
+        return "PersistenceExecutor{" +
+                "mode=" + mode +
+                ", queueDepth=" + getQueueDepth() +
+                ", submitted=" + getSubmittedCount() +
+                ", completed=" + getCompletedCount() +
+                ", rejected=" + getRejectedCount() +
+                ", averageWaitNanos=" + getAverageWaitNanos() +
+                ", maxWaitNanos=" + getMaxWaitNanos() +
+                '}';
+    }
+
+    private final class TimedTask implements Runnable {
+        private final Runnable command;
+        private final long submitNanos = System.nanoTime();
+
+        private TimedTask(Runnable command) {
+            this.command = command;
+        }
+
+        @Override
+        public void run() {
+            final long waitNanos = System.nanoTime() - submitNanos;
+            queueDepth.decrementAndGet();
+            totalWaitNanos.add(waitNanos);
+            maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+            final PersistenceExecutor previous = CURRENT.get();
+            CURRENT.set(PersistenceExecutor.this);
+            try {
+                command.run();
+            } finally {
+                if (previous == null) {
+                    CURRENT.remove();
+                } else {
+                    CURRENT.set(previous);
+                }
+                completedCount.increment();
+            }
+        }
+    }
+
+    private static ThreadFactory newThreadFactory(final String threadNamePrefix) {
+        final AtomicInteger threadNumber = new AtomicInteger();
+        return r -> {
+            final Thread thread = new Thread(r, threadNamePrefix + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    private RejectedExecutionHandler newRejectedExecutionHandler(final PersistenceExecutorConfig.RejectionPolicy policy) {
+        switch (policy) {
+            case ABORT:
+                return new ThreadPoolExecutor.AbortPolicy();
+            case CALLER_RUNS:
+                return (r, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("the persistence executor has been shutdown.");
+                    }
+
+                    rejectedCount.increment();
+                    r.run();
+                };
+            case CALLER_BLOCKS:
+            default:
+                return (r, executor) -> {
+                    if (executor.isShutdown()) {
+                        throw new RejectedExecutionException("the persistence executor has been shutdown.");
+                    }
+
+                    //工作线程不能阻塞等待队列，否则所有工作线程都阻塞时将没有线程消费队列
+                    if (isWorkerThread()) {
+                        rejectedCount.increment();
+                        r.run();
+                        return;
+                    }
+
+                    try {
+                        executor.getQueue().put(r);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        throw new RejectedExecutionException("interrupted while waiting for the persistence queue.", e);
+                    }
+
+                    //等待队列期间线程池被关闭，工作线程可能已经全部退出，任务会一直留在队列中，因此移除它（没有被工作线程取走时）并拒绝
+                    if (executor.isShutdown() && executor.getQueue().remove(r)) {
+                        throw new RejectedExecutionException("the persistence executor has been shutdown.");
+                    }
+                };
+        }
+    }
+
+    /**
+     * 通过反射创建虚拟线程池，从而不强制依赖jdk21
+     *
+     * @return 虚拟线程池，如果当前jdk不支持虚拟线程，返回null
+     */
+    private static ExecutorService newVirtualThreadPerTaskExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            log.warn(Markers.GamedoPersistence, "virtual thread is not supported by current jdk:{}, fall back to platform thread.",
+                    System.getProperty("java.version"));
+            return null;
+        }
+    }
+}
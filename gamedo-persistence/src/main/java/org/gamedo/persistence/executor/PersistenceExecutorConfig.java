@@ -0,0 +1,81 @@
+package org.gamedo.persistence.executor;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * {@link PersistenceExecutor}的配置
+ */
+@Value
+@Builder
+public class PersistenceExecutorConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final PersistenceExecutorConfig DEFAULT = PersistenceExecutorConfig.builder().build();
+
+    /**
+     * 线程模式
+     */
+    @Builder.Default
+    Mode mode = Mode.PLATFORM;
+
+    /**
+     * {@link Mode#PLATFORM}模式下的线程数量，由于mongoDB的io操作是阻塞的，因此默认值为cpu核心数的2倍
+     */
+    @Builder.Default
+    int threads = Runtime.getRuntime().availableProcessors() * 2;
+
+    /**
+     * 等待队列的容量：{@link Mode#PLATFORM}模式下为等待执行的任务数量上限，{@link Mode#VIRTUAL}模式下为同时执行的任务数量上限
+     */
+    @Builder.Default
+    int queueCapacity = 10000;
+
+    /**
+     * 等待队列满时的处理策略
+     */
+    @Builder.Default
+    RejectionPolicy rejectionPolicy = RejectionPolicy.CALLER_BLOCKS;
+
+    /**
+     * 线程名前缀
+     */
+    @Builder.Default
+    String threadNamePrefix = "gamedo-persistence-";
+
+    /**
+     * 关闭时等待已提交任务执行完毕的最长时间
+     */
+    @Builder.Default
+    Duration shutdownTimeout = Duration.ofSeconds(30);
+
+    public enum Mode {
+        /**
+         * 使用固定数量的平台线程
+         */
+        PLATFORM,
+        /**
+         * 每个任务使用一个虚拟线程，需要jdk21及以上版本，否则退化为{@link Mode#PLATFORM}
+         */
+        VIRTUAL,
+    }
+
+    public enum RejectionPolicy {
+        /**
+         * 抛出{@link java.util.concurrent.RejectedExecutionException}
+         */
+        ABORT,
+        /**
+         * 在调用者线程上直接执行
+         */
+        CALLER_RUNS,
+        /**
+         * 阻塞调用者线程，直到队列有空闲位置；如果调用者本身就是线程池的工作线程，则由调用者执行，避免死锁
+         */
+        CALLER_BLOCKS,
+    }
+}
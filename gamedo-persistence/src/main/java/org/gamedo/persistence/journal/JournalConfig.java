@@ -0,0 +1,45 @@
+package org.gamedo.persistence.journal;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * {@link WriteJournal}的配置
+ */
+@Value
+@Builder
+public class JournalConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final JournalConfig DEFAULT = JournalConfig.builder().build();
+
+    /**
+     * 日志段文件所在的目录，同一个目录同时只能被一个进程使用
+     */
+    @Builder.Default
+    String directory = "gamedo-journal";
+
+    /**
+     * 单个日志段文件的大小（字节），写满之后切换到一个新的日志段
+     */
+    @Builder.Default
+    int segmentSize = 64 * 1024 * 1024;
+
+    /**
+     * 组提交的时间间隔：在该时间间隔内追加的所有日志只执行一次fsync。进程崩溃时，已经追加的日志依然保留在操作系统的页缓存中，不会丢失，只有
+     * 操作系统崩溃或者断电时，才可能丢失最近一个时间间隔内的日志
+     */
+    @Builder.Default
+    Duration groupCommitInterval = Duration.ofMillis(10);
+
+    /**
+     * 最旧的日志段中未被确认的日志不超过该数量时，这些日志会被复制到当前日志段的末尾，然后删除最旧的日志段，从而避免少量长时间未被确认的
+     * 日志阻止旧日志段的回收
+     */
+    @Builder.Default
+    int compactMaxLiveEntries = 1024;
+}
@@ -0,0 +1,45 @@
+package org.gamedo.persistence.journal;
+
+import lombok.Value;
+import org.bson.Document;
+
+import java.util.List;
+
+/**
+ * 一条尚未被确认的日志
+ */
+@Value
+public class JournalEntry {
+    /**
+     * 日志的序号，按照追加的顺序递增
+     */
+    long sequence;
+    /**
+     * 写入的collection
+     */
+    String collectionName;
+    /**
+     * 写入的数据类型的全限定名
+     */
+    String className;
+    /**
+     * 写操作的类型
+     */
+    JournalOperation operation;
+    /**
+     * 增量更新的文档的id，对于存储，为null（id包含在{@link JournalEntry#getDocument()}中）
+     */
+    Object id;
+    /**
+     * 增量更新的内容，对于存储，为空列表
+     */
+    List<Document> updateList;
+    /**
+     * 存储的完整文档，对于增量更新，为null
+     */
+    Document document;
+    /**
+     * 单独存储组件时，组件所在的字段名，其他情况为null
+     */
+    String fieldName;
+}
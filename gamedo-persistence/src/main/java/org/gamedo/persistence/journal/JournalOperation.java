@@ -0,0 +1,23 @@
+package org.gamedo.persistence.journal;
+
+/**
+ * 日志所记录的写操作的类型
+ */
+public enum JournalOperation {
+    /**
+     * 增量更新，按顺序执行{@link JournalEntry#getUpdateList()}中的每一个更新
+     */
+    UPDATE,
+    /**
+     * 单独存储一个组件，只覆盖文档中的组件字段（{@link JournalEntry#getFieldName()}）
+     */
+    SAVE_COMPONENT,
+    /**
+     * 存储一个只加载了部分组件的实体，只覆盖文档中已加载的字段
+     */
+    SAVE_PARTIAL,
+    /**
+     * 存储一个完整的实体，覆盖整个文档
+     */
+    SAVE,
+}
@@ -0,0 +1,646 @@
+package org.gamedo.persistence.journal;
+
+import com.mongodb.MongoClientSettings;
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.bson.codecs.Codec;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.ObjectId;
+import org.gamedo.persistence.logging.Markers;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * 本地的写前日志（write-ahead journal）：增量更新和存储在提交到异步线程池之前，先将要执行的写操作追加到一个基于内存映射文件的日志中，
+ * 写入mongoDB成功之后再追加一条确认日志。进程在写入mongoDB之前退出时，未被确认的日志在下次启动时通过
+ * {@link WriteJournal#pending()}读取并重放，从而不再需要为了持久性而频繁地刷新。
+ * <p>
+ * 日志由多个固定大小的日志段文件组成，当前日志段写满之后切换到一个新的日志段。追加日志只是写入内存映射的缓冲区，由后台线程按照
+ * {@link JournalConfig#getGroupCommitInterval()}执行组提交（一次fsync覆盖该时间间隔内的所有日志）。同一个后台线程还负责回收旧的日志
+ * 段：从最旧的日志段开始，所有日志都被确认的日志段直接删除，只剩少量未被确认的日志的日志段，先将这些日志复制到当前日志段的末尾再删除。
+ * 日志段只能按照从旧到新的顺序回收，否则被删除的日志段中的确认日志丢失后，更旧的日志段中已经确认过的日志会被再次重放。
+ * <p>
+ * 每一条日志的格式为：长度（int）、校验和（int）、类型（byte）、序号（long）、内容（BSON文档），长度最后写入，因此写入到一半的日志在
+ * 恢复时被视为日志段的末尾。
+ * <p>
+ * 同一个文档（collection，id）的写入在有序通道中按照追加的顺序执行，因此某条日志被确认时，同一个文档更早的、尚未被确认的日志（例如：
+ * 执行失败的写入）也被一并确认：它们如果在重放时才执行，就会覆盖掉更新的写入。
+ * <p>
+ * <b>注意：</b>重放的语义是至少一次：如果进程恰好在mongoDB写入成功、但确认日志尚未追加时退出，该写入会被再次执行，$set和存储是幂等的，
+ * 而$inc、$push等增量操作会被重复执行
+ */
+@Log4j2
+public class WriteJournal implements AutoCloseable {
+
+    private static final String SEGMENT_PREFIX = "journal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final int HEADER_SIZE = 4 + 4 + 1 + 8;
+    private static final byte TYPE_RECORD = 1;
+    private static final byte TYPE_ACK = 2;
+
+    private static final String ID_FIELD_NAME = "_id";
+    private static final String KEY_COLLECTION = "c";
+    private static final String KEY_CLASS = "k";
+    private static final String KEY_OPERATION = "o";
+    private static final String KEY_ID = "i";
+    private static final String KEY_UPDATES = "u";
+    private static final String KEY_DOCUMENT = "d";
+    private static final String KEY_FIELD = "f";
+    private static final byte[] EMPTY_PAYLOAD = new byte[0];
+
+    private final JournalConfig config;
+    private final Path directory;
+    private final Codec<Document> codec;
+    /**
+     * 从旧到新排列的日志段，最后一个为当前正在追加的日志段
+     */
+    private final Deque<Segment> segmentDeque = new ArrayDeque<>();
+    /**
+     * 未被确认的日志的序号到其位置的映射
+     */
+    private final Map<Long, Location> liveMap = new HashMap<>();
+    /**
+     * 文档的key（详见{@link WriteJournal#documentKey(String, Object)}）到它未被确认的日志的序号的映射，序号升序排列
+     */
+    private final Map<Object, Deque<Long>> documentLiveMap = new HashMap<>();
+    /**
+     * 组提交和日志段回收共用的锁：回收会关闭并删除日志段，不能与正在执行fsync的组提交同时进行。追加和确认日志不需要获取该锁，因此不会被
+     * fsync阻塞；需要同时持有两把锁时，总是先获取该锁
+     */
+    private final Object commitLock = new Object();
+    private final LongAdder commitCount = new LongAdder();
+    private final Thread committer;
+    private Segment current;
+    private long nextSequence = 1;
+    private int nextSegmentIndex;
+    private volatile boolean closed;
+
+    public WriteJournal(JournalConfig config) {
+        this(config, MongoClientSettings.getDefaultCodecRegistry());
+    }
+
+    /**
+     * @param config        配置
+     * @param codecRegistry 编解码日志内容的注册表，应该和写入mongoDB时使用的注册表一致（例如：
+     *                      {@link org.springframework.data.mongodb.MongoDatabaseFactory#getCodecRegistry()}）
+     */
+    public WriteJournal(JournalConfig config, CodecRegistry codecRegistry) {
+        this.config = config;
+        directory = Paths.get(config.getDirectory());
+        codec = codecRegistry.get(Document.class);
+
+        try {
+            Files.createDirectories(directory);
+            recover();
+            current = createSegment(config.getSegmentSize());
+        } catch (IOException e) {
+            throw new RuntimeException("open write journal failed, directory:" + directory.toAbsolutePath(), e);
+        }
+
+        log.info(Markers.GamedoPersistence, "write journal opened, directory:{}, segments:{}, pending:{}",
+                directory.toAbsolutePath(),
+                segmentDeque.size(),
+                liveMap.size());
+
+        committer = new Thread(this::commitLoop, "gamedo-write-journal");
+        committer.setDaemon(true);
+        committer.start();
+    }
+
+    /**
+     * 追加一次增量更新
+     *
+     * @param collectionName 写入的collection
+     * @param className      写入的数据类型的全限定名，重放时使用该类型映射查询和更新
+     * @param id             文档的id
+     * @param updateList     需要按顺序执行的增量更新
+     * @return 日志的序号，写入成功之后需要使用该序号调用{@link WriteJournal#acknowledge(long)}
+     */
+    public long appendUpdate(final String collectionName,
+                             final String className,
+                             final Object id,
+                             final List<? extends UpdateDefinition> updateList) {
+        final List<Document> updateObjectList = new ArrayList<>(updateList.size());
+        for (UpdateDefinition update : updateList) {
+            updateObjectList.add(update.getUpdateObject());
+        }
+
+        return append(documentKey(collectionName, id), new Document(KEY_COLLECTION, collectionName)
+                .append(KEY_CLASS, className)
+                .append(KEY_OPERATION, JournalOperation.UPDATE.name())
+                .append(KEY_ID, id)
+                .append(KEY_UPDATES, updateObjectList));
+    }
+
+    /**
+     * 追加一次存储
+     *
+     * @param collectionName 写入的collection
+     * @param className      写入的数据类型的全限定名
+     * @param operation      存储的类型
+     * @param fieldName      单独存储组件时，组件所在的字段名，其他情况为null
+     * @param document       要存储的、已经转换完毕的文档，必须包含“_id”字段
+     * @return 日志的序号，写入成功之后需要使用该序号调用{@link WriteJournal#acknowledge(long)}
+     */
+    public long appendSave(final String collectionName,
+                           final String className,
+                           final JournalOperation operation,
+                           final String fieldName,
+                           final Bson document) {
+        return append(documentKey(collectionName, idOf(document)), new Document(KEY_COLLECTION, collectionName)
+                .append(KEY_CLASS, className)
+                .append(KEY_OPERATION, operation.name())
+                .append(KEY_FIELD, fieldName)
+                .append(KEY_DOCUMENT, document));
+    }
+
+    private long append(final Object documentKey, final Document payload) {
+        //在调用者线程上序列化，锁内只做内存拷贝
+        final BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+        codec.encode(new BsonBinaryWriter(outputBuffer), payload, EncoderContext.builder().build());
+        final byte[] bytes = outputBuffer.toByteArray();
+
+        synchronized (this) {
+            ensureOpen();
+            final long sequence = nextSequence++;
+            liveMap.put(sequence, write(TYPE_RECORD, sequence, bytes, documentKey));
+            if (documentKey != null) {
+                documentLiveMap.computeIfAbsent(documentKey, key -> new ArrayDeque<>(1)).addLast(sequence);
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * 确认一条日志对应的写入已经成功，被确认的日志不会再被重放，同一个文档更早的、尚未被确认的日志也被一并确认，详见{@link WriteJournal}
+     *
+     * @param sequence 日志的序号
+     */
+    public synchronized void acknowledge(final long sequence) {
+        if (closed) {
+            return;
+        }
+
+        final Location location = liveMap.remove(sequence);
+        if (location == null) {
+            return;
+        }
+
+        release(sequence, location);
+        if (location.documentKey == null) {
+            return;
+        }
+
+        final Deque<Long> sequenceDeque = documentLiveMap.get(location.documentKey);
+        int supersededCount = 0;
+        while (!sequenceDeque.isEmpty() && sequenceDeque.peekFirst() < sequence) {
+            final Long sequenceOlder = sequenceDeque.pollFirst();
+            final Location locationOlder = liveMap.remove(sequenceOlder);
+            if (locationOlder != null) {
+                release(sequenceOlder, locationOlder);
+                supersededCount++;
+            }
+        }
+
+        sequenceDeque.remove(sequence);
+        if (sequenceDeque.isEmpty()) {
+            documentLiveMap.remove(location.documentKey);
+        }
+
+        if (supersededCount > 0) {
+            log.debug(Markers.GamedoPersistence, "older journal entries superseded, document:{}, sequence:{}, count:{}",
+                    location.documentKey,
+                    sequence,
+                    supersededCount);
+        }
+    }
+
+    /**
+     * 追加一条确认日志，调用者必须持有锁，并且已经将其从{@link WriteJournal#liveMap}中移除
+     */
+    private void release(final long sequence, final Location location) {
+        location.segment.liveSet.remove(sequence);
+        write(TYPE_ACK, sequence, EMPTY_PAYLOAD, null);
+    }
+
+    /**
+     * 读取所有未被确认的日志，一般在启动时调用一次，重放之后再逐个确认
+     *
+     * @return 按照序号升序排列的日志
+     */
+    public synchronized List<JournalEntry> pending() {
+        final List<Long> sequenceList = new ArrayList<>(liveMap.keySet());
+        Collections.sort(sequenceList);
+
+        final List<JournalEntry> entryList = new ArrayList<>(sequenceList.size());
+        for (Long sequence : sequenceList) {
+            entryList.add(decode(sequence, readPayload(liveMap.get(sequence))));
+        }
+
+        return entryList;
+    }
+
+    /**
+     * @return 未被确认的日志数量
+     */
+    public synchronized int getPendingCount() {
+        return liveMap.size();
+    }
+
+    /**
+     * @return 执行过的组提交（fsync）次数
+     */
+    public long getCommitCount() {
+        return commitCount.sum();
+    }
+
+    /**
+     * 立刻执行一次组提交，将所有已追加的日志刷到磁盘上
+     */
+    public void commit() {
+        synchronized (commitLock) {
+            if (force()) {
+                commitCount.increment();
+            }
+        }
+    }
+
+    /**
+     * 将所有日志段中已追加的日志刷到磁盘上，调用者必须持有{@link WriteJournal#commitLock}
+     *
+     * @return 如果至少刷新了一个日志段，返回true
+     */
+    private boolean force() {
+        final List<Segment> segmentList;
+        synchronized (this) {
+            segmentList = new ArrayList<>(segmentDeque);
+        }
+
+        boolean forced = false;
+        for (Segment segment : segmentList) {
+            if (segment.dirty) {
+                segment.dirty = false;
+                segment.buffer.force();
+                forced = true;
+            }
+        }
+
+        return forced;
+    }
+
+    @Override
+    public void close() {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+        }
+
+        LockSupport.unpark(committer);
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        commit();
+        synchronized (commitLock) {
+            synchronized (this) {
+                segmentDeque.forEach(Segment::close);
+            }
+        }
+
+        log.info(Markers.GamedoPersistence, "write journal closed, directory:{}, pending:{}",
+                directory.toAbsolutePath(),
+                liveMap.size());
+    }
+
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("the write journal is closed, directory:" + directory.toAbsolutePath());
+        }
+    }
+
+    private void commitLoop() {
+        final long intervalNanos = config.getGroupCommitInterval().toNanos();
+        while (!closed) {
+            LockSupport.parkNanos(intervalNanos);
+            try {
+                commit();
+                compact();
+            } catch (Exception e) {
+                log.error(Markers.GamedoPersistence, "exception caught on write journal commit.", e);
+            }
+        }
+    }
+
+    /**
+     * 从最旧的日志段开始回收，详见{@link WriteJournal}
+     */
+    private void compact() {
+        synchronized (commitLock) {
+            final List<Segment> deletedList = new ArrayList<>();
+            synchronized (this) {
+                while (!closed && segmentDeque.size() > 1) {
+                    final Segment oldest = segmentDeque.peekFirst();
+                    if (oldest.liveSet.size() > config.getCompactMaxLiveEntries()) {
+                        break;
+                    }
+
+                    final List<Long> sequenceList = new ArrayList<>(oldest.liveSet);
+                    Collections.sort(sequenceList);
+                    for (Long sequence : sequenceList) {
+                        final Location location = liveMap.get(sequence);
+                        liveMap.put(sequence, write(TYPE_RECORD, sequence, readPayload(location), location.documentKey));
+                    }
+
+                    segmentDeque.pollFirst();
+                    deletedList.add(oldest);
+                }
+            }
+
+            if (deletedList.isEmpty()) {
+                return;
+            }
+
+            //被复制的日志落盘之后，才能删除旧的日志段
+            force();
+            for (Segment segment : deletedList) {
+                segment.close();
+                try {
+                    Files.deleteIfExists(segment.path);
+                    log.debug(Markers.GamedoPersistence, "write journal segment deleted, path:{}", segment.path);
+                } catch (IOException e) {
+                    log.warn(Markers.GamedoPersistence, "delete write journal segment failed, path:" + segment.path, e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 在当前日志段的末尾写入一条日志，空间不足时切换到一个新的日志段，调用者必须持有锁
+     */
+    private Location write(final byte type, final long sequence, final byte[] payload, final Object documentKey) {
+        final int size = HEADER_SIZE + payload.length;
+        //至少保留4个字节作为日志段末尾的0长度
+        if (current.buffer.remaining() < size + 4) {
+            current = createUnchecked(Math.max(config.getSegmentSize(), size + 4));
+        }
+
+        final MappedByteBuffer buffer = current.buffer;
+        final int offset = buffer.position();
+        buffer.position(offset + 4);
+        buffer.putInt(checksum(type, sequence, payload));
+        buffer.put(type);
+        buffer.putLong(sequence);
+        buffer.put(payload);
+        //长度最后写入，写入到一半的日志在恢复时被视为日志段的末尾
+        buffer.putInt(offset, payload.length);
+        current.dirty = true;
+
+        if (type == TYPE_RECORD) {
+            current.liveSet.add(sequence);
+        }
+        return new Location(current, offset, payload.length, documentKey);
+    }
+
+    private Segment createUnchecked(final int size) {
+        try {
+            return createSegment(size);
+        } catch (IOException e) {
+            throw new RuntimeException("create write journal segment failed, directory:" + directory.toAbsolutePath(), e);
+        }
+    }
+
+    private Segment createSegment(final int size) throws IOException {
+        final Path path = directory.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, nextSegmentIndex++, SEGMENT_SUFFIX));
+        final FileChannel channel = FileChannel.open(path,
+                StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        final Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+        segmentDeque.addLast(segment);
+        return segment;
+    }
+
+    /**
+     * 按照从旧到新的顺序扫描所有已存在的日志段，重建未被确认的日志的索引
+     */
+    private void recover() throws IOException {
+        final List<Path> pathList = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            stream.forEach(pathList::add);
+        }
+        Collections.sort(pathList);
+
+        for (Path path : pathList) {
+            final String fileName = path.getFileName().toString();
+            final int index = Integer.parseInt(fileName.substring(SEGMENT_PREFIX.length(),
+                    fileName.length() - SEGMENT_SUFFIX.length()));
+            nextSegmentIndex = Math.max(nextSegmentIndex, index + 1);
+
+            final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            final Segment segment = new Segment(path, channel, channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size()));
+            segmentDeque.addLast(segment);
+            scan(segment);
+        }
+
+        //恢复出的未被确认的日志很少，解码它们以重建文档到日志的映射
+        final List<Long> sequenceList = new ArrayList<>(liveMap.keySet());
+        Collections.sort(sequenceList);
+        for (Long sequence : sequenceList) {
+            final Location location = liveMap.get(sequence);
+            final JournalEntry entry = decode(sequence, readPayload(location));
+            final Object documentKey = documentKey(entry.getCollectionName(),
+                    entry.getDocument() != null ? entry.getDocument().get(ID_FIELD_NAME) : entry.getId());
+            liveMap.put(sequence, new Location(location.segment, location.offset, location.length, documentKey));
+            if (documentKey != null) {
+                documentLiveMap.computeIfAbsent(documentKey, key -> new ArrayDeque<>(1)).addLast(sequence);
+            }
+        }
+    }
+
+    private void scan(final Segment segment) {
+        final MappedByteBuffer buffer = segment.buffer;
+        while (buffer.remaining() >= HEADER_SIZE) {
+            final int offset = buffer.position();
+            final int length = buffer.getInt();
+            if (length <= 0 && !(length == 0 && isAck(buffer, offset))) {
+                break;
+            }
+            if (length < 0 || buffer.remaining() < HEADER_SIZE - 4 + length) {
+                break;
+            }
+
+            final int checksum = buffer.getInt();
+            final byte type = buffer.get();
+            final long sequence = buffer.getLong();
+            final byte[] payload = new byte[length];
+            buffer.get(payload);
+            if (checksum != checksum(type, sequence, payload)) {
+                log.warn(Markers.GamedoPersistence, "write journal checksum mismatch, treat as the end of segment, " +
+                        "path:{}, offset:{}", segment.path, offset);
+                break;
+            }
+
+            nextSequence = Math.max(nextSequence, sequence + 1);
+            final Location previous = type == TYPE_RECORD ?
+                    liveMap.put(sequence, new Location(segment, offset, length, null)) :
+                    liveMap.remove(sequence);
+            if (previous != null) {
+                //被复制到更新的日志段中的日志，或者已经被确认的日志
+                previous.segment.liveSet.remove(sequence);
+            }
+            if (type == TYPE_RECORD) {
+                segment.liveSet.add(sequence);
+            }
+        }
+
+        buffer.position(0);
+    }
+
+    /**
+     * 确认日志的内容为空，长度为0，需要通过类型区分确认日志和日志段的末尾
+     */
+    private static boolean isAck(final MappedByteBuffer buffer, final int offset) {
+        return buffer.get(offset + 8) == TYPE_ACK;
+    }
+
+    private byte[] readPayload(final Location location) {
+        final ByteBuffer buffer = location.segment.buffer.duplicate();
+        buffer.position(location.offset + HEADER_SIZE);
+        final byte[] payload = new byte[location.length];
+        buffer.get(payload);
+        return payload;
+    }
+
+    @SuppressWarnings("unchecked")
+    private JournalEntry decode(final long sequence, final byte[] payload) {
+        final Document document = codec.decode(new BsonBinaryReader(ByteBuffer.wrap(payload)),
+                DecoderContext.builder().build());
+        final List<Document> updateList = (List<Document>) document.get(KEY_UPDATES);
+
+        return new JournalEntry(sequence,
+                document.getString(KEY_COLLECTION),
+                document.getString(KEY_CLASS),
+                JournalOperation.valueOf(document.getString(KEY_OPERATION)),
+                document.get(KEY_ID),
+                updateList != null ? updateList : Collections.emptyList(),
+                (Document) document.get(KEY_DOCUMENT),
+                document.getString(KEY_FIELD));
+    }
+
+    /**
+     * @return 存储的文档中的“_id”，如果不存在，返回null
+     */
+    private static Object idOf(final Bson document) {
+        if (document instanceof Document) {
+            return ((Document) document).get(ID_FIELD_NAME);
+        }
+
+        return document instanceof BsonDocument ? ((BsonDocument) document).get(ID_FIELD_NAME) : null;
+    }
+
+    /**
+     * 日志所作用的文档的key：（collection，id）。增量更新记录的是数据的id，而存储记录的是文档中的“_id”，二者的类型可能不同（例如：
+     * String类型的id在mongoDB中存储为ObjectId），因此统一转换为mongoDB中存储的类型
+     *
+     * @return 文档的key，如果id为null，返回null
+     */
+    private Object documentKey(final String collectionName, final Object id) {
+        Object value = id;
+        if (value instanceof BsonValue) {
+            value = codec.decode(new BsonDocumentReader(new BsonDocument(ID_FIELD_NAME, (BsonValue) value)),
+                    DecoderContext.builder().build()).get(ID_FIELD_NAME);
+        }
+        if (value instanceof String && ObjectId.isValid((String) value)) {
+            value = new ObjectId((String) value);
+        }
+
+        return value == null ? null : Arrays.asList(collectionName, value);
+    }
+
+    private static int checksum(final byte type, final long sequence, final byte[] payload) {
+        final CRC32 crc32 = new CRC32();
+        crc32.update(type);
+        for (int shift = 56; shift >= 0; shift -= 8) {
+            crc32.update((int) (sequence >>> shift));
+        }
+        crc32.update(payload, 0, payload.length);
+        return (int) crc32.getValue();
+    }
+
+    private static final class Segment {
+        private final Path path;
+        private final FileChannel channel;
+        private final MappedByteBuffer buffer;
+        /**
+         * 位于本日志段中的、未被确认的日志的序号
+         */
+        private final Set<Long> liveSet = new HashSet<>();
+        private volatile boolean dirty;
+
+        private Segment(Path path, FileChannel channel, MappedByteBuffer buffer) {
+            this.path = path;
+            this.channel = channel;
+            this.buffer = buffer;
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn(Markers.GamedoPersistence, "close write journal segment failed, path:" + path, e);
+            }
+        }
+    }
+
+    private static final class Location {
+        private final Segment segment;
+        private final int offset;
+        private final int length;
+        /**
+         * 日志所作用的文档的key，确认日志没有
+         */
+        private final Object documentKey;
+
+        private Location(Segment segment, int offset, int length, Object documentKey) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+            this.documentKey = documentKey;
+        }
+    }
+}
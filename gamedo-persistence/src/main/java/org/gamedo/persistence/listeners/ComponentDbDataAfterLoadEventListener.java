@@ -2,15 +2,41 @@ package org.gamedo.persistence.listeners;
 
 import lombok.extern.log4j.Log4j2;
 import org.bson.Document;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
 import org.gamedo.persistence.db.ComponentDbData;
 import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
 import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertEvent;
 import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
 
 import java.util.Map;
 
 @Log4j2
 public class ComponentDbDataAfterLoadEventListener extends AbstractMongoEventListener<ComponentDbData> {
+    private final DbDataTypeRegistry typeRegistry;
+    private final PersistenceSettings settings;
+
+    public ComponentDbDataAfterLoadEventListener() {
+        this(new DbDataTypeRegistry());
+    }
+
+    public ComponentDbDataAfterLoadEventListener(DbDataTypeRegistry typeRegistry) {
+        this(typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param typeRegistry 类型注册表
+     * @param settings     所属模板的持久化设置
+     */
+    public ComponentDbDataAfterLoadEventListener(DbDataTypeRegistry typeRegistry, PersistenceSettings settings) {
+        this.typeRegistry = typeRegistry;
+        this.settings = settings;
+    }
+
     @Override
     public void onAfterLoad(AfterLoadEvent<ComponentDbData> event) {
         super.onAfterLoad(event);
@@ -19,7 +45,13 @@ public class ComponentDbDataAfterLoadEventListener extends AbstractMongoEventLis
         try {
             final Class<ComponentDbData> clazz = event.getType();
 
-            final Document documentNested = (Document) document.remove(clazz.getSimpleName());
+            final Document documentNested = ComponentStorages.decompress((Document) document.remove(clazz.getSimpleName()),
+                    settings.getStorageConfig());
+            final String clazzName = documentNested.getString(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+            if (clazzName != null && !typeRegistry.isComponent(clazzName)) {
+                log.error(Markers.MongoDB, "invalid class:{}, document:{}", clazzName, document);
+            }
+
             for (Map.Entry<String, Object> next : documentNested.entrySet()) {
                 final String key = next.getKey();
                 final Object value = next.getValue();
@@ -32,4 +64,11 @@ public class ComponentDbDataAfterLoadEventListener extends AbstractMongoEventLis
         }
     }
 
+    @Override
+    public void onAfterConvert(AfterConvertEvent<ComponentDbData> event) {
+        super.onAfterConvert(event);
+
+        Versions.load(event.getSource(), event.getDocument());
+        settings.onLoaded(event.getSource());
+    }
 }
@@ -2,8 +2,13 @@ package org.gamedo.persistence.listeners;
 
 import lombok.extern.log4j.Log4j2;
 import org.bson.Document;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
 import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.track.Trackables;
 import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.Versions;
 import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
 import org.springframework.data.mongodb.core.mapping.event.BeforeSaveEvent;
 
@@ -13,14 +18,47 @@ import java.util.Objects;
 
 @Log4j2
 public class ComponentDbDataBeforeSaveEventListener extends AbstractMongoEventListener<ComponentDbData> {
+    private final DbDataTypeRegistry typeRegistry;
+    private final PersistenceSettings settings;
+
+    public ComponentDbDataBeforeSaveEventListener() {
+        this(new DbDataTypeRegistry());
+    }
+
+    public ComponentDbDataBeforeSaveEventListener(DbDataTypeRegistry typeRegistry) {
+        this(typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param typeRegistry 类型注册表
+     * @param settings     所属模板的持久化设置
+     */
+    public ComponentDbDataBeforeSaveEventListener(DbDataTypeRegistry typeRegistry, PersistenceSettings settings) {
+        this.typeRegistry = typeRegistry;
+        this.settings = settings;
+    }
 
     @Override
     public void onBeforeSave(BeforeSaveEvent<ComponentDbData> event) {
         super.onBeforeSave(event);
 
-        final ComponentDbData source = event.getSource();
-        final Document document = event.getDocument();
-        final Iterator<Map.Entry<String, Object>> iterator = Objects.requireNonNull(document).entrySet().iterator();
+        Trackables.bind(event.getSource(), settings.getWholeFieldRatio());
+        nest(event.getSource(), Objects.requireNonNull(event.getDocument()));
+        settings.getMetrics().recordDocument(event.getSource().getClass(), event.getDocument());
+    }
+
+    /**
+     * 将{@link ComponentDbData}转换后的文档中除“_id”以外的字段，都移动到以组件类名（{@link Class#getSimpleName()}）命名的内嵌文档中，
+     * 压缩存储的组件的内嵌文档会被压缩，详见{@link ComponentStorages}
+     *
+     * @param source   转换前的组件
+     * @param document 转换后的文档，移动后的结果直接写入该文档
+     */
+    public void nest(final ComponentDbData source, final Document document) {
+        //存储过的类型一定会被再次加载，提前注册
+        typeRegistry.register(source.getClass());
+
+        final Iterator<Map.Entry<String, Object>> iterator = document.entrySet().iterator();
         final Document documentNested = new Document();
         while (iterator.hasNext()) {
             Map.Entry<String, Object> next = iterator.next();
@@ -32,7 +70,12 @@ public class ComponentDbDataBeforeSaveEventListener extends AbstractMongoEventLi
             }
         }
 
-        document.put(source.getClass().getSimpleName(), documentNested);
+        if (Versions.isVersioned(source.getClass())) {
+            documentNested.put(Versions.VERSION_FIELD_NAME, source.getVersion());
+        }
+
+        document.put(source.getClass().getSimpleName(), ComponentStorages.toStored(source.getClass(), documentNested,
+                settings.getStorageConfig()));
 
         log.debug(Markers.MongoDB, "writing convert finish, source:{}, target:{}", () -> source, () -> document);
     }
@@ -1,25 +1,83 @@
 package org.gamedo.persistence.listeners;
 
+import lombok.Getter;
+import lombok.Setter;
 import lombok.extern.log4j.Log4j2;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonDocument;
+import org.bson.BsonDocumentReader;
+import org.bson.BsonType;
+import org.bson.BsonValue;
 import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.conversions.Bson;
+import org.gamedo.persistence.PersistenceSettings;
 import org.gamedo.persistence.annotations.ComponentMap;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
 import org.gamedo.persistence.db.ComponentDbData;
 import org.gamedo.persistence.db.EntityDbData;
 import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.gamedo.persistence.version.Versions;
 import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
 import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterConvertEvent;
 import org.springframework.data.mongodb.core.mapping.event.AfterLoadEvent;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.Objects;
 
 @Log4j2
 public class EntityDbDataAfterLoadEventListener extends AbstractMongoEventListener<EntityDbData> {
+    /**
+     * 懒加载的组件在重新组合后的文档中暂存的字段名，该字段不会被映射，并在转换完毕后被移除
+     */
+    private static final String RAW_COMPONENTS_KEY = "_rawComponents";
+    /**
+     * 溢出存储的组件在重新组合后的文档中暂存的字段名，该字段不会被映射，并在转换完毕后被移除
+     */
+    private static final String OVERFLOW_COMPONENTS_KEY = "_overflowComponents";
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
     private final String componentsMapFieldName;
+    private final DbDataTypeRegistry typeRegistry;
+    private final MongoConverter mongoConverter;
+    private final PersistenceSettings settings;
+    /**
+     * 是否启用组件的懒加载：加载实体时只保留组件的内嵌文档，在第一次访问（{@link EntityDbData#getComponentDbData(Class)}）时才转换为
+     * 组件，详见{@link EntityDbData#setRawComponents(java.util.Map, java.util.function.Function)}。启用了版本控制的组件总是立即转换，
+     * 从而保证完整存储时依然能够校验它们的版本号
+     */
+    @Getter
+    @Setter
+    private volatile boolean lazyComponent;
 
     public EntityDbDataAfterLoadEventListener(MongoConverter mongoConverter) {
+        this(mongoConverter, new DbDataTypeRegistry(mongoConverter));
+    }
+
+    public EntityDbDataAfterLoadEventListener(MongoConverter mongoConverter, DbDataTypeRegistry typeRegistry) {
+        this(mongoConverter, typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param mongoConverter 转换器
+     * @param typeRegistry   类型注册表
+     * @param settings       所属模板的持久化设置
+     */
+    public EntityDbDataAfterLoadEventListener(MongoConverter mongoConverter,
+                                              DbDataTypeRegistry typeRegistry,
+                                              PersistenceSettings settings) {
+        this.typeRegistry = typeRegistry;
+        this.mongoConverter = mongoConverter;
+        this.settings = settings;
         final MongoPersistentEntity<?> entity = mongoConverter.getMappingContext().getPersistentEntity(EntityDbData.class);
         final MongoPersistentProperty property = Objects.requireNonNull(entity).getPersistentProperty(ComponentMap.class);
 
@@ -30,8 +88,25 @@ public class EntityDbDataAfterLoadEventListener extends AbstractMongoEventListen
     public void onAfterLoad(AfterLoadEvent<EntityDbData> event) {
         super.onAfterLoad(event);
 
-        final Document document = event.getSource();
+        regroup(event.getSource(), lazyComponent);
+    }
+
+    @Override
+    public void onAfterConvert(AfterConvertEvent<EntityDbData> event) {
+        super.onAfterConvert(event);
+
+        afterConvert(event.getSource(), event.getDocument());
+    }
 
+    /**
+     * 将打散存储的组件重新组合到组件map中，是{@link EntityDbDataBeforeSaveEventListener#flatten(EntityDbData, Document)}的逆过程：压缩
+     * 存储的组件被解压，溢出存储的组件的占位文档被移除，并在转换完毕后记录到实体中（{@link EntityDbData#getOverflowComponentMap()}），
+     * 等待GamedoMongoTemplate从溢出collection中加载
+     *
+     * @param document 从数据库中读取的文档，重新组合的结果直接写入该文档
+     * @param lazy     是否保留可以懒加载的组件的内嵌文档，而不是随实体一起转换
+     */
+    public void regroup(final Document document, final boolean lazy) {
         try {
             final Document componentDataDbMap = new Document();
             //如果包含componentsMapFieldName，说明存储时没有被打散，这种情况应该不会存在
@@ -44,27 +119,41 @@ public class EntityDbDataAfterLoadEventListener extends AbstractMongoEventListen
             }
 
             final String clazzName = document.getString(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
-            final Class<?> clazz = Class.forName(clazzName);
 
             //检测存储时的类型是否正确
-            if (!EntityDbData.class.isAssignableFrom(clazz)) {
-                log.error(Markers.MongoDB, "invalid class:{}, document:{}", clazz, document);
+            if (!typeRegistry.isEntity(clazzName)) {
+                log.error(Markers.MongoDB, "invalid class:{}, document:{}", clazzName, document);
                 return;
             }
 
             //将打散的组件重新组合
+            final Map<String, Bson> rawComponentMap = new LinkedHashMap<>();
+            final Map<String, Class<?>> overflowComponentMap = new LinkedHashMap<>();
             document.entrySet().removeIf(entry -> {
                 final String key = entry.getKey();
                 final Object value = entry.getValue();
                 final boolean isComponentDbData = isComponentDbData(value);
                 if (isComponentDbData) {
-                    componentDataDbMap.put(key, value);
+                    final String componentClazzName = ((Document) value).getString(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+                    if (ComponentStorages.isOverflowStub(value)) {
+                        overflowComponentMap.put(key, typeRegistry.resolve(componentClazzName));
+                    } else if (lazy && isLazy(componentClazzName)) {
+                        rawComponentMap.put(key, (Document) value);
+                    } else {
+                        componentDataDbMap.put(key, ComponentStorages.decompress((Document) value, settings.getStorageConfig()));
+                    }
                 }
 
                 return isComponentDbData;
             });
 
             document.put(componentsMapFieldName, componentDataDbMap);
+            if (!rawComponentMap.isEmpty()) {
+                document.put(RAW_COMPONENTS_KEY, rawComponentMap);
+            }
+            if (!overflowComponentMap.isEmpty()) {
+                document.put(OVERFLOW_COMPONENTS_KEY, overflowComponentMap);
+            }
 
             log.debug(Markers.MongoDB, "reading convert finish, document:{}", () -> document);
 
@@ -74,26 +163,129 @@ public class EntityDbDataAfterLoadEventListener extends AbstractMongoEventListen
     }
 
     /**
-     * check whether the object is a instance of ComponentDbData
+     * 同{@link EntityDbDataAfterLoadEventListener#regroup(Document, boolean)}，但是直接读取{@link RawBsonDocument}：可以懒加载的组件
+     * 以原始字节的切片（同样是{@link RawBsonDocument}）保留下来，不会被解码，只有实体自身的字段以及需要立即转换的组件会被解码为
+     * {@link Document}。未被访问的组件在完整存储时原样写回这些切片
      *
-     * @param object the object to be check.
-     * @return true the object's is a sub class of ComponentDbData
+     * @param rawDocument 从数据库中读取的原始文档
+     * @return 重新组合后的文档，可以直接交给{@link MongoConverter#read(Class, org.bson.conversions.Bson)}转换
      */
-    private static boolean isComponentDbData(final Object object) {
-        try {
+    public Document regroup(final RawBsonDocument rawDocument) {
+        final BsonDocument bsonDocument = new BsonDocument();
+        final Map<String, Bson> rawComponentMap = new LinkedHashMap<>();
+        try (BsonBinaryReader reader = new BsonBinaryReader(rawDocument.getByteBuffer().asNIO())) {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                final String key = reader.readName();
+                reader.skipValue();
 
-            if (!(object instanceof Document)) {
-                return false;
+                //内嵌文档是原始字节的切片，读取时不会复制
+                final BsonValue value = rawDocument.get(key);
+                final String clazzName = value.isDocument() ? getClassName(value.asDocument()) : null;
+                if (clazzName != null && typeRegistry.isComponent(clazzName) && isLazy(clazzName)) {
+                    rawComponentMap.put(key, value.asDocument());
+                } else {
+                    bsonDocument.put(key, value);
+                }
             }
+        }
 
-            final Document document = (Document) object;
-            final String clazzName = document.getString(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
-            final Class<?> clazz = Class.forName(clazzName);
+        final Document document = DOCUMENT_CODEC.decode(new BsonDocumentReader(bsonDocument),
+                DecoderContext.builder().build());
+        regroup(document, false);
+        if (!rawComponentMap.isEmpty()) {
+            document.put(RAW_COMPONENTS_KEY, rawComponentMap);
+        }
+
+        return document;
+    }
+
+    /**
+     * 转换完毕后，读取版本号、应用所属模板的持久化设置（{@link PersistenceSettings#onLoaded(org.gamedo.persistence.db.DbData)}），并将
+     * 懒加载的组件以及溢出存储的组件交给实体
+     *
+     * @param entityDbData 转换得到的实体
+     * @param document     重新组合后的文档，可以为null
+     */
+    @SuppressWarnings("unchecked")
+    public void afterConvert(final EntityDbData<?> entityDbData, final Document document) {
+        loadVersion(entityDbData, document);
+        settings.onLoaded(entityDbData);
+
+        final Object rawComponentMap = document == null ? null : document.remove(RAW_COMPONENTS_KEY);
+        if (rawComponentMap instanceof Map) {
+            entityDbData.setRawComponents((Map<String, Bson>) rawComponentMap, this::decodeComponent);
+        }
+
+        final Object overflowComponentMap = document == null ? null : document.remove(OVERFLOW_COMPONENTS_KEY);
+        if (overflowComponentMap instanceof Map) {
+            ((Map<String, Class<?>>) overflowComponentMap).forEach(entityDbData::addOverflowComponent);
+        }
+    }
+
+    /**
+     * 实例化一个懒加载的组件，和随实体一起转换的组件一样，读取版本号并应用所属模板的持久化设置
+     */
+    private ComponentDbData<?> decodeComponent(final Bson raw) {
+        final Document document = ComponentStorages.decompress(raw instanceof Document ? (Document) raw :
+                DOCUMENT_CODEC.decode(new BsonDocumentReader(raw.toBsonDocument(Document.class, null)),
+                        DecoderContext.builder().build()), settings.getStorageConfig());
+        final ComponentDbData<?> componentDbData = mongoConverter.read(ComponentDbData.class, document);
+        Versions.load(componentDbData, document);
+        settings.onLoaded(componentDbData);
+        return componentDbData;
+    }
 
-            return ComponentDbData.class.isAssignableFrom(clazz);
-        } catch (ClassNotFoundException e) {
-            log.error(Markers.MongoDB, "class not found, object:" + object, e);
+    /**
+     * @param clazzName 组件存储时的类型
+     * @return 如果该组件可以懒加载，也即没有启用版本控制，并且不是溢出存储的，返回true
+     */
+    private boolean isLazy(final String clazzName) {
+        final Class<?> clazz = typeRegistry.resolve(clazzName);
+        return clazz != null && !Versions.isVersioned(clazz) && ComponentStorages.policy(clazz) != StoragePolicy.OVERFLOW;
+    }
+
+    /**
+     * 版本号不是映射的属性，需要从（已经重新组合过的）文档中单独读取
+     */
+    private void loadVersion(final EntityDbData<?> entityDbData, final Document document) {
+        if (document == null) {
+            return;
+        }
+
+        Versions.load(entityDbData, document);
+        final Object componentsMap = document.get(componentsMapFieldName);
+        if (!(componentsMap instanceof Document)) {
+            return;
+        }
+
+        for (ComponentDbData<?> componentDbData : entityDbData.getLoadedComponentDbDataCollection()) {
+            final Object value = ((Document) componentsMap).get(componentDbData.getClass().getSimpleName());
+            if (value instanceof Document) {
+                Versions.load(componentDbData, (Document) value);
+            }
+        }
+    }
+
+    private static String getClassName(final BsonDocument document) {
+        final BsonValue clazzName = document.get(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+        return clazzName != null && clazzName.isString() ? clazzName.asString().getValue() : null;
+    }
+
+    /**
+     * check whether the object is a instance of ComponentDbData
+     *
+     * @param object the object to be check.
+     * @return true the object's is a sub class of ComponentDbData
+     */
+    private boolean isComponentDbData(final Object object) {
+        if (!(object instanceof Document)) {
             return false;
         }
+
+        final Document document = (Document) object;
+        final Object clazzName = document.get(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+
+        return clazzName instanceof String && typeRegistry.isComponent((String) clazzName);
     }
 }
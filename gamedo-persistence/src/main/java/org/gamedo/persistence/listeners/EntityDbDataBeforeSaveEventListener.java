@@ -2,9 +2,16 @@ package org.gamedo.persistence.listeners;
 
 import lombok.extern.log4j.Log4j2;
 import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.gamedo.persistence.PersistenceSettings;
 import org.gamedo.persistence.annotations.ComponentMap;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.db.ComponentDbData;
 import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.track.Trackables;
 import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.Versions;
 import org.springframework.data.mongodb.core.convert.MongoConverter;
 import org.springframework.data.mongodb.core.mapping.MongoPersistentEntity;
 import org.springframework.data.mongodb.core.mapping.MongoPersistentProperty;
@@ -17,8 +24,27 @@ import java.util.Objects;
 @Log4j2
 public class EntityDbDataBeforeSaveEventListener extends AbstractMongoEventListener<EntityDbData> {
     private final String componentsMapFieldName;
+    private final DbDataTypeRegistry typeRegistry;
+    private final PersistenceSettings settings;
 
     public EntityDbDataBeforeSaveEventListener(MongoConverter mongoConverter) {
+        this(mongoConverter, new DbDataTypeRegistry(mongoConverter));
+    }
+
+    public EntityDbDataBeforeSaveEventListener(MongoConverter mongoConverter, DbDataTypeRegistry typeRegistry) {
+        this(mongoConverter, typeRegistry, new PersistenceSettings());
+    }
+
+    /**
+     * @param mongoConverter 转换器
+     * @param typeRegistry   类型注册表
+     * @param settings       所属模板的持久化设置
+     */
+    public EntityDbDataBeforeSaveEventListener(MongoConverter mongoConverter,
+                                               DbDataTypeRegistry typeRegistry,
+                                               PersistenceSettings settings) {
+        this.typeRegistry = typeRegistry;
+        this.settings = settings;
         final MongoPersistentEntity<?> entity = mongoConverter.getMappingContext().getPersistentEntity(EntityDbData.class);
         final MongoPersistentProperty property = Objects.requireNonNull(entity).getPersistentProperty(ComponentMap.class);
 
@@ -29,10 +55,27 @@ public class EntityDbDataBeforeSaveEventListener extends AbstractMongoEventListe
     public void onBeforeSave(BeforeSaveEvent<EntityDbData> event) {
         super.onBeforeSave(event);
 
-        final EntityDbData source = event.getSource();
-        final Document document = event.getDocument();
+        Trackables.bind(event.getSource(), settings.getWholeFieldRatio());
+        settings.attach(event.getSource());
+        flatten(event.getSource(), Objects.requireNonNull(event.getDocument()));
+        //MongoTemplate无法写入溢出collection
+        ComponentStorages.inlineOverflowStash(event.getDocument());
+        settings.getMetrics().recordDocument(event.getSource().getClass(), event.getDocument());
+    }
+
+    /**
+     * 将{@link EntityDbData}转换后的文档中的组件map打散，使每一个组件都成为文档的顶层字段。压缩存储的组件被压缩，溢出存储的组件被替换为
+     * 占位文档，组件本身暂存在{@value ComponentStorages#OVERFLOW_STASH_KEY}字段中，详见{@link ComponentStorages}
+     *
+     * @param source   转换前的实体
+     * @param document 转换后的文档，打散后的结果直接写入该文档
+     */
+    public void flatten(final EntityDbData source, final Document document) {
+        //存储过的类型一定会被再次加载，提前注册
+        typeRegistry.register(source.getClass());
+
         //打散原来的map
-        final Document componentsMap = (Document) Objects.requireNonNull(document).remove(componentsMapFieldName);
+        final Document componentsMap = (Document) document.remove(componentsMapFieldName);
 
         for (Map.Entry<String, Object> next : componentsMap.entrySet()) {
             final Object value = next.getValue();
@@ -41,8 +84,51 @@ public class EntityDbDataBeforeSaveEventListener extends AbstractMongoEventListe
             }
         }
 
+        //版本号不是映射的属性，需要单独写入
+        if (Versions.isVersioned(source.getClass())) {
+            document.put(Versions.VERSION_FIELD_NAME, source.getVersion());
+        }
+        Document overflowStash = null;
+        for (Object componentDbData : source.getLoadedComponentDbDataCollection()) {
+            final ComponentDbData<?> component = (ComponentDbData<?>) componentDbData;
+            final Class<?> clazz = component.getClass();
+            final String key = clazz.getSimpleName();
+            final Object value = componentsMap.get(key);
+            if (!(value instanceof Document)) {
+                continue;
+            }
+
+            if (Versions.isVersioned(clazz)) {
+                ((Document) value).put(Versions.VERSION_FIELD_NAME, component.getVersion());
+            }
+
+            switch (ComponentStorages.policy(clazz)) {
+                case COMPRESSED:
+                    componentsMap.put(key, ComponentStorages.compress((Document) value, settings.getStorageConfig()));
+                    break;
+                case OVERFLOW:
+                    if (overflowStash == null) {
+                        overflowStash = new Document();
+                    }
+                    overflowStash.put(key, value);
+                    componentsMap.put(key, ComponentStorages.overflowStub(clazz));
+                    break;
+                default:
+                    break;
+            }
+        }
+
         //将所有组件重新添加进来
         document.putAll(componentsMap);
+        //懒加载模式下尚未实例化的组件没有被修改过，原样写回，不需要再次转换
+        final Map<String, Bson> rawComponentMap = ((EntityDbData<?>) source).getRawComponentMap();
+        rawComponentMap.forEach(document::putIfAbsent);
+        //尚未从溢出collection中加载的组件，保留它们的占位文档
+        final Map<String, Class<?>> overflowComponentMap = ((EntityDbData<?>) source).getOverflowComponentMap();
+        overflowComponentMap.forEach((key, clazz) -> document.putIfAbsent(key, ComponentStorages.overflowStub(clazz)));
+        if (overflowStash != null) {
+            document.put(ComponentStorages.OVERFLOW_STASH_KEY, overflowStash);
+        }
 
         log.debug(Markers.MongoDB, "writing convert finish, source:{}, target:{}", () -> source, () -> document);
     }
@@ -0,0 +1,70 @@
+package org.gamedo.persistence.metrics;
+
+import org.bson.conversions.Bson;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+/**
+ * 持久化层的指标收集者，所有方法默认为空实现，实现类只需要覆盖关心的指标。所有方法都可能在业务线程或者持久化线程上被并发调用，
+ * 实现类必须是线程安全的，并且不能抛出异常
+ */
+public interface IPersistenceMetrics {
+
+    /**
+     * 不收集任何指标
+     */
+    IPersistenceMetrics NOOP = new IPersistenceMetrics() {
+    };
+
+    /**
+     * 记录一次存储的耗时
+     *
+     * @param clazz 存储的数据类型
+     * @param nanos 耗时（纳秒），包括版本冲突时的重试
+     */
+    default void recordSave(Class<?> clazz, long nanos) {
+    }
+
+    /**
+     * 记录一次增量更新的耗时
+     *
+     * @param clazz 更新的数据类型
+     * @param nanos 耗时（纳秒），合并后的多个更新只记录一次
+     */
+    default void recordUpdate(Class<?> clazz, long nanos) {
+    }
+
+    /**
+     * 记录一次查询的耗时
+     *
+     * @param clazz 查询的数据类型
+     * @param nanos 耗时（纳秒）
+     */
+    default void recordFind(Class<?> clazz, long nanos) {
+    }
+
+    /**
+     * 记录一次因为数据不脏而被跳过的增量更新
+     *
+     * @param clazz 数据类型
+     */
+    default void onDirtySkip(Class<?> clazz) {
+    }
+
+    /**
+     * 记录一个要写入的完整文档，一般用于统计文档的大小
+     *
+     * @param clazz    数据类型
+     * @param document 转换完毕的文档
+     */
+    default void recordDocument(Class<?> clazz, Bson document) {
+    }
+
+    /**
+     * 记录一个要执行的增量更新，一般用于统计$set的字段数量
+     *
+     * @param clazz  数据类型
+     * @param update 增量更新
+     */
+    default void recordUpdateDefinition(Class<?> clazz, UpdateDefinition update) {
+    }
+}
@@ -0,0 +1,155 @@
+package org.gamedo.persistence.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonDocument;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.BsonDocumentCodec;
+import org.bson.codecs.Codec;
+import org.bson.codecs.EncoderContext;
+import org.bson.codecs.configuration.CodecRegistry;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.gamedo.persistence.executor.OrderedLaneExecutor;
+import org.gamedo.persistence.executor.PersistenceExecutor;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于Micrometer的{@link IPersistenceMetrics}，注册以下指标（均以{@value #PREFIX}为前缀，除线程池相关的指标外，均以数据类型的简单类名作为
+ * “class”标签）：
+ * <ul>
+ * <li>save、update、find：存储、增量更新、查询的耗时（Timer）
+ * <li>dirty.skip：因为数据不脏而被跳过的增量更新次数（Counter）
+ * <li>document.size：要写入的完整文档的大小（DistributionSummary，字节）
+ * <li>update.set.keys：每个增量更新中$set的字段数量（DistributionSummary）
+ * <li>executor.queue.depth、lane.active：持久化线程池中等待执行的任务数量，以及有写操作尚未执行完毕的文档数量（Gauge）
+ * </ul>
+ * <b>注意：</b>由编译期生成的编解码器编码的文档可以直接得到大小，其他文档需要额外编码一次才能统计大小
+ */
+public class MicrometerPersistenceMetrics implements IPersistenceMetrics {
+
+    public static final String PREFIX = "gamedo.persistence";
+
+    private final MeterRegistry registry;
+    private final CodecRegistry codecRegistry;
+    private final Codec<Document> documentCodec;
+    private final ClassValue<Meters> metersClassValue = new ClassValue<Meters>() {
+        @Override
+        protected Meters computeValue(Class<?> type) {
+            return new Meters(type.getSimpleName());
+        }
+    };
+
+    /**
+     * @param registry      注册指标的MeterRegistry
+     * @param codecRegistry 统计文档大小时，编码{@link Document}所使用的注册表
+     */
+    public MicrometerPersistenceMetrics(MeterRegistry registry, CodecRegistry codecRegistry) {
+        this.registry = registry;
+        this.codecRegistry = codecRegistry;
+        documentCodec = codecRegistry.get(Document.class);
+    }
+
+    /**
+     * 注册持久化线程池的队列深度
+     *
+     * @param executor 持久化线程池
+     * @return this
+     */
+    public MicrometerPersistenceMetrics bind(final PersistenceExecutor executor) {
+        Gauge.builder(PREFIX + ".executor.queue.depth", executor, PersistenceExecutor::getQueueDepth)
+                .description("the number of tasks submitted but not yet started")
+                .register(registry);
+        return this;
+    }
+
+    /**
+     * 注册有写操作尚未执行完毕的文档数量
+     *
+     * @param laneExecutor 按id保序的写通道
+     * @return this
+     */
+    public MicrometerPersistenceMetrics bind(final OrderedLaneExecutor laneExecutor) {
+        Gauge.builder(PREFIX + ".lane.active", laneExecutor, OrderedLaneExecutor::getActiveLaneCount)
+                .description("the number of documents with pending writes")
+                .register(registry);
+        return this;
+    }
+
+    @Override
+    public void recordSave(Class<?> clazz, long nanos) {
+        metersClassValue.get(clazz).save.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordUpdate(Class<?> clazz, long nanos) {
+        metersClassValue.get(clazz).update.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void recordFind(Class<?> clazz, long nanos) {
+        metersClassValue.get(clazz).find.record(nanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public void onDirtySkip(Class<?> clazz) {
+        metersClassValue.get(clazz).dirtySkip.increment();
+    }
+
+    @Override
+    public void recordDocument(Class<?> clazz, Bson document) {
+        metersClassValue.get(clazz).documentSize.record(sizeOf(document));
+    }
+
+    @Override
+    public void recordUpdateDefinition(Class<?> clazz, UpdateDefinition update) {
+        final Object set = update.getUpdateObject().get("$set");
+        metersClassValue.get(clazz).setKeys.record(set instanceof Document ? ((Document) set).size() : 0);
+    }
+
+    private int sizeOf(final Bson document) {
+        if (document instanceof RawBsonDocument) {
+            return ((RawBsonDocument) document).getByteBuffer().remaining();
+        }
+
+        final BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+        if (document instanceof Document) {
+            documentCodec.encode(new BsonBinaryWriter(outputBuffer), (Document) document, EncoderContext.builder().build());
+        } else {
+            final BsonDocument bsonDocument = document instanceof BsonDocument ?
+                    (BsonDocument) document :
+                    document.toBsonDocument(Document.class, codecRegistry);
+            new BsonDocumentCodec().encode(new BsonBinaryWriter(outputBuffer), bsonDocument, EncoderContext.builder().build());
+        }
+
+        return outputBuffer.getPosition();
+    }
+
+    private final class Meters {
+        private final Timer save;
+        private final Timer update;
+        private final Timer find;
+        private final Counter dirtySkip;
+        private final DistributionSummary documentSize;
+        private final DistributionSummary setKeys;
+
+        private Meters(String className) {
+            save = Timer.builder(PREFIX + ".save").tag("class", className).register(registry);
+            update = Timer.builder(PREFIX + ".update").tag("class", className).register(registry);
+            find = Timer.builder(PREFIX + ".find").tag("class", className).register(registry);
+            dirtySkip = Counter.builder(PREFIX + ".dirty.skip").tag("class", className).register(registry);
+            documentSize = DistributionSummary.builder(PREFIX + ".document.size")
+                    .tag("class", className)
+                    .baseUnit("bytes")
+                    .register(registry);
+            setKeys = DistributionSummary.builder(PREFIX + ".update.set.keys").tag("class", className).register(registry);
+        }
+    }
+}
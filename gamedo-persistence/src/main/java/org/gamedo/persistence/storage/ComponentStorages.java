@@ -0,0 +1,424 @@
+package org.gamedo.persistence.storage;
+
+import lombok.extern.log4j.Log4j2;
+import org.bson.BsonBinaryReader;
+import org.bson.BsonBinaryWriter;
+import org.bson.BsonType;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.DocumentCodec;
+import org.bson.codecs.EncoderContext;
+import org.bson.conversions.Bson;
+import org.bson.io.BasicOutputBuffer;
+import org.bson.types.Binary;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.annotations.ComponentStorage;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.ComponentSlots;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.IUpdaterFactory;
+import org.gamedo.persistence.db.Updater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.mongodb.core.convert.DefaultMongoTypeMapper;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.nio.ByteBuffer;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+/**
+ * 组件存储方式（{@link StoragePolicy}）以及文档大小检查相关的工具方法
+ * <p>
+ * 组件的存储方式通过{@link ComponentStorage}指定，只影响组件在数据库中的布局，对业务代码是透明的：
+ * <ul>
+ * <li>{@link StoragePolicy#COMPRESSED}：存储时组件的内嵌文档被编码为BSON并压缩（{@link StorageConfig#getCompressor()}），
+ * 替换为{@code {_class: ..., }{@value #COMPRESSED_FIELD_NAME}{@code : BinData}}，加载时（包括懒加载、编解码器以及单独加载组件）解压
+ * 还原。由于压缩后的组件无法部分更新，组件的增量更新在{@link Updaters#detach(DbData, IUpdaterFactory, StorageConfig)}时被改写为对整个组件的$set
+ * <li>{@link StoragePolicy#OVERFLOW}：组件存储在溢出collection（{@link ComponentStorages#overflowCollectionName(String)}）中
+ * 以实体的“_id”为键的文档里，布局和单独存储组件时相同：{@code {_id: ..., 组件类名: {...}}}，实体文档中只保留一个占位的内嵌文档
+ * {@code {_class: ..., }{@value #OVERFLOW_FIELD_NAME}{@code : true}}。GamedoMongoTemplate在存储实体时将溢出的组件写入溢出
+ * collection，增量更新时将溢出的组件的更新写入溢出collection（二者和实体文档的写入位于同一个有序通道中），加载实体时根据占位文档再查询一次溢出
+ * collection，{@link org.gamedo.persistence.IGamedoMongoTemplate#findComponentDbDataByIdAsync(Object, Class)}则直接查询溢出
+ * collection
+ * </ul>
+ * 此外，GamedoMongoTemplate在存储时会检查编码后的文档大小，超过{@link StorageConfig#getSizeWarnThreshold()}时打印每个顶层字段的大小，
+ * 从而在文档超过mongoDB的上限而导致写入失败之前发现问题；压缩存储的组件的增量更新被改写为$set时，同样检查整个组件的大小
+ */
+@Log4j2
+public final class ComponentStorages {
+
+    /**
+     * mongoDB单个文档的大小上限（字节）
+     */
+    public static final int MAX_DOCUMENT_SIZE = 16 * 1024 * 1024;
+    /**
+     * 溢出collection的后缀
+     */
+    public static final String OVERFLOW_COLLECTION_SUFFIX = "_overflow";
+    /**
+     * 压缩后的组件中存储压缩数据的字段名
+     */
+    public static final String COMPRESSED_FIELD_NAME = "_z";
+    /**
+     * 溢出的组件在实体文档中的占位文档的标记字段名
+     */
+    public static final String OVERFLOW_FIELD_NAME = "_overflow";
+    /**
+     * 实体转换后的文档中暂存溢出的组件的字段名，该字段由GamedoMongoTemplate在写入之前移除，不会被写入实体文档
+     */
+    public static final String OVERFLOW_STASH_KEY = "_overflowComponents";
+    /**
+     * 大小检查时，日志中最多列出的顶层字段的数量
+     */
+    private static final int MAX_REPORTED_FIELDS = 8;
+
+    private static final ClassValue<StoragePolicy> POLICY = new ClassValue<StoragePolicy>() {
+        @Override
+        protected StoragePolicy computeValue(Class<?> type) {
+            final ComponentStorage componentStorage = type.getAnnotation(ComponentStorage.class);
+            final StoragePolicy policy = componentStorage == null ? StoragePolicy.INLINE : componentStorage.value();
+            if (policy != StoragePolicy.INLINE && Versions.isVersioned(type)) {
+                throw new IllegalStateException("a versioned component must be stored inline, class:" + type.getName() +
+                        ", policy:" + policy);
+            }
+            return policy;
+        }
+    };
+    private static final DocumentCodec DOCUMENT_CODEC = new DocumentCodec();
+
+    private ComponentStorages() {
+    }
+
+    /**
+     * @param clazz 组件的类型
+     * @return 该类型的存储方式
+     * @throws IllegalStateException 如果该类型启用了版本控制，但不是内联存储
+     */
+    public static StoragePolicy policy(final Class<?> clazz) {
+        return POLICY.get(clazz);
+    }
+
+    /**
+     * @param clazz 组件的类型
+     * @return 如果该类型内联存储，返回true
+     */
+    public static boolean isInline(final Class<?> clazz) {
+        return policy(clazz) == StoragePolicy.INLINE;
+    }
+
+    /**
+     * @param data 要检查的数据
+     * @return 如果该数据本身，或者它是一个实体并且所有已实例化的组件都是内联存储，返回true
+     */
+    public static boolean isAllInline(final DbData<?> data) {
+        if (data instanceof EntityDbData) {
+            for (ComponentDbData<?> componentDbData : ((EntityDbData<?>) data).getLoadedComponentDbDataCollection()) {
+                if (!isInline(componentDbData.getClass())) {
+                    return false;
+                }
+            }
+            return ((EntityDbData<?>) data).getOverflowComponentMap().isEmpty();
+        }
+
+        return isInline(data.getClass());
+    }
+
+    /**
+     * @param data 要检查的数据
+     * @return 如果该数据本身，或者它是一个实体并且任意一个已实例化的组件是溢出存储的，返回true
+     */
+    public static boolean isAnyOverflow(final DbData<?> data) {
+        if (data instanceof EntityDbData) {
+            for (ComponentDbData<?> componentDbData : ((EntityDbData<?>) data).getLoadedComponentDbDataCollection()) {
+                if (policy(componentDbData.getClass()) == StoragePolicy.OVERFLOW) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        return policy(data.getClass()) == StoragePolicy.OVERFLOW;
+    }
+
+    /**
+     * 按照组件的存储方式转换组件的内嵌文档：压缩存储的组件被压缩，其余的组件原样返回
+     *
+     * @param clazz          组件的类型
+     * @param documentNested 组件转换后的内嵌文档
+     * @param config         存储配置
+     * @return 最终要写入实体文档的内嵌文档
+     */
+    public static Document toStored(final Class<?> clazz, final Document documentNested, final StorageConfig config) {
+        return policy(clazz) == StoragePolicy.COMPRESSED ? compress(documentNested, config) : documentNested;
+    }
+
+    /**
+     * 将组件的内嵌文档编码并压缩，编码后小于{@link StorageConfig#getCompressThreshold()}的文档不会被压缩
+     *
+     * @param documentNested 组件转换后的内嵌文档
+     * @param config         存储配置
+     * @return 压缩后的内嵌文档，只包含“_class”和压缩数据
+     */
+    public static Document compress(final Document documentNested, final StorageConfig config) {
+        final BasicOutputBuffer outputBuffer = new BasicOutputBuffer();
+        DOCUMENT_CODEC.encode(new BsonBinaryWriter(outputBuffer), documentNested, EncoderContext.builder().build());
+        if (outputBuffer.getPosition() < config.getCompressThreshold()) {
+            return documentNested;
+        }
+
+        return new Document(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY, documentNested.get(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY))
+                .append(COMPRESSED_FIELD_NAME, new Binary(config.getCompressor().compress(outputBuffer.toByteArray())));
+    }
+
+    /**
+     * 还原一个被压缩的组件的内嵌文档
+     *
+     * @param documentNested 组件存储的内嵌文档
+     * @param config         存储配置
+     * @return 如果该文档是被压缩的，返回解压后的内嵌文档，否则原样返回
+     */
+    public static Document decompress(final Document documentNested, final StorageConfig config) {
+        final Object compressed = documentNested.get(COMPRESSED_FIELD_NAME);
+        if (!(compressed instanceof Binary)) {
+            return documentNested;
+        }
+
+        final byte[] bytes = config.getCompressor().decompress(((Binary) compressed).getData());
+        try (BsonBinaryReader reader = new BsonBinaryReader(ByteBuffer.wrap(bytes))) {
+            return DOCUMENT_CODEC.decode(reader, DecoderContext.builder().build());
+        }
+    }
+
+    /**
+     * @param clazz 溢出存储的组件的类型
+     * @return 该组件在实体文档中的占位文档
+     */
+    public static Document overflowStub(final Class<?> clazz) {
+        final Document stub = new Document();
+        Updater.getMongoConverter().getTypeMapper().writeType(clazz, stub);
+        return stub.append(OVERFLOW_FIELD_NAME, true);
+    }
+
+    /**
+     * @param value 实体文档中的一个顶层字段的值
+     * @return 如果该值是一个溢出的组件的占位文档，返回true
+     */
+    public static boolean isOverflowStub(final Object value) {
+        return value instanceof Document && Boolean.TRUE.equals(((Document) value).get(OVERFLOW_FIELD_NAME));
+    }
+
+    /**
+     * @param collectionName 实体所在的collection
+     * @return 该实体的溢出的组件所在的collection
+     */
+    public static String overflowCollectionName(final String collectionName) {
+        return collectionName + OVERFLOW_COLLECTION_SUFFIX;
+    }
+
+    /**
+     * @param collectionName 要检查的collection
+     * @return 如果是一个溢出collection，返回true
+     */
+    public static boolean isOverflowCollection(final String collectionName) {
+        return collectionName.endsWith(OVERFLOW_COLLECTION_SUFFIX);
+    }
+
+    /**
+     * 移除实体转换后的文档中暂存的溢出的组件，详见{@link ComponentStorages#OVERFLOW_STASH_KEY}
+     *
+     * @param document 实体转换后的文档
+     * @return 组件类名到组件的内嵌文档的映射，如果没有溢出的组件，返回null
+     */
+    public static Document removeOverflowStash(final Bson document) {
+        return document instanceof Document ? (Document) ((Document) document).remove(OVERFLOW_STASH_KEY) : null;
+    }
+
+    /**
+     * 将暂存的溢出的组件放回实体文档中，用于无法写入溢出collection的存储路径（例如：直接通过
+     * {@link org.springframework.data.mongodb.core.MongoTemplate}存储实体），此时这些组件退化为内联存储
+     *
+     * @param document 实体转换后的文档
+     */
+    public static void inlineOverflowStash(final Document document) {
+        final Document stash = removeOverflowStash(document);
+        if (stash == null) {
+            return;
+        }
+
+        log.warn(Markers.MongoDB, "overflow components are stored inline, use GamedoMongoTemplate instead, " +
+                "id:{}, components:{}", document.get(IGamedoMongoTemplate.ID_FIELD_NAME), stash.keySet());
+        document.putAll(stash);
+    }
+
+    /**
+     * 摘下实体中所有被标脏的、溢出存储的组件的更新器，这些更新需要写入溢出collection，同时在实体文档中写入它们的占位文档（组件可能是在上次
+     * 完整存储之后才被添加的）。必须在{@link Updaters#detachDirty(EntityDbData, IUpdaterFactory, StorageConfig)}之前调用
+     *
+     * @param entityDbData 要摘下更新器的实体
+     * @param stubUpdate   写入占位文档的更新，由本方法填充
+     * @param factory      为组件创建新的更新器的工厂
+     * @param config       存储配置
+     * @return 被摘下的更新器列表，如果没有被标脏的溢出存储的组件，返回空列表
+     */
+    public static List<IUpdater> detachDirtyOverflow(final EntityDbData<?> entityDbData,
+                                                     final Update stubUpdate,
+                                                     final IUpdaterFactory factory,
+                                                     final StorageConfig config) {
+        final List<IUpdater> updaterList = new ArrayList<>(0);
+        entityDbData.forEachDirtyComponentDbData(componentDbData -> {
+            final Class<?> clazz = componentDbData.getClass();
+            if (policy(clazz) == StoragePolicy.OVERFLOW) {
+                updaterList.add(Updaters.detach(componentDbData, factory, config));
+                stubUpdate.set(ComponentSlots.key(clazz), overflowStub(clazz));
+            }
+        });
+
+        return updaterList;
+    }
+
+    /**
+     * 将压缩存储的组件的增量更新改写为对整个组件的$set，由{@link Updaters#detach(DbData, IUpdaterFactory, StorageConfig)}调用
+     *
+     * @param componentDbData 压缩存储的组件，它的更新器已被摘下并执行了{@link IUpdater#materialize()}
+     * @param factory         创建改写后的更新器的工厂
+     * @param config          存储配置
+     * @return 改写后的更新器
+     */
+    public static IUpdater rewriteCompressed(final ComponentDbData<?> componentDbData,
+                                             final IUpdaterFactory factory,
+                                             final StorageConfig config) {
+        final Document storedDocument = toStoredDocument(componentDbData, config);
+        checkRewriteSize(componentDbData, storedDocument, config);
+
+        final IUpdater updater = factory.create("");
+        updater.update(ComponentSlots.key(componentDbData.getClass()), storedDocument);
+        return updater;
+    }
+
+    /**
+     * 检查压缩存储的组件改写后的$set的大小：每一次增量更新都会写入整个组件，实体文档至少和它一样大，因此使用和
+     * {@link ComponentStorages#checkSize(String, RawBsonDocument, StorageConfig)}相同的阈值，在增量更新被mongoDB拒绝之前发现问题
+     */
+    private static void checkRewriteSize(final ComponentDbData<?> componentDbData,
+                                         final Document storedDocument,
+                                         final StorageConfig config) {
+        final int threshold = config.getSizeWarnThreshold();
+        if (threshold <= 0) {
+            return;
+        }
+
+        //压缩后只剩类型和一个二进制字段，编码的开销很小
+        final int size = new RawBsonDocument(storedDocument, DOCUMENT_CODEC).getByteBuffer().remaining();
+        if (size < threshold) {
+            return;
+        }
+
+        final String className = componentDbData.getClass().getName();
+        if (size > MAX_DOCUMENT_SIZE) {
+            log.error(Markers.MongoDB, "compressed component too large, the update will be rejected by mongoDB, consider " +
+                            "@ComponentStorage(OVERFLOW), class:{}, id:{}, size:{}, max:{}",
+                    className, componentDbData.getId(), size, MAX_DOCUMENT_SIZE);
+        } else {
+            log.warn(Markers.MongoDB, "compressed component approaching the size limit, every update writes the whole " +
+                            "component, consider @ComponentStorage(OVERFLOW), class:{}, id:{}, size:{}, threshold:{}, max:{}",
+                    className, componentDbData.getId(), size, threshold, MAX_DOCUMENT_SIZE);
+        }
+    }
+
+    /**
+     * 整体更新一个组件时（{@link EntityDbData#updateComponentDbData(Class)}），写入实体的更新器中的值
+     *
+     * @param componentDbData 要更新的组件
+     * @param config          存储配置
+     * @return 要写入实体的更新器中的值，溢出存储的组件返回null：此时组件的每个顶层字段都被写入组件自身的更新器，从而被写入溢出collection
+     */
+    public static Object toUpdateValue(final ComponentDbData<?> componentDbData, final StorageConfig config) {
+        switch (policy(componentDbData.getClass())) {
+            case COMPRESSED:
+                return toStoredDocument(componentDbData, config);
+            case OVERFLOW:
+                final Document document = write(componentDbData);
+                document.remove(DefaultMongoTypeMapper.DEFAULT_TYPE_KEY);
+                document.forEach((key, value) -> componentDbData.getUpdater().update(key, value));
+                return null;
+            default:
+                return componentDbData;
+        }
+    }
+
+    private static Document toStoredDocument(final ComponentDbData<?> componentDbData, final StorageConfig config) {
+        return compress(write(componentDbData), config);
+    }
+
+    private static Document write(final ComponentDbData<?> componentDbData) {
+        final MongoConverter converter = Updater.getMongoConverter();
+        final Document document = new Document();
+        converter.write(componentDbData, document);
+        document.remove(IGamedoMongoTemplate.ID_FIELD_NAME);
+        return document;
+    }
+
+    /**
+     * 检查一个即将写入的文档的大小，超过{@link StorageConfig#getSizeWarnThreshold()}时打印警告日志（超过mongoDB的上限时打印错误日志），
+     * 日志中包含最大的若干个顶层字段的大小
+     *
+     * @param collectionName 要写入的collection
+     * @param document       编码后的文档
+     * @param config         存储配置
+     * @return 文档的大小（字节）
+     */
+    public static int checkSize(final String collectionName, final RawBsonDocument document, final StorageConfig config) {
+        final int size = document.getByteBuffer().remaining();
+        final int threshold = config.getSizeWarnThreshold();
+        if (threshold <= 0 || size < threshold) {
+            return size;
+        }
+
+        final Object id = document.get(IGamedoMongoTemplate.ID_FIELD_NAME);
+        final String fieldSizes = fieldSizes(document);
+        if (size > MAX_DOCUMENT_SIZE) {
+            log.error(Markers.MongoDB, "document too large and will be rejected by mongoDB, consider " +
+                            "@ComponentStorage(COMPRESSED) or @ComponentStorage(OVERFLOW), collection:{}, id:{}, size:{}, " +
+                            "max:{}, largest fields:{}",
+                    collectionName, id, size, MAX_DOCUMENT_SIZE, fieldSizes);
+        } else {
+            log.warn(Markers.MongoDB, "document approaching the size limit, consider @ComponentStorage(COMPRESSED) or " +
+                            "@ComponentStorage(OVERFLOW), collection:{}, id:{}, size:{}, threshold:{}, max:{}, largest fields:{}",
+                    collectionName, id, size, threshold, MAX_DOCUMENT_SIZE, fieldSizes);
+        }
+
+        return size;
+    }
+
+    /**
+     * 通过跳过每个顶层字段来计算它们的大小，不会解码任何字段
+     */
+    private static String fieldSizes(final RawBsonDocument document) {
+        final List<Map.Entry<String, Integer>> sizeList = new ArrayList<>();
+        try (BsonBinaryReader reader = new BsonBinaryReader(document.getByteBuffer().asNIO())) {
+            reader.readStartDocument();
+            while (reader.readBsonType() != BsonType.END_OF_DOCUMENT) {
+                final int start = reader.getBsonInput().getPosition();
+                final String key = reader.readName();
+                reader.skipValue();
+                sizeList.add(new AbstractMap.SimpleImmutableEntry<>(key,
+                        reader.getBsonInput().getPosition() - start));
+            }
+        }
+
+        return sizeList.stream()
+                .sorted(Map.Entry.<String, Integer>comparingByValue().reversed())
+                .limit(MAX_REPORTED_FIELDS)
+                .map(entry -> entry.getKey() + "=" + entry.getValue())
+                .collect(Collectors.joining(", ", "[", "]"));
+    }
+}
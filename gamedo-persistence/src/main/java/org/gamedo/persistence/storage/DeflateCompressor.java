@@ -0,0 +1,84 @@
+package org.gamedo.persistence.storage;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * 基于JDK自带的{@link Deflater}的压缩算法，不依赖任何本地库。压缩后的格式为：4个字节（大端序）的原始长度，紧跟着不带zlib头的deflate
+ * 数据，解压时可以一次分配准确大小的数组
+ */
+public class DeflateCompressor implements ICompressor {
+
+    private static final int LENGTH_BYTES = Integer.BYTES;
+
+    private final int level;
+
+    /**
+     * 使用{@link Deflater#BEST_SPEED}，对于游戏数据（大量重复的字段名和小整数），它的压缩率和默认级别相差不大，但是速度要快得多
+     */
+    public DeflateCompressor() {
+        this(Deflater.BEST_SPEED);
+    }
+
+    /**
+     * @param level 压缩级别，详见{@link Deflater#setLevel(int)}
+     */
+    public DeflateCompressor(int level) {
+        this.level = level;
+    }
+
+    @Override
+    public byte[] compress(final byte[] bytes) {
+        final Deflater deflater = new Deflater(level, true);
+        try {
+            deflater.setInput(bytes);
+            deflater.finish();
+
+            //不可压缩的数据在deflate之后会略微变大
+            byte[] output = new byte[LENGTH_BYTES + bytes.length + (bytes.length >> 4) + 64];
+            ByteBuffer.wrap(output).putInt(bytes.length);
+            int length = LENGTH_BYTES;
+            while (!deflater.finished()) {
+                if (length == output.length) {
+                    output = Arrays.copyOf(output, output.length << 1);
+                }
+                length += deflater.deflate(output, length, output.length - length);
+            }
+
+            return Arrays.copyOf(output, length);
+        } finally {
+            deflater.end();
+        }
+    }
+
+    @Override
+    public byte[] decompress(final byte[] bytes) {
+        final Inflater inflater = new Inflater(true);
+        try {
+            final byte[] output = new byte[ByteBuffer.wrap(bytes).getInt()];
+            inflater.setInput(bytes, LENGTH_BYTES, bytes.length - LENGTH_BYTES);
+            int length = 0;
+            while (length < output.length) {
+                final int inflated = inflater.inflate(output, length, output.length - length);
+                if (inflated == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                length += inflated;
+            }
+
+            if (length != output.length) {
+                throw new IllegalStateException("corrupted compressed data, expected length:" + output.length +
+                        ", actual length:" + length);
+            }
+
+            return output;
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupted compressed data", e);
+        } finally {
+            inflater.end();
+        }
+    }
+}
@@ -0,0 +1,22 @@
+package org.gamedo.persistence.storage;
+
+/**
+ * 压缩组件（{@link StoragePolicy#COMPRESSED}）所使用的压缩算法，实现必须是线程安全的，详见
+ * {@link StorageConfig#getCompressor()}
+ * <p>
+ * 注意：压缩后的数据中没有记录压缩算法，更换压缩算法之前，必须保证数据库中已经没有使用旧算法压缩的组件
+ */
+public interface ICompressor {
+
+    /**
+     * @param bytes 要压缩的数据
+     * @return 压缩后的数据
+     */
+    byte[] compress(byte[] bytes);
+
+    /**
+     * @param bytes 压缩后的数据
+     * @return 解压后的数据
+     */
+    byte[] decompress(byte[] bytes);
+}
@@ -0,0 +1,37 @@
+package org.gamedo.persistence.storage;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * 组件存储方式以及文档大小检查的配置，详见{@link ComponentStorages}
+ */
+@Value
+@Builder(toBuilder = true)
+public class StorageConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final StorageConfig DEFAULT = StorageConfig.builder().build();
+
+    /**
+     * 编码后小于该大小（字节）的压缩组件（{@link StoragePolicy#COMPRESSED}）不会被压缩，而是直接内联存储，因为小文档的压缩收益抵不上
+     * 压缩和解压的开销
+     */
+    @Builder.Default
+    int compressThreshold = 1024;
+
+    /**
+     * 存储时，编码后的文档超过该大小（字节）会打印一条警告日志，其中包含每个顶层字段（也即每个组件）的大小，从而在文档真正超过mongoDB的
+     * 上限（{@value ComponentStorages#MAX_DOCUMENT_SIZE}字节）而导致写入失败之前，发现需要压缩或者溢出存储的组件。小于等于0时不检查
+     */
+    @Builder.Default
+    int sizeWarnThreshold = 12 * 1024 * 1024;
+
+    /**
+     * 压缩存储的组件所使用的压缩算法，同一个collection中的数据在写入和读取时必须使用相同的算法
+     */
+    @Builder.Default
+    ICompressor compressor = new DeflateCompressor();
+}
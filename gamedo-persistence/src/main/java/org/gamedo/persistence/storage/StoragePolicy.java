@@ -0,0 +1,21 @@
+package org.gamedo.persistence.storage;
+
+/**
+ * 组件在实体文档中的存储方式，详见{@link ComponentStorages}
+ */
+public enum StoragePolicy {
+    /**
+     * 作为实体文档的一个内嵌文档存储，这是默认的存储方式
+     */
+    INLINE,
+    /**
+     * 组件的内嵌文档被编码并压缩为一个二进制字段：{@code {_class: ..., _z: BinData}}，适合体积较大、但很少被单独查询的组件（例如：
+     * 邮件、战报）。压缩的组件不能被部分更新，每次增量更新都会重写整个组件
+     */
+    COMPRESSED,
+    /**
+     * 组件存储在独立的溢出collection（实体的collection名加上{@value ComponentStorages#OVERFLOW_COLLECTION_SUFFIX}）中，以实体
+     * 的“_id”为键，实体文档中只保留一个占位的内嵌文档。适合体积可能超过单个文档上限的组件，代价是加载实体时需要多执行一次查询
+     */
+    OVERFLOW
+}
@@ -0,0 +1,22 @@
+package org.gamedo.persistence.version;
+
+/**
+ * 版本冲突的处理者，在执行写入的线程上回调，回调时写入所在的通道被占用，同一个文档后续的写入需要等待回调返回
+ */
+@FunctionalInterface
+public interface IVersionConflictHandler {
+
+    /**
+     * 默认的处理者：总是放弃本次写入
+     */
+    IVersionConflictHandler ABORT = conflict -> VersionConflictResolution.ABORT;
+
+    /**
+     * 当一次带有版本校验的写入没有匹配到任何文档时回调，本次写入总是被放弃，回调中可以重新加载数据并将本地的修改合并到其中，再提交一次
+     * 新的写入（它排在本次写入之后执行）
+     *
+     * @param conflict 冲突的详细信息
+     * @return 冲突的处理结果
+     */
+    VersionConflictResolution onConflict(VersionConflict conflict);
+}
@@ -0,0 +1,42 @@
+package org.gamedo.persistence.version;
+
+import lombok.Value;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 一次版本冲突：带有版本校验的写入没有匹配到任何文档
+ */
+@Value
+public class VersionConflict {
+    /**
+     * 文档所在的collection
+     */
+    String collectionName;
+    /**
+     * 文档的id
+     */
+    Object id;
+    /**
+     * 写入的数据类型
+     */
+    Class<?> dataClass;
+    /**
+     * 本次写入所期望的版本号，key为版本号的路径（详见{@link Versions#path(org.gamedo.persistence.db.DbData)}）
+     */
+    Map<String, Long> expectedVersionMap;
+    /**
+     * 数据库中当前的版本号，key同{@link VersionConflict#getExpectedVersionMap()}，如果文档已不存在，为空map
+     */
+    Map<String, Long> actualVersionMap;
+    /**
+     * 文档是否依然存在，为false时意味着文档已被其他节点删除
+     */
+    boolean documentExists;
+    /**
+     * 冲突的增量更新，如果冲突的是一次完整存储，为空列表
+     */
+    List<? extends UpdateDefinition> updateList;
+}
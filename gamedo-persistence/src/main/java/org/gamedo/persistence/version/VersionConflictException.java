@@ -0,0 +1,25 @@
+package org.gamedo.persistence.version;
+
+import lombok.Getter;
+
+/**
+ * 版本冲突且放弃写入时，写入的结果以该异常结束
+ */
+@Getter
+public class VersionConflictException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * 冲突的详细信息
+     */
+    private final transient VersionConflict conflict;
+
+    public VersionConflictException(VersionConflict conflict) {
+        super("version conflict, collection:" + conflict.getCollectionName() +
+                ", id:" + conflict.getId() +
+                ", class:" + conflict.getDataClass().getName() +
+                ", expected:" + conflict.getExpectedVersionMap() +
+                ", actual:" + conflict.getActualVersionMap());
+        this.conflict = conflict;
+    }
+}
@@ -0,0 +1,15 @@
+package org.gamedo.persistence.version;
+
+/**
+ * {@link IVersionConflictHandler}对一次版本冲突的处理结果
+ */
+public enum VersionConflictResolution {
+    /**
+     * 放弃本次写入，写入的结果以{@link VersionConflictException}异常结束。本地数据的版本号保持不变，因此后续的写入也会继续冲突，直到重新
+     * 加载了该数据
+     * <p>
+     * 不提供以数据库中的版本号直接重放本次写入的选项：本次写入是基于过期的数据构造的，重放等同于不加校验地覆盖其他节点的修改。需要保留本地
+     * 修改时，应当重新加载数据、合并之后再提交一次新的写入
+     */
+    ABORT
+}
@@ -0,0 +1,303 @@
+package org.gamedo.persistence.version;
+
+import com.mongodb.client.model.Filters;
+import org.bson.BsonDocument;
+import org.bson.BsonInt64;
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.annotations.Versioned;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.EntityDbData;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.mongodb.core.query.UpdateDefinition;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 乐观版本控制相关的工具方法
+ * <p>
+ * 注解了{@link Versioned}的实体或组件在文档中额外维护一个版本号：实体的版本号是顶层字段{@value #VERSION_FIELD_NAME}，组件的版本号
+ * 位于组件的内嵌文档中（例如：“ComponentDbBag._v”），二者相互独立。加载时版本号被读取到{@link DbData#getVersion()}中；通过
+ * GamedoMongoTemplate执行增量更新或者存储时，查询条件中会附加“版本号 == 期望值”，并在同一次写入中将版本号加一，因此每次写入只多了一
+ * 个查询条件和一个$inc，不需要额外的读取。写入没有匹配到文档，意味着其他节点已经修改过该文档，此时交给{@link IVersionConflictHandler}
+ * 处理
+ * <p>
+ * 版本号为0意味着本地不知道数据库中的版本号（例如：新创建的数据，或者加载自尚未启用版本控制的旧文档），此时写入不做校验
+ */
+public final class Versions {
+
+    /**
+     * 版本号在文档中的字段名
+     */
+    public static final String VERSION_FIELD_NAME = "_v";
+
+    private static final ClassValue<Boolean> VERSIONED = new ClassValue<Boolean>() {
+        @Override
+        protected Boolean computeValue(Class<?> type) {
+            return type.isAnnotationPresent(Versioned.class);
+        }
+    };
+
+    private Versions() {
+    }
+
+    /**
+     * @param clazz 要检查的类型
+     * @return 如果该类型（或者它的父类）注解了{@link Versioned}，返回true
+     */
+    public static boolean isVersioned(final Class<?> clazz) {
+        return VERSIONED.get(clazz);
+    }
+
+    /**
+     * @param data 要检查的数据
+     * @return 如果该数据本身，或者它是一个实体并且任意一个组件启用了版本控制，返回true
+     */
+    public static boolean isAnyVersioned(final DbData<?> data) {
+        if (isVersioned(data.getClass())) {
+            return true;
+        }
+
+        if (data instanceof EntityDbData) {
+            for (ComponentDbData<?> componentDbData : ((EntityDbData<?>) data).getLoadedComponentDbDataCollection()) {
+                if (isVersioned(componentDbData.getClass())) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * @param data 启用了版本控制的数据
+     * @return 该数据的版本号在所属文档中的路径，实体为“_v”，组件为“组件类名._v”
+     */
+    public static String path(final DbData<?> data) {
+        return data instanceof ComponentDbData ?
+                data.getClass().getSimpleName() + '.' + VERSION_FIELD_NAME :
+                VERSION_FIELD_NAME;
+    }
+
+    /**
+     * 收集一次完整存储所涉及的、启用了版本控制的数据，对于实体，包括实体本身以及它的所有组件
+     *
+     * @param data 要存储的数据
+     * @return 版本号路径到数据的映射，如果没有任何数据启用了版本控制，返回空map
+     */
+    public static Map<String, DbData<?>> collectForSave(final DbData<?> data) {
+        if (!(data instanceof EntityDbData)) {
+            return collectForUpdate(data);
+        }
+
+        final EntityDbData<?> entityDbData = (EntityDbData<?>) data;
+        return collect(entityDbData, entityDbData.getLoadedComponentDbDataCollection());
+    }
+
+    /**
+     * 收集只使用数据自身的更新器的一次增量更新所涉及的、启用了版本控制的数据，对于实体，不包括它的组件
+     *
+     * @param data 要更新的数据
+     * @return 版本号路径到数据的映射，如果数据没有启用版本控制，返回空map
+     */
+    public static Map<String, DbData<?>> collectForUpdate(final DbData<?> data) {
+        return isVersioned(data.getClass()) ? Collections.singletonMap(path(data), data) : Collections.emptyMap();
+    }
+
+    /**
+     * 收集一次增量更新所涉及的、启用了版本控制的数据，只包括已被标脏的实体本身以及被标脏的组件，必须在摘下更新器之前调用
+     *
+     * @param entityDbData 要更新的实体
+     * @return 版本号路径到数据的映射，如果没有任何数据启用了版本控制，返回空map
+     */
+    public static Map<String, DbData<?>> collectDirty(final EntityDbData<?> entityDbData) {
+        return collect(entityDbData.isDirty() ? entityDbData : null, entityDbData.getDirtyComponentDbData());
+    }
+
+    private static Map<String, DbData<?>> collect(final EntityDbData<?> entityDbData,
+                                                  final Iterable<? extends ComponentDbData<?>> componentIterable) {
+        Map<String, DbData<?>> dataMap = Collections.emptyMap();
+        if (entityDbData != null && isVersioned(entityDbData.getClass())) {
+            dataMap = new LinkedHashMap<>();
+            dataMap.put(VERSION_FIELD_NAME, entityDbData);
+        }
+
+        for (ComponentDbData<?> componentDbData : componentIterable) {
+            if (isVersioned(componentDbData.getClass())) {
+                if (dataMap.isEmpty()) {
+                    dataMap = new LinkedHashMap<>();
+                }
+                dataMap.put(path(componentDbData), componentDbData);
+            }
+        }
+
+        return dataMap;
+    }
+
+    /**
+     * 读取数据当前的版本号作为本次写入的期望值，必须在写入执行时（而不是提交时）读取，从而接上排在前面的写入所递增的版本号
+     *
+     * @param dataMap 版本号路径到数据的映射
+     * @return 版本号路径到期望值的映射
+     */
+    public static Map<String, Long> expect(final Map<String, DbData<?>> dataMap) {
+        final Map<String, Long> expectedMap = new LinkedHashMap<>(dataMap.size() * 2);
+        dataMap.forEach((path, data) -> expectedMap.put(path, data.getVersion()));
+        return expectedMap;
+    }
+
+    /**
+     * @param expectedMap 版本号路径到期望值的映射
+     * @return 如果至少有一个期望值是已知的（大于0），也即写入需要校验版本号，返回true
+     */
+    public static boolean isGuarded(final Map<String, Long> expectedMap) {
+        for (Long expected : expectedMap.values()) {
+            if (expected > 0) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * 构造一个增量更新的查询条件：“_id”以及所有已知的期望版本号
+     *
+     * @param id          文档的id
+     * @param expectedMap 版本号路径到期望值的映射
+     * @return 查询条件
+     */
+    public static Query query(final Object id, final Map<String, Long> expectedMap) {
+        final Criteria criteria = Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).is(id);
+        expectedMap.forEach((path, expected) -> {
+            if (expected > 0) {
+                criteria.and(path).is(expected);
+            }
+        });
+
+        return new Query(criteria);
+    }
+
+    /**
+     * 同{@link Versions#query(Object, Map)}，用于直接通过mongoDB驱动执行的存储
+     */
+    public static Bson filter(final Object documentId, final Map<String, Long> expectedMap) {
+        final Bson idFilter = Filters.eq(IGamedoMongoTemplate.ID_FIELD_NAME, documentId);
+        if (!isGuarded(expectedMap)) {
+            return idFilter;
+        }
+
+        final List<Bson> filterList = new ArrayList<>(expectedMap.size() + 1);
+        filterList.add(idFilter);
+        expectedMap.forEach((path, expected) -> {
+            if (expected > 0) {
+                filterList.add(Filters.eq(path, expected));
+            }
+        });
+
+        return Filters.and(filterList);
+    }
+
+    /**
+     * 为一组需要按顺序执行的增量更新附加版本号的递增：只有最后一个更新会递增版本号，从而使得每一个更新都能使用相同的期望值作为查询条件。
+     * 如果某个更新$set了组件的整个内嵌文档，$inc组件的版本号会和它产生路径冲突，此时版本号直接写入该内嵌文档中。传入的更新不会被修改
+     *
+     * @param updateList  要执行的增量更新
+     * @param expectedMap 版本号路径到期望值的映射
+     * @return 附加了版本号的增量更新
+     */
+    public static List<Update> bump(final List<? extends UpdateDefinition> updateList,
+                                    final Map<String, Long> expectedMap) {
+        final List<Update> bumpedList = new ArrayList<>(updateList.size());
+        for (int i = 0; i < updateList.size(); i++) {
+            final boolean last = i == updateList.size() - 1;
+            final Document updateObject = copy(updateList.get(i).getUpdateObject());
+            final Document setDocument = (Document) updateObject.get("$set");
+
+            expectedMap.forEach((path, expected) -> {
+                final int index = path.indexOf('.');
+                final Object parent = index > 0 && setDocument != null ? setDocument.get(path.substring(0, index)) : null;
+                if (parent instanceof Document) {
+                    //整个组件被覆盖，版本号跟随内嵌文档一起写入
+                    final Document parentCopy = new Document((Document) parent);
+                    parentCopy.put(VERSION_FIELD_NAME, last ? expected + 1 : expected);
+                    setDocument.put(path.substring(0, index), parentCopy);
+                } else if (last) {
+                    final Document incDocument = (Document) updateObject.computeIfAbsent("$inc", key -> new Document());
+                    incDocument.put(path, 1L);
+                }
+            });
+
+            bumpedList.add(Update.fromDocument(updateObject));
+        }
+
+        return bumpedList;
+    }
+
+    private static Document copy(final Document updateObject) {
+        final Document document = new Document();
+        updateObject.forEach((op, value) -> document.put(op, new Document((Document) value)));
+        return document;
+    }
+
+    /**
+     * 将版本号写入一个要存储的完整文档中
+     *
+     * @param document 要存储的文档，实体为打散后的文档，组件为嵌套后的文档
+     * @param path     版本号路径
+     * @param version  要写入的版本号
+     */
+    public static void stamp(final Document document, final String path, final long version) {
+        final int index = path.indexOf('.');
+        final Document target = index > 0 ? (Document) document.get(path.substring(0, index)) : document;
+        target.put(VERSION_FIELD_NAME, version);
+    }
+
+    /**
+     * 同{@link Versions#stamp(Document, String, long)}
+     */
+    public static void stamp(final BsonDocument document, final String path, final long version) {
+        final int index = path.indexOf('.');
+        final BsonDocument target = index > 0 ? document.getDocument(path.substring(0, index)) : document;
+        target.put(VERSION_FIELD_NAME, new BsonInt64(version));
+    }
+
+    /**
+     * 从文档中读取版本号
+     *
+     * @param document 文档，可以为null
+     * @param path     版本号路径
+     * @return 读取到的版本号，如果文档或者版本号字段不存在，返回0
+     */
+    public static long read(final Document document, final String path) {
+        Object value = document;
+        for (String key : path.split("\\.")) {
+            if (!(value instanceof Document)) {
+                return 0L;
+            }
+            value = ((Document) value).get(key);
+        }
+
+        return value instanceof Number ? ((Number) value).longValue() : 0L;
+    }
+
+    /**
+     * 加载时，将文档中的版本号读取到数据中，只有启用了版本控制的数据会被读取
+     *
+     * @param data     加载得到的数据
+     * @param document 数据所对应的（内嵌）文档，版本号为它的顶层字段
+     */
+    public static void load(final DbData<?> data, final Document document) {
+        if (document != null && isVersioned(data.getClass())) {
+            data.setVersion(read(document, VERSION_FIELD_NAME));
+        }
+    }
+}
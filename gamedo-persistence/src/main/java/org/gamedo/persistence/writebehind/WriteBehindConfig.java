@@ -0,0 +1,37 @@
+package org.gamedo.persistence.writebehind;
+
+import lombok.Builder;
+import lombok.Value;
+
+import java.time.Duration;
+
+/**
+ * {@link WriteBehindScheduler}的配置
+ */
+@Value
+@Builder
+public class WriteBehindConfig {
+
+    /**
+     * 默认配置
+     */
+    public static final WriteBehindConfig DEFAULT = WriteBehindConfig.builder().build();
+
+    /**
+     * 两次刷新之间的时间间隔
+     */
+    @Builder.Default
+    Duration flushInterval = Duration.ofSeconds(1);
+
+    /**
+     * 单个bulkWrite批次包含的最大更新数量，超过该数量时，同一个collection的更新会被拆分为多个批次
+     */
+    @Builder.Default
+    int maxBatchSize = 500;
+
+    /**
+     * 同时执行中（已提交但未完成）的最大批次数量，达到该数量时，刷新线程会阻塞，直到有批次执行完毕
+     */
+    @Builder.Default
+    int maxInFlightBatches = 4;
+}
@@ -0,0 +1,677 @@
+package org.gamedo.persistence.writebehind;
+
+import com.mongodb.bulk.BulkWriteError;
+import com.mongodb.bulk.BulkWriteResult;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.log4j.Log4j2;
+import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.IGamedoMongoTemplate;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.db.ComponentDbData;
+import org.gamedo.persistence.db.DbData;
+import org.gamedo.persistence.db.DirtyEntities;
+import org.gamedo.persistence.db.EntityDbData;
+import org.gamedo.persistence.db.IUpdater;
+import org.gamedo.persistence.db.Updaters;
+import org.gamedo.persistence.journal.WriteJournal;
+import org.gamedo.persistence.logging.Markers;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.Versions;
+import org.springframework.data.mongodb.BulkOperationException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.data.util.Pair;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.stream.Collectors;
+
+/**
+ * 延迟写（write-behind）调度器：将注册进来的{@link EntityDbData}和{@link ComponentDbData}周期性地进行刷新。每一次刷新时，收集所有
+ * {@link DbData#isDirty()}为true的数据，为其替换新的{@link IUpdater}，然后按照所属collection进行分组，每个collection使用一个无序的
+ * {@link BulkOperations}批量提交，从而将大量的单次updateFirst请求合并为少量的bulkWrite请求。对于注册进来的{@link EntityDbData}，
+ * 实体本身及其所有被标脏的组件的更新会被合并为一个更新（详见{@link Updaters#merge(List)}）。
+ * <p>
+ * 注册进来的{@link EntityDbData}会被设置为使用本调度器自己的{@link DirtyEntities}，刷新时只取出被标脏的实体，而不需要遍历所有注册的实体；
+ * 单独注册的{@link ComponentDbData}没有这样的注册表，每次刷新时逐个检查。
+ * <p>
+ * 启用了版本控制（详见{@link Versions}）的数据不参与bulkWrite：bulkWrite的结果无法区分具体是哪一个更新发生了版本冲突，因此这些数据
+ * 逐个通过{@link GamedoMongoTemplate}的增量更新提交，从而保留版本校验以及冲突处理。
+ * <p>
+ * 如果设置了{@link GamedoMongoTemplate#getWriteJournal()}，每个数据被摘下的更新会先记录到写前日志中，所在批次写入成功之后再确认。
+ * <p>
+ * bulkWrite失败时，没有写入成功的更新（部分失败时根据{@link BulkOperationException#getErrors()}区分，其他异常时为整个批次）以及它们的日志
+ * 序号会被暂存起来，在下一次刷新时排在该数据新的更新之前重新提交，因此更新不会因为一次写入失败而丢失。<b>注意：</b>网络异常等无法确定
+ * 是否已经写入的失败，重新提交时$inc、$push等非幂等的更新可能被重复执行。一个数据所在的批次执行完毕之前，该数据不会被再次刷新，因此同一个
+ * 数据的更新总是按顺序写入。bulkWrite不经过{@link GamedoMongoTemplate}的有序通道，因此如果一个数据在{@link GamedoMongoTemplate}中还有
+ * 尚未执行完毕的写入（{@link GamedoMongoTemplate#hasPendingWrite(String, Object)}），它同样会被留到下一次刷新；反过来，批次执行期间对同一个数据
+ * 直接调用{@link GamedoMongoTemplate}的写入则不会等待该批次，因此注册进来的数据应当只通过本调度器写入
+ * <p>
+ * 和{@link IUpdater}一样，摘下更新器必须和{@link DbData#update(String, Object)}在同一个线程上执行，否则业务线程的更新可能写入到已经被
+ * 摘下的更新器中而丢失。因此{@link WriteBehindScheduler#flush()}只能在修改这些数据的业务线程上调用，自动调度时，调度线程只负责计时，
+ * 刷新被投递到业务线程的执行器上执行（详见{@link WriteBehindScheduler#start(Executor)}），只有bulkWrite在线程池上异步执行
+ */
+@Log4j2
+public class WriteBehindScheduler implements AutoCloseable {
+
+    private final GamedoMongoTemplate gamedoMongoTemplate;
+    private final WriteBehindConfig config;
+    private final Executor executor;
+    private final Semaphore inFlightBatches;
+    private final Map<Class<?>, Map<Object, DbData<?>>> registry = new ConcurrentHashMap<>();
+    /**
+     * 注册进来的实体被标脏时所在的注册表
+     */
+    private final DirtyEntities dirtyEntities = new DirtyEntities();
+    /**
+     * 被标脏、但没有在{@link WriteBehindScheduler#dirtyEntities}中排队的实体：注册时已经排在其他注册表中的实体，以及上一次刷新时由于
+     * 写入尚未完成而被留下来的实体，它们在下一次刷新时被检查
+     */
+    private final Set<DbData<?>> deferredSet = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+    /**
+     * 写入失败、等待下一次刷新时重新提交的更新
+     */
+    private final Map<DbData<?>, Retry> retryMap = Collections.synchronizedMap(new IdentityHashMap<>());
+    /**
+     * 所在批次尚未执行完毕的数据，在批次执行完毕之前，这些数据不会被再次刷新，从而保证同一个数据的更新按顺序写入
+     */
+    private final Set<DbData<?>> inFlightSet = Collections.newSetFromMap(Collections.synchronizedMap(new IdentityHashMap<>()));
+    /**
+     * 已经投递到业务线程、但尚未执行的刷新
+     */
+    private final AtomicBoolean flushPosted = new AtomicBoolean();
+    private ScheduledExecutorService scheduledExecutorService;
+    private ScheduledFuture<?> flushFuture;
+
+    public WriteBehindScheduler(GamedoMongoTemplate gamedoMongoTemplate) {
+        this(gamedoMongoTemplate, WriteBehindConfig.DEFAULT);
+    }
+
+    public WriteBehindScheduler(GamedoMongoTemplate gamedoMongoTemplate, WriteBehindConfig config) {
+        this(gamedoMongoTemplate, config, gamedoMongoTemplate.getAsyncExecutor());
+    }
+
+    /**
+     * @param gamedoMongoTemplate 执行bulkWrite的模板
+     * @param config              调度器配置
+     * @param executor            执行bulkWrite的线程池
+     */
+    public WriteBehindScheduler(GamedoMongoTemplate gamedoMongoTemplate, WriteBehindConfig config, Executor executor) {
+        this.gamedoMongoTemplate = gamedoMongoTemplate;
+        this.config = config;
+        this.executor = executor;
+
+        inFlightBatches = new Semaphore(config.getMaxInFlightBatches());
+    }
+
+    /**
+     * 注册一个需要延迟写的数据，要注册的数据必须已经设置了id，重复注册（相同类型且相同id）时，后注册的数据会替换先注册的数据。注册的
+     * {@link EntityDbData}会被设置为使用本调度器的注册表（{@link EntityDbData#setDirtyEntities(DirtyEntities)}），替换它原来的注册表
+     *
+     * @param data 要注册的数据
+     */
+    public void register(final DbData<?> data) {
+        final Object id = Objects.requireNonNull(data.getId(), "the id of DbData should not be null.");
+
+        final DbData<?> old = registry.computeIfAbsent(data.getClass(), clazz -> new ConcurrentHashMap<>()).put(id, data);
+        if (old != null && old != data) {
+            release(old);
+        }
+
+        if (data instanceof EntityDbData) {
+            final EntityDbData<?> entityDbData = (EntityDbData<?>) data;
+            entityDbData.setDirtyEntities(dirtyEntities);
+            //已经被标脏的实体可能排在原来的注册表中，不会再次排入本调度器的注册表
+            if (Updaters.isAnyDirty(entityDbData)) {
+                deferredSet.add(entityDbData);
+            }
+        }
+    }
+
+    /**
+     * 取消注册一个数据，<b>注意：</b>本方法不会对该数据进行刷新，如有需要，调用者应该在取消注册前自行存储（写入失败而等待重新提交的
+     * 更新不受影响，依然会在下一次刷新时提交）
+     *
+     * @param data 要取消注册的数据
+     * @return 如果该数据已经被注册过，返回true
+     */
+    public boolean unregister(final DbData<?> data) {
+        final Map<Object, DbData<?>> dataMap = registry.get(data.getClass());
+        if (dataMap == null || !dataMap.remove(data.getId(), data)) {
+            return false;
+        }
+
+        release(data);
+        return true;
+    }
+
+    private void release(final DbData<?> data) {
+        deferredSet.remove(data);
+        if (data instanceof EntityDbData && ((EntityDbData<?>) data).getDirtyEntities() == dirtyEntities) {
+            ((EntityDbData<?>) data).setDirtyEntities(null);
+        }
+    }
+
+    private boolean isRegistered(final DbData<?> data) {
+        final Map<Object, DbData<?>> dataMap = registry.get(data.getClass());
+        return dataMap != null && data.getId() != null && dataMap.get(data.getId()) == data;
+    }
+
+    /**
+     * 启动调度，按照{@link WriteBehindConfig#getFlushInterval()}周期性地将{@link WriteBehindScheduler#flush()}投递到ownerExecutor上执行，
+     * 上一次投递的刷新尚未执行时，不会重复投递
+     *
+     * @param ownerExecutor 修改已注册数据的业务线程（例如游戏的逻辑线程）对应的执行器，摘下更新器在该执行器上执行
+     */
+    public synchronized void start(final Executor ownerExecutor) {
+        Objects.requireNonNull(ownerExecutor, "the owner executor should not be null.");
+        if (flushFuture != null) {
+            return;
+        }
+
+        scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(r -> {
+            final Thread thread = new Thread(r, "gamedo-write-behind");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        final long interval = config.getFlushInterval().toMillis();
+        flushFuture = scheduledExecutorService.scheduleWithFixedDelay(() -> post(ownerExecutor),
+                interval,
+                interval,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 停止调度，停止前会在调用线程上执行最后一次刷新，并等待所有执行中的批次完成，此时依然写入失败的更新会保留下来，直到下一次调用
+     * {@link WriteBehindScheduler#flush()}。和{@link WriteBehindScheduler#flush()}一样，本方法只能在业务线程上调用
+     */
+    public synchronized void stop() {
+        if (flushFuture == null) {
+            return;
+        }
+
+        flushFuture.cancel(false);
+        scheduledExecutorService.shutdown();
+        flushFuture = null;
+        scheduledExecutorService = null;
+
+        flushSafely();
+
+        final int maxInFlightBatches = config.getMaxInFlightBatches();
+        inFlightBatches.acquireUninterruptibly(maxInFlightBatches);
+        inFlightBatches.release(maxInFlightBatches);
+
+        if (!retryMap.isEmpty()) {
+            log.warn(Markers.MongoDB, "write-behind stopped with {} data waiting for retry, call flush() to retry them.",
+                    retryMap.size());
+        }
+    }
+
+    private void post(final Executor ownerExecutor) {
+        if (!flushPosted.compareAndSet(false, true)) {
+            return;
+        }
+
+        try {
+            ownerExecutor.execute(() -> {
+                flushPosted.set(false);
+                flushSafely();
+            });
+        } catch (Exception e) {
+            flushPosted.set(false);
+            log.error(Markers.MongoDB, "post write-behind flush to the owner executor failed.", e);
+        }
+    }
+
+    @Override
+    public void close() {
+        stop();
+    }
+
+    /**
+     * 在调用线程上立刻执行一次刷新，调用线程必须是修改已注册数据的业务线程：收集脏数据（详见{@link WriteBehindScheduler#collect(Map)}），按collection分组，并以{@link WriteBehindConfig#getMaxBatchSize()}为单位提交bulkWrite，
+     * 当执行中的批次数量达到{@link WriteBehindConfig#getMaxInFlightBatches()}时，本方法会阻塞，直到有批次执行完毕
+     *
+     * @return 本次刷新收集到的脏数据的数量
+     */
+    public synchronized int flush() {
+        final Map<String, Batch> collection2Batch = new HashMap<>();
+        final WriteJournal journal = gamedoMongoTemplate.getWriteJournal();
+        int count = 0;
+
+        final Map<DbData<?>, Retry> data2Retry;
+        synchronized (retryMap) {
+            data2Retry = new IdentityHashMap<>(retryMap);
+            retryMap.clear();
+        }
+
+        final List<DbData<?>> dataList = collect(data2Retry);
+        int index = 0;
+        try {
+            for (; index < dataList.size(); index++) {
+                final DbData<?> data = dataList.get(index);
+                final Retry retry = data2Retry.get(data);
+                if (inFlightSet.contains(data) || hasPendingWrite(data)) {
+                    //留到下一次刷新，暂存的更新早于期间新暂存的更新
+                    if (retry != null) {
+                        data2Retry.remove(data);
+                        retryMap.merge(data, retry, (newer, older) -> Retry.concat(older, newer));
+                    }
+                    if (data instanceof EntityDbData) {
+                        deferredSet.add(data);
+                    }
+                    continue;
+                }
+
+                //启用了版本控制的数据，以及溢出存储的组件（需要写入溢出collection），通过GamedoMongoTemplate提交
+                if (retry == null && (Versions.isAnyVersioned(data) || ComponentStorages.isAnyOverflow(data))) {
+                    if (submitVersioned(data)) {
+                        count++;
+                    }
+                    continue;
+                }
+
+                final List<Pair<Query, Update>> pairList = detach(data);
+                if (pairList.isEmpty() && retry == null) {
+                    continue;
+                }
+
+                count++;
+                final String collectionName = gamedoMongoTemplate.getCollectionName(data.getClass());
+                final List<Long> sequenceList = new ArrayList<>(1);
+                if (retry != null) {
+                    data2Retry.remove(data);
+                    sequenceList.addAll(retry.sequenceList);
+                }
+                if (journal != null && !pairList.isEmpty()) {
+                    final long sequence = append(journal, collectionName, data, pairList);
+                    if (sequence != 0) {
+                        sequenceList.add(sequence);
+                    }
+                }
+                if (retry != null) {
+                    //重新提交的更新必须先于新的更新执行
+                    pairList.addAll(0, retry.pairList);
+                }
+
+                add(collectionName, collection2Batch, data, pairList, sequenceList);
+            }
+
+            //已经取消注册的数据，只重新提交之前写入失败的更新
+            for (Iterator<Map.Entry<DbData<?>, Retry>> iterator = data2Retry.entrySet().iterator(); iterator.hasNext(); ) {
+                final Map.Entry<DbData<?>, Retry> entry = iterator.next();
+                iterator.remove();
+                add(gamedoMongoTemplate.getCollectionName(entry.getKey().getClass()),
+                        collection2Batch,
+                        entry.getKey(),
+                        entry.getValue().pairList,
+                        entry.getValue().sequenceList);
+            }
+
+            for (Iterator<Map.Entry<String, Batch>> iterator = collection2Batch.entrySet().iterator(); iterator.hasNext(); ) {
+                final Map.Entry<String, Batch> entry = iterator.next();
+                iterator.remove();
+                submit(entry.getKey(), entry.getValue(), BulkOperations.BulkMode.UNORDERED);
+            }
+        } finally {
+            //刷新被异常中断时，尚未检查的实体、尚未处理的暂存更新以及尚未提交的批次放回去，留到下一次刷新
+            dataList.subList(Math.min(index, dataList.size()), dataList.size()).stream()
+                    .filter(data -> data instanceof EntityDbData)
+                    .forEach(deferredSet::add);
+            data2Retry.forEach((data, retry) -> retryMap.merge(data, retry, (newer, older) -> Retry.concat(older, newer)));
+            collection2Batch.forEach((collectionName, batch) -> requeue(batch));
+        }
+
+        return count;
+    }
+
+    /**
+     * 收集本次刷新需要检查的数据：从本调度器的注册表中取出的被标脏的实体、上一次刷新时被留下来的实体、所有单独注册的组件，以及依然处于
+     * 注册状态、等待重新提交的数据。已经取消注册的实体即使被标脏也不再被检查
+     *
+     * @param data2Retry 等待重新提交的数据
+     * @return 需要检查的数据，每个数据最多出现一次
+     */
+    private List<DbData<?>> collect(final Map<DbData<?>, Retry> data2Retry) {
+        final Set<DbData<?>> dataSet = Collections.newSetFromMap(new IdentityHashMap<>());
+        dirtyEntities.drain(entityDbData -> {
+            if (isRegistered(entityDbData)) {
+                dataSet.add(entityDbData);
+            }
+        });
+
+        synchronized (deferredSet) {
+            deferredSet.stream().filter(this::isRegistered).forEach(dataSet::add);
+            deferredSet.clear();
+        }
+
+        registry.forEach((clazz, dataMap) -> {
+            if (!EntityDbData.class.isAssignableFrom(clazz)) {
+                dataSet.addAll(dataMap.values());
+            }
+        });
+        data2Retry.keySet().stream().filter(this::isRegistered).forEach(dataSet::add);
+
+        return new ArrayList<>(dataSet);
+    }
+
+    private boolean hasPendingWrite(final DbData<?> data) {
+        return data.getId() != null &&
+                gamedoMongoTemplate.hasPendingWrite(gamedoMongoTemplate.getCollectionName(data.getClass()), data.getId());
+    }
+
+    /**
+     * @return 写入失败、等待下一次刷新时重新提交的数据的数量
+     */
+    public int getRetryCount() {
+        return retryMap.size();
+    }
+
+    private void add(final String collectionName,
+                     final Map<String, Batch> collection2Batch,
+                     final DbData<?> data,
+                     final List<Pair<Query, Update>> pairList,
+                     final List<Long> sequenceList) {
+        inFlightSet.add(data);
+        //需要按顺序执行多个更新的数据（存在冲突路径，或者有需要重新提交的更新），单独使用一个有序的批次
+        if (pairList.size() > 1) {
+            final Batch batch = new Batch(pairList.size());
+            batch.add(data, pairList, sequenceList);
+            submit(collectionName, batch, BulkOperations.BulkMode.ORDERED);
+            return;
+        }
+
+        final int maxBatchSize = config.getMaxBatchSize();
+        final Batch batch = collection2Batch.computeIfAbsent(collectionName, key -> new Batch(maxBatchSize));
+
+        batch.add(data, pairList, sequenceList);
+        if (batch.pairList.size() >= maxBatchSize) {
+            collection2Batch.remove(collectionName);
+            submit(collectionName, batch, BulkOperations.BulkMode.UNORDERED);
+        }
+    }
+
+    private void flushSafely() {
+        try {
+            flush();
+        } catch (Exception e) {
+            log.error(Markers.MongoDB, "exception caught on write-behind flush.", e);
+        }
+    }
+
+    /**
+     * 使用模板的持久化设置（{@link GamedoMongoTemplate#getSettings()}）摘下数据的更新器，对于{@link EntityDbData}，实体本身及其所有
+     * 被标脏的组件的更新会被合并到一起
+     *
+     * @param data 要摘下更新器的数据
+     * @return 需要按顺序执行的更新（可修改的列表），如果数据不脏，返回空列表
+     */
+    private List<Pair<Query, Update>> detach(final DbData<?> data) {
+        final PersistenceSettings settings = gamedoMongoTemplate.getSettings();
+        final List<Update> updateList;
+        if (data instanceof EntityDbData) {
+            final EntityDbData<?> entityDbData = (EntityDbData<?>) data;
+            if (!Updaters.isAnyDirty(entityDbData)) {
+                return new ArrayList<>(1);
+            }
+
+            updateList = Updaters.merge(settings.detachDirty(entityDbData));
+        } else {
+            if (!data.isDirty()) {
+                return new ArrayList<>(1);
+            }
+
+            final IUpdater updater = settings.detach(data);
+            //可追踪容器的变化可能相互抵消，空的更新会被mongoDB当作替换整个文档，不能写入
+            if (Updaters.isEmpty(updater)) {
+                return new ArrayList<>(1);
+            }
+
+            updateList = Collections.singletonList(Update.fromDocument(updater.getUpdateObject()));
+        }
+
+        final Query query = new Query(Criteria.where(IGamedoMongoTemplate.ID_FIELD_NAME).is(data.getId()));
+        return updateList.stream()
+                .map(update -> Pair.of(query, update))
+                .collect(Collectors.toCollection(ArrayList::new));
+    }
+
+    /**
+     * 在写前日志中记录一个数据被摘下的更新，记录失败时只打印日志，不影响本次写入
+     *
+     * @return 日志的序号，记录失败时返回0
+     */
+    private static long append(final WriteJournal journal,
+                               final String collectionName,
+                               final DbData<?> data,
+                               final List<Pair<Query, Update>> pairList) {
+        try {
+            return journal.appendUpdate(collectionName,
+                    data.getClass().getName(),
+                    data.getId(),
+                    pairList.stream().map(Pair::getSecond).collect(Collectors.toList()));
+        } catch (Exception e) {
+            log.error(Markers.GamedoPersistence, "append write journal failed, class:" + data.getClass().getName() +
+                    ", id:" + data.getId(), e);
+            return 0;
+        }
+    }
+
+    /**
+     * 通过{@link GamedoMongoTemplate}提交一个启用了版本控制的数据（或者包含溢出存储的组件的数据）的增量更新
+     *
+     * @param data 要提交的数据
+     * @return 如果数据是脏的并且已经提交，返回true
+     */
+    private boolean submitVersioned(final DbData<?> data) {
+        final CompletableFuture<?> future;
+        if (data instanceof EntityDbData) {
+            if (!Updaters.isAnyDirty((EntityDbData<?>) data)) {
+                return false;
+            }
+            future = gamedoMongoTemplate.updateEntityDirtyAsync((EntityDbData<?>) data, executor);
+        } else {
+            if (!data.isDirty()) {
+                return false;
+            }
+            future = gamedoMongoTemplate.updateDbDataFirstAsync(data, executor);
+        }
+
+        future.whenComplete((result, throwable) -> {
+            if (throwable != null) {
+                log.error(Markers.MongoDB, "write-behind versioned update failed, class:" + data.getClass().getName() +
+                        ", id:" + data.getId(), throwable);
+            }
+        });
+        return true;
+    }
+
+    private void submit(final String collectionName,
+                        final Batch batch,
+                        final BulkOperations.BulkMode bulkMode) {
+        inFlightBatches.acquireUninterruptibly();
+
+        final int size = batch.pairList.size();
+        final CompletableFuture<BulkWriteResult> future;
+        try {
+            future = CompletableFuture.supplyAsync(() -> {
+                log.debug(Markers.MongoDB, "write-behind bulkWrite start, collection:{}, size:{}",
+                        collectionName, size);
+                return gamedoMongoTemplate.bulkOps(bulkMode, collectionName)
+                        .updateOne(batch.pairList)
+                        .execute();
+            }, executor);
+        } catch (RuntimeException e) {
+            //线程池拒绝执行（例如已经关闭，或者队列已满且拒绝策略为抛出异常），整个批次留到下一次刷新
+            inFlightBatches.release();
+            log.error(Markers.MongoDB, "write-behind bulkWrite rejected, collection:" + collectionName +
+                    ", size:" + size + ", retry on next flush:" + requeue(batch), e);
+            return;
+        }
+
+        future.whenComplete((result, throwable) -> {
+            inFlightBatches.release();
+            if (throwable != null) {
+                final int retryCount = retry(batch, bulkMode, throwable);
+                batch.entryList.forEach(entry -> inFlightSet.remove(entry.data));
+                log.error(Markers.MongoDB, "write-behind bulkWrite failed, collection:" + collectionName +
+                        ", size:" + size + ", retry on next flush:" + retryCount, throwable);
+                return;
+            }
+
+            batch.entryList.forEach(entry -> {
+                acknowledge(entry);
+                inFlightSet.remove(entry.data);
+            });
+
+            log.debug(Markers.MongoDB, "write-behind bulkWrite finish, collection:{}, size:{}, matched:{}, modified:{}",
+                    () -> collectionName,
+                    () -> size,
+                    result::getMatchedCount,
+                    result::getModifiedCount);
+        });
+    }
+
+    /**
+     * 将一个没有被执行的批次中的所有更新暂存起来，等待下一次刷新时重新提交
+     *
+     * @return 需要重新提交的数据的数量
+     */
+    private int requeue(final Batch batch) {
+        int retryCount = 0;
+        for (Entry entry : batch.entryList) {
+            if (entry.from < entry.to || !entry.sequenceList.isEmpty()) {
+                final Retry retry = new Retry(new ArrayList<>(batch.pairList.subList(entry.from, entry.to)),
+                        entry.sequenceList);
+                retryMap.merge(entry.data, retry, Retry::concat);
+                retryCount++;
+            }
+            inFlightSet.remove(entry.data);
+        }
+
+        return retryCount;
+    }
+
+    private void acknowledge(final Entry entry) {
+        final WriteJournal journal = gamedoMongoTemplate.getWriteJournal();
+        if (journal != null) {
+            entry.sequenceList.forEach(journal::acknowledge);
+        }
+    }
+
+    /**
+     * 暂存一个写入失败的批次中没有写入成功的更新，等待下一次刷新时重新提交，全部写入成功的数据则确认其日志
+     *
+     * @return 需要重新提交的数据的数量
+     */
+    private int retry(final Batch batch, final BulkOperations.BulkMode bulkMode, final Throwable throwable) {
+        final Throwable cause = throwable instanceof CompletionException && throwable.getCause() != null ?
+                throwable.getCause() : throwable;
+        //无法区分具体是哪些更新失败时，整个批次都需要重新提交
+        final boolean[] failed = new boolean[batch.pairList.size()];
+        if (cause instanceof BulkOperationException) {
+            int minIndex = failed.length;
+            for (BulkWriteError error : ((BulkOperationException) cause).getErrors()) {
+                failed[error.getIndex()] = true;
+                minIndex = Math.min(minIndex, error.getIndex());
+            }
+            //有序的bulkWrite在遇到第一个错误后停止执行
+            if (bulkMode == BulkOperations.BulkMode.ORDERED) {
+                Arrays.fill(failed, minIndex, failed.length, true);
+            }
+        } else {
+            Arrays.fill(failed, true);
+        }
+
+        int retryCount = 0;
+        for (Entry entry : batch.entryList) {
+            int firstFailed = -1;
+            for (int i = entry.from; i < entry.to; i++) {
+                if (failed[i]) {
+                    firstFailed = i;
+                    break;
+                }
+            }
+
+            if (firstFailed < 0) {
+                acknowledge(entry);
+                continue;
+            }
+
+            //同一个数据的多个更新必须按顺序执行，因此从第一个失败的更新开始全部重新提交
+            final Retry retry = new Retry(new ArrayList<>(batch.pairList.subList(firstFailed, entry.to)),
+                    entry.sequenceList);
+            retryMap.merge(entry.data, retry, Retry::concat);
+            retryCount++;
+        }
+
+        return retryCount;
+    }
+
+    /**
+     * 一个bulkWrite批次，以及批次中的更新所对应的数据
+     */
+    private static final class Batch {
+        private final List<Pair<Query, Update>> pairList;
+        private final List<Entry> entryList = new ArrayList<>();
+
+        private Batch(int capacity) {
+            pairList = new ArrayList<>(capacity);
+        }
+
+        private void add(final DbData<?> data, final List<Pair<Query, Update>> pairList, final List<Long> sequenceList) {
+            final int from = this.pairList.size();
+            this.pairList.addAll(pairList);
+            entryList.add(new Entry(data, from, this.pairList.size(), sequenceList));
+        }
+    }
+
+    /**
+     * 批次中某一个数据的更新所在的区间[from, to)，以及对应的日志序号
+     */
+    @RequiredArgsConstructor
+    private static final class Entry {
+        private final DbData<?> data;
+        private final int from;
+        private final int to;
+        private final List<Long> sequenceList;
+    }
+
+    /**
+     * 一个数据写入失败、等待重新提交的更新，以及对应的日志序号
+     */
+    @RequiredArgsConstructor
+    private static final class Retry {
+        private final List<Pair<Query, Update>> pairList;
+        private final List<Long> sequenceList;
+
+        private static Retry concat(final Retry older, final Retry newer) {
+            final List<Pair<Query, Update>> pairList = new ArrayList<>(older.pairList);
+            pairList.addAll(newer.pairList);
+            final List<Long> sequenceList = new ArrayList<>(older.sequenceList);
+            sequenceList.addAll(newer.sequenceList);
+            return new Retry(pairList, sequenceList);
+        }
+    }
+}
@@ -1,25 +1,73 @@
 package org.gamedo.persistence;
 
+import com.mongodb.client.MongoCollection;
+import com.mongodb.client.model.Filters;
+import com.mongodb.client.model.Updates;
+import com.mongodb.client.model.changestream.OperationType;
 import com.mongodb.client.result.UpdateResult;
+import com.mongodb.reactivestreams.client.MongoClient;
+import com.mongodb.reactivestreams.client.MongoClients;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
 import lombok.extern.log4j.Log4j2;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
 import org.bson.types.ObjectId;
+import org.gamedo.persistence.cache.EntityCache;
+import org.gamedo.persistence.cache.EntityCacheConfig;
+import org.gamedo.persistence.changestream.ChangeStreamConfig;
+import org.gamedo.persistence.changestream.EntityChangeEvent;
+import org.gamedo.persistence.changestream.EntityChangeWatcher;
 import org.gamedo.persistence.config.MyConfiguration;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
 import org.gamedo.persistence.db.*;
+import org.gamedo.persistence.executor.OrderedLaneExecutor;
+import org.gamedo.persistence.journal.JournalConfig;
+import org.gamedo.persistence.journal.JournalEntry;
+import org.gamedo.persistence.journal.JournalOperation;
+import org.gamedo.persistence.journal.WriteJournal;
+import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
+import org.gamedo.persistence.metrics.MicrometerPersistenceMetrics;
+import org.gamedo.persistence.storage.ComponentStorages;
+import org.gamedo.persistence.version.IVersionConflictHandler;
+import org.gamedo.persistence.version.VersionConflict;
+import org.gamedo.persistence.version.VersionConflictException;
+import org.gamedo.persistence.version.VersionConflictResolution;
+import org.gamedo.persistence.writebehind.WriteBehindConfig;
+import org.gamedo.persistence.writebehind.WriteBehindScheduler;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Assumptions;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.function.ThrowingSupplier;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.boot.test.context.SpringBootTest;
-
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import reactor.core.publisher.Mono;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.LongStream;
+import java.util.stream.Stream;
 
 @Log4j2
 @SpringBootTest(classes = MyConfiguration.class)
@@ -29,14 +77,29 @@ class GamedoMongoTemplateTest {
     public static final String EntityId = new ObjectId().toString();
     public static final String DEFAULT_NAME = "test";
     final GamedoMongoTemplate gamedoMongoTemplate;
+    final EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener;
+    final MongoTemplate mongoTemplate;
 
     @Autowired
-    GamedoMongoTemplateTest(GamedoMongoTemplate gamedoMongoTemplate) {
+    GamedoMongoTemplateTest(GamedoMongoTemplate gamedoMongoTemplate,
+                            EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener,
+                            MongoTemplate mongoTemplate) {
         this.gamedoMongoTemplate = gamedoMongoTemplate;
+        this.entityDbDataAfterLoadEventListener = entityDbDataAfterLoadEventListener;
+        this.mongoTemplate = mongoTemplate;
     }
 
+    /**
+     * 测试中会修改的共享组件的状态，每个测试结束后恢复，避免影响其他测试。需要修改持久化设置的测试使用独立的模板
+     * （{@link GamedoMongoTemplateTest#newGamedoMongoTemplate(PersistenceSettings)}），不修改共享的设置
+     */
+    private boolean lazyComponent;
+    private boolean rawBsonRead;
+
     @BeforeEach
     public void beforeEach() {
+        lazyComponent = entityDbDataAfterLoadEventListener.isLazyComponent();
+        rawBsonRead = gamedoMongoTemplate.isRawBsonRead();
 
         gamedoMongoTemplate.dropCollection(EntityDbPlayer.class);
 
@@ -47,6 +110,29 @@ class GamedoMongoTemplateTest {
         gamedoMongoTemplate.save(entityDbPlayer);
     }
 
+    @AfterEach
+    public void afterEach() {
+        entityDbDataAfterLoadEventListener.setLazyComponent(lazyComponent);
+        gamedoMongoTemplate.setRawBsonRead(rawBsonRead);
+        gamedoMongoTemplate.setEntityCache(null);
+        gamedoMongoTemplate.setWriteJournal(null);
+        gamedoMongoTemplate.setVersionConflictHandler(IVersionConflictHandler.ABORT);
+        gamedoMongoTemplate.setScanConfig(ScanConfig.DEFAULT);
+        gamedoMongoTemplate.setBatchLoadConfig(BatchLoadConfig.DEFAULT);
+    }
+
+    /**
+     * @param settings 新模板的持久化设置
+     * @return 一个使用指定设置、与{@link GamedoMongoTemplateTest#gamedoMongoTemplate}共享执行器和映射事件监听器的新模板
+     */
+    private GamedoMongoTemplate newGamedoMongoTemplate(final PersistenceSettings settings) {
+        return new GamedoMongoTemplate(mongoTemplate,
+                gamedoMongoTemplate.getAsyncExecutor(),
+                new OrderedLaneExecutor(),
+                null,
+                settings);
+    }
+
     @Test
     public void testFindAll() {
         final List<EntityDbPlayer> entityDbPlayerList = gamedoMongoTemplate.findAll(EntityDbPlayer.class);
@@ -90,6 +176,29 @@ class GamedoMongoTemplateTest {
         Assertions.assertDoesNotThrow(() -> gamedoMongoTemplate.saveDbDataAsync(componentDbStatistic).get());
     }
 
+    @Test
+    public void testSaveAsyncSemantics() {
+        //id为null时，生成的id被写回到实体以及它的组件中
+        final EntityDbPlayer entityDbData = new EntityDbPlayer(null, null);
+        final ComponentDbStatistic componentDbStatistic = new ComponentDbStatistic("generatedId");
+        entityDbData.addComponentDbData(componentDbStatistic);
+        gamedoMongoTemplate.saveDbDataAsync(entityDbData).join();
+        Assertions.assertNotNull(entityDbData.getId());
+        Assertions.assertTrue(ObjectId.isValid(entityDbData.getId()));
+        Assertions.assertEquals(entityDbData.getId(), componentDbStatistic.getId());
+        Assertions.assertNotNull(gamedoMongoTemplate.findById(entityDbData.getId(), EntityDbPlayer.class));
+
+        //单独存储组件时，只$set该组件对应的字段，不会覆盖其他组件
+        final EntityDbPlayer entityDbPlayer = Objects.requireNonNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+        final ComponentDbStatistic componentDbStatisticSaved = entityDbPlayer.getComponentDbData(ComponentDbStatistic.class);
+        componentDbStatisticSaved.setName("componentSave");
+        gamedoMongoTemplate.saveDbDataAsync(componentDbStatisticSaved).join();
+
+        final EntityDbPlayer entityDbPlayerLoad = Objects.requireNonNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+        Assertions.assertEquals("componentSave", entityDbPlayerLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+        Assertions.assertNotNull(entityDbPlayerLoad.getComponentDbData(ComponentDbBag.class));
+    }
+
     @Test
     public void testUpsert() {
         final List<EntityDbPlayer> entityDbPlayerList = gamedoMongoTemplate.findAll(EntityDbPlayer.class);
@@ -216,6 +325,1240 @@ class GamedoMongoTemplateTest {
         Assertions.assertEquals(1, entityDbPlayerList.size());
     }
 
+    @Test
+    public void testUpdateEntityDirtyAsync() {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final ComponentDbBag componentDbBag = entityDbData.getComponentDbData(ComponentDbBag.class);
+
+        componentDbStatistic.setName("coalesce");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        componentDbBag.getItemList().add(1);
+        componentDbBag.update("itemList", componentDbBag.getItemList());
+        entityDbData.updateComponentDbData(ComponentDbBag.class);
+
+        final UpdateResult updateResult = gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join();
+        Assertions.assertEquals(1, updateResult.getMatchedCount());
+        Assertions.assertEquals(1, updateResult.getModifiedCount());
+        Assertions.assertFalse(entityDbData.isDirty());
+        Assertions.assertTrue(entityDbData.getDirtyComponentDbData().isEmpty());
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertEquals(entityDbData, entityDbDataLoad);
+    }
+
+    @Test
+    public void testMergeByMutationSequence() {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbBag componentDbBag = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbBag.class);
+
+        //组件的子路径先被修改，实体随后覆盖了整个组件，合并时较旧的子路径不能覆盖较新的父路径
+        componentDbBag.getItemList().add(1);
+        componentDbBag.update("itemList", new ArrayList<>(componentDbBag.getItemList()));
+        componentDbBag.getItemList().add(2);
+        entityDbData.updateComponentDbData(ComponentDbBag.class);
+
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join().getMatchedCount());
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertEquals(Arrays.asList(1, 2),
+                Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbBag.class).getItemList());
+    }
+
+    @Test
+    public void testMergeKeepsInputUpdates() {
+        final Document info = new Document("level", 1);
+        final Update parent = new Update().set("ComponentDbBag", new Document("info", info));
+        final Update child = new Update().set("ComponentDbBag.info.exp", 10);
+
+        final List<Update> updateList = Updaters.merge(Arrays.asList(parent, child));
+        Assertions.assertEquals(1, updateList.size());
+        Assertions.assertEquals(new Document("info", new Document("level", 1).append("exp", 10)),
+                updateList.get(0).getUpdateObject().get("$set", Document.class).get("ComponentDbBag"));
+
+        //子路径被合并进复制出来的内嵌文档中，参与合并的更新保持不变
+        Assertions.assertEquals(new Document("level", 1), info);
+        Assertions.assertEquals(new Document("info", new Document("level", 1)),
+                parent.getUpdateObject().get("$set", Document.class).get("ComponentDbBag"));
+    }
+
+    @Test
+    public void testLegacyUpdater() {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+
+        //不支持标脏回调的更新器被包装，每次修改之后检查是否被标脏，已被标脏的组件的索引依然有效
+        componentDbStatistic.setUpdater(new LegacyUpdater("ComponentDbStatistic."));
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+        componentDbStatistic.setName("legacy");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(Collections.singleton(componentDbStatistic), entityDbData.getDirtyComponentDbData());
+        Assertions.assertThrows(UnsupportedOperationException.class, () -> componentDbStatistic.increment("killCount", 1));
+
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join().getMatchedCount());
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertEquals("legacy", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+    }
+
+    @Test
+    public void testDirtyComponentIndex() {
+        final DirtyEntities dirtyEntities = new DirtyEntities();
+        final PersistenceSettings settings = new PersistenceSettings();
+        settings.setDirtyEntities(dirtyEntities);
+        try (GamedoMongoTemplate template = newGamedoMongoTemplate(settings)) {
+            final EntityDbPlayer entityDbData = template.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotNull(entityDbData);
+            Assertions.assertSame(dirtyEntities, entityDbData.getDirtyEntities());
+            Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+            Assertions.assertSame(Collections.emptySet(), entityDbData.getDirtyComponentDbData());
+
+            final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+            componentDbStatistic.setName("dirtyIndex");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            Assertions.assertTrue(entityDbData.hasDirtyComponentDbData());
+            Assertions.assertEquals(Collections.singleton(componentDbStatistic), entityDbData.getDirtyComponentDbData());
+            Assertions.assertEquals(1, dirtyEntities.size());
+
+            final List<UpdateResult> resultList = new ArrayList<>();
+            Assertions.assertEquals(1, dirtyEntities.drain(data -> resultList.add(template.updateEntityDirtyAsync(data).join())));
+            Assertions.assertEquals(1, resultList.get(0).getMatchedCount());
+            Assertions.assertEquals(0, dirtyEntities.size());
+            Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+
+            //存盘之后不再被访问
+            Assertions.assertEquals(0, dirtyEntities.drain(data -> Assertions.fail()));
+        }
+
+        //其他模板加载的实体不会注册到该注册表中
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNull(Objects.requireNonNull(entityDbDataLoad).getDirtyEntities());
+        Assertions.assertEquals("dirtyIndex", entityDbDataLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+    }
+
+    @Test
+    public void testCompactUpdater() {
+        final PersistenceSettings settings = new PersistenceSettings();
+        settings.setUpdaterFactory(CompactUpdater::new);
+        try (GamedoMongoTemplate template = newGamedoMongoTemplate(settings)) {
+            final EntityDbPlayer entityDbData = template.findById(EntityId, EntityDbPlayer.class);
+            final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+            final ComponentDbBag componentDbBag = entityDbData.getComponentDbData(ComponentDbBag.class);
+            Assertions.assertTrue(componentDbStatistic.getUpdater() instanceof CompactUpdater);
+
+            for (int i = 0; i < 100; i++) {
+                componentDbStatistic.setName("compact" + i);
+                componentDbStatistic.update("name", componentDbStatistic.getName());
+                componentDbBag.getItemList().add(i);
+                componentDbBag.update("itemList", componentDbBag.getItemList());
+            }
+            Assertions.assertEquals(1, ((CompactUpdater) componentDbStatistic.getUpdater()).size());
+
+            final UpdateResult updateResult = template.updateEntityDirtyAsync(entityDbData).join();
+            Assertions.assertEquals(1, updateResult.getMatchedCount());
+            Assertions.assertTrue(componentDbBag.getUpdater() instanceof CompactUpdater);
+            Assertions.assertFalse(componentDbBag.isDirty());
+
+            final EntityDbPlayer entityDbDataLoad = template.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertEquals(entityDbData, entityDbDataLoad);
+            Assertions.assertEquals("compact99", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+        }
+    }
+
+    @Test
+    public void testPerTemplateSettings() {
+        final ComponentDbBag componentDbBag = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+        IntStream.range(0, 10).forEach(i -> componentDbBag.getItemCountMap().put("item" + i, i));
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbBag).join().getModifiedCount());
+
+        final PersistenceSettings settings = new PersistenceSettings();
+        settings.setUpdaterFactory(CompactUpdater::new);
+        settings.setWholeFieldRatio(0);
+        try (GamedoMongoTemplate template = newGamedoMongoTemplate(settings)) {
+            Assertions.assertSame(settings, template.getSettings());
+            Assertions.assertNotSame(settings, gamedoMongoTemplate.getSettings());
+
+            //同一个进程中的两个模板使用各自的设置，即使它们共享映射事件监听器
+            final ComponentDbBag componentDbBagCustom = template.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+            final ComponentDbBag componentDbBagDefault = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+            Assertions.assertTrue(componentDbBagCustom.getUpdater() instanceof CompactUpdater);
+            Assertions.assertEquals(Updater.class, componentDbBagDefault.getUpdater().getClass());
+
+            //比例为0时，即使只修改了一个元素，也对整个字段进行$set
+            componentDbBagCustom.getItemCountMap().put("item1", 100);
+            componentDbBagDefault.getItemCountMap().put("item1", 100);
+            Assertions.assertTrue(template.getSettings().detach(componentDbBagCustom).getUpdateObject()
+                    .get("$set", Document.class)
+                    .containsKey("ComponentDbBag.itemCountMap"));
+            Assertions.assertFalse(gamedoMongoTemplate.getSettings().detach(componentDbBagDefault).getUpdateObject()
+                    .get("$set", Document.class)
+                    .containsKey("ComponentDbBag.itemCountMap"));
+
+            //新创建的数据在第一次存盘之后使用模板的更新器工厂
+            final ComponentDbStatistic componentDbStatistic = new ComponentDbStatistic("settings");
+            componentDbStatistic.setId(new ObjectId().toString());
+            Assertions.assertEquals(Updater.class, componentDbStatistic.getUpdater().getClass());
+            template.saveDbDataAsync(componentDbStatistic).join();
+            Assertions.assertTrue(componentDbStatistic.getUpdater() instanceof CompactUpdater);
+        }
+    }
+
+    @Test
+    public void testIncrement() {
+        final ComponentDbStatistic componentDbStatistic = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        for (int i = 0; i < 10; i++) {
+            componentDbStatistic.setKillCount(componentDbStatistic.getKillCount() + 1);
+            componentDbStatistic.increment("killCount", 1);
+        }
+        componentDbStatistic.max("maxDamage", 100);
+        componentDbStatistic.max("maxDamage", 50);
+
+        final Document updateObject = componentDbStatistic.getUpdater().getUpdateObject();
+        Assertions.assertEquals(10, updateObject.get("$inc", Document.class).get("ComponentDbStatistic.killCount"));
+        Assertions.assertEquals(100, updateObject.get("$max", Document.class).get("ComponentDbStatistic.maxDamage"));
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatistic).join().getModifiedCount());
+
+        //another copy of the same document increases the counter concurrently, no update should be lost.
+        final ComponentDbStatistic componentDbStatisticOther = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        componentDbStatisticOther.increment("killCount", 5);
+        componentDbStatisticOther.max("maxDamage", 10);
+        componentDbStatistic.increment("killCount", 1);
+        gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatisticOther).join();
+        gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatistic).join();
+
+        final ComponentDbStatistic componentDbStatisticLoad = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals(16, componentDbStatisticLoad.getKillCount());
+        Assertions.assertEquals(100, componentDbStatisticLoad.getMaxDamage());
+
+        //a later update overrides the pending delta
+        componentDbStatistic.increment("killCount", 1);
+        componentDbStatistic.update("killCount", 0);
+        Assertions.assertNull(componentDbStatistic.getUpdater().getUpdateObject().get("$inc"));
+        //a delta that can not be merged is deferred to the next write instead of throwing
+        Assertions.assertDoesNotThrow(() -> componentDbStatistic.min("killCount", "string"));
+        Assertions.assertNull(componentDbStatistic.getUpdater().getUpdateObject().get("$min"));
+        Assertions.assertNotNull(Updaters.detach(componentDbStatistic).getUpdateObject().get("$set"));
+        Assertions.assertEquals("string", componentDbStatistic.getUpdater().getUpdateObject().get("$min", Document.class).get("ComponentDbStatistic.killCount"));
+    }
+
+    @Test
+    public void testTrackedMap() {
+        final ComponentDbBag componentDbBag = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+        IntStream.range(0, 10).forEach(i -> componentDbBag.getItemCountMap().put("item" + i, i));
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbBag).join().getModifiedCount());
+
+        final ComponentDbBag componentDbBagLoad = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+        Assertions.assertEquals(componentDbBag.getItemCountMap(), componentDbBagLoad.getItemCountMap());
+
+        //only the changed keys are written
+        componentDbBagLoad.getItemCountMap().put("item1", 100);
+        componentDbBagLoad.getItemCountMap().remove("item2");
+        Assertions.assertTrue(componentDbBagLoad.isDirty());
+
+        final IUpdater updater = Updaters.detach(componentDbBagLoad);
+        final Document updateObject = updater.getUpdateObject();
+        Assertions.assertEquals(100, updateObject.get("$set", Document.class).get("ComponentDbBag.itemCountMap.item1"));
+        Assertions.assertTrue(updateObject.get("$unset", Document.class).containsKey("ComponentDbBag.itemCountMap.item2"));
+        Assertions.assertFalse(updateObject.get("$set", Document.class).containsKey("ComponentDbBag.itemCountMap"));
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateFirst(Query.query(Criteria.where("_id").is(EntityId)), updater, EntityDbPlayer.class).getModifiedCount());
+
+        final ComponentDbBag componentDbBagReload = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+        Assertions.assertEquals(componentDbBagLoad.getItemCountMap(), componentDbBagReload.getItemCountMap());
+        Assertions.assertEquals(9, componentDbBagReload.getItemCountMap().size());
+
+        //clear can not be tracked by key, the whole field is set
+        componentDbBagReload.getItemCountMap().clear();
+        Assertions.assertTrue(Updaters.detach(componentDbBagReload).getUpdateObject().get("$set", Document.class).containsKey("ComponentDbBag.itemCountMap"));
+    }
+
+    @Test
+    public void testTrackedNetZeroChange() {
+        final ComponentDbBag componentDbBag = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbBag.class).join();
+        componentDbBag.getItemSet().add(1);
+        componentDbBag.getItemSet().remove(1);
+        componentDbBag.getSlotList().add(1);
+        componentDbBag.getSlotList().remove(0);
+
+        //the changes cancel each other out, nothing should be written, especially not an empty update replacing the document
+        Assertions.assertFalse(componentDbBag.isDirty());
+        Assertions.assertEquals(0, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbBag).join().getMatchedCount());
+        Assertions.assertTrue(Updaters.detach(componentDbBag).getUpdateObject().isEmpty());
+
+        final EntityDbPlayer entityDbPlayer = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbPlayer);
+        Assertions.assertEquals(DEFAULT_NAME, entityDbPlayer.getComponentDbData(ComponentDbStatistic.class).getName());
+
+        final ComponentDbBag componentDbBagOfEntity = entityDbPlayer.getComponentDbData(ComponentDbBag.class);
+        componentDbBagOfEntity.getItemSet().add(2);
+        componentDbBagOfEntity.getItemSet().remove(2);
+        Assertions.assertEquals(0, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbPlayer).join().getMatchedCount());
+
+        final EntityDbPlayer entityDbPlayerLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbPlayerLoad);
+        Assertions.assertEquals(DEFAULT_NAME, entityDbPlayerLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+        Assertions.assertTrue(entityDbPlayerLoad.getComponentDbData(ComponentDbBag.class).getItemSet().isEmpty());
+
+        //a real change is still written
+        componentDbBag.getItemSet().add(3);
+        Assertions.assertTrue(componentDbBag.isDirty());
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbBag).join().getModifiedCount());
+    }
+
+    @Test
+    public void testGeneratedCodec() {
+        Assertions.assertTrue(gamedoMongoTemplate.getCodecRegistry().hasCodec(ComponentDbCodec.class));
+        Assertions.assertFalse(gamedoMongoTemplate.getCodecRegistry().hasCodec(ComponentDbStatistic.class));
+
+        final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+        final ComponentDbCodec componentDbCodec = new ComponentDbCodec();
+        componentDbCodec.setLevel(10);
+        componentDbCodec.setExp(Integer.MAX_VALUE + 1L);
+        componentDbCodec.setName(DEFAULT_NAME);
+        componentDbCodec.getHeroList().addAll(Arrays.asList(1, 2, 3));
+        entityDbPlayer.addComponentDbData(componentDbCodec);
+        entityDbPlayer.addComponentDbData(new ComponentDbStatistic(DEFAULT_NAME));
+        Assertions.assertDoesNotThrow(() -> gamedoMongoTemplate.saveDbDataAsync(entityDbPlayer).join());
+
+        final ComponentDbCodec componentDbCodecLoad = gamedoMongoTemplate.findComponentDbDataByIdAsync(entityDbPlayer.getId(), ComponentDbCodec.class).join();
+        Assertions.assertEquals(componentDbCodec, componentDbCodecLoad);
+        Assertions.assertNull(componentDbCodecLoad.getVipLevel());
+
+        //save the component alone through the codec
+        componentDbCodecLoad.setVipLevel(3);
+        componentDbCodecLoad.setName("codec");
+        Assertions.assertDoesNotThrow(() -> gamedoMongoTemplate.saveDbDataAsync(componentDbCodecLoad).join());
+
+        final EntityDbPlayer entityDbPlayerLoad = gamedoMongoTemplate.findById(entityDbPlayer.getId(), EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbPlayerLoad);
+        Assertions.assertEquals(componentDbCodecLoad, entityDbPlayerLoad.getComponentDbData(ComponentDbCodec.class));
+        Assertions.assertEquals(DEFAULT_NAME, entityDbPlayerLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+    }
+
+    @Test
+    public void testScanEntityDbData() {
+        final int count = 100;
+        IntStream.range(0, count - 1).forEach(i -> {
+            final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+            entityDbPlayer.addComponentDbData(new ComponentDbStatistic(DEFAULT_NAME + i));
+            gamedoMongoTemplate.save(entityDbPlayer);
+        });
+
+        gamedoMongoTemplate.setScanConfig(ScanConfig.builder().batchSize(7).parallelism(3).build());
+        try {
+            try (Stream<EntityDbPlayer> stream = gamedoMongoTemplate.streamEntityDbData(EntityDbPlayer.class, Collections.emptyList())) {
+                final List<EntityDbPlayer> entityDbPlayerList = stream.collect(Collectors.toList());
+                Assertions.assertEquals(count, entityDbPlayerList.size());
+                Assertions.assertTrue(entityDbPlayerList.stream().noneMatch(EntityDbData::isPartial));
+                Assertions.assertTrue(entityDbPlayerList.stream().allMatch(data -> data.getComponentDbData(ComponentDbStatistic.class) != null));
+            }
+
+            final List<EntityDbPlayer> partialList = new ArrayList<>();
+            final long scanCount = gamedoMongoTemplate.scanEntityDbData(EntityDbPlayer.class,
+                    Collections.singletonList(ComponentDbStatistic.class),
+                    partialList::add);
+            Assertions.assertEquals(count, scanCount);
+            Assertions.assertTrue(partialList.stream().allMatch(EntityDbData::isPartial));
+            Assertions.assertTrue(partialList.stream().allMatch(data -> data.getComponentDbData(ComponentDbBag.class) == null));
+
+            //every document is visited exactly once across the _id range partitions
+            final Set<String> idSet = Collections.synchronizedSet(new HashSet<>());
+            final long asyncCount = gamedoMongoTemplate.scanEntityDbDataAsync(EntityDbPlayer.class,
+                    Collections.singletonList(ComponentDbStatistic.class),
+                    data -> Assertions.assertTrue(idSet.add(data.getId()))).join();
+            Assertions.assertEquals(count, asyncCount);
+            Assertions.assertEquals(count, idSet.size());
+        } finally {
+            gamedoMongoTemplate.setScanConfig(ScanConfig.DEFAULT);
+        }
+    }
+
+    @Test
+    public void testEntityCache() {
+        final EntityCache entityCache = new EntityCache(gamedoMongoTemplate, EntityCacheConfig.builder().maxSize(1).build());
+        gamedoMongoTemplate.setEntityCache(entityCache);
+        try {
+            final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotNull(entityDbData);
+            Assertions.assertSame(entityDbData, gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+
+            final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+            Assertions.assertSame(componentDbStatistic,
+                    gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join());
+            Assertions.assertEquals(1, entityCache.getMissCount());
+            Assertions.assertEquals(2, entityCache.getHitCount());
+
+            componentDbStatistic.setName("evicted");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+
+            //容量为1，加载另一个实体会淘汰当前实体，并写入其未持久化的更新
+            final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+            gamedoMongoTemplate.save(entityDbPlayer);
+            Assertions.assertNotNull(gamedoMongoTemplate.findById(entityDbPlayer.getId(), EntityDbPlayer.class));
+            Assertions.assertEquals(1, entityCache.getEvictionCount());
+            Assertions.assertEquals(1, entityCache.getFlushOnEvictionCount());
+
+            final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotSame(entityDbData, entityDbDataLoad);
+            Assertions.assertEquals("evicted", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+        } finally {
+            gamedoMongoTemplate.setEntityCache(null);
+            entityCache.close();
+        }
+    }
+
+    @Test
+    public void testEntityCacheFlushOnInvalidate() {
+        final EntityCache entityCache = new EntityCache(gamedoMongoTemplate);
+        gamedoMongoTemplate.setEntityCache(entityCache);
+        try {
+            final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+            componentDbStatistic.setName("invalidated");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+
+            //被移除的实体未持久化的更新会被写入，而不是被丢弃
+            Assertions.assertSame(entityDbData, entityCache.invalidate(EntityDbPlayer.class, EntityId));
+            Assertions.assertEquals(0, entityCache.getEvictionCount());
+            Assertions.assertEquals(1, entityCache.getFlushOnEvictionCount());
+
+            final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotSame(entityDbData, entityDbDataLoad);
+            Assertions.assertEquals("invalidated", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+        } finally {
+            gamedoMongoTemplate.setEntityCache(null);
+            entityCache.close();
+        }
+    }
+
+    @Test
+    public void testEntityCacheLoadAwaitsFlush() throws Exception {
+        final List<Runnable> runnableList = new CopyOnWriteArrayList<>();
+        try (GamedoMongoTemplate queuedTemplate = new GamedoMongoTemplate(mongoTemplate,
+                runnableList::add,
+                new OrderedLaneExecutor());
+             EntityCache entityCache = new EntityCache(queuedTemplate)) {
+            final EntityDbPlayer entityDbData = Objects.requireNonNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+            entityCache.put(entityDbData);
+            final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+            componentDbStatistic.setName("flushing");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+
+            //实体离开缓存时已经为它的写入占位，写入完成之前，对同一个实体的加载需要等待，不会读到旧的数据
+            Assertions.assertSame(entityDbData, entityCache.invalidate(EntityDbPlayer.class, EntityId));
+            final CompletableFuture<EntityDbPlayer> loadFuture = CompletableFuture.supplyAsync(() -> entityCache.get(EntityDbPlayer.class,
+                    EntityId,
+                    () -> gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class)));
+            Thread.sleep(200);
+            Assertions.assertFalse(loadFuture.isDone());
+
+            runnableList.forEach(Runnable::run);
+            final EntityDbPlayer entityDbDataLoad = loadFuture.get(10, TimeUnit.SECONDS);
+            Assertions.assertNotSame(entityDbData, entityDbDataLoad);
+            Assertions.assertEquals("flushing", entityDbDataLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+        }
+    }
+
+    @Test
+    public void testEntityChangeWatcher() throws InterruptedException {
+        //change streams are only available on a replica set
+        final Document isMaster = gamedoMongoTemplate.executeCommand(new Document("isMaster", 1));
+        Assumptions.assumeTrue(isMaster.containsKey("setName"), "mongoDB is not running as a replica set");
+
+        final EntityCache entityCache = new EntityCache(gamedoMongoTemplate);
+        gamedoMongoTemplate.setEntityCache(entityCache);
+        final ChangeStreamConfig config = ChangeStreamConfig.builder()
+                .nodeName(new ObjectId().toString())
+                .build();
+        final EntityChangeWatcher watcher = new EntityChangeWatcher(gamedoMongoTemplate, config);
+        final List<EntityChangeEvent> eventList = new CopyOnWriteArrayList<>();
+        watcher.addListener(eventList::add);
+        watcher.register(EntityDbPlayer.class);
+        watcher.start();
+        try {
+            final String collectionName = gamedoMongoTemplate.getCollectionName(EntityDbPlayer.class);
+            final EntityDbPlayer entityDbPlayer = Objects.requireNonNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+            final ComponentDbStatistic componentDbStatistic = entityDbPlayer.getComponentDbData(ComponentDbStatistic.class);
+            final MongoCollection<Document> collection = gamedoMongoTemplate.getCollection(collectionName);
+
+            //written by this node, the cached entity is kept as it is
+            componentDbStatistic.setMaxDamage(100);
+            componentDbStatistic.update("maxDamage", componentDbStatistic.getMaxDamage());
+            gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatistic).join();
+            awaitTrue(() -> watcher.getEchoCount() > 0);
+            Assertions.assertSame(entityDbPlayer, entityCache.peek(collectionName, EntityId));
+            Assertions.assertSame(componentDbStatistic, entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+
+            //modified by another node, the cached entity is invalidated, the instance held by the caller is never touched
+            collection.updateOne(Filters.eq("_id", new ObjectId(EntityId)), Updates.set("ComponentDbStatistic.killCount", 10));
+            awaitTrue(() -> entityCache.peek(collectionName, EntityId) == null);
+            Assertions.assertEquals(0, componentDbStatistic.getKillCount());
+            Assertions.assertSame(componentDbStatistic, entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+            final EntityDbPlayer entityDbPlayerReload = Objects.requireNonNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+            Assertions.assertNotSame(entityDbPlayer, entityDbPlayerReload);
+            Assertions.assertEquals(10, entityDbPlayerReload.getComponentDbData(ComponentDbStatistic.class).getKillCount());
+
+            //the changed components are decoded lazily, into new instances
+            final EntityChangeEvent event = eventList.stream()
+                    .filter(e -> e.getChangedFieldSet().contains("ComponentDbStatistic") && e.getOperationType() == OperationType.UPDATE)
+                    .reduce((first, second) -> second)
+                    .orElseThrow(IllegalStateException::new);
+            final ComponentDbData<?> componentDbDataDecoded = event.getChangedComponentMap().get("ComponentDbStatistic");
+            Assertions.assertSame(componentDbDataDecoded, event.getChangedComponentMap().get("ComponentDbStatistic"));
+            Assertions.assertNotSame(componentDbStatistic, componentDbDataDecoded);
+            Assertions.assertEquals(10, ((ComponentDbStatistic) componentDbDataDecoded).getKillCount());
+
+            //deleted by another node, the cached entity is invalidated
+            collection.deleteOne(Filters.eq("_id", new ObjectId(EntityId)));
+            awaitTrue(() -> entityCache.peek(gamedoMongoTemplate.getCollectionName(EntityDbPlayer.class), EntityId) == null);
+            Assertions.assertNull(gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class));
+        } finally {
+            watcher.close();
+            gamedoMongoTemplate.setEntityCache(null);
+            entityCache.close();
+        }
+    }
+
+    private static void awaitTrue(final BooleanSupplier condition) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 10_000;
+        while (!condition.getAsBoolean() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        Assertions.assertTrue(condition.getAsBoolean());
+    }
+
+    @Test
+    public void testOptimisticVersion() {
+        final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+        final ComponentDbVersioned componentDbVersioned = new ComponentDbVersioned();
+        entityDbPlayer.addComponentDbData(componentDbVersioned);
+        gamedoMongoTemplate.saveDbDataAsync(entityDbPlayer).join();
+        Assertions.assertEquals(1, componentDbVersioned.getVersion());
+
+        //模拟另一个节点加载了同一个组件
+        final ComponentDbVersioned componentDbOther = gamedoMongoTemplate.findComponentDbDataByIdAsync(entityDbPlayer.getId(),
+                ComponentDbVersioned.class).join();
+        Assertions.assertEquals(1, componentDbOther.getVersion());
+
+        componentDbVersioned.increment("gold", 10);
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbPlayer).join().getMatchedCount());
+        Assertions.assertEquals(2, componentDbVersioned.getVersion());
+
+        //基于过期的版本号写入，默认放弃本次写入
+        componentDbOther.increment("gold", 5);
+        final CompletionException exception = Assertions.assertThrows(CompletionException.class,
+                () -> gamedoMongoTemplate.updateDbDataFirstAsync(componentDbOther).join());
+        Assertions.assertTrue(exception.getCause() instanceof VersionConflictException);
+        final VersionConflict conflict = ((VersionConflictException) exception.getCause()).getConflict();
+        Assertions.assertEquals(1L, conflict.getExpectedVersionMap().get("ComponentDbVersioned._v"));
+        Assertions.assertEquals(2L, conflict.getActualVersionMap().get("ComponentDbVersioned._v"));
+        Assertions.assertEquals(1, componentDbOther.getVersion());
+
+        //冲突的写入总是被放弃，处理者只收到通知，需要重新加载之后再写入，本地的修改叠加在其他节点的修改之上
+        final List<VersionConflict> conflictList = new CopyOnWriteArrayList<>();
+        gamedoMongoTemplate.setVersionConflictHandler(versionConflict -> {
+            conflictList.add(versionConflict);
+            return VersionConflictResolution.ABORT;
+        });
+        try {
+            componentDbOther.increment("gold", 5);
+            Assertions.assertThrows(CompletionException.class, () -> gamedoMongoTemplate.updateDbDataFirstAsync(componentDbOther).join());
+            Assertions.assertEquals(1, conflictList.size());
+            Assertions.assertEquals(1, componentDbOther.getVersion());
+        } finally {
+            gamedoMongoTemplate.setVersionConflictHandler(IVersionConflictHandler.ABORT);
+        }
+
+        final ComponentDbVersioned componentDbReload = gamedoMongoTemplate.findComponentDbDataByIdAsync(entityDbPlayer.getId(),
+                ComponentDbVersioned.class).join();
+        Assertions.assertEquals(2, componentDbReload.getVersion());
+        componentDbReload.increment("gold", 5);
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateDbDataFirstAsync(componentDbReload).join().getMatchedCount());
+        Assertions.assertEquals(3, componentDbReload.getVersion());
+
+        final ComponentDbVersioned componentDbLoad = gamedoMongoTemplate.findComponentDbDataByIdAsync(entityDbPlayer.getId(),
+                ComponentDbVersioned.class).join();
+        Assertions.assertEquals(15, componentDbLoad.getGold());
+        Assertions.assertEquals(3, componentDbLoad.getVersion());
+    }
+
+    @Test
+    public void testComponentStorage() {
+        final String collectionName = gamedoMongoTemplate.getCollectionName(EntityDbPlayer.class);
+        final String overflowCollectionName = ComponentStorages.overflowCollectionName(collectionName);
+        gamedoMongoTemplate.dropCollection(overflowCollectionName);
+
+        final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+        final ComponentDbMail componentDbMail = new ComponentDbMail();
+        final ComponentDbArchive componentDbArchive = new ComponentDbArchive();
+        IntStream.range(0, 100).forEach(i -> componentDbMail.getMailList().add(randomString(50)));
+        componentDbArchive.setLevel(1);
+        componentDbArchive.getBattleList().add(randomString(50));
+        entityDbPlayer.addComponentDbData(componentDbMail);
+        entityDbPlayer.addComponentDbData(componentDbArchive);
+        gamedoMongoTemplate.saveDbDataAsync(entityDbPlayer).join();
+
+        //实体文档中，压缩组件只有一个二进制字段，溢出组件只有一个占位文档
+        final Document document = gamedoMongoTemplate.getCollection(collectionName)
+                .find(Filters.eq("_id", new ObjectId(entityDbPlayer.getId())))
+                .first();
+        Assertions.assertNotNull(document);
+        final Document documentMail = document.get(ComponentDbMail.class.getSimpleName(), Document.class);
+        Assertions.assertTrue(documentMail.containsKey(ComponentStorages.COMPRESSED_FIELD_NAME));
+        Assertions.assertFalse(documentMail.containsKey("mailList"));
+        Assertions.assertTrue(ComponentStorages.isOverflowStub(document.get(ComponentDbArchive.class.getSimpleName())));
+
+        final Document documentOverflow = gamedoMongoTemplate.getCollection(overflowCollectionName)
+                .find(Filters.eq("_id", new ObjectId(entityDbPlayer.getId())))
+                .first();
+        Assertions.assertNotNull(documentOverflow);
+        Assertions.assertEquals(1, documentOverflow.get(ComponentDbArchive.class.getSimpleName(), Document.class).getInteger("level"));
+
+        final EntityDbPlayer entityDbLoad = gamedoMongoTemplate.findById(entityDbPlayer.getId(), EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbLoad);
+        Assertions.assertEquals(componentDbMail.getMailList(), entityDbLoad.getComponentDbData(ComponentDbMail.class).getMailList());
+        Assertions.assertEquals(componentDbArchive.getBattleList(), entityDbLoad.getComponentDbData(ComponentDbArchive.class).getBattleList());
+
+        //压缩组件的增量更新会重写整个组件，溢出组件的增量更新写入溢出collection
+        final ComponentDbMail componentDbMailLoad = entityDbLoad.getComponentDbData(ComponentDbMail.class);
+        final ComponentDbArchive componentDbArchiveLoad = entityDbLoad.getComponentDbData(ComponentDbArchive.class);
+        componentDbMailLoad.getMailList().add("mail");
+        componentDbMailLoad.update("mailList", componentDbMailLoad.getMailList());
+        componentDbArchiveLoad.setLevel(2);
+        componentDbArchiveLoad.update("level", componentDbArchiveLoad.getLevel());
+        gamedoMongoTemplate.updateEntityDirtyAsync(entityDbLoad).join();
+
+        componentDbArchiveLoad.getBattleList().add("battle");
+        componentDbArchiveLoad.update("battleList", componentDbArchiveLoad.getBattleList());
+        gamedoMongoTemplate.updateDbDataFirstAsync(componentDbArchiveLoad).join();
+
+        final EntityDbPlayer entityDbReload = gamedoMongoTemplate.findById(entityDbPlayer.getId(), EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbReload);
+        Assertions.assertEquals(componentDbMailLoad.getMailList(), entityDbReload.getComponentDbData(ComponentDbMail.class).getMailList());
+        Assertions.assertEquals(2, entityDbReload.getComponentDbData(ComponentDbArchive.class).getLevel());
+        Assertions.assertEquals(componentDbArchiveLoad.getBattleList(), entityDbReload.getComponentDbData(ComponentDbArchive.class).getBattleList());
+
+        final ComponentDbArchive componentDbArchiveFind = gamedoMongoTemplate.findComponentDbDataByIdAsync(entityDbPlayer.getId(),
+                ComponentDbArchive.class).join();
+        Assertions.assertEquals(componentDbArchiveLoad.getBattleList(), componentDbArchiveFind.getBattleList());
+
+        //未加载溢出组件时保存实体，占位文档依然保留
+        final EntityDbPlayer entityDbPartial = new EntityDbPlayer(entityDbPlayer.getId(), null);
+        entityDbPartial.addComponentDbData(entityDbReload.getComponentDbData(ComponentDbMail.class));
+        entityDbPartial.addOverflowComponent(ComponentDbArchive.class.getSimpleName(), ComponentDbArchive.class);
+        gamedoMongoTemplate.saveDbDataAsync(entityDbPartial).join();
+        Assertions.assertEquals(2, Objects.requireNonNull(gamedoMongoTemplate.findById(entityDbPlayer.getId(), EntityDbPlayer.class))
+                .getComponentDbData(ComponentDbArchive.class).getLevel());
+    }
+
+    @Test
+    public void testWriteJournal() throws IOException, InterruptedException {
+        final Path directory = Files.createTempDirectory("gamedo-journal");
+        final JournalConfig config = JournalConfig.builder().directory(directory.toString()).build();
+        final String collectionName = gamedoMongoTemplate.getCollectionName(ComponentDbStatistic.class);
+
+        try (WriteJournal writeJournal = new WriteJournal(config)) {
+            gamedoMongoTemplate.setWriteJournal(writeJournal);
+            final ComponentDbStatistic componentDbStatistic = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId,
+                    ComponentDbStatistic.class).join();
+            componentDbStatistic.setName("journal");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatistic).join();
+
+            //写入成功后日志被确认
+            awaitTrue(() -> writeJournal.getPendingCount() == 0);
+
+            //模拟进程在写入mongoDB之前退出
+            writeJournal.appendUpdate(collectionName,
+                    ComponentDbStatistic.class.getName(),
+                    EntityId,
+                    Collections.singletonList(new Update().set("ComponentDbStatistic.name", "replayed")));
+        } finally {
+            gamedoMongoTemplate.setWriteJournal(null);
+        }
+
+        try (WriteJournal writeJournal = new WriteJournal(config)) {
+            final List<JournalEntry> entryList = writeJournal.pending();
+            Assertions.assertEquals(1, entryList.size());
+            Assertions.assertEquals(JournalOperation.UPDATE, entryList.get(0).getOperation());
+            Assertions.assertEquals(EntityId, entryList.get(0).getId());
+
+            gamedoMongoTemplate.setWriteJournal(writeJournal);
+            Assertions.assertEquals(1, gamedoMongoTemplate.replayWriteJournal());
+            Assertions.assertEquals(0, writeJournal.getPendingCount());
+        } finally {
+            gamedoMongoTemplate.setWriteJournal(null);
+        }
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals("replayed", data.getName());
+    }
+
+    @Test
+    public void testWriteJournalSupersede() throws IOException {
+        final Path directory = Files.createTempDirectory("gamedo-journal");
+        final JournalConfig config = JournalConfig.builder().directory(directory.toString()).build();
+        final String collectionName = gamedoMongoTemplate.getCollectionName(EntityDbPlayer.class);
+        final String otherId = new ObjectId().toHexString();
+
+        try (WriteJournal writeJournal = new WriteJournal(config)) {
+            //模拟一次执行失败、未被确认的写入
+            final long failed = writeJournal.appendUpdate(collectionName,
+                    EntityDbPlayer.class.getName(),
+                    EntityId,
+                    Collections.singletonList(new Update().set("ComponentDbStatistic.name", "stale")));
+            final long other = writeJournal.appendUpdate(collectionName,
+                    EntityDbPlayer.class.getName(),
+                    otherId,
+                    Collections.singletonList(new Update().set("ComponentDbStatistic.name", "other")));
+            //存储记录的是文档中的ObjectId，增量更新记录的是String类型的id，二者是同一个文档
+            final long saved = writeJournal.appendSave(collectionName,
+                    EntityDbPlayer.class.getName(),
+                    JournalOperation.SAVE,
+                    null,
+                    new Document("_id", new ObjectId(EntityId)));
+            Assertions.assertEquals(3, writeJournal.getPendingCount());
+
+            //更新的写入被确认后，同一个文档更早的日志不会再被重放，其他文档的日志不受影响
+            writeJournal.acknowledge(saved);
+            Assertions.assertEquals(1, writeJournal.getPendingCount());
+            Assertions.assertEquals(other, writeJournal.pending().get(0).getSequence());
+            Assertions.assertTrue(failed < saved);
+        }
+
+        try (WriteJournal writeJournal = new WriteJournal(config)) {
+            final List<JournalEntry> entryList = writeJournal.pending();
+            Assertions.assertEquals(1, entryList.size());
+            Assertions.assertEquals(otherId, entryList.get(0).getId());
+        }
+    }
+
+    @Test
+    public void testPersistenceMetrics() {
+        final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        final PersistenceSettings settings = new PersistenceSettings();
+        settings.setMetrics(new MicrometerPersistenceMetrics(registry,
+                gamedoMongoTemplate.getMongoDatabaseFactory().getCodecRegistry()));
+        try (GamedoMongoTemplate template = newGamedoMongoTemplate(settings)) {
+            final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+            entityDbPlayer.addComponentDbData(new ComponentDbStatistic(DEFAULT_NAME));
+            template.saveDbDataAsync(entityDbPlayer).join();
+
+            final ComponentDbStatistic componentDbStatistic = entityDbPlayer.getComponentDbData(ComponentDbStatistic.class);
+            template.updateDbDataFirstAsync(componentDbStatistic).join();
+            componentDbStatistic.setName("metrics");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            template.updateDbDataFirstAsync(componentDbStatistic).join();
+            template.findComponentDbDataByIdAsync(entityDbPlayer.getId(), ComponentDbStatistic.class).join();
+
+            Assertions.assertEquals(1, registry.get("gamedo.persistence.save").tag("class", "EntityDbPlayer").timer().count());
+            Assertions.assertTrue(registry.get("gamedo.persistence.document.size")
+                    .tag("class", "EntityDbPlayer")
+                    .summary()
+                    .totalAmount() > 0);
+            Assertions.assertEquals(1, registry.get("gamedo.persistence.dirty.skip")
+                    .tag("class", "ComponentDbStatistic")
+                    .counter()
+                    .count());
+            Assertions.assertEquals(1, registry.get("gamedo.persistence.update").tag("class", "ComponentDbStatistic").timer().count());
+            Assertions.assertEquals(1, registry.get("gamedo.persistence.update.set.keys")
+                    .tag("class", "ComponentDbStatistic")
+                    .summary()
+                    .max());
+            Assertions.assertEquals(1, registry.get("gamedo.persistence.find").tag("class", "ComponentDbStatistic").timer().count());
+        }
+    }
+
+    @Test
+    public void testLazyComponent() {
+        final Document documentBefore = gamedoMongoTemplate.getCollection("player").find(Filters.eq("_id", new ObjectId(EntityId))).first();
+
+        entityDbDataAfterLoadEventListener.setLazyComponent(true);
+        try {
+            final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotNull(entityDbData);
+            Assertions.assertTrue(entityDbData.getLoadedComponentDbDataCollection().isEmpty());
+            Assertions.assertEquals(2, entityDbData.getRawComponentMap().size());
+            Assertions.assertTrue(entityDbData.hasComponentDbData(ComponentDbBag.class));
+
+            //未被访问过的组件原样写回
+            gamedoMongoTemplate.saveDbDataAsync(entityDbData).join();
+            final Document documentAfter = gamedoMongoTemplate.getCollection("player").find(Filters.eq("_id", new ObjectId(EntityId))).first();
+            Assertions.assertEquals(documentBefore, documentAfter);
+
+            //第一次访问时才被转换
+            final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+            Assertions.assertEquals(DEFAULT_NAME, componentDbStatistic.getName());
+            Assertions.assertEquals(EntityId, componentDbStatistic.getId());
+            Assertions.assertEquals(1, entityDbData.getRawComponentMap().size());
+
+            componentDbStatistic.setName("lazy");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join();
+        } finally {
+            entityDbDataAfterLoadEventListener.setLazyComponent(false);
+        }
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbDataLoad);
+        Assertions.assertTrue(entityDbDataLoad.getRawComponentMap().isEmpty());
+        Assertions.assertEquals("lazy", entityDbDataLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+        Assertions.assertNotNull(entityDbDataLoad.getComponentDbData(ComponentDbBag.class));
+    }
+
+    @Test
+    public void testComponentSlots() {
+        final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+        Assertions.assertNull(entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertFalse(entityDbPlayer.hasComponentDbData(ComponentDbStatistic.class));
+
+        //添加
+        final ComponentDbStatistic componentDbStatistic = new ComponentDbStatistic("slot");
+        Assertions.assertNull(entityDbPlayer.addComponentDbData(componentDbStatistic));
+        Assertions.assertSame(componentDbStatistic, entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertSame(componentDbStatistic, entityDbPlayer.getLoadedComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertTrue(entityDbPlayer.hasComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertNull(entityDbPlayer.getComponentDbData(ComponentDbBag.class));
+
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(Collections.singleton(componentDbStatistic), entityDbPlayer.getDirtyComponentDbData());
+
+        //替换：被替换的组件不再属于该实体，它的标脏位被清除，之后被标脏也不会影响该实体
+        final ComponentDbStatistic componentDbStatisticNew = new ComponentDbStatistic("slotNew");
+        Assertions.assertSame(componentDbStatistic, entityDbPlayer.addComponentDbData(componentDbStatisticNew));
+        Assertions.assertSame(componentDbStatisticNew, entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertFalse(entityDbPlayer.hasDirtyComponentDbData());
+        componentDbStatistic.update("killCount", 1);
+        Assertions.assertFalse(entityDbPlayer.hasDirtyComponentDbData());
+
+        //添加一个已经被标脏的组件，立即被记录为已被标脏
+        final ComponentDbBag componentDbBag = new ComponentDbBag(null);
+        componentDbBag.update("itemList", componentDbBag.getItemList());
+        entityDbPlayer.addComponentDbData(componentDbBag);
+        Assertions.assertEquals(Collections.singleton(componentDbBag), entityDbPlayer.getDirtyComponentDbData());
+
+        //摘下更新器时清除标脏位，之后再次被标脏时重新置位
+        Updaters.detach(componentDbBag);
+        Assertions.assertFalse(entityDbPlayer.hasDirtyComponentDbData());
+        componentDbStatisticNew.update("name", componentDbStatisticNew.getName());
+        componentDbBag.update("itemList", componentDbBag.getItemList());
+        final List<ComponentDbData<String>> dirtyList = new ArrayList<>();
+        entityDbPlayer.forEachDirtyComponentDbData(dirtyList::add);
+        Assertions.assertEquals(2, dirtyList.size());
+        Assertions.assertTrue(dirtyList.containsAll(Arrays.asList(componentDbStatisticNew, componentDbBag)));
+        Assertions.assertEquals(2, Updaters.detachDirty(entityDbPlayer).size());
+        Assertions.assertFalse(entityDbPlayer.hasDirtyComponentDbData());
+
+        //整体替换所有组件，原来的组件全部脱离该实体
+        entityDbPlayer.setComponentDbDataMap(Collections.emptyMap());
+        Assertions.assertNull(entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertNull(entityDbPlayer.getComponentDbData(ComponentDbBag.class));
+        componentDbBag.update("itemList", componentDbBag.getItemList());
+        Assertions.assertFalse(entityDbPlayer.hasDirtyComponentDbData());
+    }
+
+    @Test
+    public void testComponentSlotsLazy() {
+        entityDbDataAfterLoadEventListener.setLazyComponent(true);
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbData);
+        Assertions.assertNull(entityDbData.getLoadedComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertTrue(entityDbData.hasComponentDbData(ComponentDbStatistic.class));
+
+        //第一次访问时实例化并放入槽位，之后返回同一个实例，被标脏时记录在位图中
+        final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+        Assertions.assertSame(componentDbStatistic, entityDbData.getLoadedComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertSame(componentDbStatistic, entityDbData.getComponentDbData(ComponentDbStatistic.class));
+        componentDbStatistic.setName("lazySlot");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(Collections.singleton(componentDbStatistic), entityDbData.getDirtyComponentDbData());
+
+        //添加的组件替换尚未实例化的同类型组件，不会实例化原来的组件
+        final ComponentDbBag componentDbBag = new ComponentDbBag(null);
+        Assertions.assertNull(entityDbData.addComponentDbData(componentDbBag));
+        Assertions.assertTrue(entityDbData.getRawComponentMap().isEmpty());
+        Assertions.assertSame(componentDbBag, entityDbData.getComponentDbData(ComponentDbBag.class));
+
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join().getMatchedCount());
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertEquals("lazySlot", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+    }
+
+    @Test
+    public void testComponentSlotsBeyondLong() {
+        //为数组类型分配槽位，使得之后第一次被使用的组件类型的槽位不小于64，标脏位位于位图的第二个long中
+        Class<?> clazz = int.class;
+        while (ComponentSlots.count() < 64) {
+            clazz = java.lang.reflect.Array.newInstance(clazz, 0).getClass();
+            ComponentSlots.slot(clazz);
+        }
+        Assertions.assertTrue(ComponentSlots.slot(ComponentDbSlot.class) >= 64);
+        Assertions.assertTrue(ComponentSlots.slot(ComponentDbStatistic.class) < 64);
+
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final ComponentDbSlot componentDbSlot = new ComponentDbSlot();
+        entityDbData.addComponentDbData(componentDbSlot);
+        Assertions.assertSame(componentDbSlot, entityDbData.getComponentDbData(ComponentDbSlot.class));
+
+        componentDbSlot.setValue(64);
+        componentDbSlot.update("value", componentDbSlot.getValue());
+        Assertions.assertEquals(Collections.singleton(componentDbSlot), entityDbData.getDirtyComponentDbData());
+        componentDbStatistic.setName("beyondLong");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(new HashSet<>(Arrays.asList(componentDbStatistic, componentDbSlot)), entityDbData.getDirtyComponentDbData());
+
+        //两个long中的标脏位分别清除
+        Updaters.detach(componentDbSlot);
+        Assertions.assertEquals(Collections.singleton(componentDbStatistic), entityDbData.getDirtyComponentDbData());
+        componentDbSlot.update("value", componentDbSlot.getValue());
+        Assertions.assertEquals(1, gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join().getMatchedCount());
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertEquals("beyondLong", Objects.requireNonNull(entityDbDataLoad).getComponentDbData(ComponentDbStatistic.class).getName());
+        Assertions.assertEquals(64, entityDbDataLoad.getComponentDbData(ComponentDbSlot.class).getValue());
+    }
+
+    @Test
+    public void testLazyComponentDecodeFailure() {
+        final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+        final Document raw = new Document("name", "broken");
+        entityDbPlayer.setRawComponents(Collections.singletonMap(ComponentDbStatistic.class.getSimpleName(), raw), bson -> {
+            throw new IllegalArgumentException("broken component");
+        });
+
+        //实例化失败时抛出异常，原始的内嵌文档被保留，完整存储时不会丢失该组件
+        final IllegalStateException exception = Assertions.assertThrows(IllegalStateException.class,
+                () -> entityDbPlayer.getComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertTrue(exception.getCause() instanceof IllegalArgumentException);
+        Assertions.assertSame(raw, entityDbPlayer.getRawComponentMap().get(ComponentDbStatistic.class.getSimpleName()));
+        Assertions.assertTrue(entityDbPlayer.hasComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertNull(entityDbPlayer.getLoadedComponentDbData(ComponentDbStatistic.class));
+    }
+
+    @Test
+    public void testRawBsonRead() {
+        final MongoCollection<RawBsonDocument> collection = gamedoMongoTemplate.getCollection("player")
+                .withDocumentClass(RawBsonDocument.class);
+        final RawBsonDocument documentBefore = collection.find(Filters.eq("_id", new ObjectId(EntityId))).first();
+        Assertions.assertNotNull(documentBefore);
+
+        gamedoMongoTemplate.setRawBsonRead(true);
+        try {
+            final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            Assertions.assertNotNull(entityDbData);
+            Assertions.assertEquals(EntityId, entityDbData.getId());
+            Assertions.assertTrue(entityDbData.getLoadedComponentDbDataCollection().isEmpty());
+            Assertions.assertEquals(2, entityDbData.getRawComponentMap().size());
+            entityDbData.getRawComponentMap().values().forEach(raw -> Assertions.assertTrue(raw instanceof RawBsonDocument));
+
+            //未被访问过的组件以原始字节写回
+            gamedoMongoTemplate.saveDbDataAsync(entityDbData).join();
+            final RawBsonDocument documentAfter = collection.find(Filters.eq("_id", new ObjectId(EntityId))).first();
+            Assertions.assertNotNull(documentAfter);
+            Assertions.assertEquals(documentBefore.get("ComponentDbBag"), documentAfter.get("ComponentDbBag"));
+            Assertions.assertEquals(documentBefore.get("ComponentDbStatistic"), documentAfter.get("ComponentDbStatistic"));
+
+            //被访问过的组件依然可以增量更新
+            final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+            Assertions.assertEquals(DEFAULT_NAME, componentDbStatistic.getName());
+            Assertions.assertEquals(EntityId, componentDbStatistic.getId());
+            componentDbStatistic.setName("raw");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            gamedoMongoTemplate.updateEntityDirtyAsync(entityDbData).join();
+
+            final EntityDbPlayer entityDbDataPartial = gamedoMongoTemplate.findEntityDbDataByIdAsync(EntityId,
+                    EntityDbPlayer.class,
+                    Collections.singletonList(ComponentDbStatistic.class)).join();
+            Assertions.assertNotNull(entityDbDataPartial);
+            Assertions.assertTrue(entityDbDataPartial.hasComponentDbData(ComponentDbStatistic.class));
+            Assertions.assertFalse(entityDbDataPartial.hasComponentDbData(ComponentDbBag.class));
+        } finally {
+            gamedoMongoTemplate.setRawBsonRead(false);
+        }
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbDataLoad);
+        Assertions.assertEquals("raw", entityDbDataLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+        Assertions.assertNotNull(entityDbDataLoad.getComponentDbData(ComponentDbBag.class));
+    }
+
+    @Test
+    public void testFindEntityDbDataByIdAsyncPartial() {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findEntityDbDataByIdAsync(EntityId,
+                EntityDbPlayer.class,
+                Collections.singletonList(ComponentDbStatistic.class)).join();
+
+        Assertions.assertNotNull(entityDbData);
+        Assertions.assertTrue(entityDbData.isPartial());
+        Assertions.assertTrue(entityDbData.hasComponentDbData(ComponentDbStatistic.class));
+        Assertions.assertFalse(entityDbData.hasComponentDbData(ComponentDbBag.class));
+
+        final ComponentDbStatistic componentDbStatistic = entityDbData.getComponentDbData(ComponentDbStatistic.class);
+        Assertions.assertEquals(DEFAULT_NAME, componentDbStatistic.getName());
+
+        componentDbStatistic.setName("partial");
+        gamedoMongoTemplate.saveDbDataAsync(entityDbData).join();
+
+        final EntityDbPlayer entityDbDataLoad = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        Assertions.assertNotNull(entityDbDataLoad);
+        Assertions.assertTrue(entityDbDataLoad.hasComponentDbData(ComponentDbBag.class));
+        Assertions.assertEquals("partial", entityDbDataLoad.getComponentDbData(ComponentDbStatistic.class).getName());
+    }
+
+    @Test
+    public void testFindComponentDbDataByIdsAsync() {
+        final List<String> idList = IntStream.range(0, 10)
+                .mapToObj(i -> {
+                    final EntityDbPlayer entityDbPlayer = new EntityDbPlayer(new ObjectId().toString(), null);
+                    entityDbPlayer.addComponentDbData(new ComponentDbStatistic("batch" + i));
+                    gamedoMongoTemplate.save(entityDbPlayer);
+                    return entityDbPlayer.getId();
+                })
+                .collect(Collectors.toList());
+
+        final List<String> idListQuery = new ArrayList<>(idList);
+        idListQuery.add(new ObjectId().toString());
+
+        final BatchLoadConfig batchLoadConfig = gamedoMongoTemplate.getBatchLoadConfig();
+        gamedoMongoTemplate.setBatchLoadConfig(BatchLoadConfig.builder().chunkSize(3).parallelism(2).build());
+        try {
+            final Map<String, ComponentDbStatistic> id2Data = gamedoMongoTemplate.findComponentDbDataByIdsAsync(idListQuery,
+                    ComponentDbStatistic.class).join();
+
+            Assertions.assertEquals(idList.size(), id2Data.size());
+            for (int i = 0; i < idList.size(); i++) {
+                Assertions.assertEquals("batch" + i, id2Data.get(idList.get(i)).getName());
+            }
+        } finally {
+            gamedoMongoTemplate.setBatchLoadConfig(batchLoadConfig);
+        }
+    }
+
+    @Test
+    public void testOrderedLane() {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+
+        final List<CompletableFuture<UpdateResult>> futureList = IntStream.range(0, 100)
+                .mapToObj(i -> {
+                    componentDbStatistic.setName("lane" + i);
+                    componentDbStatistic.update("name", componentDbStatistic.getName());
+                    return gamedoMongoTemplate.updateDbDataFirstAsync(componentDbStatistic);
+                })
+                .collect(Collectors.toList());
+
+        futureList.forEach(CompletableFuture::join);
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals("lane99", data.getName());
+        Assertions.assertEquals(0, gamedoMongoTemplate.getLaneExecutor().getActiveLaneCount());
+    }
+
+    @Test
+    public void testReactiveUpdateDeferred() {
+        try (MongoClient mongoClient = MongoClients.create("mongodb://127.0.0.1:27017")) {
+            final GamedoReactiveMongoTemplate reactiveTemplate = new GamedoReactiveMongoTemplate(
+                    new ReactiveMongoTemplate(mongoClient, "persistenceTest"));
+            //响应式模板不会覆盖主模板设置的转换器
+            Assertions.assertSame(gamedoMongoTemplate.getConverter(), Updater.getMongoConverter());
+
+            final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+            final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+            componentDbStatistic.setName("reactive");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+
+            //没有被订阅的Mono不会摘下更新器
+            reactiveTemplate.updateDbDataFirst(componentDbStatistic);
+            reactiveTemplate.updateEntityDirty(entityDbData);
+            Assertions.assertTrue(componentDbStatistic.isDirty());
+
+            //订阅之前的修改同样会被写入
+            final Mono<UpdateResult> mono = reactiveTemplate.updateEntityDirty(entityDbData);
+            componentDbStatistic.increment("killCount", 1);
+            Assertions.assertEquals(1L, Objects.requireNonNull(mono.block()).getModifiedCount());
+            Assertions.assertFalse(componentDbStatistic.isDirty());
+        }
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals("reactive", data.getName());
+        Assertions.assertEquals(1, data.getKillCount());
+    }
+
+    @Test
+    public void testSharedTypeRegistry() {
+        final DbDataTypeRegistry typeRegistry = new DbDataTypeRegistry();
+        try (GamedoMongoTemplate template = new GamedoMongoTemplate(mongoTemplate,
+                gamedoMongoTemplate.getAsyncExecutor(),
+                new OrderedLaneExecutor(),
+                typeRegistry)) {
+            Assertions.assertSame(typeRegistry, template.getTypeRegistry());
+            Assertions.assertEquals(0, typeRegistry.size());
+
+            //异步存储时，转换器直接应用的打散逻辑会将存储过的类型注册到共享的注册表中
+            final ComponentDbStatistic componentDbStatistic = new ComponentDbStatistic("typeRegistry");
+            componentDbStatistic.setId(EntityId);
+            template.saveDbDataAsync(componentDbStatistic).join();
+            Assertions.assertEquals(1, typeRegistry.size());
+
+            final ComponentDbStatistic data = template.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+            Assertions.assertEquals("typeRegistry", data.getName());
+        }
+    }
+
+    @Test
+    public void testSupersededUpdateResult() {
+        final List<Runnable> runnableList = new ArrayList<>();
+        try (GamedoMongoTemplate mergingTemplate = new GamedoMongoTemplate(mongoTemplate,
+                runnableList::add,
+                new OrderedLaneExecutor(true))) {
+            final EntityDbPlayer entityDbData = mergingTemplate.findById(EntityId, EntityDbPlayer.class);
+            final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+
+            componentDbStatistic.setName("superseded");
+            componentDbStatistic.update("name", componentDbStatistic.getName());
+            final CompletableFuture<UpdateResult> updateFuture = mergingTemplate.updateDbDataFirstAsync(componentDbStatistic);
+            final CompletableFuture<EntityDbPlayer> saveFuture = mergingTemplate.saveDbDataAsync(entityDbData);
+
+            //通道尚未开始执行，排队中的更新被随后的完整存储取代
+            Assertions.assertEquals(1, runnableList.size());
+            runnableList.forEach(Runnable::run);
+            Assertions.assertSame(IGamedoMongoTemplate.SUPERSEDED_UPDATE_RESULT, updateFuture.join());
+            Assertions.assertSame(entityDbData, saveFuture.join());
+            Assertions.assertEquals(0, mergingTemplate.getLaneExecutor().getActiveLaneCount());
+        }
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals("superseded", data.getName());
+    }
+
+    @Test
+    public void testWriteBehindFlush() throws InterruptedException {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final WriteBehindScheduler scheduler = new WriteBehindScheduler(gamedoMongoTemplate);
+
+        scheduler.register(componentDbStatistic);
+        Assertions.assertEquals(0, scheduler.flush());
+
+        componentDbStatistic.setName("writeBehind");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(1, scheduler.flush());
+        Assertions.assertFalse(componentDbStatistic.isDirty());
+
+        //自动调度时，刷新被投递到业务线程上执行，调度线程不会摘下更新器
+        final List<Runnable> ownerTaskList = new CopyOnWriteArrayList<>();
+        componentDbStatistic.setName("writeBehindScheduled");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        scheduler.start(ownerTaskList::add);
+        awaitTrue(() -> !ownerTaskList.isEmpty());
+        Assertions.assertTrue(componentDbStatistic.isDirty());
+        //上一次投递的刷新尚未执行时，不会重复投递
+        Thread.sleep(WriteBehindConfig.DEFAULT.getFlushInterval().toMillis() * 2);
+        Assertions.assertEquals(1, ownerTaskList.size());
+        ownerTaskList.forEach(Runnable::run);
+        Assertions.assertFalse(componentDbStatistic.isDirty());
+        scheduler.stop();
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals("writeBehindScheduled", data.getName());
+    }
+
+    @Test
+    public void testWriteBehindRetry() throws InterruptedException {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final MongoCollection<Document> collection = gamedoMongoTemplate.getCollection(gamedoMongoTemplate.getCollectionName(EntityDbPlayer.class));
+        final WriteBehindScheduler scheduler = new WriteBehindScheduler(gamedoMongoTemplate);
+        scheduler.register(componentDbStatistic);
+
+        //$inc作用于一个字符串字段，bulkWrite失败，被摘下的更新等待重新提交
+        collection.updateOne(Filters.eq("_id", new ObjectId(EntityId)), Updates.set("ComponentDbStatistic.killCount", "invalid"));
+        componentDbStatistic.increment("killCount", 1);
+        Assertions.assertEquals(1, scheduler.flush());
+        awaitTrue(() -> scheduler.getRetryCount() == 1);
+        Assertions.assertFalse(componentDbStatistic.isDirty());
+
+        //字段恢复后，失败的更新先于新的更新被重新提交
+        collection.updateOne(Filters.eq("_id", new ObjectId(EntityId)), Updates.set("ComponentDbStatistic.killCount", 10));
+        componentDbStatistic.setName("retry");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        scheduler.start(Runnable::run);
+        scheduler.stop();
+        Assertions.assertEquals(0, scheduler.getRetryCount());
+
+        final ComponentDbStatistic data = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join();
+        Assertions.assertEquals(11, data.getKillCount());
+        Assertions.assertEquals("retry", data.getName());
+    }
+
+    @Test
+    public void testWriteBehindRejected() throws InterruptedException {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final AtomicBoolean rejecting = new AtomicBoolean(true);
+        final WriteBehindScheduler scheduler = new WriteBehindScheduler(gamedoMongoTemplate,
+                WriteBehindConfig.DEFAULT,
+                command -> {
+                    if (rejecting.get()) {
+                        throw new RejectedExecutionException("rejected");
+                    }
+                    gamedoMongoTemplate.getAsyncExecutor().execute(command);
+                });
+        scheduler.register(componentDbStatistic);
+
+        //线程池拒绝执行时，被摘下的更新等待重新提交，数据也不会一直处于执行中的状态
+        componentDbStatistic.setName("rejected");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(1, scheduler.flush());
+        Assertions.assertEquals(1, scheduler.getRetryCount());
+        Assertions.assertFalse(componentDbStatistic.isDirty());
+
+        rejecting.set(false);
+        Assertions.assertEquals(1, scheduler.flush());
+        awaitTrue(() -> scheduler.getRetryCount() == 0 &&
+                "rejected".equals(gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join().getName()));
+    }
+
+    @Test
+    public void testWriteBehindDirtyEntities() throws InterruptedException {
+        final EntityDbPlayer entityDbData = gamedoMongoTemplate.findById(EntityId, EntityDbPlayer.class);
+        final ComponentDbStatistic componentDbStatistic = Objects.requireNonNull(entityDbData).getComponentDbData(ComponentDbStatistic.class);
+        final WriteBehindScheduler scheduler = new WriteBehindScheduler(gamedoMongoTemplate);
+
+        //注册之前已经排在其他注册表中的脏实体，依然会在下一次刷新时被提交
+        final DirtyEntities dirtyEntities = new DirtyEntities();
+        entityDbData.setDirtyEntities(dirtyEntities);
+        componentDbStatistic.setName("dirtyBeforeRegister");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(1, dirtyEntities.size());
+        scheduler.register(entityDbData);
+        Assertions.assertNotSame(dirtyEntities, entityDbData.getDirtyEntities());
+        Assertions.assertEquals(1, scheduler.flush());
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+        Assertions.assertEquals(0, scheduler.flush());
+
+        //组件被标脏时，实体被排入调度器自己的注册表，上一个批次执行完毕之前被留下来，之后的刷新中被提交
+        componentDbStatistic.setName("dirtyEntities");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        final AtomicInteger flushCount = new AtomicInteger();
+        awaitTrue(() -> flushCount.addAndGet(scheduler.flush()) == 1);
+        Assertions.assertFalse(entityDbData.hasDirtyComponentDbData());
+        awaitTrue(() -> "dirtyEntities".equals(gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class).join().getName()));
+
+        //取消注册之后，实体不再使用调度器的注册表，也不再被刷新
+        Assertions.assertTrue(scheduler.unregister(entityDbData));
+        Assertions.assertNull(entityDbData.getDirtyEntities());
+        componentDbStatistic.setName("unregistered");
+        componentDbStatistic.update("name", componentDbStatistic.getName());
+        Assertions.assertEquals(0, scheduler.flush());
+        Assertions.assertTrue(entityDbData.hasDirtyComponentDbData());
+    }
+
     @Test
     public void testFindComponentDbDataDbDataByIdAsync() {
         final CompletableFuture<ComponentDbStatistic> future = gamedoMongoTemplate.findComponentDbDataByIdAsync(EntityId, ComponentDbStatistic.class);
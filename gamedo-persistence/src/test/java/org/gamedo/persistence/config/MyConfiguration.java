@@ -2,6 +2,10 @@ package org.gamedo.persistence.config;
 
 import lombok.extern.log4j.Log4j2;
 import org.gamedo.persistence.GamedoMongoTemplate;
+import org.gamedo.persistence.PersistenceSettings;
+import org.gamedo.persistence.convert.DbDataTypeRegistry;
+import org.gamedo.persistence.executor.OrderedLaneExecutor;
+import org.gamedo.persistence.executor.PersistenceExecutor;
 import org.gamedo.persistence.listeners.ComponentDbDataAfterLoadEventListener;
 import org.gamedo.persistence.listeners.ComponentDbDataBeforeSaveEventListener;
 import org.gamedo.persistence.listeners.EntityDbDataAfterLoadEventListener;
@@ -31,27 +35,41 @@ public class MyConfiguration {
     }
 
     @Bean
-    GamedoMongoTemplate gamedoMongoTemplate(MongoTemplate mongoTemplate) {
-        return new GamedoMongoTemplate(mongoTemplate);
+    PersistenceSettings persistenceSettings() {
+        return new PersistenceSettings();
     }
 
     @Bean
-    EntityDbDataBeforeSaveEventListener entityDbDataBeforeSaveEventListener(MongoConverter mongoConverter) {
-        return new EntityDbDataBeforeSaveEventListener(mongoConverter);
+    PersistenceExecutor persistenceExecutor() {
+        return new PersistenceExecutor();
     }
 
     @Bean
-    EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener(MongoConverter mongoConverter) {
-        return new EntityDbDataAfterLoadEventListener(mongoConverter);
+    GamedoMongoTemplate gamedoMongoTemplate(MongoTemplate mongoTemplate,
+                                            PersistenceExecutor persistenceExecutor,
+                                            PersistenceSettings settings) {
+        return new GamedoMongoTemplate(mongoTemplate, persistenceExecutor, new OrderedLaneExecutor(), null, settings);
     }
 
     @Bean
-    ComponentDbDataBeforeSaveEventListener componentDbDataBeforeSaveEventListener() {
-        return new ComponentDbDataBeforeSaveEventListener();
+    EntityDbDataBeforeSaveEventListener entityDbDataBeforeSaveEventListener(MongoConverter mongoConverter,
+                                                                            PersistenceSettings settings) {
+        return new EntityDbDataBeforeSaveEventListener(mongoConverter, new DbDataTypeRegistry(mongoConverter), settings);
     }
 
     @Bean
-    ComponentDbDataAfterLoadEventListener componentDbDataAfterLoadEventListener() {
-        return new ComponentDbDataAfterLoadEventListener();
+    EntityDbDataAfterLoadEventListener entityDbDataAfterLoadEventListener(MongoConverter mongoConverter,
+                                                                          PersistenceSettings settings) {
+        return new EntityDbDataAfterLoadEventListener(mongoConverter, new DbDataTypeRegistry(mongoConverter), settings);
+    }
+
+    @Bean
+    ComponentDbDataBeforeSaveEventListener componentDbDataBeforeSaveEventListener(PersistenceSettings settings) {
+        return new ComponentDbDataBeforeSaveEventListener(new DbDataTypeRegistry(), settings);
+    }
+
+    @Bean
+    ComponentDbDataAfterLoadEventListener componentDbDataAfterLoadEventListener(PersistenceSettings settings) {
+        return new ComponentDbDataAfterLoadEventListener(new DbDataTypeRegistry(), settings);
     }
 }
@@ -0,0 +1,19 @@
+package org.gamedo.persistence.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.gamedo.persistence.annotations.ComponentStorage;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@ComponentStorage(StoragePolicy.OVERFLOW)
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("player")
+public class ComponentDbArchive extends ComponentDbData<String> {
+    private int level;
+    private List<String> battleList = new ArrayList<>();
+}
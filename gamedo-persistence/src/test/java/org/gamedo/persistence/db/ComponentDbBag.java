@@ -2,6 +2,9 @@ package org.gamedo.persistence.db;
 
 import lombok.Data;
 import lombok.EqualsAndHashCode;
+import org.gamedo.persistence.db.track.TrackedList;
+import org.gamedo.persistence.db.track.TrackedMap;
+import org.gamedo.persistence.db.track.TrackedSet;
 import org.springframework.data.mongodb.core.mapping.Document;
 
 import java.util.ArrayList;
@@ -13,6 +16,9 @@ import java.util.List;
 @Document("player")
 public class ComponentDbBag extends ComponentDbData<String> {
     final List<Integer> itemList = new ArrayList<>();
+    TrackedMap<String, Integer> itemCountMap = new TrackedMap<>();
+    TrackedSet<Integer> itemSet = new TrackedSet<>();
+    TrackedList<Integer> slotList = new TrackedList<>();
 
     public ComponentDbBag(final List<Integer> itemList) {
         this.itemList.addAll(itemList != null ? itemList : Collections.emptyList());
@@ -0,0 +1,69 @@
+package org.gamedo.persistence.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.bson.BsonReader;
+import org.bson.BsonWriter;
+import org.bson.codecs.DecoderContext;
+import org.bson.codecs.EncoderContext;
+import org.gamedo.persistence.codec.AbstractDbDataCodec;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 测试用的组件，其中的{@link GeneratedCodec}与gamedo-persistence-lombok为{@code @GamedoCodec}生成的代码一致
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("player")
+public class ComponentDbCodec extends ComponentDbData<String> {
+    private int level;
+    private long exp;
+    @Field("n")
+    private String name;
+    private Integer vipLevel;
+    private List<Integer> heroList = new ArrayList<>();
+
+    public static final class GeneratedCodec extends AbstractDbDataCodec<ComponentDbCodec> {
+        public GeneratedCodec() {
+            super(ComponentDbCodec.class, "level", "exp", "n", "vipLevel");
+        }
+
+        @Override
+        protected ComponentDbCodec newInstance() {
+            return new ComponentDbCodec();
+        }
+
+        @Override
+        protected void encodeFields(final BsonWriter writer, final ComponentDbCodec value, final EncoderContext context) {
+            write(writer, "level", value.level);
+            write(writer, "exp", value.exp);
+            write(writer, "n", value.name);
+            write(writer, "vipLevel", value.vipLevel);
+        }
+
+        @Override
+        protected boolean decodeField(final String key, final BsonReader reader, final ComponentDbCodec value, final DecoderContext context) {
+            if ("level".equals(key)) {
+                value.level = readInt32(reader);
+                return true;
+            }
+            if ("exp".equals(key)) {
+                value.exp = readInt64(reader);
+                return true;
+            }
+            if ("n".equals(key)) {
+                value.name = readString(reader);
+                return true;
+            }
+            if ("vipLevel".equals(key)) {
+                value.vipLevel = readNullableInt32(reader);
+                return true;
+            }
+            return false;
+        }
+    }
+}
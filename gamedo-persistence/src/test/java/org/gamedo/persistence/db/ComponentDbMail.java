@@ -0,0 +1,18 @@
+package org.gamedo.persistence.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.gamedo.persistence.annotations.ComponentStorage;
+import org.gamedo.persistence.storage.StoragePolicy;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.ArrayList;
+import java.util.List;
+
+@ComponentStorage(StoragePolicy.COMPRESSED)
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("player")
+public class ComponentDbMail extends ComponentDbData<String> {
+    private List<String> mailList = new ArrayList<>();
+}
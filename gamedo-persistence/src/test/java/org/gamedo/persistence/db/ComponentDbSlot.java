@@ -0,0 +1,15 @@
+package org.gamedo.persistence.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * 只在槽位超过64的测试中使用的组件，它的槽位在该测试中第一次被分配
+ */
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("player")
+public class ComponentDbSlot extends ComponentDbData<String> {
+    private int value;
+}
@@ -9,6 +9,8 @@ import org.springframework.data.mongodb.core.mapping.Document;
 @Document("player")
 public class ComponentDbStatistic extends ComponentDbData<String> {
     private String name;
+    private int killCount;
+    private int maxDamage;
 
     public ComponentDbStatistic(String name) {
         this.name = name;
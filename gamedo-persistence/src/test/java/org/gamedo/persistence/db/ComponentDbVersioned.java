@@ -0,0 +1,14 @@
+package org.gamedo.persistence.db;
+
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import org.gamedo.persistence.annotations.Versioned;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+@Versioned
+@EqualsAndHashCode(callSuper = true)
+@Data
+@Document("player")
+public class ComponentDbVersioned extends ComponentDbData<String> {
+    private int gold;
+}
@@ -0,0 +1,58 @@
+package org.gamedo.persistence.db;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.List;
+
+/**
+ * 只实现了{@link IUpdater}最初的抽象方法的更新器，用于验证新增的方法对已有的实现保持兼容
+ */
+public class LegacyUpdater implements IUpdater {
+    private final String prefix;
+    private final Update update = new Update();
+
+    public LegacyUpdater(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public String getPrefix() {
+        return prefix;
+    }
+
+    @Override
+    public void update(String key, Object value) {
+        update.set(prefix + key, value);
+    }
+
+    @Override
+    public boolean isDirty() {
+        return !update.getUpdateObject().isEmpty();
+    }
+
+    @Override
+    public Boolean isIsolated() {
+        return update.isIsolated();
+    }
+
+    @Override
+    public Document getUpdateObject() {
+        return update.getUpdateObject();
+    }
+
+    @Override
+    public boolean modifies(String key) {
+        return update.modifies(key);
+    }
+
+    @Override
+    public void inc(String key) {
+        update.inc(key);
+    }
+
+    @Override
+    public List<ArrayFilter> getArrayFilters() {
+        return update.getArrayFilters();
+    }
+}